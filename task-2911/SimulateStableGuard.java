@@ -12,6 +12,8 @@
  *
  * Please see the README for more information! */
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
 import java.text.*;
 import java.util.*;
 public class SimulateStableGuard {
@@ -44,200 +46,185 @@ public class SimulateStableGuard {
       SimpleDateFormat isoFormatter = new SimpleDateFormat(
           "yyyy-MM-dd HH:mm:ss");
       isoFormatter.setTimeZone(TimeZone.getTimeZone("UTC"));
-      Map<String, String> runningRelays = new HashMap<String, String>();
-      BufferedReader br = new BufferedReader(new FileReader(
-          "running-relays-reverse.csv"));
-      String line, lastValidAfter = null, lastButOneValidAfter = null;
+      RunningRelaysReader reader = openRunningRelays(
+          "running-relays-reverse.csv");
+      Map<String, Integer> runningRelays = new HashMap<String, Integer>();
+      long lastButOneValidAfterMillis = -1L;
       long nextWeightingInterval = -1L;
-      while ((line = br.readLine()) != null) {
-        if (!line.startsWith("20")) {
+      while (reader.nextConsensus()) {
+        long lastValidAfterMillis = reader.getValidAfterMillis();
+        String lastValidAfter = isoFormatter.format(lastValidAfterMillis);
+
+        /* We just read the very first consensus.  There's nothing to do
+         * here. */
+        if (lastButOneValidAfterMillis < 0L) {
+          lastButOneValidAfterMillis = lastValidAfterMillis;
           continue;
         }
-        String[] parts = line.split(",");
-        String validAfter = parts[0];
-        if (lastValidAfter != null &&
-            !lastValidAfter.equals(validAfter)) {
-
-          /* We just parsed the very first consensus.  There's nothing to
-           * do here. */
-          if (lastButOneValidAfter == null) {
-            runningRelays.clear();
-            lastButOneValidAfter = lastValidAfter;
-            continue;
-          }
 
-          /* We just parsed the first consensus outside the analysis
-           * interval.  Stop parsing here. */
-          if (lastValidAfter.compareTo(analyzeFrom) < 0) {
-            break;
-          }
+        /* We just read the first consensus outside the analysis
+         * interval.  Stop reading here. */
+        if (lastValidAfter.compareTo(analyzeFrom) < 0) {
+          break;
+        }
 
-          /* We just parsed all lines of a consensus.  First, see if 12
-           * hours have passed since we last discounted wfu and wb history
-           * values.  If so, discount variables for all known relays by
-           * factor 0.95 (or 19/20 since these are long integers) and
-           * remove those relays with a weighted fractional uptime below
-           * 1/10000 from the history. */
-          long lastValidAfterMillis = isoFormatter.parse(lastValidAfter).
-              getTime();
-          long secondsSinceLastValidAfter =
-              (isoFormatter.parse(lastButOneValidAfter).getTime()
-              - lastValidAfterMillis) / 1000L;
-          long weightingInterval = lastValidAfterMillis
-              / (12L * 60L * 60L * 1000L);
-          if (nextWeightingInterval < 0L) {
-            nextWeightingInterval = weightingInterval;
-          }
-          while (weightingInterval < nextWeightingInterval) {
-            Set<String> relaysToRemove = new HashSet<String>();
-            for (Map.Entry<String, long[]> e : wfuHistory.entrySet()) {
-              long[] w = e.getValue();
-              w[0] *= 19L;
-              w[0] /= 20L;
-              w[1] *= 19L;
-              w[1] /= 20L;
-              if (((10000L * w[0]) / w[1]) < 1L) {
-                relaysToRemove.add(e.getKey());
-              }
-            }
-            for (String fingerprint : relaysToRemove) {
-              wfuHistory.remove(fingerprint);
-            }
-            relaysToRemove.clear();
-            for (Map.Entry<String, long[]> e : wbHistory.entrySet()) {
-              long[] w = e.getValue();
-              w[0] *= 19L;
-              w[0] /= 20L;
-              w[1] *= 19L;
-              w[1] /= 20L;
-              if (w[1] < 1L) {
-                relaysToRemove.add(e.getKey());
-              }
-            }
-            for (String fingerprint : relaysToRemove) {
-              wbHistory.remove(fingerprint);
+        /* Remember which row of the consensus contains which relay. */
+        runningRelays.clear();
+        for (int i = 0; i < reader.getRelays(); i++) {
+          runningRelays.put(reader.getFingerprint(i), i);
+        }
+
+        /* We just read all relays of a consensus.  First, see if 12
+         * hours have passed since we last discounted wfu and wb history
+         * values.  If so, discount variables for all known relays by
+         * factor 0.95 (or 19/20 since these are long integers) and
+         * remove those relays with a weighted fractional uptime below
+         * 1/10000 from the history. */
+        long secondsSinceLastValidAfter =
+            (lastButOneValidAfterMillis - lastValidAfterMillis) / 1000L;
+        long weightingInterval = lastValidAfterMillis
+            / (12L * 60L * 60L * 1000L);
+        if (nextWeightingInterval < 0L) {
+          nextWeightingInterval = weightingInterval;
+        }
+        while (weightingInterval < nextWeightingInterval) {
+          Set<String> relaysToRemove = new HashSet<String>();
+          for (Map.Entry<String, long[]> e : wfuHistory.entrySet()) {
+            long[] w = e.getValue();
+            w[0] *= 19L;
+            w[0] /= 20L;
+            w[1] *= 19L;
+            w[1] /= 20L;
+            if (((10000L * w[0]) / w[1]) < 1L) {
+              relaysToRemove.add(e.getKey());
             }
-            nextWeightingInterval -= 1L;
           }
-
-          /* Increment weighted written bytes and total weighted time for
-           * all running relays. */
-          for (Map.Entry<String, String> runningRelay :
-              runningRelays.entrySet()) {
-            String fingerprint = runningRelay.getKey();
-            String[] relayParts = runningRelay.getValue().split(",");
-            long writtenSum = relayParts.length < 7 ? 0 :
-                Long.parseLong(relayParts[6]);
-            long[] w = wbHistory.containsKey(fingerprint) ?
-                wbHistory.get(fingerprint) : new long[2];
-            w[0] += writtenSum * secondsSinceLastValidAfter /
-                (24L * 60L * 60L);
-            w[1] += secondsSinceLastValidAfter;
-            wbHistory.put(fingerprint, w);
+          for (String fingerprint : relaysToRemove) {
+            wfuHistory.remove(fingerprint);
           }
-
-          /* Increment weighted uptime for all running relays that have
-           * not been restarted by seconds since last valid-after time. */
-          for (Map.Entry<String, String> runningRelay :
-              runningRelays.entrySet()) {
-            String fingerprint = runningRelay.getKey();
-            boolean restarted = runningRelay.getValue().
-                split(",")[2].equals("t");
-            long seconds = restarted ? 0 : secondsSinceLastValidAfter;
-            if (!wfuHistory.containsKey(fingerprint)) {
-              wfuHistory.put(fingerprint, new long[] { seconds, 0L });
-            } else {
-              wfuHistory.get(fingerprint)[0] += seconds;
+          relaysToRemove.clear();
+          for (Map.Entry<String, long[]> e : wbHistory.entrySet()) {
+            long[] w = e.getValue();
+            w[0] *= 19L;
+            w[0] /= 20L;
+            w[1] *= 19L;
+            w[1] /= 20L;
+            if (w[1] < 1L) {
+              relaysToRemove.add(e.getKey());
             }
           }
+          for (String fingerprint : relaysToRemove) {
+            wbHistory.remove(fingerprint);
+          }
+          nextWeightingInterval -= 1L;
+        }
 
-          /* Increment total weighted time for all relays by seconds since
-           * last valid-after time. */
-          for (long[] w : wfuHistory.values()) {
-            w[1] += secondsSinceLastValidAfter;
+        /* Increment weighted written bytes and total weighted time for
+         * all running relays. */
+        for (int i = 0; i < reader.getRelays(); i++) {
+          String fingerprint = reader.getFingerprint(i);
+          long writtenSum = reader.getWrittenSum(i);
+          long[] w = wbHistory.containsKey(fingerprint) ?
+              wbHistory.get(fingerprint) : new long[2];
+          w[0] += writtenSum * secondsSinceLastValidAfter /
+              (24L * 60L * 60L);
+          w[1] += secondsSinceLastValidAfter;
+          wbHistory.put(fingerprint, w);
+        }
+
+        /* Increment weighted uptime for all running relays that have
+         * not been restarted by seconds since last valid-after time. */
+        for (int i = 0; i < reader.getRelays(); i++) {
+          String fingerprint = reader.getFingerprint(i);
+          boolean restarted = reader.isRestarted(i);
+          long seconds = restarted ? 0 : secondsSinceLastValidAfter;
+          if (!wfuHistory.containsKey(fingerprint)) {
+            wfuHistory.put(fingerprint, new long[] { seconds, 0L });
+          } else {
+            wfuHistory.get(fingerprint)[0] += seconds;
           }
+        }
 
-          /* Iterate over our time until next failure history first and
-           * see if these relays have been running in the considered
-           * consensus.  Remember changes to our history and modify it
-           * below to avoid concurrent modification errors. */
-          Set<String> removeFromHistory = new HashSet<String>(),
-              foundInHistory = new HashSet<String>();
-          Map<String, Long> addToHistory = new HashMap<String, Long>();
-          for (Map.Entry<String, Long> e : tunfHistory.entrySet()) {
-            String fingerprint = e.getKey();
-            if (runningRelays.containsKey(fingerprint)) {
-
-              /* This relay has been running, so update our history. */
-              boolean restarted = runningRelays.get(fingerprint).
-                  split(",")[2].equals("t");
-              if (restarted) {
-                removeFromHistory.add(fingerprint);
-              } else {
-                addToHistory.put(fingerprint, secondsSinceLastValidAfter
-                    + e.getValue());
-              }
-              foundInHistory.add(fingerprint);
-            } else {
+        /* Increment total weighted time for all relays by seconds since
+         * last valid-after time. */
+        for (long[] w : wfuHistory.values()) {
+          w[1] += secondsSinceLastValidAfter;
+        }
 
-              /* This relay has not been running, so remove it from our
-               * history. */
+        /* Iterate over our time until next failure history first and
+         * see if these relays have been running in the considered
+         * consensus.  Remember changes to our history and modify it
+         * below to avoid concurrent modification errors. */
+        Set<String> removeFromHistory = new HashSet<String>(),
+            foundInHistory = new HashSet<String>();
+        Map<String, Long> addToHistory = new HashMap<String, Long>();
+        for (Map.Entry<String, Long> e : tunfHistory.entrySet()) {
+          String fingerprint = e.getKey();
+          if (runningRelays.containsKey(fingerprint)) {
+
+            /* This relay has been running, so update our history. */
+            boolean restarted = reader.isRestarted(
+                runningRelays.get(fingerprint));
+            if (restarted) {
               removeFromHistory.add(fingerprint);
+            } else {
+              addToHistory.put(fingerprint, secondsSinceLastValidAfter
+                  + e.getValue());
             }
-          }
+            foundInHistory.add(fingerprint);
+          } else {
 
-          /* Update our history for real now.  We couldn't do this above,
-           * or we'd have modified the set we've been iterating over. */
-          for (String f : removeFromHistory) {
-            tunfHistory.remove(f);
-          }
-          for (Map.Entry<String, Long> e : addToHistory.entrySet()) {
-            tunfHistory.put(e.getKey(), e.getValue());
+            /* This relay has not been running, so remove it from our
+             * history. */
+            removeFromHistory.add(fingerprint);
           }
+        }
 
-          /* Iterate over the relays that we found in the consensus, but
-           * that we didn't have in our history. */
-          for (Map.Entry<String, String> e : runningRelays.entrySet()) {
-            String fingerprint = e.getKey();
-            if (!foundInHistory.contains(fingerprint)) {
-              boolean restarted = e.getValue().split(",")[2].equals("t");
-              if (!restarted) {
-                tunfHistory.put(fingerprint, 0L);
-              }
-            }
-          }
+        /* Update our history for real now.  We couldn't do this above,
+         * or we'd have modified the set we've been iterating over. */
+        for (String f : removeFromHistory) {
+          tunfHistory.remove(f);
+        }
+        for (Map.Entry<String, Long> e : addToHistory.entrySet()) {
+          tunfHistory.put(e.getKey(), e.getValue());
+        }
 
-          /* If the consensus falls within our analysis interval, write
-           * future WFUs, TUNFs, and WBs for all known relays to disk. */
-          if (lastValidAfter.compareTo(analyzeFrom) >= 0) {
-            File futureStabilityFile = new File("future-stability",
-                formatter.format(lastValidAfterMillis));
-            futureStabilityFile.getParentFile().mkdirs();
-            BufferedWriter bw = new BufferedWriter(new FileWriter(
-                futureStabilityFile));
-            for (String fingerprint : runningRelays.keySet()) {
-              long[] wfu = wfuHistory.get(fingerprint);
-              long tunf = tunfHistory.containsKey(fingerprint) ?
-                  tunfHistory.get(fingerprint) : 0;
-              long[] wb = wbHistory.get(fingerprint);
-              bw.write(fingerprint + " " + tunf + " "
-                  + ((10000L * wfu[0]) / wfu[1]) + " "
-                  + (wb[0] / wb[1]) + "\n");
+        /* Iterate over the relays that we found in the consensus, but
+         * that we didn't have in our history. */
+        for (int i = 0; i < reader.getRelays(); i++) {
+          String fingerprint = reader.getFingerprint(i);
+          if (!foundInHistory.contains(fingerprint)) {
+            boolean restarted = reader.isRestarted(i);
+            if (!restarted) {
+              tunfHistory.put(fingerprint, 0L);
             }
-            bw.close();
           }
+        }
 
-          /* Prepare for next consensus. */
-          runningRelays.clear();
-          lastButOneValidAfter = lastValidAfter;
+        /* If the consensus falls within our analysis interval, write
+         * future WFUs, TUNFs, and WBs for all known relays to disk. */
+        if (lastValidAfter.compareTo(analyzeFrom) >= 0) {
+          File futureStabilityFile = new File("future-stability",
+              formatter.format(lastValidAfterMillis));
+          futureStabilityFile.getParentFile().mkdirs();
+          BufferedWriter bw = new BufferedWriter(new FileWriter(
+              futureStabilityFile));
+          for (String fingerprint : runningRelays.keySet()) {
+            long[] wfu = wfuHistory.get(fingerprint);
+            long tunf = tunfHistory.containsKey(fingerprint) ?
+                tunfHistory.get(fingerprint) : 0;
+            long[] wb = wbHistory.get(fingerprint);
+            bw.write(fingerprint + " " + tunf + " "
+                + ((10000L * wfu[0]) / wfu[1]) + " "
+                + (wb[0] / wb[1]) + "\n");
+          }
+          bw.close();
         }
 
-        /* Add the running relay lines to a map that we parse once we have
-         * all lines of a consensus. */
-        String fingerprint = parts[1];
-        runningRelays.put(fingerprint, line);
-        lastValidAfter = validAfter;
+        /* Prepare for next consensus. */
+        lastButOneValidAfterMillis = lastValidAfterMillis;
       }
+      reader.close();
     }
 
     /* Run the Guard simulation for the following WFU and advertised
@@ -322,521 +309,751 @@ public class SimulateStableGuard {
     SimpleDateFormat isoFormatter = new SimpleDateFormat(
         "yyyy-MM-dd HH:mm:ss");
     isoFormatter.setTimeZone(TimeZone.getTimeZone("UTC"));
-    Map<String, String> runningRelays = new HashMap<String, String>();
+    RunningRelaysReader reader = openRunningRelays(
+        "running-relays-forward.csv");
+    Map<String, Integer> runningRelays = new HashMap<String, Integer>();
     Set<String> guardRelays = new HashSet<String>(),
         stableRelays = new HashSet<String>();
-    BufferedReader br = new BufferedReader(new FileReader(
-        "running-relays-forward.csv"));
-    String line, lastValidAfter = null, firstValidAfter = null,
-        lastButOneValidAfter = null;
+    long lastButOneValidAfterMillis = -1L;
     long nextWeightingInterval = -1L;
-    while ((line = br.readLine()) != null) {
-      if (!line.startsWith("20")) {
+    while (reader.nextConsensus()) {
+      long lastValidAfterMillis = reader.getValidAfterMillis();
+      String lastValidAfter = isoFormatter.format(lastValidAfterMillis);
+
+      /* We just read the very first consensus.  There's nothing to do
+       * here. */
+      if (lastButOneValidAfterMillis < 0L) {
+        lastButOneValidAfterMillis = lastValidAfterMillis;
         continue;
       }
-      String[] parts = line.split(",");
-      String validAfter = parts[0];
-      if (firstValidAfter == null) {
-        firstValidAfter = validAfter;
-      }
-      if (lastValidAfter != null &&
-          !lastValidAfter.equals(validAfter)) {
-
-        /* We just parsed the very first consensus.  There's nothing to
-         * do here. */
-        if (lastButOneValidAfter == null) {
-          runningRelays.clear();
-          guardRelays.clear();
-          stableRelays.clear();
-          lastButOneValidAfter = lastValidAfter;
-          continue;
-        }
 
-        /* We just parsed the first consensus outside the analysis
-         * interval.  Stop analysis here. */
-        if (lastValidAfter.compareTo(analyzeTo) > 0) {
-          break;
-        }
+      /* We just read the first consensus outside the analysis
+       * interval.  Stop analysis here. */
+      if (lastValidAfter.compareTo(analyzeTo) > 0) {
+        break;
+      }
 
-        /* We just parsed all lines of a consensus.  First, see if 12
-         * hours have passed since we last discounted uptimes and total
-         * times.  If so, discount both variables for all known relays by
-         * factor 0.95 (or 19/20 since these are long integers) and remove
-         * those relays with a weighted fractional uptime below 1/10000.
-         * Also, discount weighted run length and total run weights for
-         * all known relays by factor 0.95. */
-        long lastValidAfterMillis = isoFormatter.parse(lastValidAfter).
-            getTime();
-        long secondsSinceLastValidAfter = (lastValidAfterMillis
-            - isoFormatter.parse(lastButOneValidAfter).getTime()) / 1000L;
-        long weightingInterval = lastValidAfterMillis
-            / (12L * 60L * 60L * 1000L);
-        if (nextWeightingInterval < 0L) {
-          nextWeightingInterval = weightingInterval;
+      /* Remember which row of the consensus contains which relay, and
+       * which relays got the Stable and Guard flags assigned. */
+      runningRelays.clear();
+      guardRelays.clear();
+      stableRelays.clear();
+      for (int i = 0; i < reader.getRelays(); i++) {
+        String fingerprint = reader.getFingerprint(i);
+        runningRelays.put(fingerprint, i);
+        if (reader.isStable(i)) {
+          stableRelays.add(fingerprint);
         }
-        while (weightingInterval > nextWeightingInterval) {
-          Set<String> relaysToRemove = new HashSet<String>();
-          for (Map.Entry<String, long[]> e : wfuHistory.entrySet()) {
-            long[] w = e.getValue();
-            w[0] *= 19L;
-            w[0] /= 20L;
-            w[1] *= 19L;
-            w[1] /= 20L;
-            if (((10000L * w[0]) / w[1]) < 1L) {
-              relaysToRemove.add(e.getKey());
-            }
-          }
-          for (String fingerprint : relaysToRemove) {
-            wfuHistory.remove(fingerprint);
-          }
-          for (Map.Entry<String, double[]> e : mtbfHistory.entrySet()) {
-            double[] w = e.getValue();
-            w[0] *= 0.95;
-            w[1] *= 0.95;
-          }
-          nextWeightingInterval += 1L;
+        if (reader.isGuard(i)) {
+          guardRelays.add(fingerprint);
         }
+      }
 
-        /* Increment weighted uptime for all running relays that have not
-         * been restarted by seconds since last valid-after time. */
-        for (Map.Entry<String, String> runningRelay :
-            runningRelays.entrySet()) {
-          String fingerprint = runningRelay.getKey();
-          boolean restarted = runningRelay.getValue().
-              split(",")[2].equals("t");
-          long seconds = restarted ? 0 : secondsSinceLastValidAfter;
-          if (!wfuHistory.containsKey(fingerprint)) {
-            wfuHistory.put(fingerprint, new long[] { seconds, 0L });
-          } else {
-            wfuHistory.get(fingerprint)[0] += seconds;
+      /* We just read all relays of a consensus.  First, see if 12
+       * hours have passed since we last discounted uptimes and total
+       * times.  If so, discount both variables for all known relays by
+       * factor 0.95 (or 19/20 since these are long integers) and remove
+       * those relays with a weighted fractional uptime below 1/10000.
+       * Also, discount weighted run length and total run weights for
+       * all known relays by factor 0.95. */
+      long secondsSinceLastValidAfter = (lastValidAfterMillis
+          - lastButOneValidAfterMillis) / 1000L;
+      long weightingInterval = lastValidAfterMillis
+          / (12L * 60L * 60L * 1000L);
+      if (nextWeightingInterval < 0L) {
+        nextWeightingInterval = weightingInterval;
+      }
+      while (weightingInterval > nextWeightingInterval) {
+        Set<String> relaysToRemove = new HashSet<String>();
+        for (Map.Entry<String, long[]> e : wfuHistory.entrySet()) {
+          long[] w = e.getValue();
+          w[0] *= 19L;
+          w[0] /= 20L;
+          w[1] *= 19L;
+          w[1] /= 20L;
+          if (((10000L * w[0]) / w[1]) < 1L) {
+            relaysToRemove.add(e.getKey());
           }
         }
-
-        /* Increment total weighted time for all relays by seconds since
-         * last valid-after time. */
-        for (long[] w : wfuHistory.values()) {
-          w[1] += secondsSinceLastValidAfter;
+        for (String fingerprint : relaysToRemove) {
+          wfuHistory.remove(fingerprint);
         }
-
-        /* Update MTBF history for running relays.  Start by iterating
-         * over all relays in the history, see if they're running now and
-         * whether they have been restarted.  Distinguish four cases for
-         * relays in the history: 1) still running, 2) still running but
-         * restarted, 3) started in this consensus, 4) stopped in this
-         * consensus. */
-        Set<String> updatedRelays = new HashSet<String>();
         for (Map.Entry<String, double[]> e : mtbfHistory.entrySet()) {
-          String fingerprint = e.getKey();
           double[] w = e.getValue();
-          if (runningRelays.containsKey(fingerprint)) {
-            if (w[2] > 0.1) {
-              if (!runningRelays.get(fingerprint).split(",")[2].
-                  equals("t")) {
-
-                /* Case 1) still running: */
-                w[2] += (double) secondsSinceLastValidAfter;
-              } else {
-
-                /* Case 2) still running but restarted: */
-                w[0] += w[2];
-                w[1] += 1.0;
-                w[2] = (double) secondsSinceLastValidAfter;
-              }
+          w[0] *= 0.95;
+          w[1] *= 0.95;
+        }
+        nextWeightingInterval += 1L;
+      }
+
+      /* Increment weighted uptime for all running relays that have not
+       * been restarted by seconds since last valid-after time. */
+      for (int i = 0; i < reader.getRelays(); i++) {
+        String fingerprint = reader.getFingerprint(i);
+        boolean restarted = reader.isRestarted(i);
+        long seconds = restarted ? 0 : secondsSinceLastValidAfter;
+        if (!wfuHistory.containsKey(fingerprint)) {
+          wfuHistory.put(fingerprint, new long[] { seconds, 0L });
+        } else {
+          wfuHistory.get(fingerprint)[0] += seconds;
+        }
+      }
+
+      /* Increment total weighted time for all relays by seconds since
+       * last valid-after time. */
+      for (long[] w : wfuHistory.values()) {
+        w[1] += secondsSinceLastValidAfter;
+      }
+
+      /* Update MTBF history for running relays.  Start by iterating
+       * over all relays in the history, see if they're running now and
+       * whether they have been restarted.  Distinguish four cases for
+       * relays in the history: 1) still running, 2) still running but
+       * restarted, 3) started in this consensus, 4) stopped in this
+       * consensus. */
+      Set<String> updatedRelays = new HashSet<String>();
+      for (Map.Entry<String, double[]> e : mtbfHistory.entrySet()) {
+        String fingerprint = e.getKey();
+        double[] w = e.getValue();
+        if (runningRelays.containsKey(fingerprint)) {
+          if (w[2] > 0.1) {
+            if (!reader.isRestarted(runningRelays.get(fingerprint))) {
+
+              /* Case 1) still running: */
+              w[2] += (double) secondsSinceLastValidAfter;
             } else {
 
-              /* Case 3) started in this consensus: */
+              /* Case 2) still running but restarted: */
+              w[0] += w[2];
+              w[1] += 1.0;
               w[2] = (double) secondsSinceLastValidAfter;
             }
+          } else {
 
-            /* Mark relay as already processed, or we'd add it to the
-             * history as a new relay below. */
-            updatedRelays.add(fingerprint);
-          } else if (w[2] > 0.1) {
-
-            /* Case 4) stopped in this consensus: */
-            w[0] += w[2];
-            w[1] += 1.0;
-            w[2] = 0.0;
+            /* Case 3) started in this consensus: */
+            w[2] = (double) secondsSinceLastValidAfter;
           }
+
+          /* Mark relay as already processed, or we'd add it to the
+           * history as a new relay below. */
+          updatedRelays.add(fingerprint);
+        } else if (w[2] > 0.1) {
+
+          /* Case 4) stopped in this consensus: */
+          w[0] += w[2];
+          w[1] += 1.0;
+          w[2] = 0.0;
         }
+      }
 
-        /* Iterate over the set of currently running relays and add those
-         * that we haven't processed above to our history. */
-        for (String fingerprint : runningRelays.keySet()) {
-          if (!updatedRelays.contains(fingerprint)) {
-            updatedRelays.add(fingerprint);
-            mtbfHistory.put(fingerprint, new double[] { 0.0, 0.0,
-                (double) secondsSinceLastValidAfter });
-          }
+      /* Iterate over the set of currently running relays and add those
+       * that we haven't processed above to our history. */
+      for (String fingerprint : runningRelays.keySet()) {
+        if (!updatedRelays.contains(fingerprint)) {
+          updatedRelays.add(fingerprint);
+          mtbfHistory.put(fingerprint, new double[] { 0.0, 0.0,
+              (double) secondsSinceLastValidAfter });
+        }
+      }
+
+      /* Read previously calculated future WFUs, TUNFs, and WBs from
+       * disk. */
+      Map<String, Long> fwfus = new HashMap<String, Long>(),
+          tunfs = new HashMap<String, Long>(),
+          fwbs = new HashMap<String, Long>();
+      File futureStabilityFile = new File("future-stability",
+          formatter.format(lastValidAfterMillis));
+      if (!futureStabilityFile.exists()) {
+        if (lastValidAfter.compareTo(analyzeFrom) >= 0) {
+          System.out.println("Could not find file "
+              + futureStabilityFile + ". Skipping simulation!");
+        }
+      } else if (lastValidAfter.compareTo(analyzeFrom) >= 0) {
+        BufferedReader fsBr = new BufferedReader(new FileReader(
+            futureStabilityFile));
+        String fsLine;
+        while ((fsLine = fsBr.readLine()) != null) {
+          String[] fsParts = fsLine.split(" ");
+          tunfs.put(fsParts[0], Long.parseLong(fsParts[1]));
+          fwfus.put(fsParts[0], Long.parseLong(fsParts[2]));
+          fwbs.put(fsParts[0], Long.parseLong(fsParts[3]));
         }
+        fsBr.close();
 
-        /* Read previously calculated future WFUs, TUNFs, and WBs from
-         * disk. */
-        Map<String, Long> fwfus = new HashMap<String, Long>(),
-            tunfs = new HashMap<String, Long>(),
-            fwbs = new HashMap<String, Long>();
-        File futureStabilityFile = new File("future-stability",
-            formatter.format(lastValidAfterMillis));
-        if (!futureStabilityFile.exists()) {
-          if (!lastValidAfter.equals(firstValidAfter) &&
-              lastValidAfter.compareTo(analyzeFrom) >= 0) {
-            System.out.println("Could not find file "
-                + futureStabilityFile + ". Skipping simulation!");
-          }
-        } else if (lastValidAfter.compareTo(analyzeFrom) >= 0) {
-          BufferedReader fsBr = new BufferedReader(new FileReader(
-              futureStabilityFile));
-          String fsLine;
-          while ((fsLine = fsBr.readLine()) != null) {
-            String[] fsParts = fsLine.split(" ");
-            tunfs.put(fsParts[0], Long.parseLong(fsParts[1]));
-            fwfus.put(fsParts[0], Long.parseLong(fsParts[2]));
-            fwbs.put(fsParts[0], Long.parseLong(fsParts[3]));
-          }
-          fsBr.close();
-
-          /* Prepare writing results. */
-          Map<String, String> results = new HashMap<String, String>();
-          results.put("running", "" + runningRelays.size());
-          results.put("guard", "" + guardRelays.size());
-          results.put("stable", "" + stableRelays.size());
-
-          /* Look up future WFUs and calculate advertised bandwidth
-           * percentiles of relays that actually got the Guard flag
-           * assigned. */
-          long totalFwfu = 0L, totalFwb = 0L;
-          List<Long> fwfuList = new ArrayList<Long>();
-          for (String fingerprint : guardRelays) {
-            long fwfu = fwfus.get(fingerprint);
-            totalFwfu += fwfu;
-            fwfuList.add(fwfu);
-          }
-          Collections.sort(fwfuList);
-          results.put("mwfu", "" + (totalFwfu / guardRelays.size()));
-          results.put("perc15wfu", ""
-              + fwfuList.get((15 * fwfuList.size()) / 100));
-          results.put("perc10wfu", ""
-              + fwfuList.get((10 * fwfuList.size()) / 100));
-          results.put("perc5wfu", ""
-              + fwfuList.get((5 * fwfuList.size()) / 100));
-          List<Long> fwbList = new ArrayList<Long>();
-          for (String fingerprint : guardRelays) {
-            long fwb = fwbs.get(fingerprint);
-            totalFwb += fwb;
-            fwbList.add(fwb);
-          }
-          if (fwbList.size() > 20) {
-            Collections.sort(fwbList);
-            results.put("perc1fwb", "" + fwbList.get(
-                fwbList.size() / 100));
-            results.put("perc2fwb", "" + fwbList.get(
-                fwbList.size() / 50));
-            results.put("perc5fwb", "" + fwbList.get(
-                fwbList.size() / 20));
-            results.put("perc10fwb", "" + fwbList.get(
-                fwbList.size() / 10));
-          }
+        /* Prepare writing results. */
+        Map<String, String> results = new HashMap<String, String>();
+        results.put("running", "" + runningRelays.size());
+        results.put("guard", "" + guardRelays.size());
+        results.put("stable", "" + stableRelays.size());
 
-          /* Prepare calculating thresholds for assigning the Guard flag
-           * in simulations. */
-          List<Long> advertisedBandwidths = new ArrayList<Long>(),
-              totalWeightedTimes = new ArrayList<Long>();
-          for (Map.Entry<String, String> e : runningRelays.entrySet()) {
-            String[] relayParts = e.getValue().split(",");
-            long advertisedBandwidth = relayParts[5].length() == 0 ? 0 :
-                Long.parseLong(relayParts[5]);
-            advertisedBandwidths.add(advertisedBandwidth);
-            totalWeightedTimes.add(wfuHistory.get(e.getKey())[1]);
-          }
-          Collections.sort(advertisedBandwidths);
-          Collections.sort(totalWeightedTimes);
-          long minimumTotalWeightedTime = totalWeightedTimes.get((
-              1 * totalWeightedTimes.size()) / 8);
-          results.put("minwta", "" + minimumTotalWeightedTime);
-          if (minimumTotalWeightedTime > 8L * 24L * 60L * 60L) {
-            minimumTotalWeightedTime = 8L * 24L * 60L * 60L;
+        /* Look up future WFUs and calculate advertised bandwidth
+         * percentiles of relays that actually got the Guard flag
+         * assigned. */
+        long totalFwfu = 0L, totalFwb = 0L;
+        List<Long> fwfuList = new ArrayList<Long>();
+        for (String fingerprint : guardRelays) {
+          long fwfu = fwfus.get(fingerprint);
+          totalFwfu += fwfu;
+          fwfuList.add(fwfu);
+        }
+        Collections.sort(fwfuList);
+        results.put("mwfu", "" + (totalFwfu / guardRelays.size()));
+        results.put("perc15wfu", ""
+            + fwfuList.get((15 * fwfuList.size()) / 100));
+        results.put("perc10wfu", ""
+            + fwfuList.get((10 * fwfuList.size()) / 100));
+        results.put("perc5wfu", ""
+            + fwfuList.get((5 * fwfuList.size()) / 100));
+        List<Long> fwbList = new ArrayList<Long>();
+        for (String fingerprint : guardRelays) {
+          long fwb = fwbs.get(fingerprint);
+          totalFwb += fwb;
+          fwbList.add(fwb);
+        }
+        if (fwbList.size() > 20) {
+          Collections.sort(fwbList);
+          results.put("perc1fwb", "" + fwbList.get(
+              fwbList.size() / 100));
+          results.put("perc2fwb", "" + fwbList.get(
+              fwbList.size() / 50));
+          results.put("perc5fwb", "" + fwbList.get(
+              fwbList.size() / 20));
+          results.put("perc10fwb", "" + fwbList.get(
+              fwbList.size() / 10));
+        }
+
+        /* Prepare calculating thresholds for assigning the Guard flag
+         * in simulations. */
+        List<Long> advertisedBandwidths = new ArrayList<Long>(),
+            totalWeightedTimes = new ArrayList<Long>();
+        for (int i = 0; i < reader.getRelays(); i++) {
+          long advertisedBandwidth = reader.getAdvertisedBandwidth(i);
+          advertisedBandwidths.add(advertisedBandwidth);
+          totalWeightedTimes.add(wfuHistory.get(
+              reader.getFingerprint(i))[1]);
+        }
+        Collections.sort(advertisedBandwidths);
+        Collections.sort(totalWeightedTimes);
+        long minimumTotalWeightedTime = totalWeightedTimes.get((
+            1 * totalWeightedTimes.size()) / 8);
+        results.put("minwta", "" + minimumTotalWeightedTime);
+        if (minimumTotalWeightedTime > 8L * 24L * 60L * 60L) {
+          minimumTotalWeightedTime = 8L * 24L * 60L * 60L;
+        }
+        results.put("minwtb", "" + minimumTotalWeightedTime);
+        List<Long> weightedFractionalUptimesFamiliar =
+            new ArrayList<Long>();
+        for (String fingerprint : runningRelays.keySet()) {
+          long[] wfuHistoryEntry = wfuHistory.get(fingerprint);
+          long totalWeightedTime = wfuHistoryEntry[1];
+          if (totalWeightedTime >= minimumTotalWeightedTime) {
+            long weightedFractionalUptime =
+                (10000L * wfuHistoryEntry[0]) / wfuHistoryEntry[1];
+            weightedFractionalUptimesFamiliar.add(
+                weightedFractionalUptime);
           }
-          results.put("minwtb", "" + minimumTotalWeightedTime);
-          List<Long> weightedFractionalUptimesFamiliar =
-              new ArrayList<Long>();
-          for (Map.Entry<String, String> e : runningRelays.entrySet()) {
-            long[] wfuHistoryEntry = wfuHistory.get(e.getKey());
-            long totalWeightedTime = wfuHistoryEntry[1];
-            if (totalWeightedTime >= minimumTotalWeightedTime) {
-              long weightedFractionalUptime =
-                  (10000L * wfuHistoryEntry[0]) / wfuHistoryEntry[1];
-              weightedFractionalUptimesFamiliar.add(
-                  weightedFractionalUptime);
+        }
+        Collections.sort(weightedFractionalUptimesFamiliar);
+        results.put("familiar",
+            "" + weightedFractionalUptimesFamiliar.size());
+
+        /* Run Guard simulation for the relays in the current consensus
+         * for various WFU percentiles. */
+        for (int wfuPercentile : wfuPercentiles) {
+          for (int advBwPercentile : advBwPercentiles) {
+            String simulation = wfuPercentile + "wfu" + advBwPercentile
+                + "advbw";
+            long minimumAdvertisedBandwidth = advertisedBandwidths.get(
+                (advBwPercentile * advertisedBandwidths.size()) / 100);
+            results.put("minadvbwa" + advBwPercentile + "advbw",
+                "" + minimumAdvertisedBandwidth);
+            if (minimumAdvertisedBandwidth > 250L * 1024L) {
+              minimumAdvertisedBandwidth = 250L * 1024L;
             }
-          }
-          Collections.sort(weightedFractionalUptimesFamiliar);
-          results.put("familiar",
-              "" + weightedFractionalUptimesFamiliar.size());
-
-          /* Run Guard simulation for the relays in the current consensus
-           * for various WFU percentiles. */
-          for (int wfuPercentile : wfuPercentiles) {
-            for (int advBwPercentile : advBwPercentiles) {
-              String simulation = wfuPercentile + "wfu" + advBwPercentile
-                  + "advbw";
-              long minimumAdvertisedBandwidth = advertisedBandwidths.get(
-                  (advBwPercentile * advertisedBandwidths.size()) / 100);
-              results.put("minadvbwa" + advBwPercentile + "advbw",
-                  "" + minimumAdvertisedBandwidth);
-              if (minimumAdvertisedBandwidth > 250L * 1024L) {
-                minimumAdvertisedBandwidth = 250L * 1024L;
+            results.put("minadvbwb" + advBwPercentile + "advbw",
+                "" + minimumAdvertisedBandwidth);
+            long minimumWeightedFractionalUptime =
+                weightedFractionalUptimesFamiliar.get((wfuPercentile
+                * weightedFractionalUptimesFamiliar.size()) / 100);
+            results.put("minwfua" + wfuPercentile + "wfu",
+                "" + minimumWeightedFractionalUptime);
+            if (minimumWeightedFractionalUptime > 9800) {
+              minimumWeightedFractionalUptime = 9800;
+            }
+            results.put("minwfub" + wfuPercentile + "wfu",
+                "" + minimumWeightedFractionalUptime);
+            totalFwfu = 0L;
+            totalFwb = 0L;
+            fwfuList.clear();
+            fwbList.clear();
+            Set<String> selectedRelays = new HashSet<String>();
+            int excladvbw = 0, exclwt = 0, exclwfu = 0;
+            for (int i = 0; i < reader.getRelays(); i++) {
+              boolean notEnoughAdvertisedBandwidth = false,
+                  notEnoughTotalWeightedTime = false,
+                  notEnoughWeightedFractionalUptime = false,
+                  selected = true;
+              long advertisedBandwidth = reader.getAdvertisedBandwidth(i);
+              if (advertisedBandwidth < minimumAdvertisedBandwidth) {
+                notEnoughAdvertisedBandwidth = true;
+                selected = false;
               }
-              results.put("minadvbwb" + advBwPercentile + "advbw",
-                  "" + minimumAdvertisedBandwidth);
-              long minimumWeightedFractionalUptime =
-                  weightedFractionalUptimesFamiliar.get((wfuPercentile
-                  * weightedFractionalUptimesFamiliar.size()) / 100);
-              results.put("minwfua" + wfuPercentile + "wfu",
-                  "" + minimumWeightedFractionalUptime);
-              if (minimumWeightedFractionalUptime > 9800) {
-                minimumWeightedFractionalUptime = 9800;
+              String fingerprint = reader.getFingerprint(i);
+              long[] wfuHistoryEntry = wfuHistory.get(fingerprint);
+              long totalWeightedTime = wfuHistoryEntry[1];
+              if (totalWeightedTime < minimumTotalWeightedTime) {
+                notEnoughTotalWeightedTime = true;
+                selected = false;
               }
-              results.put("minwfub" + wfuPercentile + "wfu",
-                  "" + minimumWeightedFractionalUptime);
-              totalFwfu = 0L;
-              totalFwb = 0L;
-              fwfuList.clear();
-              fwbList.clear();
-              Set<String> selectedRelays = new HashSet<String>();
-              int excladvbw = 0, exclwt = 0, exclwfu = 0;
-              for (String relay : runningRelays.values()) {
-                boolean notEnoughAdvertisedBandwidth = false,
-                    notEnoughTotalWeightedTime = false,
-                    notEnoughWeightedFractionalUptime = false,
-                    selected = true;
-                String[] relayParts = relay.split(",");
-                long advertisedBandwidth = relayParts[5].length() == 0 ?
-                    0 : Long.parseLong(relayParts[5]);
-                if (advertisedBandwidth < minimumAdvertisedBandwidth) {
-                  notEnoughAdvertisedBandwidth = true;
-                  selected = false;
-                }
-                String fingerprint = relayParts[1];
-                long[] wfuHistoryEntry = wfuHistory.get(fingerprint);
-                long totalWeightedTime = wfuHistoryEntry[1];
-                if (totalWeightedTime < minimumTotalWeightedTime) {
-                  notEnoughTotalWeightedTime = true;
-                  selected = false;
+              long weightedFractionalUptime =
+                  (10000L * wfuHistoryEntry[0]) / wfuHistoryEntry[1];
+              if (weightedFractionalUptime <
+                  minimumWeightedFractionalUptime) {
+                notEnoughWeightedFractionalUptime = true;
+                selected = false;
+              }
+              if (selected) {
+                long fwfu = fwfus.get(fingerprint);
+                totalFwfu += fwfu;
+                fwfuList.add(fwfu);
+                long fwb = fwbs.get(fingerprint);
+                totalFwb += fwb;
+                fwbList.add(fwb);
+                selectedRelays.add(fingerprint);
+              } else if (guardRelays.contains(fingerprint)) {
+                if (notEnoughWeightedFractionalUptime) {
+                  exclwfu++;
                 }
-                long weightedFractionalUptime =
-                    (10000L * wfuHistoryEntry[0]) / wfuHistoryEntry[1];
-                if (weightedFractionalUptime <
-                    minimumWeightedFractionalUptime) {
-                  notEnoughWeightedFractionalUptime = true;
-                  selected = false;
+                if (notEnoughTotalWeightedTime) {
+                  exclwt++;
                 }
-                if (selected) {
-                  long fwfu = fwfus.get(fingerprint);
-                  totalFwfu += fwfu;
-                  fwfuList.add(fwfu);
-                  long fwb = fwbs.get(fingerprint);
-                  totalFwb += fwb;
-                  fwbList.add(fwb);
-                  selectedRelays.add(fingerprint);
-                } else if (guardRelays.contains(fingerprint)) {
-                  if (notEnoughWeightedFractionalUptime) {
-                    exclwfu++;
-                  }
-                  if (notEnoughTotalWeightedTime) {
-                    exclwt++;
-                  }
-                  if (notEnoughAdvertisedBandwidth) {
-                    excladvbw++;
-                  }
+                if (notEnoughAdvertisedBandwidth) {
+                  excladvbw++;
                 }
               }
-
-              /* Calculate percentiles of future WFU and of advertised
-               * bandwidth as the simulation results. */
-              results.put("guard" + simulation,
-                  "" + selectedRelays.size());
-              if (fwfuList.size() > 0) {
-                Collections.sort(fwfuList);
-                results.put("mwfu" + simulation,
-                    "" + (totalFwfu / fwfuList.size()));
-                results.put("perc15wfu" + simulation,
-                    "" + fwfuList.get((15 * fwfuList.size()) / 100));
-                results.put("perc10wfu" + simulation,
-                    "" + fwfuList.get((10 * fwfuList.size()) / 100));
-                results.put("perc5wfu" + simulation,
-                    "" + fwfuList.get((5 * fwfuList.size()) / 100));
-              }
-              if (fwbList.size() > 20) {
-                Collections.sort(fwbList);
-                results.put("perc1fwb" + simulation,
-                    "" + fwbList.get(fwbList.size() / 100));
-                results.put("perc2fwb" + simulation,
-                    "" + fwbList.get(fwbList.size() / 50));
-                results.put("perc5fwb" + simulation,
-                    "" + fwbList.get(fwbList.size() / 20));
-                results.put("perc10fwb" + simulation,
-                    "" + fwbList.get(fwbList.size() / 10));
-              }
-
-              /* If this is the simulation using default values, compare
-               * selected Guard relays with observed Guard relays. */
-              if (wfuPercentile == 50 && advBwPercentile == 50) {
-                Set<String> intersection = new HashSet<String>();
-                intersection.addAll(guardRelays);
-                intersection.retainAll(selectedRelays);
-                Set<String> observedOnly = new HashSet<String>();
-                observedOnly.addAll(guardRelays);
-                observedOnly.removeAll(selectedRelays);
-                Set<String> simulatedOnly = new HashSet<String>();
-                simulatedOnly.addAll(selectedRelays);
-                simulatedOnly.removeAll(guardRelays);
-                results.put("guardintersect", "" + intersection.size());
-                results.put("guardobserved", "" + observedOnly.size());
-                results.put("guardsimulated", "" + simulatedOnly.size());
-                results.put("exclwt", "" + exclwt);
-                results.put("exclwfu", "" + exclwfu);
-                results.put("excladvbw", "" + excladvbw);
-              }
             }
-          }
 
-          /* Look up TUNFs of relays that actually got the Stable flag
-           * assigned. */
-          long totalTunf = 0L;
-          List<Long> tunfList = new ArrayList<Long>();
-          for (String fingerprint : stableRelays) {
-            long tunf = tunfs.get(fingerprint);
-            totalTunf += tunf;
-            tunfList.add(tunf);
-          }
-          Collections.sort(tunfList);
-          results.put("perc25tunf", ""
-              + tunfList.get((25 * tunfList.size()) / 100));
-          results.put("perc20tunf", ""
-              + tunfList.get((20 * tunfList.size()) / 100));
-          results.put("perc15tunf", ""
-              + tunfList.get((15 * tunfList.size()) / 100));
-          results.put("perc10tunf", ""
-              + tunfList.get((10 * tunfList.size()) / 100));
-          results.put("perc5tunf", ""
-              + tunfList.get((5 * tunfList.size()) / 100));
-
-          /* Prepare calculating thresholds for assigning the Stable flag
-           * in simulations. */
-          List<Long> wmtbfs = new ArrayList<Long>();
-          for (String fingerprint : runningRelays.keySet()) {
-            double[] w = mtbfHistory.get(fingerprint);
-            double totalRunLength = w[0] + w[2];
-            double totalWeights = w[1] + (w[2] > 0.1 ? 1.0 : 0.0);
-            long wmtbf = totalWeights < 0.0001 ? 0
-                : (long) (totalRunLength / totalWeights);
-            wmtbfs.add(wmtbf);
-          }
-          Collections.sort(wmtbfs);
-
-          /* Run Stable simulation for the relays in the current consensus
-           * for various WMTBF percentiles. */
-          for (int wmtbfPercentile : wmtbfPercentiles) {
-            long minimumWeightedMeanTimeBetweenFailure =
-                wmtbfs.get((wmtbfPercentile * wmtbfs.size()) / 100);
-            results.put("minwmtbfa" + wmtbfPercentile,
-                "" + minimumWeightedMeanTimeBetweenFailure);
-            if (minimumWeightedMeanTimeBetweenFailure >
-                5L * 24L * 60L * 60L) {
-              minimumWeightedMeanTimeBetweenFailure =
-                  5L * 24L * 60L * 60L;
-            }
-            results.put("minwmtbfb" + wmtbfPercentile,
-                "" + minimumWeightedMeanTimeBetweenFailure);
-            totalTunf = 0L;
-            tunfList.clear();
-            Set<String> selectedRelays = new HashSet<String>();
-            for (String fingerprint : runningRelays.keySet()) {
-              double[] w = mtbfHistory.get(fingerprint);
-              double totalRunLength = w[0] + w[2];
-              double totalWeights = w[1] + (w[2] > 0.1 ? 1.0 : 0.0);
-              long wmtbf = totalWeights < 0.0001 ? 0
-                  : (long) (totalRunLength / totalWeights);
-              if (wmtbf < minimumWeightedMeanTimeBetweenFailure) {
-                continue;
-              }
-              long tunf = tunfs.get(fingerprint);
-              totalTunf += tunf;
-              tunfList.add(tunf);
-              selectedRelays.add(fingerprint);
+            /* Calculate percentiles of future WFU and of advertised
+             * bandwidth as the simulation results. */
+            results.put("guard" + simulation,
+                "" + selectedRelays.size());
+            if (fwfuList.size() > 0) {
+              Collections.sort(fwfuList);
+              results.put("mwfu" + simulation,
+                  "" + (totalFwfu / fwfuList.size()));
+              results.put("perc15wfu" + simulation,
+                  "" + fwfuList.get((15 * fwfuList.size()) / 100));
+              results.put("perc10wfu" + simulation,
+                  "" + fwfuList.get((10 * fwfuList.size()) / 100));
+              results.put("perc5wfu" + simulation,
+                  "" + fwfuList.get((5 * fwfuList.size()) / 100));
             }
-            results.put("stable" + wmtbfPercentile, "" + tunfList.size());
-            if (tunfList.size() > 0L) {
-              Collections.sort(tunfList);
-              results.put("mtunf" + wmtbfPercentile,
-                  "" + (totalTunf / tunfList.size()));
-              results.put("perc25tunf"
-                  + wmtbfPercentile,
-                  "" + tunfList.get((25 * tunfList.size()) / 100));
-              results.put("perc20tunf"
-                  + wmtbfPercentile,
-                  "" + tunfList.get((20 * tunfList.size()) / 100));
-              results.put("perc15tunf"
-                  + wmtbfPercentile,
-                  "" + tunfList.get((15 * tunfList.size()) / 100));
-              results.put("perc10tunf"
-                  + wmtbfPercentile,
-                  "" + tunfList.get((10 * tunfList.size()) / 100));
-              results.put("perc5tunf"
-                  + wmtbfPercentile,
-                  "" + tunfList.get((5 * tunfList.size()) / 100));
+            if (fwbList.size() > 20) {
+              Collections.sort(fwbList);
+              results.put("perc1fwb" + simulation,
+                  "" + fwbList.get(fwbList.size() / 100));
+              results.put("perc2fwb" + simulation,
+                  "" + fwbList.get(fwbList.size() / 50));
+              results.put("perc5fwb" + simulation,
+                  "" + fwbList.get(fwbList.size() / 20));
+              results.put("perc10fwb" + simulation,
+                  "" + fwbList.get(fwbList.size() / 10));
             }
 
             /* If this is the simulation using default values, compare
-             * selected Stable relays with observed Stable relays. */
-            if (wmtbfPercentile == 50) {
+             * selected Guard relays with observed Guard relays. */
+            if (wfuPercentile == 50 && advBwPercentile == 50) {
               Set<String> intersection = new HashSet<String>();
-              intersection.addAll(stableRelays);
+              intersection.addAll(guardRelays);
               intersection.retainAll(selectedRelays);
               Set<String> observedOnly = new HashSet<String>();
-              observedOnly.addAll(stableRelays);
+              observedOnly.addAll(guardRelays);
               observedOnly.removeAll(selectedRelays);
               Set<String> simulatedOnly = new HashSet<String>();
               simulatedOnly.addAll(selectedRelays);
-              simulatedOnly.removeAll(stableRelays);
-              results.put("stableintersect", "" + intersection.size());
-              results.put("stableobserved", "" + observedOnly.size());
-              results.put("stablesimulated", "" + simulatedOnly.size());
+              simulatedOnly.removeAll(guardRelays);
+              results.put("guardintersect", "" + intersection.size());
+              results.put("guardobserved", "" + observedOnly.size());
+              results.put("guardsimulated", "" + simulatedOnly.size());
+              results.put("exclwt", "" + exclwt);
+              results.put("exclwfu", "" + exclwfu);
+              results.put("excladvbw", "" + excladvbw);
             }
           }
+        }
 
-          /* Write results. */
-          bw.write(lastValidAfter);
-          for (String column : columns) {
-            if (results.containsKey(column)) {
-              bw.write("," + results.get(column));
-            } else {
-              bw.write(",NA");
+        /* Look up TUNFs of relays that actually got the Stable flag
+         * assigned. */
+        long totalTunf = 0L;
+        List<Long> tunfList = new ArrayList<Long>();
+        for (String fingerprint : stableRelays) {
+          long tunf = tunfs.get(fingerprint);
+          totalTunf += tunf;
+          tunfList.add(tunf);
+        }
+        Collections.sort(tunfList);
+        results.put("perc25tunf", ""
+            + tunfList.get((25 * tunfList.size()) / 100));
+        results.put("perc20tunf", ""
+            + tunfList.get((20 * tunfList.size()) / 100));
+        results.put("perc15tunf", ""
+            + tunfList.get((15 * tunfList.size()) / 100));
+        results.put("perc10tunf", ""
+            + tunfList.get((10 * tunfList.size()) / 100));
+        results.put("perc5tunf", ""
+            + tunfList.get((5 * tunfList.size()) / 100));
+
+        /* Prepare calculating thresholds for assigning the Stable flag
+         * in simulations. */
+        List<Long> wmtbfs = new ArrayList<Long>();
+        for (String fingerprint : runningRelays.keySet()) {
+          double[] w = mtbfHistory.get(fingerprint);
+          double totalRunLength = w[0] + w[2];
+          double totalWeights = w[1] + (w[2] > 0.1 ? 1.0 : 0.0);
+          long wmtbf = totalWeights < 0.0001 ? 0
+              : (long) (totalRunLength / totalWeights);
+          wmtbfs.add(wmtbf);
+        }
+        Collections.sort(wmtbfs);
+
+        /* Run Stable simulation for the relays in the current consensus
+         * for various WMTBF percentiles. */
+        for (int wmtbfPercentile : wmtbfPercentiles) {
+          long minimumWeightedMeanTimeBetweenFailure =
+              wmtbfs.get((wmtbfPercentile * wmtbfs.size()) / 100);
+          results.put("minwmtbfa" + wmtbfPercentile,
+              "" + minimumWeightedMeanTimeBetweenFailure);
+          if (minimumWeightedMeanTimeBetweenFailure >
+              5L * 24L * 60L * 60L) {
+            minimumWeightedMeanTimeBetweenFailure =
+                5L * 24L * 60L * 60L;
+          }
+          results.put("minwmtbfb" + wmtbfPercentile,
+              "" + minimumWeightedMeanTimeBetweenFailure);
+          totalTunf = 0L;
+          tunfList.clear();
+          Set<String> selectedRelays = new HashSet<String>();
+          for (String fingerprint : runningRelays.keySet()) {
+            double[] w = mtbfHistory.get(fingerprint);
+            double totalRunLength = w[0] + w[2];
+            double totalWeights = w[1] + (w[2] > 0.1 ? 1.0 : 0.0);
+            long wmtbf = totalWeights < 0.0001 ? 0
+                : (long) (totalRunLength / totalWeights);
+            if (wmtbf < minimumWeightedMeanTimeBetweenFailure) {
+              continue;
             }
+            long tunf = tunfs.get(fingerprint);
+            totalTunf += tunf;
+            tunfList.add(tunf);
+            selectedRelays.add(fingerprint);
+          }
+          results.put("stable" + wmtbfPercentile, "" + tunfList.size());
+          if (tunfList.size() > 0L) {
+            Collections.sort(tunfList);
+            results.put("mtunf" + wmtbfPercentile,
+                "" + (totalTunf / tunfList.size()));
+            results.put("perc25tunf"
+                + wmtbfPercentile,
+                "" + tunfList.get((25 * tunfList.size()) / 100));
+            results.put("perc20tunf"
+                + wmtbfPercentile,
+                "" + tunfList.get((20 * tunfList.size()) / 100));
+            results.put("perc15tunf"
+                + wmtbfPercentile,
+                "" + tunfList.get((15 * tunfList.size()) / 100));
+            results.put("perc10tunf"
+                + wmtbfPercentile,
+                "" + tunfList.get((10 * tunfList.size()) / 100));
+            results.put("perc5tunf"
+                + wmtbfPercentile,
+                "" + tunfList.get((5 * tunfList.size()) / 100));
+          }
+
+          /* If this is the simulation using default values, compare
+           * selected Stable relays with observed Stable relays. */
+          if (wmtbfPercentile == 50) {
+            Set<String> intersection = new HashSet<String>();
+            intersection.addAll(stableRelays);
+            intersection.retainAll(selectedRelays);
+            Set<String> observedOnly = new HashSet<String>();
+            observedOnly.addAll(stableRelays);
+            observedOnly.removeAll(selectedRelays);
+            Set<String> simulatedOnly = new HashSet<String>();
+            simulatedOnly.addAll(selectedRelays);
+            simulatedOnly.removeAll(stableRelays);
+            results.put("stableintersect", "" + intersection.size());
+            results.put("stableobserved", "" + observedOnly.size());
+            results.put("stablesimulated", "" + simulatedOnly.size());
           }
-          bw.write("\n");
         }
 
-        /* We're done with this consensus.  Prepare for the next. */
-        runningRelays.clear();
-        guardRelays.clear();
-        stableRelays.clear();
-        lastButOneValidAfter = lastValidAfter;
+        /* Write results. */
+        bw.write(lastValidAfter);
+        for (String column : columns) {
+          if (results.containsKey(column)) {
+            bw.write("," + results.get(column));
+          } else {
+            bw.write(",NA");
+          }
+        }
+        bw.write("\n");
       }
 
-      /* Add the running relay lines to a map that we parse once we have
-       * all lines of a consensus. */
+      /* We're done with this consensus.  Prepare for the next. */
+      lastButOneValidAfterMillis = lastValidAfterMillis;
+    }
+    reader.close();
+    bw.close();
+  }
+
+  /**
+   * Open the columnar relay store of a running relays CSV file, which is
+   * the same file name ending in .bin instead of .csv.  The CSV file is
+   * converted once, or again after it has changed, so that subsequent
+   * simulations don't have to parse it at all.  The CSV file may be
+   * deleted after converting it.
+   */
+  private static RunningRelaysReader openRunningRelays(String csvPath)
+      throws IOException, ParseException {
+    File csvFile = new File(csvPath), storeFile = new File(
+        csvPath.replaceAll("\\.csv$", "") + ".bin");
+    if (!storeFile.exists() ||
+        storeFile.lastModified() < csvFile.lastModified()) {
+      System.out.println("Converting " + csvFile + " to " + storeFile
+          + ".");
+      convertRunningRelays(csvFile, storeFile);
+    }
+    return new RunningRelaysReader(storeFile);
+  }
+
+  /**
+   * Convert a running relays CSV file to a columnar relay store.  The
+   * store contains one record per consensus in the order of the CSV
+   * file, each with one column per CSV column, so that a consensus can
+   * be read without parsing or copying anything:
+   *
+   *   long validAfterMillis, int n, int[n] fingerprintIds, byte[n] flags,
+   *   long[n] advertisedBandwidths, long[n] writtenSums
+   *
+   * Flags are 1 for restarted, 2 for Stable, and 4 for Guard, and
+   * missing bandwidths are stored as 0.  The records are followed by the
+   * fingerprint dictionary, int count, count times UTF fingerprint, and
+   * by the long offset of the dictionary.  Numbers are big-endian.
+   */
+  private static void convertRunningRelays(File csvFile, File storeFile)
+      throws IOException, ParseException {
+    SimpleDateFormat isoFormatter = new SimpleDateFormat(
+        "yyyy-MM-dd HH:mm:ss");
+    isoFormatter.setTimeZone(TimeZone.getTimeZone("UTC"));
+    Map<String, Integer> fingerprintIds = new HashMap<String, Integer>();
+    List<String> fingerprints = new ArrayList<String>();
+    File tempFile = new File(storeFile.getPath() + ".tmp");
+    DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(
+        new FileOutputStream(tempFile)));
+    BufferedReader br = new BufferedReader(new FileReader(csvFile));
+    String line, validAfter = null;
+    int relays = 0;
+    int[] ids = new int[4096];
+    byte[] flags = new byte[4096];
+    long[] advertisedBandwidths = new long[4096],
+        writtenSums = new long[4096];
+    long offset = 0L;
+    while ((line = br.readLine()) != null) {
+      if (!line.startsWith("20")) {
+        continue;
+      }
+      String[] parts = line.split(",", -1);
+      if (validAfter != null && !validAfter.equals(parts[0])) {
+        offset += writeConsensus(dos,
+            isoFormatter.parse(validAfter).getTime(), relays, ids, flags,
+            advertisedBandwidths, writtenSums);
+        relays = 0;
+      }
+      validAfter = parts[0];
+      if (relays == ids.length) {
+        ids = Arrays.copyOf(ids, 2 * relays);
+        flags = Arrays.copyOf(flags, 2 * relays);
+        advertisedBandwidths = Arrays.copyOf(advertisedBandwidths,
+            2 * relays);
+        writtenSums = Arrays.copyOf(writtenSums, 2 * relays);
+      }
       String fingerprint = parts[1];
-      runningRelays.put(fingerprint, line);
-      if (parts[3].equals("t")) {
-        stableRelays.add(fingerprint);
+      if (!fingerprintIds.containsKey(fingerprint)) {
+        fingerprintIds.put(fingerprint, fingerprints.size());
+        fingerprints.add(fingerprint);
+      }
+      ids[relays] = fingerprintIds.get(fingerprint);
+      flags[relays] = (byte) ((parts[2].equals("t") ? 1 : 0)
+          | (parts[3].equals("t") ? 2 : 0)
+          | (parts[4].equals("t") ? 4 : 0));
+      advertisedBandwidths[relays] = parts.length < 6 ||
+          parts[5].length() == 0 ? 0 : Long.parseLong(parts[5]);
+      writtenSums[relays] = parts.length < 7 ||
+          parts[6].length() == 0 ? 0 : Long.parseLong(parts[6]);
+      relays++;
+    }
+    br.close();
+    if (validAfter != null) {
+      offset += writeConsensus(dos,
+          isoFormatter.parse(validAfter).getTime(), relays, ids, flags,
+          advertisedBandwidths, writtenSums);
+    }
+    dos.writeInt(fingerprints.size());
+    for (String fingerprint : fingerprints) {
+      dos.writeUTF(fingerprint);
+    }
+    dos.writeLong(offset);
+    dos.close();
+    storeFile.delete();
+    if (!tempFile.renameTo(storeFile)) {
+      throw new IOException("Could not rename " + tempFile + " to "
+          + storeFile + ".");
+    }
+  }
+
+  /* Helper: write a single consensus record and return its length. */
+  private static long writeConsensus(DataOutputStream dos,
+      long validAfterMillis, int relays, int[] ids, byte[] flags,
+      long[] advertisedBandwidths, long[] writtenSums)
+      throws IOException {
+    dos.writeLong(validAfterMillis);
+    dos.writeInt(relays);
+    for (int i = 0; i < relays; i++) {
+      dos.writeInt(ids[i]);
+    }
+    dos.write(flags, 0, relays);
+    for (int i = 0; i < relays; i++) {
+      dos.writeLong(advertisedBandwidths[i]);
+    }
+    for (int i = 0; i < relays; i++) {
+      dos.writeLong(writtenSums[i]);
+    }
+    return RunningRelaysReader.getRecordLength(relays);
+  }
+
+  /**
+   * Reader of a columnar relay store that memory-maps the store and
+   * reads the columns of one consensus after the other directly from
+   * the mapped buffer.  Only the fingerprint dictionary is read into
+   * memory, so that fingerprints of all consensuses are the same String
+   * instances.  Stores larger than the mapping window are mapped in
+   * several windows, each starting at a consensus record.
+   */
+  private static class RunningRelaysReader {
+
+    /* Bytes to map at once, unless a single consensus is larger. */
+    private static final long WINDOW_BYTES = 256L * 1024L * 1024L;
+
+    private RandomAccessFile file;
+
+    private FileChannel channel;
+
+    private String[] fingerprints;
+
+    private long dictionaryOffset, nextOffset;
+
+    private MappedByteBuffer window;
+
+    private long windowStart, windowEnd;
+
+    private long validAfterMillis;
+
+    private int relays, idsPosition, flagsPosition,
+        advertisedBandwidthsPosition, writtenSumsPosition;
+
+    RunningRelaysReader(File storeFile) throws IOException {
+      this.file = new RandomAccessFile(storeFile, "r");
+      this.channel = this.file.getChannel();
+      this.file.seek(this.channel.size() - 8L);
+      this.dictionaryOffset = this.file.readLong();
+      this.channel.position(this.dictionaryOffset);
+      DataInputStream dis = new DataInputStream(new BufferedInputStream(
+          Channels.newInputStream(this.channel)));
+      this.fingerprints = new String[dis.readInt()];
+      for (int i = 0; i < this.fingerprints.length; i++) {
+        this.fingerprints[i] = dis.readUTF();
       }
-      if (parts[4].equals("t")) {
-        guardRelays.add(fingerprint);
+    }
+
+    static long getRecordLength(int relays) {
+      return 12L + 21L * relays;
+    }
+
+    /**
+     * Advance to the next consensus, returning false if there is none.
+     */
+    boolean nextConsensus() throws IOException {
+      if (this.nextOffset >= this.dictionaryOffset) {
+        return false;
       }
-      lastValidAfter = validAfter;
+      this.mapWindow(this.nextOffset, getRecordLength(0));
+      int position = (int) (this.nextOffset - this.windowStart);
+      this.validAfterMillis = this.window.getLong(position);
+      this.relays = this.window.getInt(position + 8);
+      long recordLength = getRecordLength(this.relays);
+      this.mapWindow(this.nextOffset, recordLength);
+      position = (int) (this.nextOffset - this.windowStart);
+      this.idsPosition = position + 12;
+      this.flagsPosition = this.idsPosition + 4 * this.relays;
+      this.advertisedBandwidthsPosition = this.flagsPosition
+          + this.relays;
+      this.writtenSumsPosition = this.advertisedBandwidthsPosition
+          + 8 * this.relays;
+      this.nextOffset += recordLength;
+      return true;
+    }
+
+    /* Helper: make sure that the given bytes are mapped. */
+    private void mapWindow(long offset, long length) throws IOException {
+      if (offset >= this.windowStart &&
+          offset + length <= this.windowEnd) {
+        return;
+      }
+      long size = Math.min(Math.max(WINDOW_BYTES, length),
+          this.dictionaryOffset - offset);
+      this.window = this.channel.map(FileChannel.MapMode.READ_ONLY,
+          offset, size);
+      this.windowStart = offset;
+      this.windowEnd = offset + size;
+    }
+
+    long getValidAfterMillis() {
+      return this.validAfterMillis;
+    }
+
+    int getRelays() {
+      return this.relays;
+    }
+
+    String getFingerprint(int relay) {
+      return this.fingerprints[this.window.getInt(this.idsPosition
+          + 4 * relay)];
+    }
+
+    boolean isRestarted(int relay) {
+      return (this.window.get(this.flagsPosition + relay) & 1) != 0;
+    }
+
+    boolean isStable(int relay) {
+      return (this.window.get(this.flagsPosition + relay) & 2) != 0;
+    }
+
+    boolean isGuard(int relay) {
+      return (this.window.get(this.flagsPosition + relay) & 4) != 0;
+    }
+
+    long getAdvertisedBandwidth(int relay) {
+      return this.window.getLong(this.advertisedBandwidthsPosition
+          + 8 * relay);
+    }
+
+    long getWrittenSum(int relay) {
+      return this.window.getLong(this.writtenSumsPosition + 8 * relay);
+    }
+
+    void close() throws IOException {
+      this.file.close();
     }
-    bw.close();
   }
 }
 
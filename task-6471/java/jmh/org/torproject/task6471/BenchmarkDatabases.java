@@ -0,0 +1,98 @@
+/* Copyright 2012 The Tor Project */
+package org.torproject.task6471;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Helper methods shared by the JMH benchmarks for creating synthetic
+ * combined databases and loading them into the various Database
+ * implementations.
+ */
+class BenchmarkDatabases {
+
+  /**
+   * Names of Database implementations that benchmarks can compare:
+   * "tree" is DatabaseImpl loaded from the CSV format, "compact" is
+   * CompactDatabaseImpl loaded from the CSV format, "mapped" is
+   * CompactDatabaseImpl mapping the binary format, and "trie" is
+   * TrieDatabaseImpl mapping the binary format.
+   */
+  static final String TREE = "tree", COMPACT = "compact",
+      MAPPED = "mapped", TRIE = "trie";
+
+  /**
+   * Import all stats files of the given synthetic data in the same order
+   * as importing a directory would, except for the files of the given
+   * month, which may be -1 to import all files.
+   */
+  static DatabaseImporterImpl importStatsFiles(SyntheticRegistryData data,
+      int skippedMonth) {
+    DatabaseImporterImpl database = new DatabaseImporterImpl();
+    for (int registry = data.getNumberOfRegistries() - 1; registry >= 0;
+        registry--) {
+      for (int month = data.getMonths() - 1; month >= 0; month--) {
+        if (month != skippedMonth) {
+          data.addStatsFileRanges(database, registry, month);
+          database.repairTree();
+        }
+      }
+    }
+    return database;
+  }
+
+  /**
+   * Load the given CSV or binary combined databases file into a new
+   * instance of the named implementation.
+   */
+  static Database load(String implementation, File csvFile,
+      File binaryFile) {
+    Database database;
+    String path;
+    if (TREE.equals(implementation)) {
+      database = new DatabaseImpl();
+      path = csvFile.getPath();
+    } else if (COMPACT.equals(implementation)) {
+      database = new CompactDatabaseImpl();
+      path = csvFile.getPath();
+    } else if (MAPPED.equals(implementation)) {
+      database = new CompactDatabaseImpl();
+      path = binaryFile.getPath();
+    } else if (TRIE.equals(implementation)) {
+      database = new TrieDatabaseImpl();
+      path = binaryFile.getPath();
+    } else {
+      throw new IllegalArgumentException("Unknown implementation '"
+          + implementation + "'.");
+    }
+    if (!database.loadCombinedDatabases(path)) {
+      throw new IllegalStateException("Could not load '" + path + "'.");
+    }
+    return database;
+  }
+
+  /**
+   * Create a new temporary directory.
+   */
+  static File createTempDirectory() throws IOException {
+    File directory = File.createTempFile("task6471-jmh", "");
+    if (!directory.delete() || !directory.mkdir()) {
+      throw new IOException("Could not create temporary directory '"
+          + directory.getAbsolutePath() + "'.");
+    }
+    return directory;
+  }
+
+  /**
+   * Delete the given file or directory including its contents.
+   */
+  static void delete(File file) {
+    File[] files = file.listFiles();
+    if (files != null) {
+      for (File child : files) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+}
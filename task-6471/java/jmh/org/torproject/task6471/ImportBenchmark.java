@@ -0,0 +1,128 @@
+/* Copyright 2012 The Tor Project */
+package org.torproject.task6471;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark parsing a single stats file, importing it into a database
+ * that contains the stats files of all other months, and repairing the
+ * tree after adding its ranges.  The imported file is either from the
+ * newest month, like when importing a new monthly file, or from the
+ * middle of the covered months, which requires splitting all ranges
+ * spanning that month.
+ *
+ * Importing and repairing modify the database, so each measured
+ * invocation gets a freshly built database and runs only once.  Fixture
+ * states depend on the benchmark state for the generated data.
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ImportBenchmark {
+
+  /**
+   * Registry whose stats file is imported.
+   */
+  private static final int REGISTRY = 4;
+
+  @Param({ "newest", "middle" })
+  public String importedMonth;
+
+  @Param({ "24" })
+  public int months;
+
+  @Param({ "2000" })
+  public int rangesPerRegistry;
+
+  private SyntheticRegistryData data;
+
+  private int month;
+
+  private File directory, statsFile;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    this.data = new SyntheticRegistryData(this.months,
+        this.rangesPerRegistry, 1L);
+    this.month = "newest".equals(this.importedMonth) ? this.months - 1
+        : this.months / 2;
+    this.directory = BenchmarkDatabases.createTempDirectory();
+    this.statsFile = this.data.writeStatsFile(this.directory, REGISTRY,
+        this.month);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    BenchmarkDatabases.delete(this.directory);
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  public Object parseStatsFile() {
+    return DatabaseImporterImpl.parseRegionalRegistryStatsFile(
+        this.statsFile, null);
+  }
+
+  /**
+   * Database containing all files except for the measured month.
+   */
+  @State(Scope.Thread)
+  public static class OtherFilesImported {
+    DatabaseImporterImpl database;
+    @Setup(Level.Invocation)
+    public void setUp(ImportBenchmark benchmark) {
+      this.database = BenchmarkDatabases.importStatsFiles(benchmark.data,
+          benchmark.month);
+    }
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  public boolean importStatsFile(OtherFilesImported otherFiles) {
+    return otherFiles.database.
+        importRegionalRegistryStatsFileOrDirectory(
+        this.statsFile.getPath());
+  }
+
+  /**
+   * Database containing all files except for the measured month and
+   * the ranges of the measured file, but without having repaired the
+   * tree after adding those ranges.
+   */
+  @State(Scope.Thread)
+  public static class RangesAdded {
+    DatabaseImporterImpl database;
+    @Setup(Level.Invocation)
+    public void setUp(ImportBenchmark benchmark) {
+      this.database = BenchmarkDatabases.importStatsFiles(benchmark.data,
+          benchmark.month);
+      benchmark.data.addStatsFileRanges(this.database, REGISTRY,
+          benchmark.month);
+    }
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  public int repairTree(RangesAdded rangesAdded) {
+    rangesAdded.database.repairTree();
+    return rangesAdded.database.getNumberOfElements();
+  }
+}
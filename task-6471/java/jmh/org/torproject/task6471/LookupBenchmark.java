@@ -0,0 +1,144 @@
+/* Copyright 2012 The Tor Project */
+package org.torproject.task6471;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark single lookups in all Database implementations, using
+ * either random or sequential addresses and dates, or using the same
+ * date for all lookups with and without taking a snapshot of the
+ * database published on that date first.  Throughput mode
+ * reports lookups per microsecond, sample mode reports latency
+ * percentiles, and running with "-prof gc" adds allocation rates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LookupBenchmark {
+
+  /**
+   * Number of prepared lookups, which must be a power of two.
+   */
+  private static final int LOOKUPS = 1 << 16;
+
+  @Param({ BenchmarkDatabases.TREE, BenchmarkDatabases.COMPACT,
+      BenchmarkDatabases.MAPPED, BenchmarkDatabases.TRIE })
+  public String implementation;
+
+  @Param({ "random", "sequential" })
+  public String order;
+
+  @Param({ "24" })
+  public int months;
+
+  @Param({ "4000" })
+  public int rangesPerRegistry;
+
+  private File directory;
+
+  private Database database;
+
+  private int[] addresses = new int[LOOKUPS], dates = new int[LOOKUPS];
+
+  private String[] addressStrings = new String[LOOKUPS],
+      dateStrings = new String[LOOKUPS];
+
+  private int lastDate;
+
+  private DatabaseSnapshot snapshot;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    SyntheticRegistryData data = new SyntheticRegistryData(this.months,
+        this.rangesPerRegistry, 1L);
+    DatabaseImporterImpl importer =
+        BenchmarkDatabases.importStatsFiles(data, -1);
+    this.directory = BenchmarkDatabases.createTempDirectory();
+    File csvFile = new File(this.directory, "combined.csv"),
+        binaryFile = new File(this.directory, "combined.bin");
+    importer.saveCombinedDatabases(csvFile.getPath());
+    importer.saveBinaryCombinedDatabases(binaryFile.getPath());
+    this.database = BenchmarkDatabases.load(this.implementation, csvFile,
+        binaryFile);
+    data.generateLookups(this.addresses, this.dates,
+        "sequential".equals(this.order), 2L);
+    this.lastDate = data.getDatabaseDate(this.months - 1);
+
+    /* Look up one address per database date, so that tries of all
+     * dates are built before measuring. */
+    for (int month = 0; month < this.months; month++) {
+      this.database.lookupIpv4AddressAndDate(0L,
+          data.getDatabaseDate(month));
+    }
+    this.snapshot = this.database.getSnapshot(this.lastDate);
+    for (int i = 0; i < LOOKUPS; i++) {
+      this.addressStrings[i] = DatabaseImpl.convertAddressNumberToString(
+          this.addresses[i] & 0xffffffffL);
+      this.dateStrings[i] = DatabaseImpl.convertDateNumberToString(
+          this.dates[i]);
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    BenchmarkDatabases.delete(this.directory);
+  }
+
+  /**
+   * Position of the next lookup, kept per thread.
+   */
+  @State(Scope.Thread)
+  public static class Cursor {
+    private int next;
+    int next() {
+      return this.next++ & (LOOKUPS - 1);
+    }
+  }
+
+  @Benchmark
+  public String lookupNumeric(Cursor cursor) {
+    int i = cursor.next();
+    return this.database.lookupIpv4AddressAndDate(
+        this.addresses[i] & 0xffffffffL, this.dates[i]);
+  }
+
+  @Benchmark
+  public String lookupString(Cursor cursor) {
+    int i = cursor.next();
+    return this.database.lookupIpv4AddressAndDate(
+        this.addressStrings[i], this.dateStrings[i]);
+  }
+
+  @Benchmark
+  public String lookupSameDate(Cursor cursor) {
+    int i = cursor.next();
+    return this.database.lookupIpv4AddressAndDate(
+        this.addresses[i] & 0xffffffffL, this.lastDate);
+  }
+
+  @Benchmark
+  public String lookupSnapshot(Cursor cursor) {
+    int i = cursor.next();
+    return this.snapshot.lookupIpv4Address(
+        this.addresses[i] & 0xffffffffL);
+  }
+}
@@ -0,0 +1,88 @@
+/* Copyright 2012 The Tor Project */
+package org.torproject.task6471;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark saving combined databases in CSV and binary format and
+ * loading them into all Database implementations.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class SaveLoadBenchmark {
+
+  @Param({ "24" })
+  public int months;
+
+  @Param({ "4000" })
+  public int rangesPerRegistry;
+
+  private File directory, csvFile, binaryFile, savedFile;
+
+  private DatabaseImporterImpl database;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    SyntheticRegistryData data = new SyntheticRegistryData(this.months,
+        this.rangesPerRegistry, 1L);
+    this.database = BenchmarkDatabases.importStatsFiles(data, -1);
+    this.directory = BenchmarkDatabases.createTempDirectory();
+    this.csvFile = new File(this.directory, "combined.csv");
+    this.binaryFile = new File(this.directory, "combined.bin");
+    this.savedFile = new File(this.directory, "saved");
+    this.database.saveCombinedDatabases(this.csvFile.getPath());
+    this.database.saveBinaryCombinedDatabases(this.binaryFile.getPath());
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    BenchmarkDatabases.delete(this.directory);
+  }
+
+  @Benchmark
+  public boolean saveCombinedDatabases() {
+    return this.database.saveCombinedDatabases(this.savedFile.getPath());
+  }
+
+  @Benchmark
+  public boolean saveBinaryCombinedDatabases() {
+    return this.database.saveBinaryCombinedDatabases(
+        this.savedFile.getPath());
+  }
+
+  /**
+   * Name of the Database implementation to load into.
+   */
+  @State(Scope.Benchmark)
+  public static class Implementation {
+    @Param({ BenchmarkDatabases.TREE, BenchmarkDatabases.COMPACT,
+        BenchmarkDatabases.MAPPED })
+    public String implementation;
+  }
+
+  @Benchmark
+  public Database loadCombinedDatabases(Implementation implementation) {
+    return BenchmarkDatabases.load(implementation.implementation,
+        this.csvFile, this.binaryFile);
+  }
+}
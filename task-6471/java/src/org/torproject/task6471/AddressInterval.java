@@ -0,0 +1,280 @@
+/* Copyright 2012 The Tor Project */
+package org.torproject.task6471;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * IPv4 address interval with the country code or AS number assigned to
+ * it in a single database, as returned by
+ * Database.iterateIpv4Intervals().
+ *
+ * Intervals are produced lazily in a single sweep over the ranges of a
+ * database in the order of ascending start addresses, without building
+ * snapshots or other intermediate collections.  Adjacent ranges with the
+ * same code are merged into a single interval, just like in snapshots.
+ */
+public class AddressInterval {
+
+  private final long startAddress, endAddress;
+
+  private final String code;
+
+  AddressInterval(long startAddress, long endAddress, String code) {
+    this.startAddress = startAddress;
+    this.endAddress = endAddress;
+    this.code = code;
+  }
+
+  /**
+   * Return the first address of this interval as a number between 0 and
+   * 2^32 - 1.
+   */
+  public long getStartAddress() {
+    return this.startAddress;
+  }
+
+  /**
+   * Return the last address of this interval as a number between 0 and
+   * 2^32 - 1.
+   */
+  public long getEndAddress() {
+    return this.endAddress;
+  }
+
+  /**
+   * Return the number of addresses in this interval.
+   */
+  public long getNumberOfAddresses() {
+    return this.endAddress - this.startAddress + 1L;
+  }
+
+  /**
+   * Return the country code or AS number assigned to this interval.
+   */
+  public String getCode() {
+    return this.code;
+  }
+
+  /* Return a string like 1.0.0.0-1.0.0.255:au for debugging. */
+  public String toString() {
+    return DatabaseImpl.convertAddressNumberToString(this.startAddress)
+        + "-" + DatabaseImpl.convertAddressNumberToString(this.endAddress)
+        + ":" + this.code;
+  }
+
+  /**
+   * IPv4 address interval whose assignment differs between two
+   * databases, as returned by Database.iterateIpv4Changes().
+   *
+   * Changes are produced lazily by sweeping over the intervals of both
+   * databases at the same time.  Adjacent changes with the same old and
+   * new code are merged.
+   */
+  public static class Change extends AddressInterval {
+
+    private final String newCode;
+
+    Change(long startAddress, long endAddress, String oldCode,
+        String newCode) {
+      super(startAddress, endAddress, oldCode);
+      this.newCode = newCode;
+    }
+
+    /**
+     * Return the code assigned in the earlier database, or null if the
+     * interval was not assigned, which is the same as getCode().
+     */
+    public String getOldCode() {
+      return this.getCode();
+    }
+
+    /**
+     * Return the code assigned in the later database, or null if the
+     * interval is not assigned anymore.
+     */
+    public String getNewCode() {
+      return this.newCode;
+    }
+
+    /* Return a string like 1.0.0.0-1.0.0.255:au>nz for debugging. */
+    public String toString() {
+      return super.toString() + ">" + this.newCode;
+    }
+  }
+
+  /**
+   * Ranges of a database in the order in which databases store them,
+   * which is backwards by start address and first database date.
+   */
+  abstract static class Ranges {
+    abstract int size();
+    abstract long getKey(int index);
+    abstract long getEndAddress(int index);
+    abstract int getLastDbDate(int index);
+    abstract String getCode(int index);
+  }
+
+  /**
+   * Iterator over intervals of the given ranges that contain the given
+   * database date, or an empty iterator if the date is -1.  Ranges
+   * containing the same database date never overlap, so that iterating
+   * over ranges backwards yields intervals in ascending order.
+   */
+  static class IntervalIterator implements Iterator<AddressInterval> {
+    private final Ranges ranges;
+    private final int databaseDate;
+    private int index;
+    private AddressInterval next;
+    IntervalIterator(Ranges ranges, int databaseDate) {
+      this.ranges = ranges;
+      this.databaseDate = databaseDate;
+      this.index = databaseDate < 0 ? -1 : ranges.size() - 1;
+      this.next = this.findNext();
+    }
+    private AddressInterval findNext() {
+      long startAddress = -1L, endAddress = -1L;
+      String code = null;
+      for (; this.index >= 0; this.index--) {
+        long key = this.ranges.getKey(this.index);
+        if (DatabaseImpl.convertKeyToDate(key) > this.databaseDate ||
+            this.ranges.getLastDbDate(this.index) < this.databaseDate) {
+          continue;
+        }
+        long address = DatabaseImpl.convertKeyToAddress(key);
+        String rangeCode = this.ranges.getCode(this.index);
+        if (code == null) {
+          startAddress = address;
+        } else if (address != endAddress + 1L ||
+            !code.equals(rangeCode)) {
+          break;
+        }
+        endAddress = this.ranges.getEndAddress(this.index);
+        code = rangeCode;
+      }
+      return code == null ? null :
+          new AddressInterval(startAddress, endAddress, code);
+    }
+    public boolean hasNext() {
+      return this.next != null;
+    }
+    public AddressInterval next() {
+      if (this.next == null) {
+        throw new NoSuchElementException();
+      }
+      AddressInterval result = this.next;
+      this.next = this.findNext();
+      return result;
+    }
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  /**
+   * Iterator over changes between two interval iterators in ascending
+   * order, which cuts intervals of both iterators at each other's
+   * boundaries and reports pieces with different codes.
+   */
+  static class ChangeIterator implements Iterator<Change> {
+    private final Iterator<AddressInterval> oldIntervals, newIntervals;
+    private AddressInterval oldInterval, newInterval;
+    private long position = 0L;
+    private Change pending, next;
+    ChangeIterator(Iterator<AddressInterval> oldIntervals,
+        Iterator<AddressInterval> newIntervals) {
+      this.oldIntervals = oldIntervals;
+      this.newIntervals = newIntervals;
+      this.oldInterval = oldIntervals.hasNext() ? oldIntervals.next()
+          : null;
+      this.newInterval = newIntervals.hasNext() ? newIntervals.next()
+          : null;
+      this.next = this.findNext();
+    }
+
+    /* Helper: return the next piece starting at the current position
+     * with different old and new codes, or null if there is none. */
+    private Change findNextPiece() {
+      while (this.oldInterval != null || this.newInterval != null) {
+        long endAddress = Long.MAX_VALUE;
+        String oldCode = null, newCode = null;
+        if (this.oldInterval != null) {
+          if (this.oldInterval.startAddress <= this.position) {
+            oldCode = this.oldInterval.code;
+            endAddress = this.oldInterval.endAddress;
+          } else {
+            endAddress = this.oldInterval.startAddress - 1L;
+          }
+        }
+        if (this.newInterval != null) {
+          if (this.newInterval.startAddress <= this.position) {
+            newCode = this.newInterval.code;
+            endAddress = Math.min(endAddress,
+                this.newInterval.endAddress);
+          } else {
+            endAddress = Math.min(endAddress,
+                this.newInterval.startAddress - 1L);
+          }
+        }
+        long startAddress = this.position;
+        this.position = endAddress + 1L;
+        if (this.oldInterval != null &&
+            this.oldInterval.endAddress < this.position) {
+          this.oldInterval = this.oldIntervals.hasNext() ?
+              this.oldIntervals.next() : null;
+        }
+        if (this.newInterval != null &&
+            this.newInterval.endAddress < this.position) {
+          this.newInterval = this.newIntervals.hasNext() ?
+              this.newIntervals.next() : null;
+        }
+        if (oldCode == null ? newCode != null :
+            !oldCode.equals(newCode)) {
+          return new Change(startAddress, endAddress, oldCode, newCode);
+        }
+      }
+      return null;
+    }
+
+    /* Helper: merge adjacent pieces with the same codes. */
+    private Change findNext() {
+      Change result = this.pending != null ? this.pending :
+          this.findNextPiece();
+      this.pending = null;
+      if (result == null) {
+        return null;
+      }
+      Change piece;
+      while ((piece = this.findNextPiece()) != null) {
+        if (piece.getStartAddress() == result.getEndAddress() + 1L &&
+            equal(piece.getOldCode(), result.getOldCode()) &&
+            equal(piece.newCode, result.newCode)) {
+          result = new Change(result.getStartAddress(),
+              piece.getEndAddress(), result.getOldCode(),
+              result.newCode);
+        } else {
+          this.pending = piece;
+          break;
+        }
+      }
+      return result;
+    }
+    private static boolean equal(String a, String b) {
+      return a == null ? b == null : a.equals(b);
+    }
+    public boolean hasNext() {
+      return this.next != null;
+    }
+    public Change next() {
+      if (this.next == null) {
+        throw new NoSuchElementException();
+      }
+      Change result = this.next;
+      this.next = this.findNext();
+      return result;
+    }
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
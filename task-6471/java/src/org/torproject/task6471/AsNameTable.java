@@ -0,0 +1,306 @@
+/* Copyright 2012 The Tor Project */
+package org.torproject.task6471;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Table of autonomous system names by AS number, shared by all database
+ * dates of an ASN database.  Each AS number is stored with the name
+ * found in the most recent database containing it.
+ *
+ * Names are stored off-heap as 2 bytes length and UTF-8 bytes in a
+ * direct byte buffer, and AS numbers are found using an open-addressing
+ * hash table of primitive arrays, so that a table of some 50,000 AS
+ * names doesn't create any objects per name.  Renamed ASes get their new
+ * name appended to the buffer, leaving the old name behind until the
+ * table is saved and loaded again.
+ *
+ * Like the databases containing it, the table may be read by any number
+ * of threads once it is filled, but must not be modified concurrently
+ * with reads.
+ */
+public class AsNameTable {
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  /**
+   * AS numbers, or 0 for empty slots, because AS number 0 is reserved
+   * and never has a name.
+   */
+  private int[] asNumbers = new int[1024];
+
+  /**
+   * Buffer offsets of names by slot.
+   */
+  private int[] offsets = new int[1024];
+
+  /**
+   * Database dates of names by slot.
+   */
+  private int[] dates = new int[1024];
+
+  private int size = 0;
+
+  /**
+   * Direct buffer containing names, which is allocated when adding the
+   * first name, so that GeoIP databases don't allocate it at all.
+   */
+  private ByteBuffer names = null;
+
+  /**
+   * Return the number of AS numbers with names.
+   */
+  public int size() {
+    return this.size;
+  }
+
+  /**
+   * Return the number of bytes used in the direct buffer containing
+   * names.
+   */
+  public long getOffHeapBytes() {
+    return this.names == null ? 0L : this.names.capacity();
+  }
+
+  /* Helper: return the slot containing the given AS number, or the empty
+   * slot where it would be inserted. */
+  private int findSlot(int asNumber) {
+    int mask = this.asNumbers.length - 1;
+    int slot = (asNumber * 0x9e3779b9) >>> 1 & mask;
+    while (this.asNumbers[slot] != 0 &&
+        this.asNumbers[slot] != asNumber) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  /**
+   * Store the name of the given AS number as found in the database
+   * published on the given date, unless a name from a more recent
+   * database is already stored.
+   */
+  void put(long asNumber, int date, String name) {
+    if (asNumber <= 0L || asNumber > 0xffffffffL || name == null) {
+      return;
+    }
+    int slot = this.findSlot((int) asNumber);
+    if (this.asNumbers[slot] != 0) {
+      if (this.dates[slot] > date) {
+        return;
+      }
+      this.dates[slot] = date;
+      if (!name.equals(this.getName(this.offsets[slot]))) {
+        this.offsets[slot] = this.appendName(name);
+      }
+      return;
+    }
+    this.asNumbers[slot] = (int) asNumber;
+    this.dates[slot] = date;
+    this.offsets[slot] = this.appendName(name);
+    if (++this.size * 2 > this.asNumbers.length) {
+      this.rehash();
+    }
+  }
+
+  /* Helper: append a name to the names buffer and return its offset. */
+  private int appendName(String name) {
+    byte[] bytes = name.getBytes(UTF_8);
+    if (bytes.length > 0xffff) {
+      bytes = Arrays.copyOf(bytes, 0xffff);
+    }
+    if (this.names == null) {
+      this.names = ByteBuffer.allocateDirect(Math.max(64 * 1024,
+          2 + bytes.length));
+    } else if (this.names.remaining() < 2 + bytes.length) {
+      ByteBuffer larger = ByteBuffer.allocateDirect(Math.max(
+          2 * this.names.capacity(), this.names.position() + 2
+          + bytes.length));
+      this.names.flip();
+      larger.put(this.names);
+      this.names = larger;
+    }
+    int offset = this.names.position();
+    this.names.putShort((short) bytes.length);
+    this.names.put(bytes);
+    return offset;
+  }
+
+  /* Helper: double the hash table size. */
+  private void rehash() {
+    int[] oldAsNumbers = this.asNumbers, oldOffsets = this.offsets,
+        oldDates = this.dates;
+    this.asNumbers = new int[2 * oldAsNumbers.length];
+    this.offsets = new int[2 * oldAsNumbers.length];
+    this.dates = new int[2 * oldAsNumbers.length];
+    for (int i = 0; i < oldAsNumbers.length; i++) {
+      if (oldAsNumbers[i] != 0) {
+        int slot = this.findSlot(oldAsNumbers[i]);
+        this.asNumbers[slot] = oldAsNumbers[i];
+        this.offsets[slot] = oldOffsets[i];
+        this.dates[slot] = oldDates[i];
+      }
+    }
+  }
+
+  /* Helper: decode the name stored at the given offset using absolute
+   * reads only, so that concurrent readers don't interfere. */
+  private String getName(int offset) {
+    byte[] bytes = new byte[this.names.getShort(offset) & 0xffff];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = this.names.get(offset + 2 + i);
+    }
+    return new String(bytes, UTF_8);
+  }
+
+  /**
+   * Return the name of the given AS number, or null if it's unknown.
+   */
+  public String get(long asNumber) {
+    if (asNumber <= 0L || asNumber > 0xffffffffL) {
+      return null;
+    }
+    int slot = this.findSlot((int) asNumber);
+    return this.asNumbers[slot] == 0 ? null :
+        this.getName(this.offsets[slot]);
+  }
+
+  /**
+   * Return the name of the given AS number in the format "AS1234" as
+   * used for codes in ASN databases, or null if the AS number is unknown
+   * or not in that format.
+   */
+  public String get(String asNumber) {
+    long number = parseAsNumber(asNumber);
+    return number < 0L ? null : this.get(number);
+  }
+
+  /**
+   * Parse an AS number in the format "AS1234" and return it, or -1 if
+   * the given string is null or not in that format.
+   */
+  static long parseAsNumber(String asNumber) {
+    if (asNumber == null || !asNumber.startsWith("AS") ||
+        asNumber.length() < 3 || asNumber.length() > 12) {
+      return -1L;
+    }
+    long number = 0L;
+    for (int i = 2; i < asNumber.length(); i++) {
+      char c = asNumber.charAt(i);
+      if (c < '0' || c > '9') {
+        return -1L;
+      }
+      number = number * 10L + (c - '0');
+    }
+    return number;
+  }
+
+  /**
+   * Return the AS number and name of the given code formatted as in
+   * MaxMind ASN databases, like "AS1234 Name", or the code alone if
+   * there is no name, or null if the code is null.
+   */
+  String formatAsNumberAndName(String code) {
+    String name = this.get(code);
+    return name == null ? code : code + " " + name;
+  }
+
+  /**
+   * Store all names of the given table, keeping names from more recent
+   * databases.
+   */
+  void putAll(AsNameTable other) {
+    for (int slot : other.getSortedSlots()) {
+      this.put(other.asNumbers[slot] & 0xffffffffL, other.dates[slot],
+          other.getName(other.offsets[slot]));
+    }
+  }
+
+  /* Helper: return all occupied slots ordered by AS number, so that
+   * saved tables don't depend on insertion order. */
+  private int[] getSortedSlots() {
+    long[] sortKeys = new long[this.size];
+    int i = 0;
+    for (int slot = 0; slot < this.asNumbers.length; slot++) {
+      if (this.asNumbers[slot] != 0) {
+        sortKeys[i++] = ((this.asNumbers[slot] & 0xffffffffL) << 24)
+            | slot;
+      }
+    }
+    Arrays.sort(sortKeys);
+    int[] slots = new int[sortKeys.length];
+    for (i = 0; i < sortKeys.length; i++) {
+      slots[i] = (int) (sortKeys[i] & 0xffffffL);
+    }
+    return slots;
+  }
+
+  /**
+   * Write the number of names followed by AS number, date, and name of
+   * each AS as 4 bytes, 4 bytes, and a string of 2 bytes length and
+   * UTF-8 bytes.
+   */
+  void write(DataOutputStream dos) throws IOException {
+    dos.writeInt(this.size);
+    for (int slot : this.getSortedSlots()) {
+      dos.writeInt(this.asNumbers[slot]);
+      dos.writeInt(this.dates[slot]);
+      int offset = this.offsets[slot];
+      int length = this.names.getShort(offset) & 0xffff;
+      dos.writeShort(length);
+      for (int i = 0; i < length; i++) {
+        dos.writeByte(this.names.get(offset + 2 + i));
+      }
+    }
+  }
+
+  /**
+   * Read names in the format written by write(), starting at the current
+   * position of the given buffer.
+   */
+  void read(ByteBuffer buffer) {
+    int count = buffer.getInt();
+    for (int i = 0; i < count; i++) {
+      long asNumber = buffer.getInt() & 0xffffffffL;
+      int date = buffer.getInt();
+      byte[] bytes = new byte[buffer.getShort() & 0xffff];
+      buffer.get(bytes);
+      this.put(asNumber, date, new String(bytes, UTF_8));
+    }
+  }
+
+  /**
+   * Write one line per AS for CSV combined databases files containing AS
+   * number, date, and name, like "@AS1234,20121101,Name".
+   */
+  void writeCsvLines(Appendable out) throws IOException {
+    for (int slot : this.getSortedSlots()) {
+      out.append("@AS" + (this.asNumbers[slot] & 0xffffffffL) + ","
+          + DatabaseImpl.convertDateNumberToString(this.dates[slot]) + ","
+          + this.getName(this.offsets[slot]) + "\n");
+    }
+  }
+
+  /**
+   * Add the AS name contained in a CSV combined databases file line
+   * starting with "@", or return false if the line is malformed.
+   */
+  boolean readCsvLine(String line) {
+    int firstComma = line.indexOf(','),
+        secondComma = line.indexOf(',', firstComma + 1);
+    if (!line.startsWith("@") || firstComma < 0 || secondComma < 0) {
+      return false;
+    }
+    long asNumber = parseAsNumber(line.substring(1, firstComma));
+    if (asNumber <= 0L) {
+      return false;
+    }
+    this.put(asNumber, DatabaseImpl.convertDateStringToNumber(
+        line.substring(firstComma + 1, secondComma)),
+        line.substring(secondComma + 1));
+    return true;
+  }
+}
@@ -0,0 +1,117 @@
+/* Copyright 2012 The Tor Project */
+package org.torproject.task6471;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Period of dates during which an IPv4 address was assigned to the same
+ * country code or AS number, as returned by
+ * Database.lookupIpv4AssignmentHistory().
+ *
+ * Periods are derived from ranges in a single backward walk starting at
+ * the address, which visits all ranges containing the address, one
+ * after the other.  Each of those ranges contains the address in all
+ * databases from its first to its last database date, which also
+ * determines the code of all days until the next database is
+ * published.  This is the same code that lookupIpv4AddressAndDate()
+ * returns for each of those days.
+ */
+public class AssignmentPeriod {
+
+  private final int fromDate, toDate;
+
+  private final String code;
+
+  AssignmentPeriod(int fromDate, int toDate, String code) {
+    this.fromDate = fromDate;
+    this.toDate = toDate;
+    this.code = code;
+  }
+
+  /**
+   * Return the first date of this period in format yyyymmdd.
+   */
+  public String getFromDate() {
+    return DatabaseImpl.convertDateNumberToString(this.fromDate);
+  }
+
+  /**
+   * Return the last date of this period in format yyyymmdd.
+   */
+  public String getToDate() {
+    return DatabaseImpl.convertDateNumberToString(this.toDate);
+  }
+
+  /**
+   * Return the country code or AS number assigned during this period.
+   */
+  public String getCode() {
+    return this.code;
+  }
+
+  /* Return a string like 20120901-20120930:us for debugging. */
+  public String toString() {
+    return this.getFromDate() + "-" + this.getToDate() + ":" + this.code;
+  }
+
+  /**
+   * Walk backwards over the given ranges, starting at the first range
+   * that could contain the given address, and return the periods
+   * between the given days in which the address was assigned, in
+   * ascending order.  Adjacent periods with the same code are merged,
+   * and periods in which the address was not assigned are left out.
+   */
+  static List<AssignmentPeriod> walkRanges(AddressInterval.Ranges ranges,
+      int firstIndex, long address, int[] databaseDates, int fromDay,
+      int toDay) {
+    List<AssignmentPeriod> periods = new ArrayList<AssignmentPeriod>();
+    if (databaseDates.length == 0 || fromDay > toDay) {
+      return periods;
+    }
+
+    /* Ranges containing the address have descending database dates, so
+     * that we can stop at the first range ending before the address or
+     * ending before the requested days. */
+    for (int i = firstIndex; i < ranges.size(); i++) {
+      if (ranges.getEndAddress(i) < address) {
+        break;
+      }
+      int firstDbDate = DatabaseImpl.convertKeyToDate(ranges.getKey(i)),
+          lastDbDate = ranges.getLastDbDate(i);
+
+      /* The range determines lookup results from its first database
+       * date, or from any earlier day if that is the earliest database,
+       * until the day before the database following its last database
+       * date, or any later day if there is none. */
+      int fromIndex = DatabaseImpl.findDatabaseDateIndex(databaseDates,
+          firstDbDate),
+          toIndex = DatabaseImpl.findDatabaseDateIndex(databaseDates,
+          lastDbDate);
+      int from = fromIndex == 0 ? fromDay : firstDbDate,
+          to = toIndex == databaseDates.length - 1 ? toDay
+          : databaseDates[toIndex + 1] - 1;
+      if (to < fromDay) {
+        break;
+      }
+      from = Math.max(from, fromDay);
+      to = Math.min(to, toDay);
+      if (from > to) {
+        continue;
+      }
+      String code = ranges.getCode(i);
+      AssignmentPeriod previous = periods.isEmpty() ? null
+          : periods.get(periods.size() - 1);
+      if (previous != null && previous.fromDate == to + 1 &&
+          previous.code.equals(code)) {
+        periods.set(periods.size() - 1,
+            new AssignmentPeriod(from, previous.toDate, code));
+      } else {
+        periods.add(new AssignmentPeriod(from, to, code));
+      }
+    }
+    Collections.reverse(periods);
+    return periods;
+  }
+}
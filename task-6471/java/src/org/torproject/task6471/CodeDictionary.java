@@ -0,0 +1,92 @@
+/* Copyright 2012 The Tor Project */
+package org.torproject.task6471;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Dictionary of distinct country codes or AS numbers, each of which is
+ * assigned a code id in the order in which codes are first added.  Code
+ * ids are never reassigned, so that they remain valid for the lifetime
+ * of the dictionary.
+ *
+ * Adding codes is synchronized, but looking up the code of a given id
+ * is not, because it happens on every lookup.  Codes are kept in an
+ * array that is replaced by a larger copy when it is full, and a code is
+ * stored in the array before publishing the new size, so that readers
+ * who see an id below the size also see the code.
+ */
+public class CodeDictionary {
+
+  /**
+   * Code id returned for addresses without assignment.
+   */
+  public static final int NO_CODE = -1;
+
+  private Map<String, Integer> codeIds = new HashMap<String, Integer>();
+
+  private volatile String[] codes = new String[16];
+
+  private volatile int size = 0;
+
+  /**
+   * Create an empty dictionary.
+   */
+  public CodeDictionary() {
+  }
+
+  /**
+   * Create a dictionary containing the given codes with their array
+   * indexes as code ids, for example after reading a saved dictionary.
+   */
+  public CodeDictionary(String[] codes) {
+    for (String code : codes) {
+      this.getCodeId(code);
+    }
+  }
+
+  /**
+   * Return the id of the given code, adding the code to the dictionary if
+   * it wasn't contained before, or NO_CODE if the code is null.
+   */
+  public synchronized int getCodeId(String code) {
+    if (code == null) {
+      return NO_CODE;
+    }
+    Integer codeId = this.codeIds.get(code);
+    if (codeId == null) {
+      codeId = this.size;
+      if (codeId == this.codes.length) {
+        this.codes = Arrays.copyOf(this.codes, 2 * codeId);
+      }
+      this.codes[codeId] = code;
+      this.codeIds.put(code, codeId);
+      this.size = codeId + 1;
+    }
+    return codeId;
+  }
+
+  /**
+   * Return the code with the given id, or null if the id is NO_CODE or
+   * unknown.
+   */
+  public String getCode(int codeId) {
+    return codeId < 0 || codeId >= this.size ? null :
+        this.codes[codeId];
+  }
+
+  /**
+   * Return the number of contained codes.
+   */
+  public int size() {
+    return this.size;
+  }
+
+  /**
+   * Return all contained codes ordered by code id.
+   */
+  public synchronized String[] toArray() {
+    return Arrays.copyOf(this.codes, this.size);
+  }
+}
@@ -0,0 +1,591 @@
+/* Copyright 2012 The Tor Project */
+package org.torproject.task6471;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Combined databases file in a compressed columnar format, which takes
+ * much less disk space than the CSV or binary formats and which can
+ * answer single lookups by decompressing only one block of it.
+ *
+ * IPv4 records are stored in the same order as in CompactDatabaseImpl,
+ * backwards by start address and first database date, and they are
+ * split into blocks of up to 1024 records.  Each block stores its
+ * records column by column, with each number written as variable-length
+ * integer of 7 bits per byte:
+ *
+ *   start addresses: the first one, followed by the differences to the
+ *                    previous start address,
+ *   first database dates: indexes into the database dates,
+ *   lengths: end address minus start address,
+ *   last database dates: index of the last database date minus index
+ *                        of the first database date,
+ *   code indexes: indexes into the code dictionary.
+ *
+ * Blocks are compressed using zlib at its fastest level, which also
+ * checks each block using its Adler-32 checksum when decompressing it.
+ * The header contains a sparse block index with the first key and the
+ * compressed length of each block, so that a lookup can find the block
+ * containing its first possibly matching record without decompressing
+ * any other blocks.  The file format is:
+ *
+ *   4 bytes: magic number "T64C",
+ *   4 bytes: format version,
+ *   4 bytes: number of database dates, followed by one int per date,
+ *   4 bytes: number of database file names, followed by one string per
+ *            file name,
+ *   4 bytes: number of codes, followed by one string per code,
+ *   4 bytes: number of records,
+ *   4 bytes: number of records per block,
+ *   4 bytes: number of blocks, followed by 8 bytes first key and 4
+ *            bytes compressed length per block,
+ *   blocks,
+ *   4 bytes: compressed length of the IPv6 records and AS names section,
+ *            followed by that compressed section, containing the number
+ *            of IPv6 records, the IPv6 records in the same layout as in
+ *            CompactDatabaseImpl, and the AS names,
+ *   checksum trailer as in the binary format.
+ *
+ * Loading a whole columnar file into a database verifies the checksum
+ * trailer, whereas single lookups rely on the checksums of decompressed
+ * blocks.  Once opened, instances can serve lookups from any number of
+ * threads.  The most recently decompressed block is kept for
+ * subsequent lookups in the same block.
+ */
+public class ColumnarSegment {
+
+  /**
+   * Magic number and version of the columnar combined databases format.
+   */
+  static final int COLUMNAR_MAGIC = 0x54363443, COLUMNAR_VERSION = 1;
+
+  /**
+   * Maximum number of records per block.
+   */
+  static final int RECORDS_PER_BLOCK = 1024;
+
+  /**
+   * Maximum number of bytes of a single block before compressing it,
+   * which is reached if all numbers take the maximum number of bytes.
+   */
+  private static final int MAX_BLOCK_BYTES_PER_RECORD =
+      5 + 3 + 5 + 3 + 5;
+
+  private final ByteBuffer file;
+
+  final int[] databaseDates;
+
+  final String[] databaseFileNames;
+
+  final String[] codes;
+
+  final int numberOfRecords, recordsPerBlock;
+
+  /**
+   * Key of the first record and offset of the compressed bytes of each
+   * block, with one more offset at the end of the last block.
+   */
+  private final long[] blockFirstKeys;
+
+  private final int[] blockOffsets;
+
+  /**
+   * Most recently decompressed block, which is replaced as a whole.
+   */
+  private volatile Block lastBlock;
+
+  /* Helper: read the header and block index of a columnar file. */
+  private ColumnarSegment(ByteBuffer file) throws IOException {
+    this.file = file;
+    if (file.getInt() != COLUMNAR_MAGIC ||
+        file.getInt() != COLUMNAR_VERSION) {
+      throw new IOException("Not a columnar combined databases file.");
+    }
+    this.databaseDates = new int[file.getInt()];
+    for (int i = 0; i < this.databaseDates.length; i++) {
+      this.databaseDates[i] = file.getInt();
+    }
+    this.databaseFileNames = new String[file.getInt()];
+    for (int i = 0; i < this.databaseFileNames.length; i++) {
+      this.databaseFileNames[i] = CompactDatabaseImpl.readString(file);
+    }
+    this.codes = new String[file.getInt()];
+    for (int i = 0; i < this.codes.length; i++) {
+      this.codes[i] = CompactDatabaseImpl.readString(file);
+    }
+    this.numberOfRecords = file.getInt();
+    this.recordsPerBlock = file.getInt();
+    int numberOfBlocks = file.getInt();
+    if (this.recordsPerBlock < 1 || numberOfBlocks !=
+        (this.numberOfRecords + this.recordsPerBlock - 1)
+        / this.recordsPerBlock) {
+      throw new IOException("Inconsistent block index.");
+    }
+    this.blockFirstKeys = new long[numberOfBlocks];
+    this.blockOffsets = new int[numberOfBlocks + 1];
+    int[] compressedLengths = new int[numberOfBlocks];
+    for (int i = 0; i < numberOfBlocks; i++) {
+      this.blockFirstKeys[i] = file.getLong();
+      compressedLengths[i] = file.getInt();
+    }
+    this.blockOffsets[0] = file.position();
+    for (int i = 0; i < numberOfBlocks; i++) {
+      this.blockOffsets[i + 1] = this.blockOffsets[i]
+          + compressedLengths[i];
+    }
+    if (this.blockOffsets[numberOfBlocks] > file.limit()) {
+      throw new IOException("Truncated file.");
+    }
+  }
+
+  /**
+   * Open a columnar combined databases file for single lookups, which
+   * only reads its header and block index.
+   *
+   * @param path Path to the columnar combined databases file.
+   * @return Opened file, or null if the file could not be opened.
+   */
+  public static ColumnarSegment open(String path) {
+    try {
+      return new ColumnarSegment(map(new File(path)));
+    } catch (IOException e) {
+      System.err.println("Could not open '" + path + "': "
+          + e.getMessage());
+    } catch (RuntimeException e) {
+      System.err.println("Could not open '" + path + "': " + e);
+    }
+    return null;
+  }
+
+  /* Helper: map the given file into memory. */
+  private static ByteBuffer map(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      return channel.map(FileChannel.MapMode.READ_ONLY, 0L,
+          channel.size());
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * Open a columnar combined databases file for reading it as a whole,
+   * which verifies its checksum trailer first.
+   *
+   * @throws IOException if the file is broken.
+   */
+  static ColumnarSegment openVerified(File file) throws IOException {
+    ColumnarSegment segment = new ColumnarSegment(map(file));
+    ByteBuffer buffer = segment.file.duplicate();
+    buffer.position(segment.getTailOffset());
+    int tailLength = buffer.getInt();
+    buffer.position(buffer.position() + tailLength);
+    if (!CombinedDatabasesFile.readBinaryChecksums(buffer, true) ||
+        buffer.hasRemaining()) {
+      throw new IOException("Checksum mismatch.");
+    }
+    return segment;
+  }
+
+  /* Helper: return the offset of the section following the blocks. */
+  private int getTailOffset() {
+    return this.blockOffsets[this.blockOffsets.length - 1];
+  }
+
+  /**
+   * Decompress the section following the blocks, which contains the
+   * number of IPv6 records, the IPv6 records, and the AS names.
+   *
+   * @throws IOException if the section is broken.
+   */
+  ByteBuffer readIpv6RecordsAndAsNames() throws IOException {
+    ByteBuffer buffer = this.file.duplicate();
+    buffer.position(this.getTailOffset());
+    byte[] compressed = new byte[buffer.getInt()];
+    buffer.get(compressed);
+    return ByteBuffer.wrap(inflate(compressed, -1));
+  }
+
+  /**
+   * Decompressed block of records.
+   */
+  static class Block {
+    final int index;
+    final long[] keys, endAddresses;
+    final int[] lastDbDates, codeIndexes;
+    private Block(int index, int records) {
+      this.index = index;
+      this.keys = new long[records];
+      this.endAddresses = new long[records];
+      this.lastDbDates = new int[records];
+      this.codeIndexes = new int[records];
+    }
+  }
+
+  /**
+   * Return the number of blocks.
+   */
+  int getNumberOfBlocks() {
+    return this.blockFirstKeys.length;
+  }
+
+  /**
+   * Decompress and decode the block with the given index.
+   *
+   * @throws IOException if the block is broken.
+   */
+  Block readBlock(int index) throws IOException {
+    Block block = this.lastBlock;
+    if (block != null && block.index == index) {
+      return block;
+    }
+    int records = Math.min(this.recordsPerBlock,
+        this.numberOfRecords - index * this.recordsPerBlock);
+    byte[] compressed = new byte[this.blockOffsets[index + 1]
+        - this.blockOffsets[index]];
+    ByteBuffer source = this.file.duplicate();
+    source.position(this.blockOffsets[index]);
+    source.get(compressed);
+    Columns columns = new Columns(inflate(compressed,
+        records * MAX_BLOCK_BYTES_PER_RECORD));
+    block = new Block(index, records);
+    long[] startAddresses = new long[records];
+    int[] firstDateIndexes = new int[records];
+    for (int i = 0; i < records; i++) {
+      startAddresses[i] = i == 0 ? columns.get()
+          : startAddresses[i - 1] - columns.get();
+    }
+    for (int i = 0; i < records; i++) {
+      firstDateIndexes[i] = (int) columns.get();
+      block.keys[i] = DatabaseImpl.convertAddressAndDateToKey(
+          startAddresses[i], this.databaseDates[firstDateIndexes[i]]);
+    }
+    for (int i = 0; i < records; i++) {
+      block.endAddresses[i] = startAddresses[i] + columns.get();
+    }
+    for (int i = 0; i < records; i++) {
+      block.lastDbDates[i] = this.databaseDates[firstDateIndexes[i]
+          + (int) columns.get()];
+    }
+    for (int i = 0; i < records; i++) {
+      block.codeIndexes[i] = (int) columns.get();
+      if (block.codeIndexes[i] >= this.codes.length) {
+        throw new IOException("Unknown code index.");
+      }
+    }
+    if (columns.position != columns.length ||
+        block.keys[0] != this.blockFirstKeys[index]) {
+      throw new IOException("Inconsistent block " + index + ".");
+    }
+    this.lastBlock = block;
+    return block;
+  }
+
+  /* Helper: decompress the given bytes, which must decompress to at most
+   * the given number of bytes, or to any number if it is negative. */
+  private static byte[] inflate(byte[] compressed, int maxLength)
+      throws IOException {
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(compressed);
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      byte[] buffer = new byte[maxLength < 0 ? 64 * 1024
+          : maxLength + 1];
+      while (!inflater.finished()) {
+        int length = inflater.inflate(buffer);
+        if (length == 0 && (inflater.needsInput() ||
+            inflater.needsDictionary())) {
+          throw new IOException("Truncated block.");
+        }
+        baos.write(buffer, 0, length);
+        if (maxLength >= 0 && baos.size() > maxLength) {
+          throw new IOException("Block too large.");
+        }
+      }
+      if (inflater.getRemaining() > 0) {
+        throw new IOException("Trailing bytes after block.");
+      }
+      return baos.toByteArray();
+    } catch (DataFormatException e) {
+      throw new IOException("Broken block: " + e.getMessage());
+    } finally {
+      inflater.end();
+    }
+  }
+
+  /**
+   * Query the file for the country code or AS number assigned to an IPv4
+   * address on a given date, like Database.lookupIpv4AddressAndDate().
+   */
+  public String lookupIpv4AddressAndDate(String address, String date) {
+    return this.lookupIpv4AddressAndDate(
+        DatabaseImpl.convertAddressStringToNumber(address),
+        DatabaseImpl.convertDateStringToNumber(date));
+  }
+
+  /**
+   * Query the file for the country code or AS number assigned to an IPv4
+   * address on a given date, decompressing only the block that contains
+   * the first possibly matching record, unless matching records
+   * continue in the next block.
+   *
+   * @throws IllegalStateException if a block is broken.
+   */
+  public String lookupIpv4AddressAndDate(long address, int dayNumber) {
+    int databaseDate = DatabaseImpl.findDatabaseDate(this.databaseDates,
+        dayNumber);
+    int numberOfBlocks = this.blockFirstKeys.length;
+    if (databaseDate < 0 || numberOfBlocks == 0) {
+      return null;
+    }
+
+    /* Find the first block starting with a key smaller than or equal to
+     * the last possible date of the address.  The first possibly
+     * matching record is contained in the block before that, unless
+     * that block doesn't contain any such record. */
+    long firstKey = DatabaseImpl.convertAddressAndDateToKey(
+        address + 1L, 0) - 1L;
+    int low = 0, high = numberOfBlocks;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (this.blockFirstKeys[mid] > firstKey) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    int blockIndex = Math.max(low - 1, 0);
+
+    /* Iterate over records in the same way as CompactDatabaseImpl. */
+    try {
+      Block block = this.readBlock(blockIndex);
+      int i = 0;
+      while (i < block.keys.length && block.keys[i] > firstKey) {
+        i++;
+      }
+      while (true) {
+        if (i == block.keys.length) {
+          if (++blockIndex == numberOfBlocks) {
+            return null;
+          }
+          block = this.readBlock(blockIndex);
+          i = 0;
+        }
+        if (block.endAddresses[i] < address ||
+            block.lastDbDates[i] < databaseDate) {
+          return null;
+        }
+        if (DatabaseImpl.convertKeyToDate(block.keys[i])
+            <= databaseDate) {
+          return this.codes[block.codeIndexes[i]];
+        }
+        i++;
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException("Could not read block "
+          + blockIndex + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * Numbers of a block, written as variable-length integers of 7 bits
+   * per byte with the highest bit set in all but the last byte.
+   */
+  private static class Columns {
+    private byte[] bytes;
+    private int position = 0, length;
+    private Columns(int capacity) {
+      this.bytes = new byte[capacity];
+    }
+    private Columns(byte[] bytes) {
+      this.bytes = bytes;
+      this.length = bytes.length;
+    }
+    private void put(long value) {
+      if (this.position + 10 > this.bytes.length) {
+        this.bytes = Arrays.copyOf(this.bytes, 2 * this.bytes.length
+            + 10);
+      }
+      while (value >= 0x80L) {
+        this.bytes[this.position++] = (byte) (value | 0x80L);
+        value >>>= 7;
+      }
+      this.bytes[this.position++] = (byte) value;
+      this.length = this.position;
+    }
+    private long get() throws IOException {
+      long value = 0L;
+      for (int shift = 0; shift < 64; shift += 7) {
+        if (this.position >= this.length) {
+          throw new IOException("Truncated column.");
+        }
+        byte b = this.bytes[this.position++];
+        value |= (long) (b & 0x7f) << shift;
+        if (b >= 0) {
+          return value;
+        }
+      }
+      throw new IOException("Malformed number.");
+    }
+  }
+
+  /**
+   * Save the given database in the columnar format by writing a
+   * temporary file with a checksum trailer and renaming it to the given
+   * path once it's synced to disk.
+   */
+  static boolean write(CompactDatabaseImpl database, String path) {
+    File file = new File(path);
+    FileOutputStream fos = null;
+    try {
+
+      /* Compress all blocks first, so that the block index with their
+       * compressed lengths can be written before them. */
+      int numberOfRecords = database.getNumberOfElements();
+      int numberOfBlocks = (numberOfRecords + RECORDS_PER_BLOCK - 1)
+          / RECORDS_PER_BLOCK;
+      byte[][] blocks = new byte[numberOfBlocks][];
+      Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+      try {
+        for (int b = 0; b < numberOfBlocks; b++) {
+          blocks[b] = compressBlock(database, b * RECORDS_PER_BLOCK,
+              Math.min(numberOfRecords, (b + 1) * RECORDS_PER_BLOCK),
+              deflater);
+        }
+      } finally {
+        deflater.end();
+      }
+
+      fos = CombinedDatabasesFile.openTempFile(file);
+      CombinedDatabasesFile.BinaryOutputStream checksummed =
+          new CombinedDatabasesFile.BinaryOutputStream(fos);
+      DataOutputStream dos = new DataOutputStream(checksummed);
+      dos.writeInt(COLUMNAR_MAGIC);
+      dos.writeInt(COLUMNAR_VERSION);
+      dos.writeInt(database.databaseDates.length);
+      for (int databaseDate : database.databaseDates) {
+        dos.writeInt(databaseDate);
+      }
+      dos.writeInt(database.databaseFileNames.length);
+      for (String databaseFileName : database.databaseFileNames) {
+        CompactDatabaseImpl.writeString(dos, databaseFileName);
+      }
+      dos.writeInt(database.codes.length);
+      for (String code : database.codes) {
+        CompactDatabaseImpl.writeString(dos, code);
+      }
+      dos.writeInt(numberOfRecords);
+      dos.writeInt(RECORDS_PER_BLOCK);
+      dos.writeInt(numberOfBlocks);
+      for (int b = 0; b < numberOfBlocks; b++) {
+        dos.writeLong(database.getKey(b * RECORDS_PER_BLOCK));
+        dos.writeInt(blocks[b].length);
+      }
+      for (byte[] block : blocks) {
+        dos.write(block);
+      }
+
+      /* Write IPv6 records and AS names, which are not looked up from
+       * the columnar file, compressed as a single section. */
+      ByteArrayOutputStream tail = new ByteArrayOutputStream();
+      DataOutputStream tailDos = new DataOutputStream(tail);
+      int numberOfIpv6Records = database.getNumberOfIpv6Elements();
+      tailDos.writeInt(numberOfIpv6Records);
+      ByteBuffer ipv6Records = database.ipv6Records.duplicate();
+      ipv6Records.clear();
+      byte[] ipv6Bytes = new byte[numberOfIpv6Records
+          * CompactDatabaseImpl.IPV6_RECORD_SIZE];
+      ipv6Records.get(ipv6Bytes);
+      tailDos.write(ipv6Bytes);
+      database.asNames.write(tailDos);
+      tailDos.close();
+      deflater = new Deflater(Deflater.BEST_SPEED);
+      try {
+        byte[] compressedTail = deflate(tail.toByteArray(), deflater);
+        dos.writeInt(compressedTail.length);
+        dos.write(compressedTail);
+      } finally {
+        deflater.end();
+      }
+      checksummed.finish();
+      CombinedDatabasesFile.commitTempFile(fos, file);
+    } catch (IOException e) {
+      if (fos != null) {
+        CombinedDatabasesFile.abortTempFile(fos, file);
+      }
+      return false;
+    }
+    return true;
+  }
+
+  /* Helper: encode the records from the first to the last given record
+   * index column by column and compress them. */
+  private static byte[] compressBlock(CompactDatabaseImpl database,
+      int from, int to, Deflater deflater) throws IOException {
+    Columns columns = new Columns((to - from) * 8);
+    int[] dates = database.databaseDates;
+    long previousAddress = 0L;
+    for (int i = from; i < to; i++) {
+      long address = DatabaseImpl.convertKeyToAddress(
+          database.getKey(i));
+      columns.put(i == from ? address : previousAddress - address);
+      previousAddress = address;
+    }
+    int[] firstDateIndexes = new int[to - from];
+    for (int i = from; i < to; i++) {
+      firstDateIndexes[i - from] = findDateIndex(dates,
+          DatabaseImpl.convertKeyToDate(database.getKey(i)));
+      columns.put(firstDateIndexes[i - from]);
+    }
+    for (int i = from; i < to; i++) {
+      columns.put(database.getEndAddress(i) - DatabaseImpl.
+          convertKeyToAddress(database.getKey(i)));
+    }
+    for (int i = from; i < to; i++) {
+      columns.put(findDateIndex(dates, database.getLastDbDate(i))
+          - firstDateIndexes[i - from]);
+    }
+    for (int i = from; i < to; i++) {
+      columns.put(database.getCodeIndex(i));
+    }
+    return deflate(Arrays.copyOf(columns.bytes, columns.length),
+        deflater);
+  }
+
+  /* Helper: return the index of a database date, which must exist. */
+  private static int findDateIndex(int[] databaseDates, int date)
+      throws IOException {
+    int index = Arrays.binarySearch(databaseDates, date);
+    if (index < 0) {
+      throw new IOException("Range with unknown database date.");
+    }
+    return index;
+  }
+
+  /* Helper: compress the given bytes using the given deflater. */
+  private static byte[] deflate(byte[] bytes, Deflater deflater) {
+    deflater.reset();
+    deflater.setInput(bytes);
+    deflater.finish();
+    ByteArrayOutputStream baos = new ByteArrayOutputStream(
+        bytes.length / 2 + 64);
+    byte[] buffer = new byte[64 * 1024];
+    while (!deflater.finished()) {
+      int length = deflater.deflate(buffer);
+      baos.write(buffer, 0, length);
+    }
+    return baos.toByteArray();
+  }
+}
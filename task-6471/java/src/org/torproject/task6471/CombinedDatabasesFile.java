@@ -0,0 +1,430 @@
+/* Copyright 2012 The Tor Project */
+package org.torproject.task6471;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Helpers for writing combined databases files atomically and with block
+ * checksums, and for verifying these checksums while loading them.
+ *
+ * Files are first written to a temporary file next to the target file,
+ * which is synced to disk and then renamed to the target file, so that
+ * readers see either the old or the new file but never a partially
+ * written one.
+ *
+ * CSV combined databases files and delta segment files start with a
+ * header line "#T6471,<version>,<ranges>" containing the CSV format
+ * version and the number of IPv4 and IPv6 range lines.  After every
+ * 4096 lines and at the end of the file, there is a line "#<crc>"
+ * containing the CRC32 of all bytes of all lines since the previous
+ * checksum line, including the header line and line breaks, as eight
+ * hex digits.  Files without header line were written before checksums
+ * were added and are loaded without verification.
+ *
+ * Binary combined databases files end with a checksum trailer
+ * containing the number of checksummed blocks and the CRC32 of each
+ * 64 KiB block of the file contents before the trailer.  These files
+ * are memory-mapped, so that their checksums are only verified when
+ * asked to, rather than reading the whole file on every load.
+ *
+ * CRC32 is used rather than CRC32C, which is not available before Java
+ * 9, and which would only be faster, not safer.
+ */
+class CombinedDatabasesFile {
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  /**
+   * Prefix and version of the header line of checksummed CSV files.
+   */
+  static final String CSV_HEADER_PREFIX = "#T6471,";
+  static final int CSV_VERSION = 2;
+
+  /**
+   * Number of lines per checksummed block in CSV files.
+   */
+  static final int CSV_BLOCK_LINES = 4096;
+
+  /**
+   * Number of bytes per checksummed block in binary files.
+   */
+  static final int BINARY_BLOCK_SIZE = 64 * 1024;
+
+  /**
+   * Return the temporary file that is written before renaming it to the
+   * given file.
+   */
+  static File getTempFile(File file) {
+    return new File(file.getPath() + ".tmp");
+  }
+
+  /**
+   * Open the temporary file of the given file for writing, creating
+   * parent directories if necessary.
+   */
+  static FileOutputStream openTempFile(File file) throws IOException {
+    if (file.getAbsoluteFile().getParentFile() != null) {
+      file.getAbsoluteFile().getParentFile().mkdirs();
+    }
+    return new FileOutputStream(getTempFile(file));
+  }
+
+  /**
+   * Sync the given stream of a completely written temporary file to
+   * disk, close it, and rename the temporary file to the given file.
+   * Renaming replaces an existing file atomically on POSIX systems.  On
+   * systems that refuse to rename to an existing file, the existing file
+   * is deleted first, which leaves a short time without file.
+   */
+  static void commitTempFile(FileOutputStream fos, File file)
+      throws IOException {
+    File tempFile = getTempFile(file);
+    try {
+      fos.flush();
+      fos.getFD().sync();
+    } finally {
+      fos.close();
+    }
+    if (!tempFile.renameTo(file) &&
+        !(file.delete() && tempFile.renameTo(file))) {
+      throw new IOException("Could not rename '" + tempFile + "' to '"
+          + file + "'.");
+    }
+  }
+
+  /**
+   * Close the given stream without throwing and delete the temporary
+   * file after writing failed.
+   */
+  static void abortTempFile(OutputStream out, File file) {
+    try {
+      out.close();
+    } catch (IOException e) {
+      /* Deleting the file is all we can do. */
+    }
+    getTempFile(file).delete();
+  }
+
+  /* Helper: format a checksum line without line break. */
+  private static String formatChecksumLine(long checksum) {
+    return String.format("#%08x", checksum);
+  }
+
+  /**
+   * Output stream for CSV files that writes the header line and inserts
+   * checksum lines after every CSV_BLOCK_LINES lines.  Lines are expected
+   * to be written as UTF-8 bytes with "\n" or "\r\n" line breaks.  The
+   * final checksum line is written by finish().
+   */
+  static class CsvOutputStream extends OutputStream {
+    private final OutputStream out;
+    private final CRC32 crc = new CRC32();
+    private int blockLines = 0;
+    private boolean inLine = false;
+    CsvOutputStream(OutputStream out, long numberOfRanges)
+        throws IOException {
+      this.out = out;
+      this.write((CSV_HEADER_PREFIX + CSV_VERSION + "," + numberOfRanges
+          + "\n").getBytes(UTF_8));
+    }
+    public void write(int b) throws IOException {
+      this.write(new byte[] { (byte) b }, 0, 1);
+    }
+    public void write(byte[] b, int off, int len) throws IOException {
+      int start = off, end = off + len;
+      for (int i = off; i < end; i++) {
+        this.inLine = true;
+        if (b[i] == '\n') {
+          this.inLine = false;
+          if (++this.blockLines == CSV_BLOCK_LINES) {
+            this.crc.update(b, start, i + 1 - start);
+            this.out.write(b, start, i + 1 - start);
+            start = i + 1;
+            this.writeChecksumLine();
+          }
+        }
+      }
+      this.crc.update(b, start, end - start);
+      this.out.write(b, start, end - start);
+    }
+    private void writeChecksumLine() throws IOException {
+      this.out.write((formatChecksumLine(this.crc.getValue()) + "\n").
+          getBytes(UTF_8));
+      this.crc.reset();
+      this.blockLines = 0;
+    }
+
+    /**
+     * Write the checksum line of the last block, if it contains any
+     * lines, and flush the underlying stream without closing it.
+     */
+    void finish() throws IOException {
+      if (this.inLine) {
+        this.write('\n');
+      }
+      if (this.blockLines > 0) {
+        this.writeChecksumLine();
+      }
+      this.out.flush();
+    }
+    public void flush() throws IOException {
+      this.out.flush();
+    }
+    public void close() throws IOException {
+      this.out.close();
+    }
+  }
+
+  /**
+   * Line reader for CSV files that verifies and skips the header line
+   * and checksum lines of checksummed files and returns all other lines
+   * without line breaks.
+   */
+  static class CsvReader {
+    private final File file;
+    private final InputStream in;
+    private final CRC32 crc = new CRC32();
+    private final byte[] buffer = new byte[64 * 1024];
+    private int position = 0, limit = 0;
+    private byte[] line = new byte[256];
+    private int lineNumber = 0, blockLines = 0;
+    private long declaredRanges = -1L, ranges = 0L;
+    private String firstLine;
+    CsvReader(File file) throws IOException {
+      this.file = file;
+      this.in = new FileInputStream(file);
+      String firstLine = this.readRawLine();
+      if (firstLine != null && firstLine.startsWith(CSV_HEADER_PREFIX)) {
+        String[] parts = firstLine.split(",");
+        try {
+          if (parts.length != 3 ||
+              Integer.parseInt(parts[1]) != CSV_VERSION) {
+            throw this.error("Unsupported header line");
+          }
+          this.declaredRanges = Long.parseLong(parts[2]);
+        } catch (NumberFormatException e) {
+          throw this.error("Unsupported header line");
+        }
+      } else {
+        this.firstLine = firstLine;
+      }
+    }
+
+    /* Helper: close the file and create an exception to be thrown. */
+    private IOException error(String message) {
+      try {
+        this.in.close();
+      } catch (IOException e) {
+        /* We're throwing anyway. */
+      }
+      return new IOException(message + " in line " + this.lineNumber
+          + " of '" + this.file + "'.");
+    }
+
+    /* Helper: read a line including its line break, update the checksum
+     * of the current block, and return the line without line break, or
+     * null at the end of the file. */
+    private String readRawLine() throws IOException {
+      int length = 0;
+      boolean lineBreak = false;
+      while (!lineBreak) {
+        if (this.position == this.limit) {
+          int read = this.in.read(this.buffer);
+          if (read <= 0) {
+            break;
+          }
+          this.position = 0;
+          this.limit = read;
+        }
+        int end = this.position;
+        while (end < this.limit && this.buffer[end] != '\n') {
+          end++;
+        }
+        if (end < this.limit) {
+          end++;
+          lineBreak = true;
+        }
+        int chunk = end - this.position;
+        if (length + chunk > this.line.length) {
+          this.line = Arrays.copyOf(this.line,
+              Math.max(2 * this.line.length, length + chunk));
+        }
+        System.arraycopy(this.buffer, this.position, this.line, length,
+            chunk);
+        length += chunk;
+        this.position = end;
+      }
+      if (length == 0) {
+        return null;
+      }
+      this.lineNumber++;
+      if (this.line[0] != '#' || this.lineNumber == 1) {
+        this.crc.update(this.line, 0, length);
+        this.blockLines++;
+      }
+      while (length > 0 && (this.line[length - 1] == '\n' ||
+          this.line[length - 1] == '\r')) {
+        length--;
+      }
+      return new String(this.line, 0, length, UTF_8);
+    }
+
+    /**
+     * Return the next line that is neither header nor checksum line, or
+     * null at the end of the file.
+     *
+     * @throws IOException if a checksum doesn't match, or if the file
+     * ends in the middle of a block or contains another number of ranges
+     * than stated in its header line.
+     */
+    String readLine() throws IOException {
+      if (this.firstLine != null) {
+        String line = this.firstLine;
+        this.firstLine = null;
+        return line;
+      }
+      String line;
+      while ((line = this.readRawLine()) != null) {
+        if (this.declaredRanges < 0L) {
+          return line;
+        } else if (line.startsWith("#")) {
+          if (!line.equals(formatChecksumLine(this.crc.getValue()))) {
+            throw this.error("Checksum mismatch");
+          }
+          this.crc.reset();
+          this.blockLines = 0;
+        } else {
+          if (!line.startsWith("!") && !line.startsWith("@") &&
+              !line.startsWith("*")) {
+            this.ranges++;
+          }
+          return line;
+        }
+      }
+      if (this.declaredRanges >= 0L && (this.blockLines > 0 ||
+          this.ranges != this.declaredRanges)) {
+        throw this.error("Truncated file");
+      }
+      return null;
+    }
+
+    void close() throws IOException {
+      this.in.close();
+    }
+  }
+
+  /**
+   * Output stream for binary files that passes through blocks of
+   * BINARY_BLOCK_SIZE bytes and computes their checksums.  Bytes are
+   * only passed through once a block is full or finish() is called.
+   */
+  static class BinaryOutputStream extends OutputStream {
+    private final OutputStream out;
+    private final CRC32 crc = new CRC32();
+    private final byte[] block = new byte[BINARY_BLOCK_SIZE];
+    private int blockLength = 0, numberOfChecksums = 0;
+    private int[] checksums = new int[16];
+    BinaryOutputStream(OutputStream out) {
+      this.out = out;
+    }
+    public void write(int b) throws IOException {
+      this.block[this.blockLength++] = (byte) b;
+      if (this.blockLength == BINARY_BLOCK_SIZE) {
+        this.writeBlock();
+      }
+    }
+    public void write(byte[] b, int off, int len) throws IOException {
+      while (len > 0) {
+        int length = Math.min(len, BINARY_BLOCK_SIZE - this.blockLength);
+        System.arraycopy(b, off, this.block, this.blockLength, length);
+        this.blockLength += length;
+        off += length;
+        len -= length;
+        if (this.blockLength == BINARY_BLOCK_SIZE) {
+          this.writeBlock();
+        }
+      }
+    }
+    private void writeBlock() throws IOException {
+      this.crc.reset();
+      this.crc.update(this.block, 0, this.blockLength);
+      if (this.numberOfChecksums == this.checksums.length) {
+        this.checksums = Arrays.copyOf(this.checksums,
+            2 * this.numberOfChecksums);
+      }
+      this.checksums[this.numberOfChecksums++] =
+          (int) this.crc.getValue();
+      this.out.write(this.block, 0, this.blockLength);
+      this.blockLength = 0;
+    }
+
+    /**
+     * Pass through the last partial block, write the checksum trailer
+     * directly to the underlying stream, and flush it without closing
+     * it.
+     */
+    void finish() throws IOException {
+      if (this.blockLength > 0) {
+        this.writeBlock();
+      }
+      ByteBuffer trailer = ByteBuffer.allocate(4
+          + 4 * this.numberOfChecksums);
+      trailer.putInt(this.numberOfChecksums);
+      for (int i = 0; i < this.numberOfChecksums; i++) {
+        trailer.putInt(this.checksums[i]);
+      }
+      this.out.write(trailer.array());
+      this.out.flush();
+    }
+    public void close() throws IOException {
+      this.out.close();
+    }
+  }
+
+  /**
+   * Read the checksum trailer starting at the current position of the
+   * given buffer, and move the position to the end of the trailer.  The
+   * checksums are only verified against the contents before that
+   * position if requested, because that reads the whole file; otherwise
+   * only the number of checksums is checked against the contents
+   * length, which still catches most truncated files.
+   *
+   * @return True if the trailer matches the contents, false otherwise.
+   */
+  static boolean readBinaryChecksums(ByteBuffer buffer, boolean verify) {
+    int length = buffer.position();
+    int numberOfChecksums = buffer.getInt();
+    if (numberOfChecksums != (length + BINARY_BLOCK_SIZE - 1)
+        / BINARY_BLOCK_SIZE) {
+      return false;
+    }
+    if (!verify) {
+      buffer.position(buffer.position() + numberOfChecksums * 4);
+      return true;
+    }
+    ByteBuffer contents = buffer.duplicate();
+    contents.position(0);
+    byte[] block = new byte[BINARY_BLOCK_SIZE];
+    CRC32 crc = new CRC32();
+    for (int i = 0; i < numberOfChecksums; i++) {
+      int blockLength = Math.min(BINARY_BLOCK_SIZE,
+          length - i * BINARY_BLOCK_SIZE);
+      contents.get(block, 0, blockLength);
+      crc.reset();
+      crc.update(block, 0, blockLength);
+      if ((int) crc.getValue() != buffer.getInt()) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
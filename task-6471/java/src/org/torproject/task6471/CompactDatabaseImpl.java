@@ -0,0 +1,1193 @@
+/* Copyright 2012 The Tor Project */
+package org.torproject.task6471;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * Implementation of database holding multiple GeoIP or ASN databases with
+ * special focus on memory consumption and lookup performance.
+ *
+ * This implementation stores exactly the same ranges as DatabaseImpl, but
+ * it packs them into fixed-width records in a single direct byte buffer
+ * rather than keeping boxed keys and tree elements on the heap.  Country
+ * codes and AS numbers are interned into a code dictionary, and records
+ * only contain an index into that dictionary.
+ *
+ * Each record has the following layout:
+ *   8 bytes: key as in DatabaseImpl, containing the start IPv4 address in
+ *            the higher bits and the first database date in the lower
+ *            16 bits,
+ *   4 bytes: end IPv4 address,
+ *   4 bytes: last database date,
+ *   4 bytes: code index.
+ *
+ * Records are ordered backwards by key, just like the tree in
+ * DatabaseImpl.  Lookups find the first possibly matching record using
+ * binary search and then iterate over subsequent records in the same way
+ * as DatabaseImpl iterates over the tree.
+ *
+ * Instances are built once, either by loading a combined databases file
+ * or by converting a DatabaseImpl, and cannot be modified afterwards.
+ * An instance that was built and then safely published to other threads,
+ * for example by storing it in a final or volatile field or by building
+ * it before starting those threads, can serve lookups from any number
+ * of threads at the same time.  Lookups only use absolute reads from the
+ * records buffer, and lookup statistics are kept in striped counters.
+ *
+ * Besides the CSV format written by DatabaseImporterImpl, this class can
+ * save and load a binary combined databases format.  Binary files are
+ * memory-mapped when loading, and their record section is used as the
+ * records buffer without parsing it.  The binary format is:
+ *
+ *   4 bytes: magic number "T647",
+ *   4 bytes: format version,
+ *   4 bytes: number of database dates, followed by one int per date,
+ *   4 bytes: number of database file names, followed by one string per
+ *            file name,
+ *   4 bytes: number of codes, followed by one string per code,
+ *   4 bytes: number of records, followed by zero padding up to the next
+ *            multiple of 8 bytes and by the records themselves,
+ *   4 bytes: number of IPv6 records, followed by zero padding up to the
+ *            next multiple of 8 bytes and by the IPv6 records themselves
+ *            (only in version 2 and higher),
+ *   4 bytes: number of AS names, followed by 4 bytes AS number, 4 bytes
+ *            database date, and one string per AS name (only in version
+ *            3 and higher),
+ *   4 bytes: number of checksummed blocks, followed by the CRC32 of each
+ *            64 KiB block of all preceding bytes (only in version 4 and
+ *            higher).
+ *
+ * Checksums and code indexes of all records are verified when loading
+ * a file, which reads the whole file once, so that corrupt files are
+ * rejected rather than answering lookups from a broken database.
+ * Callers that only look at a few records can turn this off using
+ * setVerifyChecksums, so that mapping a file into memory doesn't read
+ * it as a whole, and only the length of the checksum trailer is
+ * checked.
+ *
+ * IPv6 ranges are kept in a second buffer of records with the following
+ * layout, using /64 network prefixes with their highest bit flipped as
+ * addresses like DatabaseImpl does:
+ *   8 bytes: start address,
+ *   4 bytes: first database date,
+ *   8 bytes: end address,
+ *   4 bytes: last database date,
+ *   4 bytes: code index.
+ *
+ * Strings are written as 2 bytes length followed by as many UTF-8 bytes.
+ * All numbers are written in big-endian byte order.
+ *
+ * Files in the compressed columnar format described in ColumnarSegment
+ * are loaded by decompressing all their blocks into a records buffer.
+ */
+public class CompactDatabaseImpl implements Database {
+
+  /**
+   * Record size in bytes and offsets of record fields.
+   */
+  static final int RECORD_SIZE = 20, KEY_OFFSET = 0,
+      END_ADDRESS_OFFSET = 8, LAST_DB_DATE_OFFSET = 12,
+      CODE_INDEX_OFFSET = 16;
+
+  /**
+   * IPv6 record size in bytes and offsets of IPv6 record fields.
+   */
+  static final int IPV6_RECORD_SIZE = 28, IPV6_ADDRESS_OFFSET = 0,
+      IPV6_FIRST_DB_DATE_OFFSET = 8, IPV6_END_ADDRESS_OFFSET = 12,
+      IPV6_LAST_DB_DATE_OFFSET = 20, IPV6_CODE_INDEX_OFFSET = 24;
+
+  /**
+   * Address and date range records, ordered backwards by start address
+   * and first database date.
+   */
+  protected ByteBuffer records = ByteBuffer.allocateDirect(0);
+
+  /**
+   * Number of records contained in the records buffer.
+   */
+  protected int numberOfRecords = 0;
+
+  /**
+   * IPv6 address and date range records, ordered backwards by start
+   * address and first database date.
+   */
+  protected ByteBuffer ipv6Records = ByteBuffer.allocateDirect(0);
+
+  /**
+   * Number of records contained in the IPv6 records buffer.
+   */
+  protected int numberOfIpv6Records = 0;
+
+  /**
+   * Database dates ordered from oldest to youngest.
+   */
+  protected int[] databaseDates = new int[0];
+
+  /**
+   * Database dates and file names, formatted as yyyymmdd!filename.
+   */
+  protected String[] databaseFileNames = new String[0];
+
+  /**
+   * Code dictionary containing all distinct country codes or AS numbers.
+   */
+  protected String[] codes = new String[0];
+
+  /**
+   * AS names by AS number, shared by all database dates.
+   */
+  protected AsNameTable asNames = new AsNameTable();
+
+  /**
+   * Whether block checksums and code indexes of binary files are
+   * verified when loading them.
+   */
+  private boolean verifyChecksums = true;
+
+  /**
+   * Verify block checksums and code indexes of binary combined
+   * databases files when loading them, which is the default and which
+   * reads the whole file rather than only mapping it into memory.  Only
+   * callers that look at few records and can live with wrong results
+   * from a corrupt file should turn this off.  Checksums of CSV and
+   * columnar files are always verified, because these files are read
+   * as a whole anyway.
+   */
+  public void setVerifyChecksums(boolean verifyChecksums) {
+    this.verifyChecksums = verifyChecksums;
+  }
+
+  /**
+   * Lookup metrics, which may be updated by concurrent lookups.
+   */
+  protected DatabaseMetrics metrics = new DatabaseMetrics(
+      new DatabaseMetrics.MemoryUsage() {
+    public int getRanges() {
+      return CompactDatabaseImpl.this.numberOfRecords
+          + CompactDatabaseImpl.this.numberOfIpv6Records;
+    }
+    public long getEstimatedHeapBytes() {
+      return 0L;
+    }
+    public long getOffHeapBytes() {
+      return (long) CompactDatabaseImpl.this.records.capacity()
+          + CompactDatabaseImpl.this.ipv6Records.capacity()
+          + CompactDatabaseImpl.this.asNames.getOffHeapBytes();
+    }
+  });
+
+  /**
+   * Return lookup metrics.
+   */
+  public DatabaseMetrics getMetrics() {
+    return this.metrics;
+  }
+
+  /**
+   * Create an empty database that can be filled by loading a combined
+   * databases file.
+   */
+  public CompactDatabaseImpl() {
+  }
+
+  /**
+   * Create a database containing the same ranges and AS names as the
+   * given database, which must be in repaired state.  Both are copied,
+   * so that later imports into the given database don't change this
+   * one.  Code indexes are the code ids of the given database's code
+   * dictionary, so that they are kept when saving and loading the
+   * binary format.
+   */
+  public CompactDatabaseImpl(DatabaseImpl database) {
+    RecordsBuilder builder = new RecordsBuilder(database.ranges.size(),
+        database.codeDictionary.toArray());
+    for (Map.Entry<Long, DatabaseImpl.TreeElement> e :
+        database.ranges.entrySet()) {
+      builder.add(e.getKey(), e.getValue().endAddress,
+          e.getValue().lastDbDate, e.getValue().codeId);
+    }
+    for (Map.Entry<DatabaseImpl.Ipv6Key, DatabaseImpl.TreeElement> e :
+        database.ipv6Ranges.entrySet()) {
+      builder.addIpv6(e.getKey().address, e.getKey().date,
+          e.getValue().endAddress, e.getValue().lastDbDate,
+          e.getValue().codeId);
+    }
+    this.databaseDates = new int[database.databaseDates.size()];
+    int i = 0;
+    for (int databaseDate : database.databaseDates) {
+      this.databaseDates[i++] = databaseDate;
+    }
+    this.databaseFileNames = database.databaseFileNames.toArray(
+        new String[database.databaseFileNames.size()]);
+    this.asNames.putAll(database.asNames);
+    builder.build();
+  }
+
+  /**
+   * Look up address and date by searching for the first possibly
+   * matching record and iterating over subsequent records.
+   */
+  public String lookupIpv4AddressAndDate(
+      String addressString, String dateString) {
+    return this.lookupIpv4AddressAndDate(
+        DatabaseImpl.convertAddressStringToNumber(addressString),
+        DatabaseImpl.convertDateStringToNumber(dateString));
+  }
+
+  /**
+   * Look up address and date without parsing strings.
+   */
+  public String lookupIpv4AddressAndDate(long address, int dayNumber) {
+    return this.getCodeForId(this.lookupIpv4CodeId(address, dayNumber));
+  }
+
+  /**
+   * Look up the code index of address and date in the same way, which
+   * is also its code id.
+   */
+  public int lookupIpv4CodeId(long address, int dayNumber) {
+    return this.lookupCodeIndex(address, dayNumber,
+        this.findFirstRecord(DatabaseImpl.convertAddressAndDateToKey(
+        address + 1L, 0) - 1L, 0, this.numberOfRecords));
+  }
+
+  /**
+   * Look up many addresses and dates at once.  Queries are processed in
+   * the order of descending addresses, so that the first possibly
+   * matching record of each query is found by galloping forward from the
+   * first possibly matching record of the previous query.
+   */
+  public void lookupIpv4AddressesAndDates(int[] addresses, int[] dates,
+      int[] codeIds) {
+    int[] order = DatabaseImpl.sortQueriesByAddressDescending(addresses,
+        dates, codeIds);
+    int firstRecord = 0;
+    for (int query : order) {
+      long address = addresses[query] & 0xffffffffL;
+      firstRecord = this.gallopToFirstRecord(DatabaseImpl.
+          convertAddressAndDateToKey(address + 1L, 0) - 1L, firstRecord);
+      codeIds[query] = this.lookupCodeIndex(address, dates[query],
+          firstRecord);
+    }
+  }
+
+  /**
+   * Return the code with the given code id.
+   */
+  public String getCodeForId(int codeId) {
+    return codeId < 0 || codeId >= this.codes.length ? null :
+        this.codes[codeId];
+  }
+
+  /**
+   * Iterate backwards over all records to produce intervals.
+   */
+  public Iterator<AddressInterval> iterateIpv4Intervals(
+      String dateString) {
+    int databaseDate = this.databaseDates.length == 0 ? -1
+        : DatabaseImpl.findDatabaseDate(this.databaseDates,
+        DatabaseImpl.convertDateStringToNumber(dateString));
+    return new AddressInterval.IntervalIterator(this.getRanges(),
+        databaseDate);
+  }
+
+  /* Helper: return the records for walking over them. */
+  private AddressInterval.Ranges getRanges() {
+    return new AddressInterval.Ranges() {
+      int size() {
+        return CompactDatabaseImpl.this.numberOfRecords;
+      }
+      long getKey(int i) {
+        return CompactDatabaseImpl.this.getKey(i);
+      }
+      long getEndAddress(int i) {
+        return CompactDatabaseImpl.this.getEndAddress(i);
+      }
+      int getLastDbDate(int i) {
+        return CompactDatabaseImpl.this.getLastDbDate(i);
+      }
+      String getCode(int i) {
+        return CompactDatabaseImpl.this.codes[
+            CompactDatabaseImpl.this.getCodeIndex(i)];
+      }
+    };
+  }
+
+  /**
+   * Walk backwards over the records once, starting at the address, to
+   * produce the assignment history.
+   */
+  public List<AssignmentPeriod> lookupIpv4AssignmentHistory(
+      String addressString, String fromDateString, String toDateString) {
+    long address = DatabaseImpl.convertAddressStringToNumber(
+        addressString);
+    return AssignmentPeriod.walkRanges(this.getRanges(),
+        this.findFirstRecord(DatabaseImpl.convertAddressAndDateToKey(
+        address + 1L, 0) - 1L, 0, this.numberOfRecords), address,
+        this.databaseDates, DatabaseImpl.convertDateStringToNumber(
+        fromDateString), DatabaseImpl.convertDateStringToNumber(
+        toDateString));
+  }
+
+  /**
+   * Sweep over intervals of both dates to produce changes.
+   */
+  public Iterator<AddressInterval.Change> iterateIpv4Changes(
+      String fromDateString, String toDateString) {
+    return new AddressInterval.ChangeIterator(
+        this.iterateIpv4Intervals(fromDateString),
+        this.iterateIpv4Intervals(toDateString));
+  }
+
+  /**
+   * Look up the AS number of address and date and append its name.
+   */
+  public String lookupIpv4AsNumberAndName(String addressString,
+      String dateString) {
+    return this.asNames.formatAsNumberAndName(
+        this.lookupIpv4AddressAndDate(addressString, dateString));
+  }
+
+  /**
+   * Return the AS name from the AS name table.
+   */
+  public String getAsName(String asNumber) {
+    return this.asNames.get(asNumber);
+  }
+
+  /**
+   * Cache of recently used snapshots, which is replaced after loading
+   * combined databases.
+   */
+  private volatile DatabaseSnapshot.Cache snapshots =
+      new DatabaseSnapshot.Cache();
+
+  /**
+   * Return a snapshot of the database that is most recent on the given
+   * date.
+   */
+  public DatabaseSnapshot getSnapshot(String dateString) {
+    return this.getSnapshot(DatabaseImpl.convertDateStringToNumber(
+        dateString));
+  }
+
+  /**
+   * Return a cached snapshot of the database that is most recent on the
+   * given date, or take a new snapshot by copying all records that
+   * contain that database's date.
+   */
+  public DatabaseSnapshot getSnapshot(int dayNumber) {
+    DatabaseSnapshot.Cache snapshots = this.snapshots;
+    int databaseDate = this.databaseDates.length == 0 ? -1
+        : DatabaseImpl.findDatabaseDate(this.databaseDates, dayNumber);
+    DatabaseSnapshot snapshot = snapshots.get(databaseDate);
+    if (snapshot != null) {
+      this.metrics.recordCacheHit();
+      return snapshot;
+    }
+    this.metrics.recordCacheMiss();
+    DatabaseSnapshot.Builder builder = new DatabaseSnapshot.Builder();
+    for (int i = 0; i < this.numberOfRecords; i++) {
+      long key = this.getKey(i);
+      if (DatabaseImpl.convertKeyToDate(key) <= databaseDate &&
+          this.getLastDbDate(i) >= databaseDate) {
+        builder.add(DatabaseImpl.convertKeyToAddress(key),
+            this.getEndAddress(i), this.codes[this.getCodeIndex(i)]);
+      }
+    }
+    for (int i = 0; i < this.numberOfIpv6Records; i++) {
+      if (this.getIpv6FirstDbDate(i) <= databaseDate &&
+          this.getIpv6LastDbDate(i) >= databaseDate) {
+        builder.addIpv6(this.getIpv6Address(i), this.getIpv6EndAddress(i),
+            this.codes[this.getIpv6CodeIndex(i)]);
+      }
+    }
+    snapshot = builder.build(databaseDate);
+    snapshots.put(snapshot);
+    return snapshot;
+  }
+
+  /**
+   * Look up IPv6 address and date by searching for the first possibly
+   * matching IPv6 record and iterating over subsequent IPv6 records.
+   */
+  public String lookupIpv6AddressAndDate(String addressString,
+      String dateString) {
+    long address = DatabaseImpl.convertIpv6AddressStringToNumber(
+        addressString);
+    int date = DatabaseImpl.convertDateStringToNumber(dateString);
+    long startedNanos = this.metrics.startLookup();
+    if (this.databaseDates.length == 0) {
+      this.metrics.recordLookup(0, startedNanos);
+      return null;
+    }
+    int databaseDate = DatabaseImpl.findDatabaseDate(this.databaseDates,
+        date);
+
+    /* Stop, skip, or return the code, just like in IPv4 lookups. */
+    int codeIndex = CodeDictionary.NO_CODE, keyLookups = 0;
+    for (int i = this.findFirstIpv6Record(address);
+        i < this.numberOfIpv6Records; i++) {
+      keyLookups++;
+      if (this.getIpv6EndAddress(i) < address ||
+          this.getIpv6LastDbDate(i) < databaseDate) {
+        break;
+      }
+      if (this.getIpv6FirstDbDate(i) > databaseDate) {
+        continue;
+      }
+      codeIndex = this.getIpv6CodeIndex(i);
+      break;
+    }
+    this.metrics.recordLookup(keyLookups, startedNanos);
+    return this.getCodeForId(codeIndex);
+  }
+
+  /* Helper: look up the code index of the range containing the given
+   * address in the database that is most recent on the given date,
+   * starting at the given first possibly matching record, and return
+   * CodeDictionary.NO_CODE if there is no such range. */
+  private int lookupCodeIndex(long address, int date, int firstRecord) {
+    long startedNanos = this.metrics.startLookup();
+
+    if (this.databaseDates.length == 0) {
+      this.metrics.recordLookup(0, startedNanos);
+      return CodeDictionary.NO_CODE;
+    }
+
+    /* Look up which database we want. */
+    int databaseDate = DatabaseImpl.findDatabaseDate(this.databaseDates,
+        date);
+
+    /* Iterate over the records, starting at the last possible date of
+     * the address to be found.  Count key lookups locally and add them
+     * to the shared metrics only once, so that concurrent lookups contend
+     * as little as possible. */
+    int codeIndex = CodeDictionary.NO_CODE, keyLookups = 0;
+    for (int i = firstRecord; i < this.numberOfRecords; i++) {
+      keyLookups++;
+
+      /* If either the end address or end date of the range we're looking
+       * at is smaller than the values we're looking for, we can be sure
+       * not to find it anymore. */
+      if (this.getEndAddress(i) < address ||
+          this.getLastDbDate(i) < databaseDate) {
+        break;
+      }
+
+      /* If the range starts at a later date, skip it and look at the next
+       * one. */
+      if (DatabaseImpl.convertKeyToDate(this.getKey(i)) > databaseDate) {
+        continue;
+      }
+
+      /* Both address and date ranges match, so return the assigned
+       * code. */
+      codeIndex = this.getCodeIndex(i);
+      break;
+    }
+    this.metrics.recordLookup(keyLookups, startedNanos);
+
+    /* Return the code index we found, or NO_CODE if there were no
+     * records (left) to look at. */
+    return codeIndex;
+  }
+
+  /* Helper: find the index of the first record with a key smaller than
+   * or equal to the given key, or the number of records if there is
+   * none, by binary search between the given low and high records. */
+  int findFirstRecord(long key, int low, int high) {
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (this.getKey(mid) > key) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  /* Helper: find the first IPv6 record with a start address smaller than
+   * or equal to the given address. */
+  int findFirstIpv6Record(long address) {
+    int low = 0, high = this.numberOfIpv6Records;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (this.getIpv6Address(mid) > address) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  /* Helper: find the same record as findFirstRecord, but starting at the
+   * given record which must not come after the record to be found.
+   * Gallop forward in exponentially growing steps before doing a binary
+   * search, so that searching is cheap if the result is close to the
+   * start record. */
+  int gallopToFirstRecord(long key, int startRecord) {
+    int low = startRecord, step = 1;
+    while (low + step < this.numberOfRecords &&
+        this.getKey(low + step) > key) {
+      low += step;
+      step <<= 1;
+    }
+    return this.findFirstRecord(key, low,
+        Math.min(low + step, this.numberOfRecords));
+  }
+
+  /* Helpers: read record fields. */
+  long getKey(int index) {
+    return this.records.getLong(index * RECORD_SIZE + KEY_OFFSET);
+  }
+
+  long getEndAddress(int index) {
+    return this.records.getInt(index * RECORD_SIZE + END_ADDRESS_OFFSET)
+        & 0xffffffffL;
+  }
+
+  int getLastDbDate(int index) {
+    return this.records.getInt(index * RECORD_SIZE
+        + LAST_DB_DATE_OFFSET);
+  }
+
+  int getCodeIndex(int index) {
+    return this.records.getInt(index * RECORD_SIZE + CODE_INDEX_OFFSET);
+  }
+
+  long getIpv6Address(int index) {
+    return this.ipv6Records.getLong(index * IPV6_RECORD_SIZE
+        + IPV6_ADDRESS_OFFSET);
+  }
+
+  int getIpv6FirstDbDate(int index) {
+    return this.ipv6Records.getInt(index * IPV6_RECORD_SIZE
+        + IPV6_FIRST_DB_DATE_OFFSET);
+  }
+
+  long getIpv6EndAddress(int index) {
+    return this.ipv6Records.getLong(index * IPV6_RECORD_SIZE
+        + IPV6_END_ADDRESS_OFFSET);
+  }
+
+  int getIpv6LastDbDate(int index) {
+    return this.ipv6Records.getInt(index * IPV6_RECORD_SIZE
+        + IPV6_LAST_DB_DATE_OFFSET);
+  }
+
+  int getIpv6CodeIndex(int index) {
+    return this.ipv6Records.getInt(index * IPV6_RECORD_SIZE
+        + IPV6_CODE_INDEX_OFFSET);
+  }
+
+  /**
+   * Return number of contained ranges.
+   */
+  int getNumberOfElements() {
+    return this.numberOfRecords;
+  }
+
+  /**
+   * Return number of contained IPv6 ranges.
+   */
+  int getNumberOfIpv6Elements() {
+    return this.numberOfIpv6Records;
+  }
+
+  /**
+   * Helper class to append IPv4 and IPv6 records to growing direct byte
+   * buffers while interning codes, and to finally install buffers and
+   * code dictionary.
+   */
+  private class RecordsBuilder {
+    private ByteBuffer buffer, ipv6Buffer;
+    private int count = 0, ipv6Count = 0;
+    private CodeDictionary codeDictionary;
+    private RecordsBuilder(int expectedRecords) {
+      this(expectedRecords, new String[0]);
+    }
+
+    /* Start with the given codes, whose array indexes are kept as code
+     * indexes. */
+    private RecordsBuilder(int expectedRecords, String[] codes) {
+      this.buffer = ByteBuffer.allocateDirect(
+          Math.max(expectedRecords, 1024) * RECORD_SIZE);
+      this.ipv6Buffer = ByteBuffer.allocateDirect(64 * IPV6_RECORD_SIZE);
+      this.codeDictionary = new CodeDictionary(codes);
+    }
+
+    /* Add an IPv4 record with the given code. */
+    private boolean add(long key, long endAddress, int lastDbDate,
+        String code) {
+      return this.add(key, endAddress, lastDbDate,
+          this.codeDictionary.getCodeId(code));
+    }
+
+    /* Add an IPv4 record and return whether its key is smaller than the
+     * key of the previously added record. */
+    private boolean add(long key, long endAddress, int lastDbDate,
+        int codeIndex) {
+      boolean ordered = this.count == 0 || this.buffer.getLong(
+          (this.count - 1) * RECORD_SIZE + KEY_OFFSET) > key;
+      this.buffer = ensureRemaining(this.buffer, RECORD_SIZE);
+      this.buffer.putLong(key);
+      this.buffer.putInt((int) endAddress);
+      this.buffer.putInt(lastDbDate);
+      this.buffer.putInt(codeIndex);
+      this.count++;
+      return ordered;
+    }
+
+    /* Add an IPv6 record with the given code. */
+    private boolean addIpv6(long address, int firstDbDate,
+        long endAddress, int lastDbDate, String code) {
+      return this.addIpv6(address, firstDbDate, endAddress, lastDbDate,
+          this.codeDictionary.getCodeId(code));
+    }
+
+    /* Add an IPv6 record and return whether its start address and first
+     * database date are smaller than those of the previously added IPv6
+     * record. */
+    private boolean addIpv6(long address, int firstDbDate,
+        long endAddress, int lastDbDate, int codeIndex) {
+      boolean ordered = true;
+      if (this.ipv6Count > 0) {
+        int last = (this.ipv6Count - 1) * IPV6_RECORD_SIZE;
+        long lastAddress = this.ipv6Buffer.getLong(last
+            + IPV6_ADDRESS_OFFSET);
+        ordered = lastAddress > address || (lastAddress == address &&
+            this.ipv6Buffer.getInt(last + IPV6_FIRST_DB_DATE_OFFSET)
+            > firstDbDate);
+      }
+      this.ipv6Buffer = ensureRemaining(this.ipv6Buffer,
+          IPV6_RECORD_SIZE);
+      this.ipv6Buffer.putLong(address);
+      this.ipv6Buffer.putInt(firstDbDate);
+      this.ipv6Buffer.putLong(endAddress);
+      this.ipv6Buffer.putInt(lastDbDate);
+      this.ipv6Buffer.putInt(codeIndex);
+      this.ipv6Count++;
+      return ordered;
+    }
+
+    private void build() {
+      this.buffer.flip();
+      records = this.buffer.slice();
+      numberOfRecords = this.count;
+      this.ipv6Buffer.flip();
+      ipv6Records = this.ipv6Buffer.slice();
+      numberOfIpv6Records = this.ipv6Count;
+      codes = this.codeDictionary.toArray();
+    }
+  }
+
+  /* Helper: return the given buffer or a copy with twice the capacity if
+   * there are fewer than the given number of bytes remaining. */
+  private static ByteBuffer ensureRemaining(ByteBuffer buffer,
+      int bytes) {
+    if (buffer.remaining() >= bytes) {
+      return buffer;
+    }
+    ByteBuffer larger = ByteBuffer.allocateDirect(
+        Math.max(buffer.capacity() * 2, buffer.capacity() + bytes));
+    buffer.flip();
+    larger.put(buffer);
+    return larger;
+  }
+
+  /**
+   * Replace all records starting in address intervals covered by the
+   * given delta segment with the delta segment's ranges, and add the
+   * delta segment's database dates and file names.
+   */
+  void applyDeltaSegment(DeltaSegment deltaSegment) {
+    RecordsBuilder builder = new RecordsBuilder(this.numberOfRecords
+        + deltaSegment.ranges.size(), this.codes);
+    CodeDictionary deltaCodes = deltaSegment.codeDictionary;
+    Iterator<Map.Entry<Long, DatabaseImpl.TreeElement>> deltaRanges =
+        deltaSegment.ranges.entrySet().iterator();
+    Map.Entry<Long, DatabaseImpl.TreeElement> next =
+        deltaRanges.hasNext() ? deltaRanges.next() : null;
+    for (int i = 0; i < this.numberOfRecords; i++) {
+      long key = this.getKey(i);
+      while (next != null && next.getKey() > key) {
+        builder.add(next.getKey(), next.getValue().endAddress,
+            next.getValue().lastDbDate,
+            deltaCodes.getCode(next.getValue().codeId));
+        next = deltaRanges.hasNext() ? deltaRanges.next() : null;
+      }
+      if (!DeltaSegment.isCovered(deltaSegment.ipv4Coverage,
+          DatabaseImpl.convertKeyToAddress(key))) {
+        builder.add(key, this.getEndAddress(i), this.getLastDbDate(i),
+            this.getCodeIndex(i));
+      }
+    }
+    while (next != null) {
+      builder.add(next.getKey(), next.getValue().endAddress,
+          next.getValue().lastDbDate,
+          deltaCodes.getCode(next.getValue().codeId));
+      next = deltaRanges.hasNext() ? deltaRanges.next() : null;
+    }
+    Iterator<Map.Entry<DatabaseImpl.Ipv6Key, DatabaseImpl.TreeElement>>
+        deltaIpv6Ranges = deltaSegment.ipv6Ranges.entrySet().iterator();
+    Map.Entry<DatabaseImpl.Ipv6Key, DatabaseImpl.TreeElement> nextIpv6 =
+        deltaIpv6Ranges.hasNext() ? deltaIpv6Ranges.next() : null;
+    for (int i = 0; i < this.numberOfIpv6Records; i++) {
+      DatabaseImpl.Ipv6Key key = new DatabaseImpl.Ipv6Key(
+          this.getIpv6Address(i), this.getIpv6FirstDbDate(i));
+      while (nextIpv6 != null && nextIpv6.getKey().compareTo(key) > 0) {
+        builder.addIpv6(nextIpv6.getKey().address,
+            nextIpv6.getKey().date, nextIpv6.getValue().endAddress,
+            nextIpv6.getValue().lastDbDate,
+            deltaCodes.getCode(nextIpv6.getValue().codeId));
+        nextIpv6 = deltaIpv6Ranges.hasNext() ? deltaIpv6Ranges.next() :
+            null;
+      }
+      if (!DeltaSegment.isCovered(deltaSegment.ipv6Coverage,
+          key.address)) {
+        builder.addIpv6(key.address, key.date, this.getIpv6EndAddress(i),
+            this.getIpv6LastDbDate(i), this.getIpv6CodeIndex(i));
+      }
+    }
+    while (nextIpv6 != null) {
+      builder.addIpv6(nextIpv6.getKey().address, nextIpv6.getKey().date,
+          nextIpv6.getValue().endAddress, nextIpv6.getValue().lastDbDate,
+          deltaCodes.getCode(nextIpv6.getValue().codeId));
+      nextIpv6 = deltaIpv6Ranges.hasNext() ? deltaIpv6Ranges.next() :
+          null;
+    }
+    builder.build();
+    SortedSet<Integer> dates = new TreeSet<Integer>(
+        deltaSegment.databaseDates);
+    for (int databaseDate : this.databaseDates) {
+      dates.add(databaseDate);
+    }
+    this.databaseDates = new int[dates.size()];
+    int d = 0;
+    for (int databaseDate : dates) {
+      this.databaseDates[d++] = databaseDate;
+    }
+    SortedSet<String> fileNames = new TreeSet<String>(
+        deltaSegment.databaseFileNames);
+    fileNames.addAll(Arrays.asList(this.databaseFileNames));
+    this.databaseFileNames = fileNames.toArray(
+        new String[fileNames.size()]);
+  }
+
+  /**
+   * Magic number and version of the binary combined databases format.
+   */
+  static final int BINARY_MAGIC = 0x54363437, BINARY_VERSION = 4;
+
+  /**
+   * Load previously saved combined databases from disk, either from a
+   * binary file, which is memory-mapped, or from a CSV file.  If there is
+   * a delta segment with changes appended since the last compaction,
+   * records are copied into a new buffer that includes these changes.
+   */
+  public boolean loadCombinedDatabases(String path) {
+    this.snapshots = new DatabaseSnapshot.Cache();
+    if (!this.loadBaseCombinedDatabases(path)) {
+      return false;
+    }
+    File deltaFile = DeltaSegment.getDeltaFile(path);
+    if (deltaFile.exists()) {
+      DeltaSegment deltaSegment = new DeltaSegment();
+      if (!deltaSegment.readDeltaFile(deltaFile)) {
+        return false;
+      }
+      this.applyDeltaSegment(deltaSegment);
+    }
+    return true;
+  }
+
+  /**
+   * Load previously saved combined databases from disk without looking
+   * at a possibly existing delta segment.
+   */
+  boolean loadBaseCombinedDatabases(String path) {
+    File file = new File(path);
+    if (DatabaseImpl.isColumnarCombinedDatabasesFile(path)) {
+      return this.loadColumnarCombinedDatabases(file);
+    }
+    return DatabaseImpl.isBinaryCombinedDatabasesFile(path) ?
+        this.loadBinaryCombinedDatabases(file) :
+        this.loadCsvCombinedDatabases(file);
+  }
+
+  /**
+   * Load a columnar combined databases file by decompressing all of its
+   * blocks into a new records buffer.
+   */
+  private boolean loadColumnarCombinedDatabases(File file) {
+    try {
+      ColumnarSegment segment = ColumnarSegment.openVerified(file);
+      RecordsBuilder builder = new RecordsBuilder(
+          segment.numberOfRecords, segment.codes);
+      for (int b = 0; b < segment.getNumberOfBlocks(); b++) {
+        ColumnarSegment.Block block = segment.readBlock(b);
+        for (int i = 0; i < block.keys.length; i++) {
+          if (!builder.add(block.keys[i], block.endAddresses[i],
+              block.lastDbDates[i], block.codeIndexes[i])) {
+            throw new IOException("Records are not ordered.");
+          }
+        }
+      }
+      ByteBuffer tail = segment.readIpv6RecordsAndAsNames();
+      int ipv6RecordsCount = tail.getInt();
+      ByteBuffer ipv6RecordsSection = ByteBuffer.allocateDirect(
+          ipv6RecordsCount * IPV6_RECORD_SIZE);
+      ByteBuffer ipv6Source = tail.slice();
+      ipv6Source.limit(ipv6RecordsSection.capacity());
+      ipv6RecordsSection.put(ipv6Source);
+      ipv6RecordsSection.clear();
+      tail.position(tail.position() + ipv6RecordsSection.capacity());
+      AsNameTable asNameTable = new AsNameTable();
+      asNameTable.read(tail);
+      if (tail.hasRemaining()) {
+        throw new IOException("Trailing bytes after AS names.");
+      }
+      builder.build();
+      this.numberOfIpv6Records = ipv6RecordsCount;
+      this.ipv6Records = ipv6RecordsSection;
+      this.databaseDates = segment.databaseDates;
+      this.databaseFileNames = segment.databaseFileNames;
+      this.asNames = asNameTable;
+    } catch (IOException e) {
+      System.err.println("Could not load '" + file + "': "
+          + e.getMessage());
+      return false;
+    } catch (RuntimeException e) {
+      /* Buffer underflows or illegal positions mean that the file is
+       * truncated or otherwise broken. */
+      System.err.println("Could not load '" + file + "': " + e);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Map a binary combined databases file into memory and use its record
+   * section directly as records buffer.
+   */
+  private boolean loadBinaryCombinedDatabases(File file) {
+    try {
+      ByteBuffer buffer;
+      RandomAccessFile raf = new RandomAccessFile(file, "r");
+      try {
+        FileChannel channel = raf.getChannel();
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0L,
+            channel.size());
+      } finally {
+        raf.close();
+      }
+      if (buffer.getInt() != BINARY_MAGIC) {
+        throw new IOException("Unknown magic number.");
+      }
+      int version = buffer.getInt();
+      if (version < 1 || version > BINARY_VERSION) {
+        throw new IOException("Unsupported format version " + version
+            + ".");
+      }
+      int[] dates = new int[buffer.getInt()];
+      for (int i = 0; i < dates.length; i++) {
+        dates[i] = buffer.getInt();
+      }
+      String[] fileNames = new String[buffer.getInt()];
+      for (int i = 0; i < fileNames.length; i++) {
+        fileNames[i] = readString(buffer);
+      }
+      String[] codeDictionary = new String[buffer.getInt()];
+      for (int i = 0; i < codeDictionary.length; i++) {
+        codeDictionary[i] = readString(buffer);
+      }
+      int records = buffer.getInt();
+      ByteBuffer recordsSection = sliceSection(buffer,
+          records * RECORD_SIZE);
+      int ipv6RecordsCount = 0;
+      ByteBuffer ipv6RecordsSection = ByteBuffer.allocateDirect(0);
+      if (version >= 2) {
+        ipv6RecordsCount = buffer.getInt();
+        ipv6RecordsSection = sliceSection(buffer,
+            ipv6RecordsCount * IPV6_RECORD_SIZE);
+      }
+      AsNameTable asNameTable = new AsNameTable();
+      if (version >= 3) {
+        asNameTable.read(buffer);
+      }
+      if (version >= 4 && !CombinedDatabasesFile.readBinaryChecksums(
+          buffer, this.verifyChecksums)) {
+        throw new IOException("Checksum mismatch.");
+      }
+      if (buffer.hasRemaining()) {
+        throw new IOException("Trailing bytes after "
+            + (version >= 4 ? "checksums." : "AS names."));
+      }
+      if (this.verifyChecksums && (!hasValidCodeIndexes(recordsSection,
+          records, RECORD_SIZE, CODE_INDEX_OFFSET, codeDictionary.length)
+          || !hasValidCodeIndexes(ipv6RecordsSection, ipv6RecordsCount,
+          IPV6_RECORD_SIZE, IPV6_CODE_INDEX_OFFSET,
+          codeDictionary.length))) {
+        throw new IOException("Code index out of range.");
+      }
+      this.databaseDates = dates;
+      this.databaseFileNames = fileNames;
+      this.codes = codeDictionary;
+      this.numberOfRecords = records;
+      this.records = recordsSection;
+      this.numberOfIpv6Records = ipv6RecordsCount;
+      this.ipv6Records = ipv6RecordsSection;
+      this.asNames = asNameTable;
+    } catch (IOException e) {
+      System.err.println("Could not load '" + file + "': "
+          + e.getMessage());
+      return false;
+    } catch (RuntimeException e) {
+      /* Buffer underflows or illegal positions mean that the file is
+       * truncated or otherwise broken. */
+      System.err.println("Could not load '" + file + "': " + e);
+      return false;
+    }
+    return true;
+  }
+
+  /* Helper: check that all records in the given buffer refer to codes
+   * in the code dictionary, so that a file written with a broken code
+   * dictionary cannot fail at lookup time. */
+  private static boolean hasValidCodeIndexes(ByteBuffer records,
+      int numberOfRecords, int recordSize, int codeIndexOffset,
+      int numberOfCodes) {
+    for (int i = 0; i < numberOfRecords; i++) {
+      int codeIndex = records.getInt(i * recordSize + codeIndexOffset);
+      if (codeIndex < 0 || codeIndex >= numberOfCodes) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /* Helper: read a string consisting of 2 bytes length and UTF-8
+   * bytes. */
+  static String readString(ByteBuffer buffer) throws IOException {
+    byte[] bytes = new byte[buffer.getShort() & 0xffff];
+    buffer.get(bytes);
+    return new String(bytes, "UTF-8");
+  }
+
+  /* Helper: skip padding, return a slice of the given length starting at
+   * the current position, and move the position to the end of it. */
+  private static ByteBuffer sliceSection(ByteBuffer buffer, int length) {
+    buffer.position(paddedLength(buffer.position()));
+    ByteBuffer section = buffer.slice();
+    section.limit(length);
+    buffer.position(buffer.position() + length);
+    return section.slice();
+  }
+
+  /* Helper: round up a header length to the next multiple of 8 bytes, so
+   * that records are aligned in the mapped file. */
+  private static int paddedLength(int length) {
+    return (length + 7) & ~7;
+  }
+
+  /**
+   * Save the combined databases to disk in the binary format by writing
+   * a temporary file with block checksums and renaming it to the given
+   * path once it's synced to disk.
+   */
+  boolean saveBinaryCombinedDatabases(String path) {
+    File file = new File(path);
+    FileOutputStream fos = null;
+    try {
+      fos = CombinedDatabasesFile.openTempFile(file);
+      CombinedDatabasesFile.BinaryOutputStream checksummed =
+          new CombinedDatabasesFile.BinaryOutputStream(fos);
+      DataOutputStream dos = new DataOutputStream(checksummed);
+      dos.writeInt(BINARY_MAGIC);
+      dos.writeInt(BINARY_VERSION);
+      dos.writeInt(this.databaseDates.length);
+      for (int databaseDate : this.databaseDates) {
+        dos.writeInt(databaseDate);
+      }
+      dos.writeInt(this.databaseFileNames.length);
+      for (String databaseFileName : this.databaseFileNames) {
+        writeString(dos, databaseFileName);
+      }
+      dos.writeInt(this.codes.length);
+      for (String code : this.codes) {
+        writeString(dos, code);
+      }
+      dos.writeInt(this.numberOfRecords);
+      writeSection(dos, this.records, this.numberOfRecords * RECORD_SIZE);
+      dos.writeInt(this.numberOfIpv6Records);
+      writeSection(dos, this.ipv6Records,
+          this.numberOfIpv6Records * IPV6_RECORD_SIZE);
+      this.asNames.write(dos);
+      checksummed.finish();
+      CombinedDatabasesFile.commitTempFile(fos, file);
+    } catch (IOException e) {
+      if (fos != null) {
+        CombinedDatabasesFile.abortTempFile(fos, file);
+      }
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Save the combined databases to disk in the columnar format.
+   */
+  boolean saveColumnarCombinedDatabases(String path) {
+    return ColumnarSegment.write(this, path);
+  }
+
+  /* Helper: write padding followed by the given number of bytes from the
+   * start of the given buffer. */
+  private static void writeSection(DataOutputStream dos,
+      ByteBuffer buffer, int length) throws IOException {
+    while (dos.size() < paddedLength(dos.size())) {
+      dos.writeByte(0);
+    }
+    ByteBuffer source = buffer.duplicate();
+    source.clear();
+    byte[] chunk = new byte[64 * 1024];
+    while (length > 0) {
+      int chunkLength = Math.min(length, chunk.length);
+      source.get(chunk, 0, chunkLength);
+      dos.write(chunk, 0, chunkLength);
+      length -= chunkLength;
+    }
+  }
+
+  /* Helper: write a string as 2 bytes length and UTF-8 bytes. */
+  static void writeString(DataOutputStream dos, String string)
+      throws IOException {
+    byte[] bytes = string.getBytes("UTF-8");
+    dos.writeShort(bytes.length);
+    dos.write(bytes);
+  }
+
+  /**
+   * Load combined databases from a CSV file as written by
+   * DatabaseImporterImpl.  Ranges are expected to be contained in the
+   * same order as they are written, and loading fails if they are not.
+   */
+  private boolean loadCsvCombinedDatabases(File file) {
+    try {
+      List<Integer> dates = new ArrayList<Integer>();
+      List<String> fileNames = new ArrayList<String>();
+      RecordsBuilder builder = new RecordsBuilder(0);
+      AsNameTable asNameTable = new AsNameTable();
+      CombinedDatabasesFile.CsvReader br =
+          new CombinedDatabasesFile.CsvReader(file);
+      String line;
+      while ((line = br.readLine()) != null) {
+        if (line.startsWith("!")) {
+
+          /* First read file header containing database dates. */
+          String[] parts = line.substring(1).split("!");
+          fileNames.add(line.substring(1));
+          int dbDate = DatabaseImpl.convertDateStringToNumber(parts[0]);
+          if (!dates.contains(dbDate)) {
+            dates.add(dbDate);
+          }
+        } else if (line.startsWith("@")) {
+
+          /* Then read AS names, if any. */
+          if (!asNameTable.readCsvLine(line)) {
+            br.close();
+            return false;
+          }
+        } else {
+
+          /* Next read all IPv4 and IPv6 ranges, which must be ordered
+           * backwards. */
+          String[] parts = line.split(",");
+          boolean ordered;
+          if (parts[0].indexOf(':') >= 0) {
+            ordered = builder.addIpv6(
+                DatabaseImpl.convertIpv6AddressStringToNumber(parts[0]),
+                DatabaseImpl.convertDateStringToNumber(parts[3]),
+                DatabaseImpl.convertIpv6AddressStringToNumber(parts[1]),
+                DatabaseImpl.convertDateStringToNumber(parts[4]),
+                parts[2]);
+          } else {
+            ordered = builder.add(DatabaseImpl.convertAddressAndDateToKey(
+                DatabaseImpl.convertAddressStringToNumber(parts[0]),
+                DatabaseImpl.convertDateStringToNumber(parts[3])),
+                DatabaseImpl.convertAddressStringToNumber(parts[1]),
+                DatabaseImpl.convertDateStringToNumber(parts[4]),
+                parts[2]);
+          }
+          if (!ordered) {
+            br.close();
+            return false;
+          }
+        }
+      }
+      br.close();
+      this.databaseDates = new int[dates.size()];
+      for (int i = 0; i < this.databaseDates.length; i++) {
+        this.databaseDates[i] = dates.get(i);
+      }
+      Arrays.sort(this.databaseDates);
+      this.databaseFileNames = fileNames.toArray(
+          new String[fileNames.size()]);
+      this.asNames = asNameTable;
+      builder.build();
+    } catch (IOException e) {
+      System.err.println("Could not load '" + file + "': "
+          + e.getMessage());
+      return false;
+    } catch (RuntimeException e) {
+      /* Malformed lines are only found in files without checksums or in
+       * the last block of truncated files. */
+      System.err.println("Could not load '" + file + "': "
+          + e.getMessage());
+      return false;
+    }
+    return true;
+  }
+
+  /* Return a nicely formatted string summarizing database contents and
+   * usage statistics. */
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    sb.append(String.format("Compact database contains %d databases, %d "
+        + "combined address ranges, %d combined IPv6 address ranges, "
+        + "and %d distinct codes in %d bytes.\n"
+        + "Performed %d address lookups requiring %d lookups.\n"
+        + "First 10 entries, in reverse order, are:",
+        this.databaseDates.length, this.numberOfRecords,
+        this.numberOfIpv6Records, this.codes.length,
+        this.numberOfRecords * RECORD_SIZE
+        + this.numberOfIpv6Records * IPV6_RECORD_SIZE,
+        this.metrics.getLookups(), this.metrics.getKeyProbes()));
+    for (int i = 0; i < this.numberOfRecords && i < 10; i++) {
+      sb.append(String.format("%n  %s %s %s %s %s",
+          DatabaseImpl.convertKeyToAddressString(this.getKey(i)),
+          DatabaseImpl.convertAddressNumberToString(
+          this.getEndAddress(i)),
+          this.codes[this.getCodeIndex(i)],
+          DatabaseImpl.convertKeyToDateString(this.getKey(i)),
+          DatabaseImpl.convertDateNumberToString(this.getLastDbDate(i))));
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,287 @@
+/* Copyright 2012 The Tor Project */
+package org.torproject.task6471;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reader for plain, gzip-compressed, and bzip2-compressed text files,
+ * which allows importing database files directly from the archives
+ * without decompressing them to disk first.
+ *
+ * Compressed files are decompressed in a separate thread or process
+ * while the caller parses lines from the returned reader, so that
+ * decompression and parsing can run on different cores.  Files ending
+ * in .gz are decompressed by a background thread and handed over using
+ * a pipe.  The JDK doesn't support bzip2, so files ending in .bz2 are
+ * decompressed by an external "bzip2 -dc" process.  Decompression errors
+ * are reported as IOException when reading past the last decompressed
+ * line.
+ *
+ * Callers may pass streams that receive a copy of the stored and of the
+ * decompressed bytes while they are read, which is used for verifying
+ * digests and signatures without reading files twice.
+ */
+public class CompressedFileReader {
+
+  /**
+   * Number of bytes that a background thread may decompress ahead of the
+   * parser.
+   */
+  private static final int PIPE_SIZE = 1024 * 1024;
+
+  /**
+   * Return whether the given file name ends in .gz or .bz2.
+   */
+  public static boolean isCompressed(String fileName) {
+    return fileName.endsWith(".gz") || fileName.endsWith(".bz2");
+  }
+
+  /**
+   * Return the given file name without .gz or .bz2 suffix.
+   */
+  public static String getUncompressedName(String fileName) {
+    if (fileName.endsWith(".gz")) {
+      return fileName.substring(0, fileName.length() - ".gz".length());
+    } else if (fileName.endsWith(".bz2")) {
+      return fileName.substring(0, fileName.length() - ".bz2".length());
+    } else {
+      return fileName;
+    }
+  }
+
+  /**
+   * Open a reader for the given plain or compressed file.
+   */
+  public static BufferedReader open(File file) throws IOException {
+    return open(file, null, null);
+  }
+
+  /**
+   * Open a reader for the given plain or compressed file and copy all
+   * bytes read from the file to the given raw copy stream and all
+   * decompressed bytes to the given decompressed copy stream, unless
+   * these streams are null.  Copies are complete once the reader has
+   * returned the last line.
+   */
+  static BufferedReader open(File file, OutputStream rawCopy,
+      OutputStream decompressedCopy) throws IOException {
+    InputStream is;
+    if (file.getName().endsWith(".gz")) {
+      is = openGzipFile(file, rawCopy);
+    } else if (file.getName().endsWith(".bz2")) {
+      is = openBzip2File(file, rawCopy);
+    } else {
+      is = copying(new FileInputStream(file), rawCopy);
+    }
+    return new BufferedReader(new InputStreamReader(copying(is,
+        decompressedCopy)));
+  }
+
+  /* Helper: return a stream that copies all bytes read from the given
+   * stream to the given copy stream, if it's not null. */
+  private static InputStream copying(InputStream in,
+      final OutputStream copy) {
+    if (copy == null) {
+      return in;
+    }
+    return new FilterInputStream(in) {
+      public int read() throws IOException {
+        int b = super.read();
+        if (b >= 0) {
+          copy.write(b);
+        }
+        return b;
+      }
+      public int read(byte[] b, int off, int len) throws IOException {
+        int length = super.read(b, off, len);
+        if (length > 0) {
+          copy.write(b, off, length);
+        }
+        return length;
+      }
+      public long skip(long n) throws IOException {
+        byte[] skipped = new byte[(int) Math.min(n, 4096L)];
+        int length = this.read(skipped, 0, skipped.length);
+        return length < 0 ? 0L : length;
+      }
+    };
+  }
+
+  /* Helper: read the rest of the given stream, so that copies include
+   * bytes after the end of compressed data. */
+  private static void drain(InputStream in) throws IOException {
+    byte[] buffer = new byte[4096];
+    while (in.read(buffer) >= 0) {
+    }
+  }
+
+  /* Start a thread that decompresses a gzip file into a pipe. */
+  private static InputStream openGzipFile(File file,
+      OutputStream rawCopy) throws IOException {
+    final InputStream raw = copying(new FileInputStream(file), rawCopy);
+    final InputStream compressed = new GZIPInputStream(
+        new BufferedInputStream(raw));
+    PipedInputStream pipe = new PipedInputStream(PIPE_SIZE);
+    final OutputStream decompressed = new PipedOutputStream(pipe);
+    final DecompressedInputStream result =
+        new DecompressedInputStream(pipe, file, null);
+    Thread thread = new Thread("Decompress " + file.getName()) {
+      public void run() {
+        try {
+          byte[] buffer = new byte[64 * 1024];
+          int length;
+          while ((length = compressed.read(buffer)) >= 0) {
+            decompressed.write(buffer, 0, length);
+          }
+          drain(raw);
+        } catch (IOException e) {
+          /* Either decompression failed, or the reader was closed before
+           * reaching the end of the file.  The reader won't see the error
+           * in the latter case, so it's safe to always remember it. */
+          result.failure = e;
+        } finally {
+          try {
+            compressed.close();
+          } catch (IOException e) {
+            /* Nothing we can do about it. */
+          }
+          try {
+            decompressed.close();
+          } catch (IOException e) {
+            /* Pipe was already closed by the reader. */
+          }
+        }
+      }
+    };
+    thread.setDaemon(true);
+    thread.start();
+    return result;
+  }
+
+  /* Start an external process that decompresses a bzip2 file, either
+   * reading the file itself or, if bytes need to be copied, reading them
+   * from a thread that feeds the file to the process. */
+  private static InputStream openBzip2File(File file,
+      OutputStream rawCopy) throws IOException {
+    if (rawCopy == null) {
+      Process process = new ProcessBuilder("bzip2", "-dc",
+          file.getAbsolutePath()).start();
+      process.getOutputStream().close();
+      process.getErrorStream().close();
+      return new DecompressedInputStream(process.getInputStream(), file,
+          process);
+    }
+    final InputStream raw = copying(new FileInputStream(file), rawCopy);
+    Process process = new ProcessBuilder("bzip2", "-dc").start();
+    process.getErrorStream().close();
+    final OutputStream compressed = process.getOutputStream();
+    final DecompressedInputStream result = new DecompressedInputStream(
+        process.getInputStream(), file, process);
+    result.feeder = new Thread("Compress " + file.getName()) {
+      public void run() {
+        try {
+          byte[] buffer = new byte[64 * 1024];
+          int length;
+          while ((length = raw.read(buffer)) >= 0) {
+            compressed.write(buffer, 0, length);
+          }
+        } catch (IOException e) {
+          result.failure = e;
+        } finally {
+          try {
+            raw.close();
+          } catch (IOException e) {
+            /* Nothing we can do about it. */
+          }
+          try {
+            compressed.close();
+          } catch (IOException e) {
+            /* Process exited already. */
+          }
+        }
+      }
+    };
+    result.feeder.setDaemon(true);
+    result.feeder.start();
+    return result;
+  }
+
+  /**
+   * Input stream of decompressed bytes that reports decompression errors
+   * when reaching the end of the stream.
+   */
+  private static class DecompressedInputStream extends FilterInputStream {
+    private File file;
+    private Process process;
+    private Thread feeder;
+    private volatile IOException failure;
+    private DecompressedInputStream(InputStream in, File file,
+        Process process) {
+      super(in);
+      this.file = file;
+      this.process = process;
+    }
+    public int read() throws IOException {
+      int b = super.read();
+      if (b < 0) {
+        this.checkCompleted();
+      }
+      return b;
+    }
+    public int read(byte[] b, int off, int len) throws IOException {
+      int length = super.read(b, off, len);
+      if (length < 0) {
+        this.checkCompleted();
+      }
+      return length;
+    }
+    private void checkCompleted() throws IOException {
+      if (this.feeder != null) {
+        try {
+          this.feeder.join();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException("Interrupted while decompressing '"
+              + this.file.getAbsolutePath() + "'.");
+        }
+      }
+      if (this.failure != null) {
+        throw new IOException("Could not decompress '"
+            + this.file.getAbsolutePath() + "': "
+            + this.failure.getMessage());
+      }
+      if (this.process != null) {
+        int exitValue;
+        try {
+          exitValue = this.process.waitFor();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException("Interrupted while decompressing '"
+              + this.file.getAbsolutePath() + "'.");
+        }
+        if (exitValue != 0) {
+          throw new IOException("Could not decompress '"
+              + this.file.getAbsolutePath() + "': bzip2 exited with "
+              + exitValue + ".");
+        }
+      }
+    }
+    public void close() throws IOException {
+      super.close();
+      if (this.process != null) {
+        this.process.destroy();
+      }
+    }
+  }
+}
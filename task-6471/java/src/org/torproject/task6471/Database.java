@@ -1,6 +1,9 @@
 /* Copyright 2012 The Tor Project */
 package org.torproject.task6471;
 
+import java.util.Iterator;
+import java.util.List;
+
 /**
  * Database storing multiple GeoIP or ASN databases and supporting
  * efficient ip-to-country-code or ip-to-AS-number lookups in the most
@@ -16,7 +19,11 @@ package org.torproject.task6471;
 public interface Database {
 
   /**
-   * Load a combined databases file.
+   * Load a combined databases file.  Implementations may support only
+   * the CSV format written by DatabaseImporter.saveCombinedDatabases or
+   * also the binary and columnar formats written by
+   * DatabaseImporter.saveBinaryCombinedDatabases and
+   * DatabaseImporter.saveColumnarCombinedDatabases.
    *
    * @param path Path to the combined database file.
    * @return True if loading the combined database file was successful,
@@ -34,4 +41,162 @@ public interface Database {
    * could be found.
    */
   public String lookupIpv4AddressAndDate(String address, String date);
+
+  /**
+   * Query the database for the country code or AS number assigned to an
+   * IPv4 address on a given date, without parsing any strings.
+   * Implementations should not allocate any objects in this method.
+   *
+   * @param address IPv4 address as a number between 0 and 2^32 - 1.
+   * @param dayNumber Assignment date as days since 1970-01-01.
+   * @return Assigned country code or AS number, or null if no assignment
+   * could be found.
+   */
+  public String lookupIpv4AddressAndDate(long address, int dayNumber);
+
+  /**
+   * Query the database for the code id of the country code or AS number
+   * assigned to an IPv4 address on a given date, which avoids resolving
+   * codes if callers only need to compare or count them.
+   *
+   * @param address IPv4 address as a number between 0 and 2^32 - 1.
+   * @param dayNumber Assignment date as days since 1970-01-01.
+   * @return Code id of the assigned country code or AS number, or
+   *         CodeDictionary.NO_CODE if no assignment could be found.
+   *         Code ids can be resolved using getCodeForId.
+   */
+  public int lookupIpv4CodeId(long address, int dayNumber);
+
+  /**
+   * Query the database for the country code assigned to an IPv6 address
+   * on a given date.  Only the /64 network prefix of the address is taken
+   * into account.
+   *
+   * @param address IPv6 address in colon-separated hex notation.
+   * @param date Assignment date in format yyyymmdd.
+   * @return Assigned country code, or null if no assignment could be
+   * found.
+   */
+  public String lookupIpv6AddressAndDate(String address, String date);
+
+  /**
+   * Query the database for the country codes or AS numbers assigned to
+   * many IPv4 addresses on given dates at once.  Queries are answered in
+   * the order in which ranges are stored rather than in the given order,
+   * which is considerably faster than looking up addresses one by one.
+   *
+   * @param addresses IPv4 addresses as unsigned 32-bit integers.
+   * @param dates Assignment dates as days since 1970-01-01.
+   * @param codeIds Array of the same length that will be filled with
+   *        code ids of assigned country codes or AS numbers, or
+   *        CodeDictionary.NO_CODE if no assignment could be found.  Code
+   *        ids can be resolved using getCodeForId.
+   */
+  public void lookupIpv4AddressesAndDates(int[] addresses, int[] dates,
+      int[] codeIds);
+
+  /**
+   * Return the country code or AS number with the given code id as
+   * returned by lookupIpv4AddressesAndDates.
+   *
+   * @param codeId Code id.
+   * @return Country code or AS number, or null if the code id is
+   *         CodeDictionary.NO_CODE or unknown.
+   */
+  public String getCodeForId(int codeId);
+
+  /**
+   * Query the database for all country codes or AS numbers assigned to
+   * an IPv4 address between two dates, which returns the same codes as
+   * looking up the address on each day, but in a single pass over the
+   * ranges containing the address.
+   *
+   * @param address IPv4 address in dotted-quad notation.
+   * @param fromDate First date in format yyyymmdd.
+   * @param toDate Last date in format yyyymmdd.
+   * @return Periods in which the address was assigned to the same code
+   *         in ascending order, leaving out periods in which the
+   *         address was not assigned.
+   */
+  public List<AssignmentPeriod> lookupIpv4AssignmentHistory(
+      String address, String fromDate, String toDate);
+
+  /**
+   * Query the database for the AS number and name assigned to an IPv4
+   * address on a given date.  AS names are taken from the most recent
+   * ASN database containing the AS number, regardless of the given
+   * date.
+   *
+   * @param address IPv4 address in dotted-quad notation.
+   * @param date Assignment date in format yyyymmdd.
+   * @return Assigned AS number and name like "AS15169 Google Inc.", or
+   *         the AS number alone if its name is unknown, or null if no
+   *         assignment could be found.
+   */
+  public String lookupIpv4AsNumberAndName(String address, String date);
+
+  /**
+   * Return the name of an AS number as contained in the most recent ASN
+   * database containing that AS number.
+   *
+   * @param asNumber AS number in the format "AS15169".
+   * @return AS name, or null if the AS name is unknown.
+   */
+  public String getAsName(String asNumber);
+
+  /**
+   * Return an immutable snapshot of the database that is most recent on
+   * the given date, or of the earliest known database if there is none.
+   * Snapshots support looking up many addresses for the same date using
+   * a single binary search per address.  Recently used snapshots are
+   * cached.
+   *
+   * @param date Date in format yyyymmdd.
+   * @return Snapshot of a single database.
+   */
+  public DatabaseSnapshot getSnapshot(String date);
+
+  /**
+   * Return an immutable snapshot of the database that is most recent on
+   * the given day.
+   *
+   * @param dayNumber Date as number of days since 1970-01-01.
+   * @return Snapshot of a single database.
+   */
+  public DatabaseSnapshot getSnapshot(int dayNumber);
+
+  /**
+   * Return all IPv4 address intervals with their assigned country codes
+   * or AS numbers in the database that is most recent on the given date,
+   * in the order of ascending start addresses.  Intervals are produced
+   * lazily in a single pass over the database's ranges, and adjacent
+   * intervals with the same code are merged.
+   *
+   * @param date Date in format yyyymmdd.
+   * @return Iterator over assigned address intervals.
+   */
+  public Iterator<AddressInterval> iterateIpv4Intervals(String date);
+
+  /**
+   * Return all IPv4 address intervals whose assigned country code or AS
+   * number differs between the databases that are most recent on the
+   * two given dates, in the order of ascending start addresses.  Changes
+   * are produced lazily in a single pass over both databases, and
+   * adjacent changes with the same old and new codes are merged.
+   *
+   * @param fromDate Earlier date in format yyyymmdd.
+   * @param toDate Later date in format yyyymmdd.
+   * @return Iterator over changed address intervals, including
+   *         intervals that were assigned or unassigned in between.
+   */
+  public Iterator<AddressInterval.Change> iterateIpv4Changes(
+      String fromDate, String toDate);
+
+  /**
+   * Return lookup, import, and memory metrics, which can be read
+   * directly or registered as MBean.
+   *
+   * @return Metrics of this database.
+   */
+  public DatabaseMetrics getMetrics();
 }
@@ -1,17 +1,18 @@
 /* Copyright 2012 The Tor Project */
 package org.torproject.task6471;
 
-import java.io.BufferedReader;
+import java.io.DataInputStream;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.SortedMap;
 import java.util.SortedSet;
-import java.util.TimeZone;
 import java.util.TreeMap;
 import java.util.TreeSet;
 
@@ -32,32 +33,122 @@ import java.util.TreeSet;
  * requested address and can terminate as soon as a range with a smaller
  * end address is encountered.
  *
+ * IPv6 ranges are stored in a second tree using the same approach.  As
+ * IPv6 start addresses and dates don't fit into a long integer, IPv6
+ * tree elements are stored under key objects instead.  IPv6 addresses
+ * are only stored with their /64 network prefix, because the Regional
+ * Internet Registries don't assign smaller networks.
+ *
  * As a requirement for lookups to work correctly, address ranges may
  * never overlap for different assignment periods.  This makes the import
  * process somewhat more complex and time-consuming, which is a trade-off
  * for faster lookup performance.
+ *
+ * Once all databases are imported or loaded, any number of threads may
+ * look up addresses at the same time.  Imports must not run concurrently
+ * with lookups, though.
  */
 public class DatabaseImpl implements Database {
 
   /**
    * Tree element containing an end IPv4 address, last database date,
-   * last database index, and country code or AS number.  Start IPv4
-   * address and first database date are encoded in the key under which
-   * the element is stored.
+   * and the code id of the country code or AS number in the code
+   * dictionary.  Start IPv4 address and first database date are encoded
+   * in the key under which the element is stored.
    */
   protected static class TreeElement {
     protected long endAddress;
     protected int lastDbDate;
-    protected String code;
-    protected boolean modifiedInLastImport;
-    protected TreeElement(long endAddress, int lastDbDate, String code) {
+    protected int codeId;
+    protected TreeElement(long endAddress, int lastDbDate, int codeId) {
       this.endAddress = endAddress;
       this.lastDbDate = lastDbDate;
-      this.code = code;
-      this.modifiedInLastImport = true;
+      this.codeId = codeId;
+    }
+  }
+
+  /**
+   * Key under which IPv6 tree elements are stored, consisting of the
+   * start address and first database date.  IPv6 keys cannot be packed
+   * into a single long integer like IPv4 keys, because 64 address bits
+   * and 16 date bits don't fit into 64 bits.
+   */
+  protected static class Ipv6Key implements Comparable<Ipv6Key> {
+    protected final long address;
+    protected final int date;
+    protected Ipv6Key(long address, int date) {
+      this.address = address;
+      this.date = date;
+    }
+    public int compareTo(Ipv6Key other) {
+      if (this.address != other.address) {
+        return this.address < other.address ? -1 : 1;
+      }
+      return this.date < other.date ? -1 :
+          this.date > other.date ? 1 : 0;
+    }
+    public boolean equals(Object other) {
+      return other instanceof Ipv6Key &&
+          ((Ipv6Key) other).address == this.address &&
+          ((Ipv6Key) other).date == this.date;
+    }
+    public int hashCode() {
+      return (int) (this.address ^ (this.address >>> 32)) * 31
+          + this.date;
     }
   }
 
+  /**
+   * Layout of keys under which tree elements are stored, which encode
+   * start address and first database date of a range.  Addresses are
+   * long integers that compare in the same order as the addresses they
+   * represent, so that the same import code works for IPv4 and IPv6
+   * ranges.
+   */
+  protected static abstract class KeyLayout<K> {
+    protected abstract K createKey(long address, int date);
+    protected abstract long getAddress(K key);
+    protected abstract int getDate(K key);
+
+    /* Return the largest possible key with the given start address. */
+    protected K createLastKey(long address) {
+      return this.createKey(address, (1 << 16) - 1);
+    }
+  }
+
+  /**
+   * Key layout of IPv4 ranges with the start address in the higher bits
+   * and the first database date in the lower 16 bits of a long integer.
+   */
+  protected static final KeyLayout<Long> IPV4_KEYS =
+      new KeyLayout<Long>() {
+    protected Long createKey(long address, int date) {
+      return convertAddressAndDateToKey(address, date);
+    }
+    protected long getAddress(Long key) {
+      return convertKeyToAddress(key);
+    }
+    protected int getDate(Long key) {
+      return convertKeyToDate(key);
+    }
+  };
+
+  /**
+   * Key layout of IPv6 ranges.
+   */
+  protected static final KeyLayout<Ipv6Key> IPV6_KEYS =
+      new KeyLayout<Ipv6Key>() {
+    protected Ipv6Key createKey(long address, int date) {
+      return new Ipv6Key(address, date);
+    }
+    protected long getAddress(Ipv6Key key) {
+      return key.address;
+    }
+    protected int getDate(Ipv6Key key) {
+      return key.date;
+    }
+  };
+
   /**
    * IPv4 address and date ranges, ordered backwards by start address and
    * first database date.
@@ -65,6 +156,16 @@ public class DatabaseImpl implements Database {
   protected SortedMap<Long, TreeElement> ranges =
       new TreeMap<Long, TreeElement>(Collections.reverseOrder());
 
+  /**
+   * IPv6 address and date ranges, ordered backwards by start address and
+   * first database date.  IPv6 addresses are reduced to their /64
+   * network prefix, and tree elements contain the last /64 network
+   * prefix of a range as end address.  Prefixes are stored with their
+   * highest bit flipped, so that they compare like unsigned numbers.
+   */
+  protected SortedMap<Ipv6Key, TreeElement> ipv6Ranges =
+      new TreeMap<Ipv6Key, TreeElement>(Collections.reverseOrder());
+
   /**
    * Database dates ordered from oldest to youngest.
    */
@@ -76,70 +177,583 @@ public class DatabaseImpl implements Database {
   protected SortedSet<String> databaseFileNames = new TreeSet<String>();
 
   /**
-   * Internal counters for lookup statistics.
+   * Estimated heap bytes per IPv4 and IPv6 range on a 64-bit JVM with
+   * compressed references, consisting of tree map entry (40 bytes), key
+   * (16 or 24 bytes), and tree element (32 bytes).  Codes are shared
+   * through the code dictionary and are not counted per range.
    */
-  protected int addressLookups = 0, addressLookupsKeyLookups = 0;
+  static final int IPV4_RANGE_HEAP_BYTES = 88,
+      IPV6_RANGE_HEAP_BYTES = 96;
 
   /**
-   * Look up address and date by iterating backwards over possibly
-   * matching ranges.
+   * Estimated heap bytes per IPv4 range and per database date in the
+   * lookup index, consisting of a key (8 bytes) and an element
+   * reference (4 bytes) per range, and a date (4 bytes) per database.
+   * Tree elements are shared with the tree and are not counted again.
+   */
+  static final int LOOKUP_INDEX_RANGE_HEAP_BYTES = 12,
+      LOOKUP_INDEX_DATE_HEAP_BYTES = 4;
+
+  /**
+   * Lookup and import metrics, which may be updated by concurrent
+   * lookups.
+   */
+  protected DatabaseMetrics metrics = new DatabaseMetrics(
+      new DatabaseMetrics.MemoryUsage() {
+    public int getRanges() {
+      return DatabaseImpl.this.ranges.size()
+          + DatabaseImpl.this.ipv6Ranges.size();
+    }
+    public long getEstimatedHeapBytes() {
+      return DatabaseImpl.this.estimateHeapBytes();
+    }
+    public long getOffHeapBytes() {
+      return DatabaseImpl.this.asNames.getOffHeapBytes();
+    }
+  });
+
+  /**
+   * Return lookup and import metrics.
+   */
+  public DatabaseMetrics getMetrics() {
+    return this.metrics;
+  }
+
+  /**
+   * Return an estimate of heap bytes used for storing ranges, including
+   * the lookup index if it is currently built.
+   */
+  protected long estimateHeapBytes() {
+    long heapBytes = (long) this.ranges.size() * IPV4_RANGE_HEAP_BYTES
+        + (long) this.ipv6Ranges.size() * IPV6_RANGE_HEAP_BYTES;
+    LookupIndex index = this.lookupIndex;
+    if (index != null) {
+      heapBytes += (long) index.keys.length
+          * LOOKUP_INDEX_RANGE_HEAP_BYTES
+          + (long) index.databaseDates.length
+          * LOOKUP_INDEX_DATE_HEAP_BYTES;
+    }
+    return heapBytes;
+  }
+
+  /**
+   * Code dictionary containing all distinct country codes or AS numbers,
+   * whose code ids are stored in tree elements and returned from
+   * lookups.
+   */
+  protected CodeDictionary codeDictionary = new CodeDictionary();
+
+  /**
+   * AS names by AS number, shared by all database dates, which is empty
+   * unless ASN databases were imported.
+   */
+  protected AsNameTable asNames = new AsNameTable();
+
+  /**
+   * Lookup index containing database dates and ranges in arrays, so that
+   * lookups can use binary search and don't allocate any objects.  The
+   * index is built from the tree on the first lookup after modifying the
+   * tree.  Snapshots of single databases are cached together with the
+   * index, so that they are discarded when the tree is modified.
+   *
+   * Ranges are copied, rather than looked up in the tree, because
+   * walking a TreeMap always allocates a submap view and an iterator,
+   * and because batch lookups, snapshots, and interval iterators need
+   * positional access to gallop and walk over ranges.  The copy only
+   * contains keys and references to the tree elements, which adds about
+   * 12 bytes to the 88 heap bytes of each range in the tree, and it is
+   * accounted for in estimateHeapBytes() while it is built.  Rebuilding
+   * the index takes time linear in the number of ranges, which is paid
+   * once after importing, loading, or merging a delta segment, not once
+   * per modified range.
+   */
+  protected static class LookupIndex {
+    protected final int[] databaseDates;
+    protected final long[] keys;
+    protected final TreeElement[] elements;
+    protected final DatabaseSnapshot.Cache snapshots =
+        new DatabaseSnapshot.Cache();
+    protected LookupIndex(SortedSet<Integer> databaseDates,
+        SortedMap<Long, TreeElement> ranges) {
+      this.databaseDates = new int[databaseDates.size()];
+      int i = 0;
+      for (int databaseDate : databaseDates) {
+        this.databaseDates[i++] = databaseDate;
+      }
+      this.keys = new long[ranges.size()];
+      this.elements = new TreeElement[ranges.size()];
+      i = 0;
+      for (Map.Entry<Long, TreeElement> e : ranges.entrySet()) {
+        this.keys[i] = e.getKey();
+        this.elements[i++] = e.getValue();
+      }
+    }
+  }
+
+  /**
+   * Lookup index, or null if the tree was modified since building the
+   * index the last time.
+   */
+  private volatile LookupIndex lookupIndex;
+
+  /**
+   * Discard the lookup index after modifying database dates or ranges.
+   */
+  protected void invalidateLookupIndex() {
+    this.lookupIndex = null;
+  }
+
+  /* Helper: return the lookup index, building it first if necessary. */
+  LookupIndex getLookupIndex() {
+    LookupIndex index = this.lookupIndex;
+    if (index == null) {
+      index = new LookupIndex(this.databaseDates, this.ranges);
+      this.lookupIndex = index;
+    }
+    return index;
+  }
+
+  /**
+   * Look up address and date by converting both to numbers and looking
+   * up those.
    */
   public String lookupIpv4AddressAndDate(
       String addressString, String dateString) {
-    this.addressLookups++;
+    return this.lookupIpv4AddressAndDate(
+        convertAddressStringToNumber(addressString),
+        convertDateStringToNumber(dateString));
+  }
+
+  /**
+   * Look up address and date by iterating backwards over possibly
+   * matching ranges in the lookup index.
+   */
+  public String lookupIpv4AddressAndDate(long address, int dayNumber) {
+    return this.codeDictionary.getCode(this.lookupIpv4CodeId(address,
+        dayNumber));
+  }
+
+  /**
+   * Look up the code id of address and date in the same way.
+   */
+  public int lookupIpv4CodeId(long address, int dayNumber) {
+    LookupIndex index = this.getLookupIndex();
+    return this.lookupIpv4AddressAndDatabaseDate(index, address,
+        findDatabaseDate(index.databaseDates, dayNumber),
+        findFirstIndex(index.keys, address));
+  }
+
+  /**
+   * Look up many addresses and dates at once.  Queries are processed in
+   * the order of descending addresses, so that the first possibly
+   * matching range of each query is found by galloping forward from the
+   * first possibly matching range of the previous query.
+   */
+  public void lookupIpv4AddressesAndDates(int[] addresses, int[] dates,
+      int[] codeIds) {
+    int[] order = sortQueriesByAddressDescending(addresses, dates,
+        codeIds);
+    LookupIndex index = this.getLookupIndex();
+    int firstIndex = 0;
+    for (int query : order) {
+      long address = addresses[query] & 0xffffffffL;
+      firstIndex = gallopToFirstIndex(index.keys, address, firstIndex);
+      codeIds[query] = this.lookupIpv4AddressAndDatabaseDate(index,
+          address, findDatabaseDate(index.databaseDates, dates[query]),
+          firstIndex);
+    }
+  }
+
+  /**
+   * Return the code with the given code id.
+   */
+  public String getCodeForId(int codeId) {
+    return this.codeDictionary.getCode(codeId);
+  }
+
+  /**
+   * Iterate backwards over the lookup index to produce intervals.
+   */
+  public Iterator<AddressInterval> iterateIpv4Intervals(
+      String dateString) {
+    final LookupIndex index = this.getLookupIndex();
+    int databaseDate = findDatabaseDate(index.databaseDates,
+        convertDateStringToNumber(dateString));
+    return new AddressInterval.IntervalIterator(this.getRanges(index),
+        databaseDate);
+  }
 
+  /* Helper: return the ranges of the given lookup index for walking
+   * over them. */
+  private AddressInterval.Ranges getRanges(final LookupIndex index) {
+    return new AddressInterval.Ranges() {
+      int size() {
+        return index.keys.length;
+      }
+      long getKey(int i) {
+        return index.keys[i];
+      }
+      long getEndAddress(int i) {
+        return index.elements[i].endAddress;
+      }
+      int getLastDbDate(int i) {
+        return index.elements[i].lastDbDate;
+      }
+      String getCode(int i) {
+        return DatabaseImpl.this.codeDictionary.getCode(
+            index.elements[i].codeId);
+      }
+    };
+  }
+
+  /**
+   * Walk backwards over the lookup index once, starting at the address,
+   * to produce the assignment history.
+   */
+  public List<AssignmentPeriod> lookupIpv4AssignmentHistory(
+      String addressString, String fromDateString, String toDateString) {
+    LookupIndex index = this.getLookupIndex();
     long address = convertAddressStringToNumber(addressString);
-    int date = convertDateStringToNumber(dateString);
+    return AssignmentPeriod.walkRanges(this.getRanges(index),
+        findFirstIndex(index.keys, address), address,
+        index.databaseDates, convertDateStringToNumber(fromDateString),
+        convertDateStringToNumber(toDateString));
+  }
+
+  /**
+   * Sweep over intervals of both dates to produce changes.
+   */
+  public Iterator<AddressInterval.Change> iterateIpv4Changes(
+      String fromDateString, String toDateString) {
+    return new AddressInterval.ChangeIterator(
+        this.iterateIpv4Intervals(fromDateString),
+        this.iterateIpv4Intervals(toDateString));
+  }
 
-    if (this.databaseDates.isEmpty()) {
+  /**
+   * Look up the AS number of address and date and append its name.
+   */
+  public String lookupIpv4AsNumberAndName(String addressString,
+      String dateString) {
+    return this.asNames.formatAsNumberAndName(
+        this.lookupIpv4AddressAndDate(addressString, dateString));
+  }
+
+  /**
+   * Return the AS name from the AS name table.
+   */
+  public String getAsName(String asNumber) {
+    return this.asNames.get(asNumber);
+  }
+
+  /**
+   * Return a snapshot of the database that is most recent on the given
+   * date.
+   */
+  public DatabaseSnapshot getSnapshot(String dateString) {
+    return this.getSnapshot(convertDateStringToNumber(dateString));
+  }
+
+  /**
+   * Return a cached snapshot of the database that is most recent on the
+   * given date, or take a new snapshot by copying all ranges from the
+   * lookup index and IPv6 tree that contain that database's date.
+   */
+  public DatabaseSnapshot getSnapshot(int dayNumber) {
+    LookupIndex index = this.getLookupIndex();
+    int databaseDate = findDatabaseDate(index.databaseDates, dayNumber);
+    DatabaseSnapshot snapshot = index.snapshots.get(databaseDate);
+    if (snapshot != null) {
+      this.metrics.recordCacheHit();
+      return snapshot;
+    }
+    this.metrics.recordCacheMiss();
+    DatabaseSnapshot.Builder builder = new DatabaseSnapshot.Builder();
+    for (int i = 0; i < index.keys.length; i++) {
+      TreeElement element = index.elements[i];
+      if (convertKeyToDate(index.keys[i]) <= databaseDate &&
+          element.lastDbDate >= databaseDate) {
+        builder.add(convertKeyToAddress(index.keys[i]),
+            element.endAddress,
+            this.codeDictionary.getCode(element.codeId));
+      }
+    }
+    for (Map.Entry<Ipv6Key, TreeElement> e :
+        this.ipv6Ranges.entrySet()) {
+      if (e.getKey().date <= databaseDate &&
+          e.getValue().lastDbDate >= databaseDate) {
+        builder.addIpv6(e.getKey().address, e.getValue().endAddress,
+            this.codeDictionary.getCode(e.getValue().codeId));
+      }
+    }
+    snapshot = builder.build(databaseDate);
+    index.snapshots.put(snapshot);
+    return snapshot;
+  }
+
+  /**
+   * Look up IPv6 address and date by iterating backwards over possibly
+   * matching ranges in the IPv6 tree.
+   */
+  public String lookupIpv6AddressAndDate(String addressString,
+      String dateString) {
+    long address = convertIpv6AddressStringToNumber(addressString);
+    int databaseDate = findDatabaseDate(
+        this.getLookupIndex().databaseDates,
+        convertDateStringToNumber(dateString));
+    long startedNanos = this.metrics.startLookup();
+    if (databaseDate < 0) {
+      this.metrics.recordLookup(0, startedNanos);
       return null;
     }
+    int codeId = CodeDictionary.NO_CODE, keyLookups = 0;
+    for (Map.Entry<Ipv6Key, TreeElement> e : this.ipv6Ranges.tailMap(
+        IPV6_KEYS.createLastKey(address)).entrySet()) {
+      keyLookups++;
+
+      /* Stop, skip, or return the code, just like in IPv4 lookups. */
+      if (e.getValue().endAddress < address ||
+          e.getValue().lastDbDate < databaseDate) {
+        break;
+      }
+      if (e.getKey().date > databaseDate) {
+        continue;
+      }
+      codeId = e.getValue().codeId;
+      break;
+    }
+    this.metrics.recordLookup(keyLookups, startedNanos);
+    return this.codeDictionary.getCode(codeId);
+  }
+
+  /* Helper: find the most recent database date on or before the given
+   * date, or the earliest database date if there is none, or -1 if there
+   * are no databases at all. */
+  static int findDatabaseDate(int[] databaseDates, int date) {
+    int index = findDatabaseDateIndex(databaseDates, date);
+    return index < 0 ? -1 : databaseDates[index];
+  }
+
+  /* Helper: find the index of the database date that findDatabaseDate
+   * would return, or -1 if there are no databases at all. */
+  static int findDatabaseDateIndex(int[] databaseDates, int date) {
+    if (databaseDates.length == 0) {
+      return -1;
+    }
+    int low = 0, high = databaseDates.length - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      if (databaseDates[mid] <= date) {
+        low = mid + 1;
+      } else {
+        high = mid - 1;
+      }
+    }
+    return high < 0 ? 0 : high;
+  }
+
+  /* Helper: find the index of the first range in the given keys that
+   * is stored under a key smaller than or equal to the last possible
+   * date of the given address. */
+  static int findFirstIndex(long[] keys, long address) {
+    return findFirstIndex(keys, getFirstKey(address), 0, keys.length);
+  }
+
+  /* Helper: return the key of the last possible date of the given
+   * address. */
+  private static long getFirstKey(long address) {
+    return convertAddressAndDateToKey(address + 1L, 0) - 1L;
+  }
+
+  /* Helper: find the index of the first range with a key smaller than or
+   * equal to the given key by binary search between the given low and
+   * high indexes. */
+  private static int findFirstIndex(long[] keys, long firstKey, int low,
+      int high) {
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (keys[mid] > firstKey) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
 
-    /* Look up which database we want. */
-    int databaseDate = this.databaseDates.headSet(date + 1).isEmpty() ?
-        this.databaseDates.first() :
-        this.databaseDates.headSet(date + 1).last();
+  /* Helper: find the same index as findFirstIndex, but starting at the
+   * given index which must not come after the index to be found.
+   * Gallop forward in exponentially growing steps before doing a binary
+   * search, so that searching is cheap if the result is close to the
+   * start index. */
+  static int gallopToFirstIndex(long[] keys, long address,
+      int startIndex) {
+    long firstKey = getFirstKey(address);
+    int low = startIndex, step = 1;
+    while (low + step < keys.length && keys[low + step] > firstKey) {
+      low += step;
+      step <<= 1;
+    }
+    return findFirstIndex(keys, firstKey, low,
+        Math.min(low + step, keys.length));
+  }
+
+  /* Helper: look up the code id of an address in the database
+   * published on the given database date, starting at the given first
+   * possibly matching range. */
+  private int lookupIpv4AddressAndDatabaseDate(LookupIndex index,
+      long address, int databaseDate, int firstIndex) {
+    long startedNanos = this.metrics.startLookup();
+
+    if (databaseDate < 0) {
+      this.metrics.recordLookup(0, startedNanos);
+      return CodeDictionary.NO_CODE;
+    }
 
-    /* Iterate backwards over the existing ranges, starting at the last
-     * possible date of the address to be found. */
-    for (Map.Entry<Long, TreeElement> e : this.ranges.tailMap(
-        convertAddressAndDateToKey(address + 1L, 0) - 1L).entrySet()) {
-      this.addressLookupsKeyLookups++;
+    /* Iterate backwards over the existing ranges, starting at the first
+     * range with a key smaller than or equal to the last possible date
+     * of the address to be found.  Count key lookups locally and add
+     * them to the shared metrics only once, so that concurrent lookups
+     * contend as little as possible. */
+    int codeId = CodeDictionary.NO_CODE, keyLookups = 0;
+    long[] keys = index.keys;
+    for (int i = firstIndex; i < keys.length; i++) {
+      keyLookups++;
+      TreeElement element = index.elements[i];
 
       /* If either the end address or end date of the range we're looking
        * at is smaller than the values we're looking for, we can be sure
        * not to find it anymore. */
-      if (e.getValue().endAddress < address ||
-          e.getValue().lastDbDate < databaseDate) {
-        return null;
+      if (element.endAddress < address ||
+          element.lastDbDate < databaseDate) {
+        break;
       }
 
       /* If the range starts at a later date, skip it and look at the next
        * one. */
-      long startDate = convertKeyToDate(e.getKey());
+      long startDate = convertKeyToDate(keys[i]);
       if (startDate > databaseDate) {
         continue;
       }
 
       /* Both address and date ranges match, so return the assigned
-       * code. */
-      return e.getValue().code;
+       * code id. */
+      codeId = element.codeId;
+      break;
     }
+    this.metrics.recordLookup(keyLookups, startedNanos);
 
-    /* No ranges (left) to look at.  We don't have what we were looking
-     * for. */
-    return null;
+    /* Return the code id we found, or NO_CODE if there were no ranges
+     * (left) to look at. */
+    return codeId;
+  }
+
+  /* Helper: check that batch lookup arrays have the same length and
+   * return query indexes ordered by descending address, which is the
+   * order in which ranges are stored. */
+  static int[] sortQueriesByAddressDescending(int[] addresses,
+      int[] dates, int[] codeIds) {
+    if (addresses.length != dates.length ||
+        addresses.length != codeIds.length) {
+      throw new IllegalArgumentException("Addresses, dates, and code "
+          + "ids must have the same length.");
+    }
+    long[] sortKeys = new long[addresses.length];
+    for (int i = 0; i < addresses.length; i++) {
+      sortKeys[i] = ((addresses[i] & 0xffffffffL) << 32) | i;
+    }
+    Arrays.sort(sortKeys);
+    int[] order = new int[sortKeys.length];
+    for (int i = 0; i < sortKeys.length; i++) {
+      order[sortKeys.length - 1 - i] = (int) sortKeys[i];
+    }
+    return order;
   }
 
   /* Helper: convert a dotted-quad formatted address string to its
-   * corresponding long integer number. */
+   * corresponding long integer number, without allocating any
+   * objects. */
   static long convertAddressStringToNumber(String addressString) {
-    long address = 0;
-    String[] addressParts = addressString.split("\\.");
+    long address = 0L;
+    int octet = 0, digits = 0, dots = 0;
+    for (int i = 0; i < addressString.length(); i++) {
+      char c = addressString.charAt(i);
+      if (c >= '0' && c <= '9' && digits < 3) {
+        octet = octet * 10 + (c - '0');
+        digits++;
+      } else if (c == '.' && digits > 0 && octet < 256 && dots < 3) {
+        address = (address << 8) + octet;
+        octet = digits = 0;
+        dots++;
+      } else {
+        throw new NumberFormatException("Illegal IPv4 address '"
+            + addressString + "'.");
+      }
+    }
+    if (digits == 0 || octet > 255 || dots != 3) {
+      throw new NumberFormatException("Illegal IPv4 address '"
+          + addressString + "'.");
+    }
+    return (address << 8) + octet;
+  }
+
+  /* Helper: convert an IPv6 address string to the long integer number
+   * of its /64 network prefix with the highest bit flipped.  The lower 64
+   * bits of the address are parsed for validity but then ignored. */
+  static long convertIpv6AddressStringToNumber(String addressString) {
+    int doubleColon = addressString.indexOf("::");
+    List<Integer> headGroups = parseIpv6Groups(addressString, doubleColon
+        < 0 ? addressString : addressString.substring(0, doubleColon));
+    List<Integer> tailGroups = doubleColon < 0 ?
+        new ArrayList<Integer>() : parseIpv6Groups(addressString,
+        addressString.substring(doubleColon + 2));
+    int groups = headGroups.size() + tailGroups.size();
+    if (doubleColon < 0 ? groups != 8 : groups > 7) {
+      throw new NumberFormatException("Illegal IPv6 address '"
+          + addressString + "'.");
+    }
+    while (headGroups.size() + tailGroups.size() < 8) {
+      headGroups.add(0);
+    }
+    headGroups.addAll(tailGroups);
+    long prefix = 0L;
     for (int i = 0; i < 4; i++) {
-      address += Long.parseLong(addressParts[i]) << ((3 - i) * 8);
+      prefix = (prefix << 16) | headGroups.get(i);
+    }
+    return prefix ^ Long.MIN_VALUE;
+  }
+
+  /* Helper: parse colon-separated 16-bit hex groups, possibly ending in
+   * an embedded dotted-quad IPv4 address counting as two groups. */
+  private static List<Integer> parseIpv6Groups(String addressString,
+      String part) {
+    List<Integer> groups = new ArrayList<Integer>();
+    if (part.length() == 0) {
+      return groups;
     }
-    return address;
+    String[] parts = part.split(":", -1);
+    for (int i = 0; i < parts.length; i++) {
+      if (i == parts.length - 1 && parts[i].indexOf('.') >= 0) {
+        long ipv4Address = convertAddressStringToNumber(parts[i]);
+        groups.add((int) (ipv4Address >> 16));
+        groups.add((int) (ipv4Address & 0xffffL));
+      } else if (parts[i].length() < 1 || parts[i].length() > 4) {
+        throw new NumberFormatException("Illegal IPv6 address '"
+            + addressString + "'.");
+      } else {
+        groups.add(Integer.parseInt(parts[i], 16));
+      }
+    }
+    return groups;
+  }
+
+  /* Helper: convert the long integer number of a /64 network prefix with
+   * the highest bit flipped to its IPv6 address string. */
+  static String convertIpv6AddressNumberToString(long address) {
+    long prefix = address ^ Long.MIN_VALUE;
+    return String.format("%x:%x:%x:%x::", (prefix >>> 48) & 0xffffL,
+        (prefix >>> 32) & 0xffffL, (prefix >>> 16) & 0xffffL,
+        prefix & 0xffffL);
   }
 
   /* Helper: convert a long integer address number to its corresponding
@@ -150,30 +764,61 @@ public class DatabaseImpl implements Database {
         + ((address / 256) % 256) + "." + (address % 256);
   }
 
-  /* Helper: date format parser/formatter. */
-  private static SimpleDateFormat dateFormat;
-  static {
-    dateFormat = new SimpleDateFormat("yyyyMMdd");
-    dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
-  }
-
   /* Helper: convert date string in format yyyymmdd to integer containing
-   * days passed since 1970-01-01. */
+   * days passed since 1970-01-01, without allocating any objects. */
   static int convertDateStringToNumber(String dateString)
       throws IllegalArgumentException {
-    try {
-      SimpleDateFormat dateFormat = new SimpleDateFormat("yyyyMMdd");
-      dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
-      return (int) (dateFormat.parse(dateString).getTime() / 86400000);
-    } catch (ParseException e) {
-      throw new IllegalArgumentException(e);
+    if (dateString.length() != 8) {
+      throw new IllegalArgumentException("Illegal date '" + dateString
+          + "'.");
     }
+    int yyyymmdd = 0;
+    for (int i = 0; i < 8; i++) {
+      char c = dateString.charAt(i);
+      if (c < '0' || c > '9') {
+        throw new IllegalArgumentException("Illegal date '" + dateString
+            + "'.");
+      }
+      yyyymmdd = yyyymmdd * 10 + (c - '0');
+    }
+    int year = yyyymmdd / 10000, month = (yyyymmdd / 100) % 100,
+        day = yyyymmdd % 100;
+    if (month < 1 || month > 12 || day < 1 || day > 31) {
+      throw new IllegalArgumentException("Illegal date '" + dateString
+          + "'.");
+    }
+    /* Count days in the proleptic Gregorian calendar, using years that
+     * start in March, so that leap days come last. */
+    if (month <= 2) {
+      year--;
+      month += 12;
+    }
+    int era = (year >= 0 ? year : year - 399) / 400;
+    int yearOfEra = year - era * 400;
+    int dayOfYear = (153 * (month - 3) + 2) / 5 + day - 1;
+    int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100
+        + dayOfYear;
+    return era * 146097 + dayOfEra - 719468;
   }
 
   /* Helper: convert integer containing days passed since 1970-01-01 to
    * date string in format yyyymmdd. */
   static String convertDateNumberToString(int date) {
-    return dateFormat.format(((long) date) * 86400000);
+    /* Reverse the calculation in convertDateStringToNumber rather than
+     * sharing a date formatter that is not thread-safe. */
+    int days = date + 719468;
+    int era = (days >= 0 ? days : days - 146096) / 146097;
+    int dayOfEra = days - era * 146097;
+    int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524
+        - dayOfEra / 146096) / 365;
+    int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4
+        - yearOfEra / 100);
+    int monthFromMarch = (5 * dayOfYear + 2) / 153;
+    int day = dayOfYear - (153 * monthFromMarch + 2) / 5 + 1;
+    int month = monthFromMarch < 10 ? monthFromMarch + 3 :
+        monthFromMarch - 9;
+    int year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+    return String.format("%04d%02d%02d", year, month, day);
   }
 
   /* Helper: convert the address part of a key to the long integer
@@ -209,18 +854,19 @@ public class DatabaseImpl implements Database {
    * usage statistics. */
   public String toString() {
     StringBuilder sb = new StringBuilder();
-    sb.append(String.format("Tree contains %d databases and %d combined "
-        + "address ranges.\n"
+    sb.append(String.format("Tree contains %d databases, %d combined "
+        + "address ranges, and %d combined IPv6 address ranges.\n"
         + "Performed %d address lookups requiring %d lookups.\n"
         + "First 10 entries, in reverse order, are:",
         this.databaseDates.size(), this.ranges.size(),
-        this.addressLookups, this.addressLookupsKeyLookups));
+        this.ipv6Ranges.size(), this.metrics.getLookups(),
+        this.metrics.getKeyProbes()));
     int entries = 10;
     for (Map.Entry<Long, TreeElement> e : this.ranges.entrySet()) {
       sb.append(String.format("%n  %s %s %s %s %s",
           convertKeyToAddressString(e.getKey()),
           convertAddressNumberToString(e.getValue().endAddress),
-          e.getValue().code,
+          this.codeDictionary.getCode(e.getValue().codeId),
           convertKeyToDateString(e.getKey()),
           convertDateNumberToString(e.getValue().lastDbDate)));
       if (--entries <= 0) {
@@ -231,43 +877,192 @@ public class DatabaseImpl implements Database {
   }
 
   /**
-   * Load previously saved combined databases from disk.  This code is not
-   * at all robust against external changes of the combined database file.
+   * Load previously saved combined databases from disk, including
+   * changes appended to a delta segment since the last compaction.
+   * Loading fails if block checksums don't match or the file is
+   * truncated, except for files saved before checksums were added.
    */
   public boolean loadCombinedDatabases(String path) {
+    if (!this.loadBaseCombinedDatabases(path)) {
+      return false;
+    }
+    File deltaFile = DeltaSegment.getDeltaFile(path);
+    if (deltaFile.exists()) {
+      DeltaSegment deltaSegment = new DeltaSegment();
+      if (!deltaSegment.readDeltaFile(deltaFile)) {
+        return false;
+      }
+      deltaSegment.applyTo(this);
+    }
+    return true;
+  }
+
+  /**
+   * Load previously saved combined databases from disk without looking
+   * at a possibly existing delta segment.
+   */
+  boolean loadBaseCombinedDatabases(String path) {
+    this.invalidateLookupIndex();
+    if (isBinaryCombinedDatabasesFile(path) ||
+        isColumnarCombinedDatabasesFile(path)) {
+      return this.loadBinaryCombinedDatabases(path);
+    }
     try {
       File file = new File(path);
-      BufferedReader br = new BufferedReader(new FileReader(file));
+      CombinedDatabasesFile.CsvReader br =
+          new CombinedDatabasesFile.CsvReader(file);
       String line;
       while ((line = br.readLine()) != null) {
         if (line.startsWith("!")) {
 
           /* First read file header containing database dates. */
-          String[] parts = line.substring(1).split("!");
-          this.databaseFileNames.add(line.substring(1));
-          String databaseDateString = parts[0];
-          int dbDate = convertDateStringToNumber(databaseDateString);
-          this.databaseDates.add(dbDate);
+          this.loadCombinedDatabasesHeaderLine(line);
+        } else if (line.startsWith("@")) {
+
+          /* Then read AS names, if any. */
+          if (!this.asNames.readCsvLine(line)) {
+            br.close();
+            return false;
+          }
         } else {
 
-          /* Next read all ranges.  Set last known database index for each
-           * range to the last database we read from the header, because
-           * the tree will immediately be in repaired state. */
-          String[] parts = line.split(",");
-          long startAddress = convertAddressStringToNumber(parts[0]);
-          long endAddress = convertAddressStringToNumber(parts[1]);
-          String code = parts[2];
-          int firstDbDate = convertDateStringToNumber(parts[3]);
-          int lastDbDate = convertDateStringToNumber(parts[4]);
-          this.ranges.put(convertAddressAndDateToKey(startAddress,
-              firstDbDate), new TreeElement(endAddress, lastDbDate,
-              code));
+          /* Next read all ranges. */
+          this.loadCombinedDatabasesRangeLine(line);
         }
       }
       br.close();
+    } catch (IOException e) {
+      System.err.println("Could not load '" + path + "': "
+          + e.getMessage());
+      return false;
+    } catch (RuntimeException e) {
+      /* Malformed lines are only found in files without checksums or in
+       * the last block of truncated files. */
+      System.err.println("Could not load '" + path + "': "
+          + e.getMessage());
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Add database date and file name from a combined databases file
+   * header line.
+   */
+  void loadCombinedDatabasesHeaderLine(String line) {
+    String[] parts = line.substring(1).split("!");
+    this.databaseFileNames.add(line.substring(1));
+    String databaseDateString = parts[0];
+    int dbDate = convertDateStringToNumber(databaseDateString);
+    this.databaseDates.add(dbDate);
+  }
+
+  /**
+   * Add an IPv4 or IPv6 range from a combined databases file line.  Set
+   * last known database index for each range to the last database we
+   * read from the header, because the tree will immediately be in
+   * repaired state.
+   */
+  void loadCombinedDatabasesRangeLine(String line) {
+    String[] parts = line.split(",");
+    if (parts[0].indexOf(':') >= 0) {
+      this.ipv6Ranges.put(new Ipv6Key(
+          convertIpv6AddressStringToNumber(parts[0]),
+          convertDateStringToNumber(parts[3])), new TreeElement(
+          convertIpv6AddressStringToNumber(parts[1]),
+          convertDateStringToNumber(parts[4]),
+          this.codeDictionary.getCodeId(parts[2])));
+      return;
+    }
+    long startAddress = convertAddressStringToNumber(parts[0]);
+    long endAddress = convertAddressStringToNumber(parts[1]);
+    int codeId = this.codeDictionary.getCodeId(parts[2]);
+    int firstDbDate = convertDateStringToNumber(parts[3]);
+    int lastDbDate = convertDateStringToNumber(parts[4]);
+    this.ranges.put(convertAddressAndDateToKey(startAddress,
+        firstDbDate), new TreeElement(endAddress, lastDbDate, codeId));
+  }
+
+  /**
+   * Remove all ranges starting in the given address interval from the
+   * given IPv4 or IPv6 tree.
+   */
+  static <K> void removeRanges(SortedMap<K, TreeElement> ranges,
+      KeyLayout<K> keys, long startAddress, long endAddress) {
+    Iterator<K> iterator = ranges.tailMap(keys.createLastKey(
+        endAddress)).keySet().iterator();
+    while (iterator.hasNext() &&
+        keys.getAddress(iterator.next()) >= startAddress) {
+      iterator.remove();
+    }
+  }
+
+  /* Helper: check whether the given file starts with the magic number of
+   * the binary combined databases format. */
+  static boolean isBinaryCombinedDatabasesFile(String path) {
+    return startsWithMagic(path, CompactDatabaseImpl.BINARY_MAGIC);
+  }
+
+  /* Helper: check whether the given file starts with the magic number of
+   * the columnar combined databases format. */
+  static boolean isColumnarCombinedDatabasesFile(String path) {
+    return startsWithMagic(path, ColumnarSegment.COLUMNAR_MAGIC);
+  }
+
+  /* Helper: check whether the given file starts with the given magic
+   * number. */
+  private static boolean startsWithMagic(String path, int magic) {
+    try {
+      DataInputStream dis = new DataInputStream(new FileInputStream(
+          path));
+      try {
+        return dis.readInt() == magic;
+      } finally {
+        dis.close();
+      }
     } catch (IOException e) {
       return false;
     }
+  }
+
+  /**
+   * Load combined databases from a binary or columnar file by loading it
+   * into a compact database and copying all records into the tree.  The
+   * saved code dictionary is added to the code dictionary first, so that
+   * an empty database ends up with the same code ids as the saved one.
+   * Block checksums are verified, because all records are read anyway.
+   */
+  private boolean loadBinaryCombinedDatabases(String path) {
+    CompactDatabaseImpl compactDatabase = new CompactDatabaseImpl();
+    compactDatabase.setVerifyChecksums(true);
+    if (!compactDatabase.loadBaseCombinedDatabases(path)) {
+      return false;
+    }
+    for (String databaseFileName : compactDatabase.databaseFileNames) {
+      this.databaseFileNames.add(databaseFileName);
+    }
+    for (int databaseDate : compactDatabase.databaseDates) {
+      this.databaseDates.add(databaseDate);
+    }
+    this.asNames.putAll(compactDatabase.asNames);
+    int[] codeIds = new int[compactDatabase.codes.length];
+    for (int i = 0; i < codeIds.length; i++) {
+      codeIds[i] = this.codeDictionary.getCodeId(
+          compactDatabase.codes[i]);
+    }
+    for (int i = 0; i < compactDatabase.getNumberOfElements(); i++) {
+      this.ranges.put(compactDatabase.getKey(i), new TreeElement(
+          compactDatabase.getEndAddress(i),
+          compactDatabase.getLastDbDate(i),
+          codeIds[compactDatabase.getCodeIndex(i)]));
+    }
+    for (int i = 0; i < compactDatabase.getNumberOfIpv6Elements(); i++) {
+      this.ipv6Ranges.put(new Ipv6Key(compactDatabase.getIpv6Address(i),
+          compactDatabase.getIpv6FirstDbDate(i)), new TreeElement(
+          compactDatabase.getIpv6EndAddress(i),
+          compactDatabase.getIpv6LastDbDate(i),
+          codeIds[compactDatabase.getIpv6CodeIndex(i)]));
+    }
     return true;
   }
 }
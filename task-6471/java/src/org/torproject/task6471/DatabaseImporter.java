@@ -6,12 +6,13 @@ public interface DatabaseImporter extends Database {
    * Import the contents of one or more IP address assignments files
    * published by the Regional Internet Registries.  The file or files
    * are expected to conform to the RIR Statistics Exchange Format.
-   * Only IPv4 address ranges are imported, whereas ASN and IPv6 lines are
+   * Only IPv4 and IPv6 address ranges are imported, whereas ASN lines are
    * ignored.  Only the country code, start address, and address range
-   * length fields are imported.
+   * length or prefix length fields are imported.
    *
-   * A typical entry from a RIR file is:
-   *   "ripencc|FR|ipv4|2.0.0.0|1048576|20100712|allocated".
+   * Typical entries from a RIR file are:
+   *   "ripencc|FR|ipv4|2.0.0.0|1048576|20100712|allocated" and
+   *   "ripencc|FR|ipv6|2001:660::|32|19990803|allocated".
    *
    * It is important to note that all five registry files (AfriNIC, APNIC,
    * ARIN, LACNIC, and RIPE NCC) published on a given day should be
@@ -20,12 +21,48 @@ public interface DatabaseImporter extends Database {
    * (TODO We could be smarter here by checking that less than five
    * registry files have been imported for the same day, or something.)
    *
+   * Files ending in .gz or .bz2 are decompressed while parsing them,
+   * without writing decompressed files to disk.
+   *
+   * Stats files with .md5 digest files or .asc OpenPGP signature files
+   * next to them are verified in the same pass that parses them, and
+   * files failing verification are not imported at all.  Signatures are
+   * only verified after configuring a keyring using
+   * setSignatureKeyring(String).
+   *
    * @param path Path to a stats file or directory.
    * @return True if importing the file or directory was successful,
    *         false otherwise.
    */
   public boolean importRegionalRegistryStatsFileOrDirectory(String path);
 
+  /**
+   * Verify OpenPGP signatures of imported stats files against the keys
+   * contained in a local keyring, using an external gpg process.
+   *
+   * @param keyringPath Path to a gpg keyring file containing the
+   *        Regional Internet Registries' signing keys, or null to stop
+   *        verifying signatures.
+   */
+  public void setSignatureKeyring(String keyringPath);
+
+  /**
+   * Import the contents of one or more IP address assignments files
+   * published by the Regional Internet Registries, like
+   * importRegionalRegistryStatsFileOrDirectory(String) does, but parse
+   * files in parallel.  Parsed files are still merged one after the other
+   * in the same order as in a sequential import, so that the result is
+   * exactly the same.
+   *
+   * @param path Path to a stats file or directory.
+   * @param parserThreads Number of threads parsing files in parallel;
+   *        values smaller than 2 lead to a sequential import.
+   * @return True if importing the file or directory was successful,
+   *         false otherwise.
+   */
+  public boolean importRegionalRegistryStatsFileOrDirectory(String path,
+      int parserThreads);
+
   /**
    * Import the contents of one or more Maxmind GeoLiteCity databases,
    * each of them consisting of two files: GeoLiteCity-Blocks.csv contains
@@ -33,7 +70,7 @@ public interface DatabaseImporter extends Database {
    * contains country codes for block numbers, among other things.  Only
    * the range start and end addresses and the country code are imported.
    * The database date is taken from the directory name containing blocks
-   * and location file.
+   * and location file.  Both files may be gzip or bzip2 compressed.
    *
    * A typical entry from the GeoLiteCity-Blocks.csv file is:
    *   ""3758093312","3758094335","108612""
@@ -45,9 +82,12 @@ public interface DatabaseImporter extends Database {
 
   /**
    * Import the contents of one or more Maxmind GeoIPASNum2.csv databases.
-   * Only the range start and end addresses and the AS number are
-   * imported.  The database date is taken from the directory name which
-   * is expected to be yyyy-mm/, e.g., 2012-11/GeoIPASNum2.csv.
+   * Range start and end addresses and AS numbers are imported as ranges,
+   * and AS names are kept in a table by AS number that is shared by all
+   * database dates and contains the name from the most recent database
+   * containing each AS number.  The database date is taken from the
+   * directory name which is expected to be yyyy-mm/, e.g.,
+   * 2012-11/GeoIPASNum2.csv.  The file may be gzip or bzip2 compressed.
    *
    * A typical entry from such a database file is:
    *   "3758063616,3758079999,"AS9381 Wharf T&T Ltd.""
@@ -58,11 +98,14 @@ public interface DatabaseImporter extends Database {
    */
   public boolean importGeoIPASNum2FileOrDirectory(String path);
 
-  /* TODO Extend all imported formats to IPv6 equivalents. */
+  /* TODO Extend Maxmind formats to IPv6 equivalents. */
 
   /**
    * Save the combined databases in a format that can later be loaded much
-   * more efficiently than importing the original RIR files again.
+   * more efficiently than importing the original RIR files again.  The
+   * file is written to a temporary file first and renamed to the given
+   * path after syncing it to disk, and it contains block checksums that
+   * are verified when loading it.
    *
    * @param path Path to the combined database file.
    * @return True if saving the combined database file was successful,
@@ -70,4 +113,57 @@ public interface DatabaseImporter extends Database {
    */
   public boolean saveCombinedDatabases(String path);
 
+  /**
+   * Save the combined databases in a binary format that can be
+   * memory-mapped by CompactDatabaseImpl without parsing its contents.
+   *
+   * @param path Path to the binary combined database file.
+   * @return True if saving the combined database file was successful,
+   *         false otherwise.
+   */
+  public boolean saveBinaryCombinedDatabases(String path);
+
+  /**
+   * Save the combined databases in a compressed columnar format, which
+   * takes much less disk space than the CSV and binary formats and which
+   * can be loaded by all database implementations or opened for single
+   * lookups using ColumnarSegment.open(String).
+   *
+   * @param path Path to the columnar combined database file.
+   * @return True if saving the combined database file was successful,
+   *         false otherwise.
+   */
+  public boolean saveColumnarCombinedDatabases(String path);
+
+  /**
+   * Append the contents of IP address assignments files published by the
+   * Regional Internet Registries on a single new day to previously saved
+   * combined databases, without loading or rewriting the combined
+   * databases file.  Only ranges overlapping with the new files' ranges
+   * are read from the combined databases file, preferably a memory-mapped
+   * binary one.  Changed ranges are written to a delta segment file next
+   * to it, path + ".delta", which is included when loading the combined
+   * databases.  The ranges contained in this importer are not affected.
+   *
+   * @param combinedDatabasesPath Path to the combined databases file.
+   * @param path Path to a stats file or directory, all of which must have
+   *        been published on the same day, which must not be before the
+   *        last database date in the combined databases.
+   * @return True if appending the file or directory was successful,
+   *         false otherwise.
+   */
+  public boolean appendRegionalRegistryStatsFileOrDirectory(
+      String combinedDatabasesPath, String path);
+
+  /**
+   * Merge the delta segment of previously saved combined databases into
+   * the combined databases file, keeping its CSV or binary format, and
+   * delete the delta segment.
+   *
+   * @param combinedDatabasesPath Path to the combined databases file.
+   * @return True if compaction was successful or if there was nothing to
+   *         compact, false otherwise.
+   */
+  public boolean compactCombinedDatabases(String combinedDatabasesPath);
+
 }
@@ -1,31 +1,118 @@
 package org.torproject.task6471;
 
 import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.Comparator;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.Stack;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class DatabaseImporterImpl extends DatabaseImpl
     implements DatabaseImporter {
 
+  /**
+   * OpenPGP keyring for verifying signatures of stats files, or null if
+   * signatures are not verified.
+   */
+  private File signatureKeyring;
+
+  /**
+   * Verify signatures of stats files against the given keyring.
+   */
+  public void setSignatureKeyring(String keyringPath) {
+    this.signatureKeyring = keyringPath == null ? null :
+        new File(keyringPath);
+  }
+
   /**
    * Parse one or more stats files.
    */
   public boolean importRegionalRegistryStatsFileOrDirectory(String path) {
+    return this.importRegionalRegistryStatsFileOrDirectory(path, 1);
+  }
+
+  /**
+   * Parse one or more stats files using the given number of parser
+   * threads.
+   */
+  public boolean importRegionalRegistryStatsFileOrDirectory(String path,
+      int parserThreads) {
     boolean allImportsSuccessful = true;
+    List<File> allFiles = collectRegionalRegistryStatsFiles(path);
+    final File keyring = this.signatureKeyring;
+    if (parserThreads <= 1) {
+      for (File file : allFiles) {
+        if (!this.mergeRegionalRegistryStatsFile(
+            parseRegionalRegistryStatsFile(file, keyring))) {
+          allImportsSuccessful = false;
+        }
+      }
+      return allImportsSuccessful;
+    }
+
+    /* Parse files in a thread pool, but merge them into the tree in the
+     * same order and with the same tree repairs as a sequential import,
+     * so that the result is exactly the same.  Only keep a limited
+     * number of parsed files in memory while waiting to merge them. */
+    ExecutorService parsers = Executors.newFixedThreadPool(parserThreads);
+    LinkedList<Future<ParsedRegistryFile>> parsedFiles =
+        new LinkedList<Future<ParsedRegistryFile>>();
+    Iterator<File> filesToParse = allFiles.iterator();
+    try {
+      while (filesToParse.hasNext() || !parsedFiles.isEmpty()) {
+        while (filesToParse.hasNext() &&
+            parsedFiles.size() < 2 * parserThreads) {
+          final File file = filesToParse.next();
+          parsedFiles.add(parsers.submit(
+              new Callable<ParsedRegistryFile>() {
+            public ParsedRegistryFile call() {
+              return parseRegionalRegistryStatsFile(file, keyring);
+            }
+          }));
+        }
+        if (!this.mergeRegionalRegistryStatsFile(
+            parsedFiles.removeFirst().get())) {
+          allImportsSuccessful = false;
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
+    } finally {
+      parsers.shutdownNow();
+    }
+    return allImportsSuccessful;
+  }
+
+  /**
+   * Return all stats files in the given file or directory in the order
+   * in which they are imported.
+   */
+  static List<File> collectRegionalRegistryStatsFiles(String path) {
     Stack<File> stackedFiles = new Stack<File>();
     stackedFiles.add(new File(path));
     List<File> allFiles = new ArrayList<File>();
@@ -33,42 +120,117 @@ public class DatabaseImporterImpl extends DatabaseImpl
       File file = stackedFiles.pop();
       if (file.isDirectory()) {
         stackedFiles.addAll(Arrays.asList(file.listFiles()));
-      } else if (file.getName().endsWith(".md5") ||
-          file.getName().endsWith(".md5.gz") ||
-          file.getName().endsWith(".asc") ||
-          file.getName().endsWith(".asc.gz")) {
-        System.err.println("Signature and digest files are not supported "
-            + "yet: '" + file.getAbsolutePath() + "'.  Skipping.");
-        /* TODO Implement checking signatures/digests. */
-      } else if (file.getName().endsWith(".gz") ||
-          file.getName().endsWith(".bz2")) {
-        System.err.println("Parsing compressed files is not supported "
-            + "yet: '" + file.getAbsolutePath() + "'.  Skipping.");
-        /* TODO Implement parsing compressed files. */
+      } else if (StatsFileVerifier.isVerificationFile(file)) {
+        /* Digest and signature files are used when parsing the stats
+         * files they cover. */
+        continue;
       } else {
         /* TODO Make sure that we're not importing files for a date if we
          * have less than all five of them. */
         allFiles.add(file);
       }
     }
-    Collections.sort(allFiles, Collections.reverseOrder());
-    for (File file : allFiles) {
-      if (!this.importRegionalRegistryStatsFile(file)) {
-        allImportsSuccessful = false;
+    Collections.sort(allFiles, UNCOMPRESSED_PATH_REVERSE_ORDER);
+    return allFiles;
+  }
+
+  /**
+   * Comparator that orders files backwards by path, ignoring .gz and .bz2
+   * suffixes, so that compressed files are imported in the same order as
+   * their decompressed equivalents.
+   */
+  private static final Comparator<File> UNCOMPRESSED_PATH_REVERSE_ORDER =
+      new Comparator<File>() {
+    public int compare(File a, File b) {
+      return CompressedFileReader.getUncompressedName(b.getPath()).
+          compareTo(CompressedFileReader.getUncompressedName(
+          a.getPath()));
+    }
+  };
+
+  /**
+   * Address ranges parsed from a single stats file, normalized to start
+   * and end addresses, in the order in which they are contained in the
+   * file.
+   */
+  static class ParsedRegistryFile {
+    private String databaseFileName;
+    private int databaseDate;
+    private boolean complete = false;
+    private long parseMillis = 0L;
+    private int count = 0;
+    private boolean[] ipv6 = new boolean[1024];
+    private long[] startAddresses = new long[1024],
+        endAddresses = new long[1024];
+    private String[] codes = new String[1024];
+    ParsedRegistryFile(String databaseFileName) {
+      this.databaseFileName = databaseFileName;
+      this.databaseDate = parseDatabaseDate(databaseFileName);
+    }
+    private void add(boolean ipv6, long startAddress, long endAddress,
+        String code) {
+      if (this.count == this.codes.length) {
+        int length = 2 * this.count;
+        this.ipv6 = Arrays.copyOf(this.ipv6, length);
+        this.startAddresses = Arrays.copyOf(this.startAddresses, length);
+        this.endAddresses = Arrays.copyOf(this.endAddresses, length);
+        this.codes = Arrays.copyOf(this.codes, length);
       }
+      this.ipv6[this.count] = ipv6;
+      this.startAddresses[this.count] = startAddress;
+      this.endAddresses[this.count] = endAddress;
+      this.codes[this.count] = code;
+      this.count++;
+    }
+  }
+
+  /* Helper: return the database date contained in the last eight
+   * characters of a stats file name, or -1 if the file name doesn't end
+   * in a date. */
+  private static int parseDatabaseDate(String databaseFileName) {
+    if (databaseFileName.length() < 8) {
+      return -1;
+    }
+    try {
+      return convertDateStringToNumber(databaseFileName.substring(
+          databaseFileName.length() - 8));
+    } catch (IllegalArgumentException e) {
+      return -1;
     }
-    return allImportsSuccessful;
   }
 
   /**
    * Simple and not very robust implementation of an RIR stats file
-   * parser.
+   * parser.  This method does not modify the tree and can therefore be
+   * run by several threads at once.  If the file cannot be read to the
+   * end, the returned ranges are incomplete.  Files whose names don't
+   * end in a date are not parsed at all.
+   *
+   * If there are digest or signature files next to the stats file, the
+   * file is verified while it is read, and no ranges are returned if
+   * verification fails.  Signatures are only verified if a keyring is
+   * given.
    */
-  private boolean importRegionalRegistryStatsFile(File file) {
+  static ParsedRegistryFile parseRegionalRegistryStatsFile(File file,
+      File keyring) {
+    long startedParsing = System.currentTimeMillis();
+    ParsedRegistryFile parsedFile = new ParsedRegistryFile(
+        CompressedFileReader.getUncompressedName(file.getName()));
+    if (parsedFile.databaseDate < 0) {
+      System.err.println("Could not parse '" + file.getAbsolutePath()
+          + "': File name does not end in a date.  Skipping.");
+      return parsedFile;
+    }
+    StatsFileVerifier verifier = null;
+    BufferedReader br = null;
+    boolean verified = false;
     try {
-      BufferedReader br = new BufferedReader(new FileReader(file));
+      verifier = StatsFileVerifier.create(file, keyring);
+      br = verifier == null ?
+          CompressedFileReader.open(file) :
+          CompressedFileReader.open(file, verifier.getRawCopy(),
+          verifier.getDecompressedCopy());
       String line;
-      String databaseFileName = file.getName();
       while ((line = br.readLine()) != null) {
         if (line.startsWith("#") || line.length() == 0) {
           /* Skip comment or empty line. */
@@ -87,9 +249,6 @@ public class DatabaseImporterImpl extends DatabaseImpl
           /* TODO Add support for ASNs, but probably not using registry
            * stats files. */
           continue;
-        } else if (type.equals("ipv6")) {
-          /* TODO Add support for IPv6 addresses. */
-          continue;
         }
         String code = parts[1].toLowerCase();
         if (code.length() != 2) {
@@ -97,16 +256,100 @@ public class DatabaseImporterImpl extends DatabaseImpl
           continue;
         }
         String startAddressString = parts[3];
+        if (type.equals("ipv6")) {
+          long startAddress = convertIpv6AddressStringToNumber(
+              startAddressString);
+          long hostBits = convertIpv6PrefixLengthToHostBits(startAddress,
+              Integer.parseInt(parts[4]));
+          if (hostBits >= 0L) {
+            parsedFile.add(true, startAddress & ~hostBits,
+                startAddress | hostBits, code);
+          }
+          continue;
+        }
+        long startAddress = convertAddressStringToNumber(
+            startAddressString);
         long addresses = Long.parseLong(parts[4]);
-        this.addRegionalRegistryStatsFileRange(databaseFileName, code,
-            startAddressString, addresses);
+        parsedFile.add(false, startAddress, startAddress + addresses - 1L,
+            code);
       }
       br.close();
-      this.repairTree();
+      br = null;
+      if (verifier != null) {
+        try {
+          verifier.verify();
+        } catch (IOException e) {
+          /* Don't add any ranges from a file that might have been
+           * tampered with. */
+          parsedFile.count = 0;
+          throw e;
+        }
+        verified = true;
+      }
+      parsedFile.complete = true;
     } catch (IOException e) {
-      return false;
+      /* Return what we parsed so far, like a sequential import would have
+       * added those ranges before failing. */
+      System.err.println("Could not parse '" + file.getAbsolutePath()
+          + "': " + e.getMessage());
+      if (verifier != null) {
+        parsedFile.count = 0;
+      }
+    } finally {
+
+      /* Close the reader and stop verification even if parsing a
+       * malformed line failed, so that decompressing threads and
+       * processes and gpg processes don't keep running. */
+      if (br != null) {
+        try {
+          br.close();
+        } catch (IOException e) {
+          /* Closing anyway. */
+        }
+      }
+      if (verifier != null && !verified) {
+        verifier.abort();
+      }
     }
-    return true;
+    parsedFile.parseMillis = System.currentTimeMillis() - startedParsing;
+    return parsedFile;
+  }
+
+  /**
+   * Add all ranges parsed from a stats file to the tree and repair the
+   * tree, unless the file could not be parsed completely, and record
+   * parsing and merging time in the import metrics.
+   */
+  boolean mergeRegionalRegistryStatsFile(
+      ParsedRegistryFile parsedFile) {
+    long startedMerging = System.currentTimeMillis()
+        - parsedFile.parseMillis;
+    long rangesSplit = this.metrics.getRangesSplit();
+
+    /* Only add the database if there are any ranges, just like adding
+     * ranges one by one would do. */
+    if (parsedFile.count > 0) {
+      this.addDatabase(parsedFile.databaseFileName,
+          parsedFile.databaseDate);
+    }
+    for (int i = 0; i < parsedFile.count; i++) {
+      if (parsedFile.ipv6[i]) {
+        this.addIpv6Range(parsedFile.databaseDate,
+            parsedFile.startAddresses[i], parsedFile.endAddresses[i],
+            parsedFile.codes[i]);
+      } else {
+        this.addRange(parsedFile.databaseDate,
+            parsedFile.startAddresses[i], parsedFile.endAddresses[i],
+            parsedFile.codes[i]);
+      }
+    }
+    if (parsedFile.complete) {
+      this.repairTree();
+    }
+    this.metrics.recordFileImport(parsedFile.databaseFileName,
+        System.currentTimeMillis() - startedMerging, parsedFile.count,
+        this.metrics.getRangesSplit() - rangesSplit);
+    return parsedFile.complete;
   }
 
   void addRegionalRegistryStatsFileRange(String databaseFileName,
@@ -120,6 +363,45 @@ public class DatabaseImporterImpl extends DatabaseImpl
     this.addRange(databaseDate, startAddress, endAddress, code);
   }
 
+  /**
+   * Add an IPv6 range given by start address and prefix length.  Ranges
+   * are stored with /64 granularity, so that prefixes longer than 64 bits
+   * are extended to their /64 network.
+   */
+  void addRegionalRegistryStatsFileIpv6Range(String databaseFileName,
+      String code, String startAddressString, int prefixLength) {
+    String databaseDateString =
+        databaseFileName.substring(databaseFileName.length() - 8);
+    int databaseDate = convertDateStringToNumber(databaseDateString);
+    long startAddress = convertIpv6AddressStringToNumber(
+        startAddressString);
+    long hostBits = convertIpv6PrefixLengthToHostBits(startAddress,
+        prefixLength);
+    if (hostBits < 0L) {
+      return;
+    }
+    this.addDatabase(databaseFileName, databaseDate);
+    this.addIpv6Range(databaseDate, startAddress & ~hostBits,
+        startAddress | hostBits, code);
+  }
+
+  /**
+   * Return the bit mask of host bits within the /64 network prefix for
+   * the given prefix length, or -1 if the range should not be imported.
+   * Ranges starting at the all-zero /64 network are not imported,
+   * because the Regional Internet Registries never assign that network
+   * and the import code needs to be able to address the network before
+   * a range.
+   */
+  private static long convertIpv6PrefixLengthToHostBits(
+      long startAddress, int prefixLength) {
+    if (prefixLength <= 0 || prefixLength > 128 ||
+        startAddress == Long.MIN_VALUE) {
+      return -1L;
+    }
+    return prefixLength >= 64 ? 0L : (1L << (64 - prefixLength)) - 1L;
+  }
+
   public boolean importGeoLiteCityFileOrDirectory(String path) {
     boolean allImportsSuccessful = true;
     Stack<File> stackedFiles = new Stack<File>();
@@ -130,9 +412,11 @@ public class DatabaseImporterImpl extends DatabaseImpl
       File file = stackedFiles.pop();
       if (file.isDirectory()) {
         stackedFiles.addAll(Arrays.asList(file.listFiles()));
-      } else if (!file.getName().endsWith(".csv")) {
-        System.err.println("Parsing other files than .csv is not "
-            + "supported: '" + file.getAbsolutePath() + "'.  Skipping.");
+      } else if (!CompressedFileReader.getUncompressedName(
+          file.getName()).endsWith(".csv")) {
+        System.err.println("Parsing other files than .csv, .csv.gz, or "
+            + ".csv.bz2 is not supported: '" + file.getAbsolutePath()
+            + "'.  Skipping.");
       } else {
         if (!filesByDirectory.containsKey(file.getParentFile())) {
           filesByDirectory.put(file.getParentFile(), new HashSet<File>());
@@ -143,9 +427,11 @@ public class DatabaseImporterImpl extends DatabaseImpl
     for (Set<File> files : filesByDirectory.values()) {
       File blocksFile = null, locationFile = null;
       for (File file : files) {
-        if (file.getName().equals("GeoLiteCity-Blocks.csv")) {
+        String fileName = CompressedFileReader.getUncompressedName(
+            file.getName());
+        if (fileName.equals("GeoLiteCity-Blocks.csv")) {
           blocksFile = file;
-        } else if (file.getName().equals("GeoLiteCity-Location.csv")) {
+        } else if (fileName.equals("GeoLiteCity-Location.csv")) {
           locationFile = file;
         }
       }
@@ -170,71 +456,85 @@ public class DatabaseImporterImpl extends DatabaseImpl
 
   boolean importGeoLiteCityBlocksAndLocationFiles(File blocksFile,
       File locationFile) {
-    String databaseFileName = blocksFile.getName() + "+"
-        + locationFile.getName();
+    String databaseFileName = CompressedFileReader.getUncompressedName(
+        blocksFile.getName()) + "+"
+        + CompressedFileReader.getUncompressedName(
+        locationFile.getName());
     String databaseDateString =
         blocksFile.getParentFile().getName().substring(
         "GeoLiteCity_".length());
     int databaseDate = convertDateStringToNumber(databaseDateString);
+    long startedImporting = System.currentTimeMillis();
+    int rangesAdded = 0;
     this.addDatabase(databaseFileName, databaseDate);
     try {
-      /* Parse location file first and remember country codes for given
-       * locations. */
-      Map<Integer, String> locations = new HashMap<Integer, String>();
-      BufferedReader br = new BufferedReader(new FileReader(
-          locationFile));
-      String line;
-      while ((line = br.readLine()) != null) {
-        if (line.startsWith("Copyright") || line.startsWith("locId")) {
-          /* Skip copyright notice and column headers. */
-          continue;
+      /* Parse location file first and remember code ids plus one for
+       * given locations, using 0 for unknown locations. */
+      int[] locationCodeIds = new int[1024];
+      BufferedReader br = CompressedFileReader.open(locationFile);
+      GeoLiteCityTokenizer tokenizer = new GeoLiteCityTokenizer(br);
+      while (tokenizer.nextRecord()) {
+        long location = tokenizer.readNumber();
+        if (location >= Integer.MAX_VALUE) {
+          throw new IOException("Location too large in line "
+              + tokenizer.getLineNumber() + ".");
+        }
+        if (location >= locationCodeIds.length) {
+          locationCodeIds = Arrays.copyOf(locationCodeIds,
+              (int) Math.min(Math.max(2L * locationCodeIds.length,
+              location + 1L), Integer.MAX_VALUE));
         }
-        String[] parts = line.split(",");
-        int location = Integer.parseInt(parts[0]);
-        String code = parts[1].replaceAll("\"", "").toLowerCase();
-        locations.put(location, code);
+        locationCodeIds[(int) location] =
+            this.codeDictionary.getCodeId(tokenizer.readCode()) + 1;
       }
       br.close();
+
       /* Parse blocks file and add ranges to the database. */
       long lastStartAddress = 0L, lastEndAddress = -2L;
-      String lastCode = null;
-      br = new BufferedReader(new FileReader(blocksFile));
-      while ((line = br.readLine()) != null) {
-        if (!line.startsWith("\"")) {
-          /* Skip copyright notice and column headers. */
-          continue;
-        }
-        String[] parts = line.replaceAll("\"", "").split(",");
-        long startAddress = Long.parseLong(parts[0]),
-            endAddress = Long.parseLong(parts[1]);
-        int location = Integer.parseInt(parts[2]);
-        if (!locations.containsKey(location)) {
+      int lastCodeId = CodeDictionary.NO_CODE;
+      br = CompressedFileReader.open(blocksFile);
+      tokenizer = new GeoLiteCityTokenizer(br);
+      while (tokenizer.nextRecord()) {
+        long startAddress = tokenizer.readNumber(),
+            endAddress = tokenizer.readNumber(),
+            location = tokenizer.readNumber();
+        if (location >= locationCodeIds.length ||
+            locationCodeIds[(int) location] == 0) {
           System.err.println(blocksFile.getAbsolutePath() + " contains "
-              + "line '" + line + "' that doesn't match any line in "
-              + locationFile.getAbsolutePath() + ".  Aborting.");
+              + "location " + location + " in line "
+              + tokenizer.getLineNumber() + " that doesn't match any "
+              + "line in " + locationFile.getAbsolutePath() + ".  "
+              + "Aborting.");
           break;
         }
-        String code = locations.get(location);
+        int codeId = locationCodeIds[(int) location] - 1;
         if (lastStartAddress == 0L) {
           lastStartAddress = startAddress;
-          lastCode = code;
+          lastCodeId = codeId;
         } else if (lastEndAddress + 1L != startAddress ||
-            !code.equals(lastCode)) {
+            codeId != lastCodeId) {
           this.addRange(databaseDate, lastStartAddress, lastEndAddress,
-              lastCode);
+              this.codeDictionary.getCode(lastCodeId));
+          rangesAdded++;
           lastStartAddress = startAddress;
-          lastCode = code;
+          lastCodeId = codeId;
         }
         lastEndAddress = endAddress;
       }
       if (lastStartAddress != 0L) {
         this.addRange(databaseDate, lastStartAddress, lastEndAddress,
-            lastCode);
+            this.codeDictionary.getCode(lastCodeId));
+        rangesAdded++;
       }
       br.close();
     } catch (IOException e) {
+      System.err.println("Could not import '"
+          + blocksFile.getAbsolutePath() + "' and '"
+          + locationFile.getAbsolutePath() + "': " + e.getMessage());
       return false;
     }
+    this.metrics.recordFileImport(databaseFileName,
+        System.currentTimeMillis() - startedImporting, rangesAdded, 0L);
     return true;
   }
 
@@ -247,14 +547,16 @@ public class DatabaseImporterImpl extends DatabaseImpl
       File file = stackedFiles.pop();
       if (file.isDirectory()) {
         stackedFiles.addAll(Arrays.asList(file.listFiles()));
-      } else if (!file.getName().endsWith(".csv")) {
-        System.err.println("Parsing other files than .csv is not "
-            + "supported: '" + file.getAbsolutePath() + "'.  Skipping.");
+      } else if (!CompressedFileReader.getUncompressedName(
+          file.getName()).endsWith(".csv")) {
+        System.err.println("Parsing other files than .csv, .csv.gz, or "
+            + ".csv.bz2 is not supported: '" + file.getAbsolutePath()
+            + "'.  Skipping.");
       } else {
         allFiles.add(file);
       }
     }
-    Collections.sort(allFiles, Collections.reverseOrder());
+    Collections.sort(allFiles, UNCOMPRESSED_PATH_REVERSE_ORDER);
     for (File file : allFiles) {
       if (!this.importGeoIPASNum2File(file)) {
         allImportsSuccessful = false;
@@ -264,36 +566,68 @@ public class DatabaseImporterImpl extends DatabaseImpl
   }
 
   private boolean importGeoIPASNum2File(File file) {
-    String databaseFileName = file.getName();
+    String databaseFileName = CompressedFileReader.getUncompressedName(
+        file.getName());
     String databaseDateString =
         file.getParentFile().getName().replaceAll("-", "") + "01";
     int databaseDate = convertDateStringToNumber(databaseDateString);
+    long startedImporting = System.currentTimeMillis(),
+        rangesSplit = this.metrics.getRangesSplit();
+    int rangesAdded = 0;
     this.addDatabase(databaseFileName, databaseDate);
     try {
-      BufferedReader br = new BufferedReader(new FileReader(file));
+      BufferedReader br = CompressedFileReader.open(file);
       String line;
       while ((line = br.readLine()) != null) {
-        String[] parts = line.split(",");
+
+        /* Parse start and end address only once and keep the rest of the
+         * line, which is the quoted AS number followed by the AS name
+         * that may contain commas itself. */
+        int firstComma = line.indexOf(','),
+            secondComma = line.indexOf(',', firstComma + 1);
+        long startAddress, endAddress;
         try {
-          Long.parseLong(parts[0].trim());
-          Long.parseLong(parts[1].trim());
+          if (secondComma < 0) {
+            throw new NumberFormatException();
+          }
+          startAddress = Long.parseLong(line.substring(0,
+              firstComma).trim());
+          endAddress = Long.parseLong(line.substring(firstComma + 1,
+              secondComma).trim());
         } catch (NumberFormatException e) {
           System.err.println(file.getAbsolutePath() + " '" + line + "'");
+          continue;
+        }
+        String asNumberAndName = line.substring(secondComma + 1).trim();
+        if (asNumberAndName.startsWith("\"")) {
+          asNumberAndName = asNumberAndName.substring(1);
+        }
+        if (asNumberAndName.endsWith("\"")) {
+          asNumberAndName = asNumberAndName.substring(0,
+              asNumberAndName.length() - 1);
         }
-        long startAddress = Long.parseLong(parts[0].trim()),
-            endAddress = Long.parseLong(parts[1].trim());
-        String code = parts[2].split(" ")[0].replaceAll("\"", "");
-        if (!code.startsWith("AS")) {
+        if (!asNumberAndName.startsWith("AS")) {
           /* Don't import illegal range. */
           continue;
         }
+        int space = asNumberAndName.indexOf(' ');
+        String code = space < 0 ? asNumberAndName :
+            asNumberAndName.substring(0, space);
+        if (space >= 0) {
+          this.asNames.put(AsNameTable.parseAsNumber(code), databaseDate,
+              asNumberAndName.substring(space + 1).trim());
+        }
         this.addRange(databaseDate, startAddress, endAddress, code);
+        rangesAdded++;
       }
       br.close();
       this.repairTree();
     } catch (IOException e) {
       return false;
     }
+    this.metrics.recordFileImport(databaseFileName,
+        System.currentTimeMillis() - startedImporting, rangesAdded,
+        this.metrics.getRangesSplit() - rangesSplit);
     return true;
   }
 
@@ -305,6 +639,7 @@ public class DatabaseImporterImpl extends DatabaseImpl
   /**
    * Add new database date and file name if we didn't know them yet. */
   void addDatabase(String databaseFileName, int databaseDate) {
+    this.invalidateLookupIndex();
     if (!this.databaseDates.contains(databaseDate)) {
       this.databaseDates.add(databaseDate);
       this.addedDatabaseDate = databaseDate;
@@ -324,38 +659,79 @@ public class DatabaseImporterImpl extends DatabaseImpl
    */
   void addRange(int databaseDate, long startAddress, long endAddress,
       String code) {
+    this.addRange(this.ranges, IPV4_KEYS, this.dateIndex, databaseDate,
+        startAddress, endAddress, this.codeDictionary.getCodeId(code));
+  }
+
+  /**
+   * Add a single IPv6 address and date range to the tree, with the same
+   * caveats as when adding an IPv4 range.
+   */
+  void addIpv6Range(int databaseDate, long startAddress, long endAddress,
+      String code) {
+    this.addRange(this.ipv6Ranges, IPV6_KEYS, this.ipv6DateIndex,
+        databaseDate, startAddress, endAddress,
+        this.codeDictionary.getCodeId(code));
+  }
+
+  /**
+   * Add a single address and date range with the given code id to the
+   * given IPv4 or IPv6 tree.
+   */
+  private <K> void addRange(SortedMap<K, TreeElement> ranges,
+      KeyLayout<K> keys, DateIndex<K> dateIndex, int databaseDate,
+      long startAddress, long endAddress, int codeId) {
     this.rangeImports++;
+    this.invalidateLookupIndex();
 
     /* We might have to split existing ranges or the new range before
      * adding it to the tree, and we might have to remove existing ranges.
      * We shouldn't mess with the tree directly while iterating  over it,
      * so let's for now only calculate what changes we want to make. */
-    SortedMap<Long, TreeElement> updateElements =
-        this.getUpdatesForAddingRange(databaseDate, code, startAddress,
-        endAddress);
+    SortedMap<K, TreeElement> updateElements =
+        this.getUpdatesForAddingRange(ranges, keys, databaseDate, codeId,
+        startAddress, endAddress);
 
     /* Apply updates.  Elements with non-null values are added, elements
      * with null values are removed. */
-    for (Map.Entry<Long, TreeElement> e : updateElements.entrySet()) {
+    for (Map.Entry<K, TreeElement> e : updateElements.entrySet()) {
       if (e.getValue() == null) {
-        this.ranges.remove(e.getKey());
+        TreeElement removed = ranges.remove(e.getKey());
+        if (removed != null) {
+          dateIndex.remove(e.getKey(), keys.getDate(e.getKey()),
+              removed.lastDbDate);
+        }
       } else {
-        this.ranges.put(e.getKey(), e.getValue());
+        this.putRange(ranges, keys, dateIndex, e.getKey(), e.getValue());
+        this.modifiedElements.add(e.getValue());
       }
     }
   }
 
+  /* Helper: put an element into the given tree and update the date
+   * index. */
+  private <K> void putRange(SortedMap<K, TreeElement> ranges,
+      KeyLayout<K> keys, DateIndex<K> dateIndex, K key,
+      TreeElement element) {
+    TreeElement replaced = ranges.put(key, element);
+    if (replaced != null) {
+      dateIndex.remove(key, keys.getDate(key), replaced.lastDbDate);
+    }
+    dateIndex.add(key, keys.getDate(key), element.lastDbDate);
+  }
+
   /**
    * Calculate necessary changes to the tree to add a range.
    */
-  private SortedMap<Long, TreeElement> getUpdatesForAddingRange(
-      int databaseDate, String code, long startAddress, long endAddress) {
+  private <K> SortedMap<K, TreeElement> getUpdatesForAddingRange(
+      SortedMap<K, TreeElement> ranges, KeyLayout<K> keys,
+      int databaseDate, int codeId, long startAddress, long endAddress) {
 
     /* Keep updates in a single tree where non-null values will later be
      * added, possibly replacing existing elements, and null values will
      * be removed from the tree. */
-    SortedMap<Long, TreeElement> updateElements =
-        new TreeMap<Long, TreeElement>();
+    SortedMap<K, TreeElement> updateElements =
+        new TreeMap<K, TreeElement>();
 
     /* Find out previous and next database, so that we can possibly merge
      * ranges. */
@@ -374,25 +750,25 @@ public class DatabaseImporterImpl extends DatabaseImpl
     /* Iterate backwards over the existing ranges, starting at the end
      * address of the range to be added and at the last conceivable
      * database publication date. */
-    for (Map.Entry<Long, TreeElement> e : this.ranges.tailMap(
-        convertAddressAndDateToKey(endAddress + 1L, 0) - 1L).entrySet()) {
+    for (Map.Entry<K, TreeElement> e : ranges.tailMap(
+        keys.createLastKey(endAddress)).entrySet()) {
       this.rangeImportsKeyLookups++;
 
       /* Extract everything we need to know from the next existing range
        * we're looking at. */
-      long eStartAddress = convertKeyToAddress(e.getKey());
+      long eStartAddress = keys.getAddress(e.getKey());
       long eEndAddress = e.getValue().endAddress;
-      int eFirstDbDate = convertKeyToDate(e.getKey());
+      int eFirstDbDate = keys.getDate(e.getKey());
       int eLastDbDate = e.getValue().lastDbDate;
-      String eCode = e.getValue().code;
+      int eCodeId = e.getValue().codeId;
 
       /* If the next (partial) range starts after the current element
        * ends, add the new range. */
       if (nextStartAddress > eEndAddress &&
           nextEndAddress >= startAddress) {
-        updateElements.put(convertAddressAndDateToKey(nextStartAddress,
+        updateElements.put(keys.createKey(nextStartAddress,
             nextFirstDbDate), new TreeElement(nextEndAddress,
-            nextLastDbDate, code));
+            nextLastDbDate, codeId));
         nextEndAddress = nextStartAddress - 1L;
         nextStartAddress = startAddress;
         nextFirstDbDate = databaseDate;
@@ -400,12 +776,13 @@ public class DatabaseImporterImpl extends DatabaseImpl
       }
 
       /* If the next (partial) range still ends after the current element
-       * ends, add the new range. */
+       * ends, add the new range, but don't let it start before the
+       * range to be added if the current element ends before that. */
       if (nextEndAddress > eEndAddress &&
           nextEndAddress >= startAddress) {
-        updateElements.put(convertAddressAndDateToKey(eEndAddress + 1L,
-            databaseDate), new TreeElement(nextEndAddress, databaseDate,
-            code));
+        updateElements.put(keys.createKey(Math.max(eEndAddress + 1L,
+            startAddress), databaseDate), new TreeElement(nextEndAddress,
+            databaseDate, codeId));
         nextEndAddress = eEndAddress;
         nextStartAddress = startAddress;
         nextFirstDbDate = databaseDate;
@@ -424,12 +801,12 @@ public class DatabaseImporterImpl extends DatabaseImpl
        * case cut off the overlapping part and store it as a new
        * element.*/
       if (eStartAddress <= endAddress && eEndAddress > endAddress) {
-        updateElements.put(convertAddressAndDateToKey(endAddress + 1L,
+        updateElements.put(keys.createKey(endAddress + 1L,
             eFirstDbDate), new TreeElement(eEndAddress, eLastDbDate,
-            eCode));
-        updateElements.put(convertAddressAndDateToKey(eStartAddress,
+            eCodeId));
+        updateElements.put(keys.createKey(eStartAddress,
             eFirstDbDate), new TreeElement(endAddress, eLastDbDate,
-            eCode));
+            eCodeId));
         eEndAddress = endAddress;
       }
 
@@ -437,12 +814,12 @@ public class DatabaseImporterImpl extends DatabaseImpl
        * newly added one.  If so, cut off the overlapping part and store
        * it as new element. */
       if (eStartAddress < startAddress && eEndAddress >= startAddress) {
-        updateElements.put(convertAddressAndDateToKey(eStartAddress,
+        updateElements.put(keys.createKey(eStartAddress,
             eFirstDbDate), new TreeElement(startAddress - 1L, eLastDbDate,
-            eCode));
-        updateElements.put(convertAddressAndDateToKey(startAddress,
+            eCodeId));
+        updateElements.put(keys.createKey(startAddress,
             eFirstDbDate), new TreeElement(eEndAddress, eLastDbDate,
-            eCode));
+            eCodeId));
         eStartAddress = startAddress;
       }
 
@@ -455,7 +832,7 @@ public class DatabaseImporterImpl extends DatabaseImpl
        * as updated.  If it's contained with a different code, ignore the
        * update. */
       if (eFirstDbDate <= databaseDate && eLastDbDate >= databaseDate) {
-        if (eCode.equals(code)) {
+        if (eCodeId == codeId) {
           nextFirstDbDate = eFirstDbDate;
           nextLastDbDate = eLastDbDate;
         } else {
@@ -467,14 +844,14 @@ public class DatabaseImporterImpl extends DatabaseImpl
       /* See if we can merge the new range with the previous or next
        * range.  If so, extend our database range and mark the existing
        * element for deletion. */
-      if (eCode.equals(code)) {
+      if (eCodeId == codeId) {
         if (eLastDbDate == previousDatabaseDate) {
           nextFirstDbDate = eFirstDbDate;
-          updateElements.put(convertAddressAndDateToKey(eStartAddress,
+          updateElements.put(keys.createKey(eStartAddress,
               eFirstDbDate), null);
         } else if (eFirstDbDate == nextDatabaseDate) {
           nextLastDbDate = eLastDbDate;
-          updateElements.put(convertAddressAndDateToKey(eStartAddress,
+          updateElements.put(keys.createKey(eStartAddress,
               eFirstDbDate), null);
         }
       }
@@ -483,9 +860,9 @@ public class DatabaseImporterImpl extends DatabaseImpl
     /* If there's still some part (or the whole?) address range left to
      * add, add it now. */
     while (nextEndAddress >= startAddress) {
-      updateElements.put(convertAddressAndDateToKey(nextStartAddress,
+      updateElements.put(keys.createKey(nextStartAddress,
           nextFirstDbDate), new TreeElement(nextEndAddress,
-          nextLastDbDate, code));
+          nextLastDbDate, codeId));
       nextEndAddress = nextStartAddress - 1L;
       nextStartAddress = startAddress;
       nextFirstDbDate = databaseDate;
@@ -496,15 +873,157 @@ public class DatabaseImporterImpl extends DatabaseImpl
     return updateElements;
   }
 
-  /**
-   * Internal counter for millis spent on repairing the tree.
-   */
-  private long treeRepairMillis = 0L;
-
   /* Newly added database date, or -1 if a database from an already known
    * date was imported. */
   private int addedDatabaseDate = -1;
 
+  /**
+   * Elements that were added to the tree since the last tree repair,
+   * compared by identity, which must not be split when repairing the
+   * tree, because they already contain the newly added database date.
+   */
+  private Set<TreeElement> modifiedElements = new HashSet<TreeElement>();
+
+  /**
+   * Index of tree elements by first and last database date, so that
+   * repairing the tree doesn't require looking at all elements.
+   */
+  private static class DateIndex<K> {
+    private boolean valid = true;
+    private SortedMap<Integer, Set<K>> keysByFirstDbDate =
+        new TreeMap<Integer, Set<K>>();
+    private SortedMap<Integer, Set<K>> keysByLastDbDate =
+        new TreeMap<Integer, Set<K>>();
+    private void add(K key, int firstDbDate, int lastDbDate) {
+      if (this.valid) {
+        addKey(this.keysByFirstDbDate, firstDbDate, key);
+        addKey(this.keysByLastDbDate, lastDbDate, key);
+      }
+    }
+    private void remove(K key, int firstDbDate, int lastDbDate) {
+      if (this.valid) {
+        removeKey(this.keysByFirstDbDate, firstDbDate, key);
+        removeKey(this.keysByLastDbDate, lastDbDate, key);
+      }
+    }
+    private static <K> void addKey(SortedMap<Integer, Set<K>> keysByDate,
+        int date, K key) {
+      Set<K> keys = keysByDate.get(date);
+      if (keys == null) {
+        keys = new HashSet<K>();
+        keysByDate.put(date, keys);
+      }
+      keys.add(key);
+    }
+    private static <K> void removeKey(
+        SortedMap<Integer, Set<K>> keysByDate, int date, K key) {
+      Set<K> keys = keysByDate.get(date);
+      if (keys != null && keys.remove(key) && keys.isEmpty()) {
+        keysByDate.remove(date);
+      }
+    }
+
+    /* Forget all keys until the index is rebuilt, because the tree was
+     * modified without updating the index. */
+    private void invalidate() {
+      this.valid = false;
+      this.keysByFirstDbDate.clear();
+      this.keysByLastDbDate.clear();
+    }
+    private void rebuild(SortedMap<K, TreeElement> ranges,
+        KeyLayout<K> keys) {
+      this.invalidate();
+      this.valid = true;
+      for (Map.Entry<K, TreeElement> e : ranges.entrySet()) {
+        this.add(e.getKey(), keys.getDate(e.getKey()),
+            e.getValue().lastDbDate);
+      }
+    }
+
+    /* Return keys of all elements with a first database date before and
+     * a last database date after the given date.  Only look at elements
+     * starting before or ending after the given date, whichever are
+     * fewer.  When importing databases in chronological order, no
+     * elements end after a new database date, and when importing them
+     * in reverse chronological order, no elements start before it. */
+    private List<K> getKeysSpanning(int date,
+        SortedMap<K, TreeElement> ranges, KeyLayout<K> keys) {
+      SortedMap<Integer, Set<K>> startingBefore =
+          this.keysByFirstDbDate.headMap(date),
+          endingAfter = this.keysByLastDbDate.tailMap(date + 1);
+      List<K> result = new ArrayList<K>();
+      if (countKeys(startingBefore) <= countKeys(endingAfter)) {
+        for (Set<K> keysStartingBefore : startingBefore.values()) {
+          for (K key : keysStartingBefore) {
+            if (ranges.get(key).lastDbDate > date) {
+              result.add(key);
+            }
+          }
+        }
+      } else {
+        for (Set<K> keysEndingAfter : endingAfter.values()) {
+          for (K key : keysEndingAfter) {
+            if (keys.getDate(key) < date) {
+              result.add(key);
+            }
+          }
+        }
+      }
+      return result;
+    }
+    private static <K> int countKeys(SortedMap<Integer, Set<K>> keys) {
+      int count = 0;
+      for (Set<K> keysWithDate : keys.values()) {
+        count += keysWithDate.size();
+      }
+      return count;
+    }
+  }
+
+  /**
+   * Date indexes of IPv4 and IPv6 tree elements.
+   */
+  private DateIndex<Long> dateIndex = new DateIndex<Long>();
+  private DateIndex<Ipv6Key> ipv6DateIndex = new DateIndex<Ipv6Key>();
+
+  /**
+   * Estimated heap bytes per range in date indexes, consisting of two
+   * hash set entries with their share of the hash tables.
+   */
+  static final int DATE_INDEX_HEAP_BYTES = 80;
+
+  /**
+   * Return an estimate of heap bytes used for storing ranges including
+   * the date indexes.
+   */
+  protected long estimateHeapBytes() {
+    long heapBytes = super.estimateHeapBytes();
+    if (this.dateIndex.valid) {
+      heapBytes += (long) this.ranges.size() * DATE_INDEX_HEAP_BYTES;
+    }
+    if (this.ipv6DateIndex.valid) {
+      heapBytes += (long) this.ipv6Ranges.size() * DATE_INDEX_HEAP_BYTES;
+    }
+    return heapBytes;
+  }
+
+  /**
+   * Invalidate date indexes after modifying the tree directly, so that
+   * they are rebuilt before repairing the tree the next time.
+   */
+  void invalidateDateIndexes() {
+    this.dateIndex.invalidate();
+    this.ipv6DateIndex.invalidate();
+  }
+
+  /**
+   * Load previously saved combined databases and invalidate date indexes.
+   */
+  public boolean loadCombinedDatabases(String path) {
+    this.invalidateDateIndexes();
+    return super.loadCombinedDatabases(path);
+  }
+
   /**
    * Repair tree by making sure that any range from a given database date
    * to another is still valid when considering any other database that
@@ -514,6 +1033,10 @@ public class DatabaseImporterImpl extends DatabaseImpl
    * another registry that doesn't contain the given address range.  We'll
    * merge the two date ranges when parsing that registry's file.
    *
+   * Only ranges spanning the newly added database date can be affected,
+   * which are found using the date indexes rather than by looking at all
+   * ranges in the tree.
+   *
    * This method has default visibility and is not specified in the
    * interface, because the caller needs to make sure that repairTree()
    * is called prior to any lookupAddress() calls.  No further checks are
@@ -524,46 +1047,67 @@ public class DatabaseImporterImpl extends DatabaseImpl
       return;
     }
     long startedRepairingTree = System.currentTimeMillis();
-    SortedMap<Long, TreeElement> updateElements =
-        new TreeMap<Long, TreeElement>();
-    for (Map.Entry<Long, TreeElement> e : this.ranges.entrySet()) {
-      if (e.getValue().modifiedInLastImport) {
-        e.getValue().modifiedInLastImport = false;
-      } else {
-        int eFirstDbDate = convertKeyToDate(e.getKey());
-        int eLastDbDate = e.getValue().lastDbDate;
-        long eStartAddress = convertKeyToAddress(e.getKey());
-        long eEndAddress = e.getValue().endAddress;
-        String eCode = e.getValue().code;
-        int start = eFirstDbDate, end = eFirstDbDate;
-        for (int cur : this.databaseDates.tailSet(eFirstDbDate)) {
-          if (cur > eLastDbDate) {
-            break;
-          }
-          if (cur == addedDatabaseDate) {
-            if (start >= 0 && end >= 0) {
-              updateElements.put(convertAddressAndDateToKey(eStartAddress,
-                  start), new TreeElement(eEndAddress, end, eCode));
-              start = end = -1;
-            }
-          } else if (start < 0) {
-            start = end = cur;
-          } else {
-            end = cur;
-          }
+    int rangesSplit = this.repairTree(this.ranges, IPV4_KEYS,
+        this.dateIndex) + this.repairTree(this.ipv6Ranges, IPV6_KEYS,
+        this.ipv6DateIndex);
+    this.modifiedElements.clear();
+    this.invalidateLookupIndex();
+    this.addedDatabaseDate = -1;
+    this.metrics.recordTreeRepair(System.currentTimeMillis()
+        - startedRepairingTree, rangesSplit);
+  }
+
+  /**
+   * Repair the given IPv4 or IPv6 tree by splitting all ranges that span
+   * the newly added database date, unless they were added or modified
+   * since the last repair, and return the number of split ranges.
+   */
+  private <K> int repairTree(SortedMap<K, TreeElement> ranges,
+      KeyLayout<K> keys, DateIndex<K> dateIndex) {
+    if (!dateIndex.valid) {
+      dateIndex.rebuild(ranges, keys);
+    }
+    SortedMap<K, TreeElement> updateElements =
+        new TreeMap<K, TreeElement>();
+    int rangesSplit = 0;
+    for (K key : dateIndex.getKeysSpanning(this.addedDatabaseDate, ranges,
+        keys)) {
+      TreeElement element = ranges.get(key);
+      if (this.modifiedElements.contains(element)) {
+        continue;
+      }
+      rangesSplit++;
+      int eFirstDbDate = keys.getDate(key);
+      int eLastDbDate = element.lastDbDate;
+      long eStartAddress = keys.getAddress(key);
+      long eEndAddress = element.endAddress;
+      int eCodeId = element.codeId;
+      int start = eFirstDbDate, end = eFirstDbDate;
+      for (int cur : this.databaseDates.tailSet(eFirstDbDate)) {
+        if (cur > eLastDbDate) {
+          break;
         }
-        if (start >= 0 && end >= 0) {
-          updateElements.put(convertAddressAndDateToKey(eStartAddress,
-              start), new TreeElement(eEndAddress, end, eCode));
+        if (cur == addedDatabaseDate) {
+          if (start >= 0 && end >= 0) {
+            updateElements.put(keys.createKey(eStartAddress, start),
+                new TreeElement(eEndAddress, end, eCodeId));
+            start = end = -1;
+          }
+        } else if (start < 0) {
+          start = end = cur;
+        } else {
+          end = cur;
         }
       }
+      if (start >= 0 && end >= 0) {
+        updateElements.put(keys.createKey(eStartAddress, start),
+            new TreeElement(eEndAddress, end, eCodeId));
+      }
     }
-    for (Map.Entry<Long, TreeElement> e : updateElements.entrySet()) {
-      this.ranges.put(e.getKey(), e.getValue());
+    for (Map.Entry<K, TreeElement> e : updateElements.entrySet()) {
+      this.putRange(ranges, keys, dateIndex, e.getKey(), e.getValue());
     }
-    this.addedDatabaseDate = -1;
-    this.treeRepairMillis += (System.currentTimeMillis()
-        - startedRepairingTree);
+    return rangesSplit;
   }
 
   /**
@@ -574,62 +1118,145 @@ public class DatabaseImporterImpl extends DatabaseImpl
   }
 
   /**
-   * Save the combined databases to disk.
+   * Return number of contained IPv6 ranges.
+   */
+  int getNumberOfIpv6Elements() {
+    return this.ipv6Ranges.size();
+  }
+
+  /**
+   * Save the combined databases to a temporary file with block checksums
+   * and rename it to the given path once it's synced to disk, so that a
+   * crash while saving never leaves a truncated file behind.
    */
   public boolean saveCombinedDatabases(String path) {
+    File file = new File(path);
+    FileOutputStream fos = null;
     try {
-
-      /* Create parent directories if necessary. */
-      File file = new File(path);
-      if (file.getParentFile() != null) {
-        file.getParentFile().mkdirs();
-      }
+      fos = CombinedDatabasesFile.openTempFile(file);
+      CombinedDatabasesFile.CsvOutputStream csv =
+          new CombinedDatabasesFile.CsvOutputStream(
+          new BufferedOutputStream(fos), this.ranges.size()
+          + this.ipv6Ranges.size());
+      BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(csv,
+          "UTF-8"));
 
       /* Start with writing all contained database file names to the file
        * header. */
-      BufferedWriter bw = new BufferedWriter(new FileWriter(file));
       for (String databaseFileName : this.databaseFileNames) {
         bw.write("!" + databaseFileName + "\n");
       }
 
-      /* Next write all database ranges in the same order as they are
-       * currently contained in memory.  The only information we can drop
-       * is the last known database index of each range, because we assume
-       * the tree is already in repaired state. */
-      for (Map.Entry<Long, TreeElement> e : this.ranges.entrySet()) {
-        bw.write(String.format("%s,%s,%s,%s,%s%n",
-            convertKeyToAddressString(e.getKey()),
-            convertAddressNumberToString(e.getValue().endAddress),
-            e.getValue().code,
-            convertKeyToDateString(e.getKey()),
-            convertDateNumberToString(e.getValue().lastDbDate)));
-      }
-      bw.close();
+      /* Continue with AS names, if any. */
+      this.asNames.writeCsvLines(bw);
+
+      /* Next write all database ranges. */
+      this.writeCombinedDatabasesRanges(bw);
+      bw.flush();
+      csv.finish();
+      CombinedDatabasesFile.commitTempFile(fos, file);
     } catch (IOException e) {
+      if (fos != null) {
+        CombinedDatabasesFile.abortTempFile(fos, file);
+      }
+      return false;
+    }
+    DeltaSegment.getDeltaFile(path).delete();
+    return true;
+  }
+
+  /**
+   * Write all database ranges in the same order as they are currently
+   * contained in memory.  The only information we can drop is the last
+   * known database index of each range, because we assume the tree is
+   * already in repaired state.
+   */
+  void writeCombinedDatabasesRanges(BufferedWriter bw)
+      throws IOException {
+    for (Map.Entry<Long, TreeElement> e : this.ranges.entrySet()) {
+      bw.write(String.format("%s,%s,%s,%s,%s%n",
+          convertKeyToAddressString(e.getKey()),
+          convertAddressNumberToString(e.getValue().endAddress),
+          this.codeDictionary.getCode(e.getValue().codeId),
+          convertKeyToDateString(e.getKey()),
+          convertDateNumberToString(e.getValue().lastDbDate)));
+    }
+
+    /* Finally write all IPv6 ranges in the same format, except that start
+     * and end address are /64 network prefixes. */
+    for (Map.Entry<Ipv6Key, TreeElement> e :
+        this.ipv6Ranges.entrySet()) {
+      bw.write(String.format("%s,%s,%s,%s,%s%n",
+          convertIpv6AddressNumberToString(e.getKey().address),
+          convertIpv6AddressNumberToString(e.getValue().endAddress),
+          this.codeDictionary.getCode(e.getValue().codeId),
+          convertDateNumberToString(e.getKey().date),
+          convertDateNumberToString(e.getValue().lastDbDate)));
+    }
+  }
+
+  /**
+   * Save the combined databases to disk in the binary format.
+   */
+  public boolean saveBinaryCombinedDatabases(String path) {
+    if (!new CompactDatabaseImpl(this).saveBinaryCombinedDatabases(
+        path)) {
       return false;
     }
+    DeltaSegment.getDeltaFile(path).delete();
     return true;
   }
 
+  /**
+   * Save the combined databases to disk in the columnar format.
+   */
+  public boolean saveColumnarCombinedDatabases(String path) {
+    if (!new CompactDatabaseImpl(this).saveColumnarCombinedDatabases(
+        path)) {
+      return false;
+    }
+    DeltaSegment.getDeltaFile(path).delete();
+    return true;
+  }
+
+  /**
+   * Append stats files from a single new database date to a saved
+   * combined databases file by writing a delta segment.
+   */
+  public boolean appendRegionalRegistryStatsFileOrDirectory(
+      String combinedDatabasesPath, String path) {
+    return DeltaSegment.appendStatsFiles(combinedDatabasesPath, path,
+        this.signatureKeyring);
+  }
+
+  /**
+   * Merge the delta segment of a saved combined databases file into the
+   * file itself.
+   */
+  public boolean compactCombinedDatabases(String combinedDatabasesPath) {
+    return DeltaSegment.compact(combinedDatabasesPath);
+  }
+
   /* Return a nicely formatted string summarizing database contents and
    * usage statistics. */
   public String toString() {
     StringBuilder sb = new StringBuilder();
-    sb.append(String.format("Tree contains %d databases and %d combined "
-        + "address ranges.\n"
+    sb.append(String.format("Tree contains %d databases, %d combined "
+        + "address ranges, and %d combined IPv6 address ranges.\n"
         + "Performed %d address range imports requiring %d lookups.\n"
         + "Performed %d address lookups requiring %d lookups.\n"
         + "Spent %d millis on repairing tree.\n"
         + "First 10 entries, in reverse order, are:",
-        this.databaseDates.size(), this.ranges.size(), this.rangeImports,
-        this.rangeImportsKeyLookups, this.addressLookups,
-        this.addressLookupsKeyLookups, this.treeRepairMillis));
+        this.databaseDates.size(), this.ranges.size(),
+        this.ipv6Ranges.size(), this.rangeImports,
+        this.rangeImportsKeyLookups, this.metrics.getLookups(),
+        this.metrics.getKeyProbes(), this.metrics.getTreeRepairMillis()));
     int entries = 10;
     for (Map.Entry<Long, TreeElement> e : this.ranges.entrySet()) {
       sb.append(String.format("%n  %s %s %s %s %s",
           convertKeyToAddressString(e.getKey()),
           convertAddressNumberToString(e.getValue().endAddress),
-          e.getValue().code,
+          this.codeDictionary.getCode(e.getValue().codeId),
           convertKeyToDateString(e.getKey()),
           convertDateNumberToString(e.getValue().lastDbDate)));
       if (--entries <= 0) {
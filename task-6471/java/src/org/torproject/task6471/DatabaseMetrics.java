@@ -0,0 +1,350 @@
+/* Copyright 2012 The Tor Project */
+package org.torproject.task6471;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedList;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Lookup, cache, import, and memory metrics of a database, which are
+ * cheap enough to be always collected.
+ *
+ * Lookups only update two striped counters, so that concurrent lookups
+ * contend as little as possible.  Lookup latencies are measured for one
+ * in 64 lookups of each thread, counted in a thread-local counter,
+ * because reading the clock would otherwise take longer than many
+ * lookups.  Sampling by count rather than by query makes sure that
+ * workloads repeating a few queries are sampled just as well.
+ * Import metrics are only written by the thread importing files.
+ *
+ * Metrics can be registered as MBean and be read using JMX, or they can
+ * be read directly after obtaining them from Database.getMetrics().
+ */
+public class DatabaseMetrics implements DatabaseMetricsMBean {
+
+  /**
+   * Number of key probe histogram buckets.
+   */
+  static final int KEY_PROBES_BUCKETS = 64;
+
+  /**
+   * Number of latency histogram buckets.  Buckets 0 to 3 contain exact
+   * nanosecond values, and every power of two after that is divided into
+   * four buckets, up to 2^34 nanoseconds or 17 seconds.
+   */
+  static final int LATENCY_BUCKETS = 136;
+
+  /**
+   * Sample one in 2^LATENCY_SAMPLE_BITS lookups.
+   */
+  private static final int LATENCY_SAMPLE_BITS = 6;
+
+  /**
+   * Lookups started by each thread, used for choosing sampled lookups
+   * without contending with other threads.
+   */
+  private static final ThreadLocal<int[]> STARTED_LOOKUPS =
+      new ThreadLocal<int[]>() {
+    protected int[] initialValue() {
+      return new int[1];
+    }
+  };
+
+  /**
+   * Value returned by startLookup() if the lookup is not sampled.
+   */
+  static final long NOT_SAMPLED = Long.MIN_VALUE;
+
+  /**
+   * Number of most recent file imports to remember.
+   */
+  private static final int RECENT_FILE_IMPORTS = 100;
+
+  /**
+   * Provider of current range counts and memory estimates.
+   */
+  interface MemoryUsage {
+    int getRanges();
+    long getEstimatedHeapBytes();
+    long getOffHeapBytes();
+  }
+
+  private MemoryUsage memoryUsage;
+
+  private StripedHistogram keyProbes =
+      new StripedHistogram(KEY_PROBES_BUCKETS),
+      lookupLatencies = new StripedHistogram(LATENCY_BUCKETS);
+
+  private StripedCounter keyProbesSum = new StripedCounter(),
+      cacheHits = new StripedCounter(),
+      cacheMisses = new StripedCounter();
+
+  private volatile long importedFiles = 0L, importMillis = 0L,
+      rangesAdded = 0L, rangesSplit = 0L, treeRepairMillis = 0L;
+
+  private LinkedList<String> recentFileImports = new LinkedList<String>();
+
+  private ObjectName objectName;
+
+  /**
+   * Create metrics for a database whose size is provided by the given
+   * memory usage provider.
+   */
+  DatabaseMetrics(MemoryUsage memoryUsage) {
+    this.memoryUsage = memoryUsage;
+  }
+
+  /**
+   * Start a lookup and return the current time in nanoseconds if this
+   * lookup is sampled, or NOT_SAMPLED otherwise.
+   */
+  long startLookup() {
+    int[] startedLookups = STARTED_LOOKUPS.get();
+    if ((startedLookups[0]++ & ((1 << LATENCY_SAMPLE_BITS) - 1)) != 0) {
+      return NOT_SAMPLED;
+    }
+    return System.nanoTime();
+  }
+
+  /**
+   * Record a completed lookup that looked at the given number of ranges
+   * and was started at the time returned by startLookup().
+   */
+  void recordLookup(int keyProbes, long startedNanos) {
+    this.keyProbes.increment(keyProbes);
+    this.keyProbesSum.add(keyProbes);
+    if (startedNanos != NOT_SAMPLED) {
+      this.lookupLatencies.increment(getLatencyBucket(
+          System.nanoTime() - startedNanos));
+    }
+  }
+
+  /* Return the latency histogram bucket of the given nanoseconds. */
+  static int getLatencyBucket(long nanos) {
+    if (nanos < 4L) {
+      return nanos < 0L ? 0 : (int) nanos;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+    return 4 * (exponent - 1) + (int) ((nanos >>> (exponent - 2)) & 3L);
+  }
+
+  /* Return the lower bound in nanoseconds of the given latency histogram
+   * bucket. */
+  static long getLatencyBucketLowerBound(int bucket) {
+    if (bucket < 4) {
+      return bucket;
+    }
+    return (4L + bucket % 4) << (bucket / 4 - 1);
+  }
+
+  /**
+   * Record a lookup that was answered from a cache.
+   */
+  void recordCacheHit() {
+    this.cacheHits.increment();
+  }
+
+  /**
+   * Record a cache lookup that missed.
+   */
+  void recordCacheMiss() {
+    this.cacheMisses.increment();
+  }
+
+  /**
+   * Record that a file was parsed and merged into the tree, which took
+   * the given milliseconds and added the given number of ranges.  The
+   * number of ranges split is the number of ranges split when repairing
+   * the tree afterwards.
+   */
+  synchronized void recordFileImport(String fileName, long millis,
+      int rangesAdded, long rangesSplit) {
+    this.importedFiles++;
+    this.importMillis += millis;
+    this.rangesAdded += rangesAdded;
+    this.recentFileImports.add(String.format("%s: %d millis, %d ranges "
+        + "added, %d ranges split", fileName, millis, rangesAdded,
+        rangesSplit));
+    if (this.recentFileImports.size() > RECENT_FILE_IMPORTS) {
+      this.recentFileImports.removeFirst();
+    }
+  }
+
+  /**
+   * Record that repairing the tree took the given milliseconds and split
+   * the given number of ranges.
+   */
+  synchronized void recordTreeRepair(long millis, int rangesSplit) {
+    this.treeRepairMillis += millis;
+    this.rangesSplit += rangesSplit;
+  }
+
+  /**
+   * Register these metrics with the platform MBean server using the
+   * given name, so that they can be read using JMX.
+   */
+  public synchronized boolean register(String name) {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName objectName = new ObjectName(
+          "org.torproject.task6471:type=Database,name="
+          + ObjectName.quote(name));
+      server.registerMBean(this, objectName);
+      this.objectName = objectName;
+      return true;
+    } catch (JMException e) {
+      System.err.println("Could not register database metrics as '"
+          + name + "': " + e.getMessage());
+      return false;
+    }
+  }
+
+  /**
+   * Unregister these metrics from the platform MBean server, if they
+   * were registered before.
+   */
+  public synchronized void unregister() {
+    if (this.objectName == null) {
+      return;
+    }
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+          this.objectName);
+    } catch (JMException e) {
+      /* Already unregistered. */
+    }
+    this.objectName = null;
+  }
+
+  public long getLookups() {
+    long lookups = 0L;
+    for (long count : this.keyProbes.getCounts()) {
+      lookups += count;
+    }
+    return lookups;
+  }
+
+  public long getKeyProbes() {
+    return this.keyProbesSum.sum();
+  }
+
+  public double getMeanKeyProbesPerLookup() {
+    return (double) this.keyProbesSum.sum() / this.getLookups();
+  }
+
+  public long[] getKeyProbesHistogram() {
+    return this.keyProbes.getCounts();
+  }
+
+  public long getSampledLookups() {
+    long sampledLookups = 0L;
+    for (long count : this.lookupLatencies.getCounts()) {
+      sampledLookups += count;
+    }
+    return sampledLookups;
+  }
+
+  public long[] getLookupLatencyBucketsNanos() {
+    long[] lowerBounds = new long[LATENCY_BUCKETS];
+    for (int i = 0; i < LATENCY_BUCKETS; i++) {
+      lowerBounds[i] = getLatencyBucketLowerBound(i);
+    }
+    return lowerBounds;
+  }
+
+  public long[] getLookupLatencyHistogram() {
+    return this.lookupLatencies.getCounts();
+  }
+
+  public long getLookupLatencyMedianNanos() {
+    return this.getLookupLatencyPercentileNanos(0.5);
+  }
+
+  public long getLookupLatency99thPercentileNanos() {
+    return this.getLookupLatencyPercentileNanos(0.99);
+  }
+
+  public long getLookupLatency99Point9thPercentileNanos() {
+    return this.getLookupLatencyPercentileNanos(0.999);
+  }
+
+  /* Return the upper bound of the bucket containing the given quantile
+   * of sampled lookup latencies, or 0 if no lookups were sampled. */
+  long getLookupLatencyPercentileNanos(double quantile) {
+    long[] counts = this.lookupLatencies.getCounts();
+    long total = 0L;
+    for (long count : counts) {
+      total += count;
+    }
+    if (total == 0L) {
+      return 0L;
+    }
+    long rank = (long) Math.ceil(quantile * total), seen = 0L;
+    for (int i = 0; i < counts.length - 1; i++) {
+      seen += counts[i];
+      if (seen >= rank) {
+        return getLatencyBucketLowerBound(i + 1);
+      }
+    }
+    return Long.MAX_VALUE;
+  }
+
+  public long getCacheHits() {
+    return this.cacheHits.sum();
+  }
+
+  public long getCacheMisses() {
+    return this.cacheMisses.sum();
+  }
+
+  public double getCacheHitRate() {
+    long hits = this.cacheHits.sum(), misses = this.cacheMisses.sum();
+    return hits + misses == 0L ? Double.NaN
+        : (double) hits / (hits + misses);
+  }
+
+  public long getImportedFiles() {
+    return this.importedFiles;
+  }
+
+  public long getImportMillis() {
+    return this.importMillis;
+  }
+
+  public long getRangesAdded() {
+    return this.rangesAdded;
+  }
+
+  public long getRangesSplit() {
+    return this.rangesSplit;
+  }
+
+  public long getTreeRepairMillis() {
+    return this.treeRepairMillis;
+  }
+
+  public synchronized String[] getRecentFileImports() {
+    return this.recentFileImports.toArray(
+        new String[this.recentFileImports.size()]);
+  }
+
+  public int getRanges() {
+    return this.memoryUsage.getRanges();
+  }
+
+  public long getEstimatedHeapBytes() {
+    return this.memoryUsage.getEstimatedHeapBytes();
+  }
+
+  public double getEstimatedHeapBytesPerRange() {
+    return (double) this.memoryUsage.getEstimatedHeapBytes()
+        / this.memoryUsage.getRanges();
+  }
+
+  public long getOffHeapBytes() {
+    return this.memoryUsage.getOffHeapBytes();
+  }
+}
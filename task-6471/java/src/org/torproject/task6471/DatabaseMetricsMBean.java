@@ -0,0 +1,133 @@
+/* Copyright 2012 The Tor Project */
+package org.torproject.task6471;
+
+/**
+ * Management interface for database lookup, cache, import, and memory
+ * metrics, which can be registered as standard MBean.
+ */
+public interface DatabaseMetricsMBean {
+
+  /**
+   * Return the number of IPv4 and IPv6 lookups.
+   */
+  public long getLookups();
+
+  /**
+   * Return the number of ranges looked at by all lookups.
+   */
+  public long getKeyProbes();
+
+  /**
+   * Return the mean number of ranges looked at per lookup.
+   */
+  public double getMeanKeyProbesPerLookup();
+
+  /**
+   * Return how many lookups looked at 0, 1, 2, and so on ranges, with
+   * the last bucket also counting all lookups that looked at more ranges.
+   */
+  public long[] getKeyProbesHistogram();
+
+  /**
+   * Return the number of lookups whose latency was sampled.
+   */
+  public long getSampledLookups();
+
+  /**
+   * Return the lower bounds in nanoseconds of the lookup latency
+   * histogram buckets.
+   */
+  public long[] getLookupLatencyBucketsNanos();
+
+  /**
+   * Return how many sampled lookups took at least as long as the lower
+   * bound of a bucket and less than the lower bound of the next bucket.
+   */
+  public long[] getLookupLatencyHistogram();
+
+  /**
+   * Return the upper bound in nanoseconds of the bucket containing the
+   * median sampled lookup latency.
+   */
+  public long getLookupLatencyMedianNanos();
+
+  /**
+   * Return the upper bound in nanoseconds of the bucket containing the
+   * 99th percentile of sampled lookup latencies.
+   */
+  public long getLookupLatency99thPercentileNanos();
+
+  /**
+   * Return the upper bound in nanoseconds of the bucket containing the
+   * 99.9th percentile of sampled lookup latencies.
+   */
+  public long getLookupLatency99Point9thPercentileNanos();
+
+  /**
+   * Return the number of lookups answered from a cache.
+   */
+  public long getCacheHits();
+
+  /**
+   * Return the number of cache lookups that missed.
+   */
+  public long getCacheMisses();
+
+  /**
+   * Return the fraction of cache lookups that were answered from the
+   * cache, or NaN if there is no cache or it was never used.
+   */
+  public double getCacheHitRate();
+
+  /**
+   * Return the number of imported files.
+   */
+  public long getImportedFiles();
+
+  /**
+   * Return the milliseconds spent on parsing and merging files.
+   */
+  public long getImportMillis();
+
+  /**
+   * Return the number of ranges added from imported files.
+   */
+  public long getRangesAdded();
+
+  /**
+   * Return the number of ranges split when repairing the tree.
+   */
+  public long getRangesSplit();
+
+  /**
+   * Return the milliseconds spent on repairing the tree.
+   */
+  public long getTreeRepairMillis();
+
+  /**
+   * Return file name, milliseconds, ranges added, and ranges split of
+   * the most recently imported files.
+   */
+  public String[] getRecentFileImports();
+
+  /**
+   * Return the number of IPv4 and IPv6 ranges in the database.
+   */
+  public int getRanges();
+
+  /**
+   * Return an estimate of heap bytes used for storing ranges.
+   */
+  public long getEstimatedHeapBytes();
+
+  /**
+   * Return an estimate of heap bytes used per range.
+   */
+  public double getEstimatedHeapBytesPerRange();
+
+  /**
+   * Return the number of bytes in direct or memory-mapped buffers used
+   * for storing ranges.
+   */
+  public long getOffHeapBytes();
+}
@@ -6,6 +6,7 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -15,9 +16,13 @@ import java.util.Random;
 import java.util.SortedSet;
 import java.util.Stack;
 import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+
+import com.sun.management.ThreadMXBean;
 
 public class DatabasePerformanceExample {
-  public static void main(String[] args) throws IOException {
+  public static void main(String[] args) throws IOException,
+      InterruptedException {
 
     File testCasesCsvFile = new File("test-cases-2007-10-2012-09.csv");
     if (!testCasesCsvFile.exists()) {
@@ -107,6 +112,17 @@ public class DatabasePerformanceExample {
     long endMillis = System.currentTimeMillis();
     System.out.println((endMillis - startMillis) + " millis.");
 
+    int processors = Runtime.getRuntime().availableProcessors();
+    System.out.print("Importing files using " + processors + " parser "
+        + "threads... ");
+    startMillis = System.currentTimeMillis();
+    DatabaseImporter parallelDatabase = new DatabaseImporterImpl();
+    parallelDatabase.importRegionalRegistryStatsFileOrDirectory("../data",
+        processors);
+    endMillis = System.currentTimeMillis();
+    System.out.println((endMillis - startMillis) + " millis.");
+    parallelDatabase = null;
+
     System.out.print("Making test requests... ");
     startMillis = endMillis;
     BufferedReader br = new BufferedReader(new FileReader(
@@ -178,5 +194,197 @@ public class DatabasePerformanceExample {
     endMillis = System.currentTimeMillis();
     System.out.println((endMillis - startMillis) + " millis, " + failures
         + " out of " + tests + " tests failed.");
+
+    System.out.print("Loading combined databases into compact database "
+        + "from disk... ");
+    startMillis = endMillis;
+    Database compactDatabase = new CompactDatabaseImpl();
+    compactDatabase.loadCombinedDatabases("geoip-2007-10-2012-09.csv");
+    endMillis = System.currentTimeMillis();
+    System.out.println((endMillis - startMillis) + " millis.");
+
+    System.out.print("Making a third round of test requests using the "
+        + "compact database... ");
+    startMillis = endMillis;
+    br = new BufferedReader(new FileReader(testCasesCsvFile));
+    tests = failures = 0;
+    while ((line = br.readLine()) != null) {
+      String[] parts = line.split(",");
+      String testAddress = parts[0];
+      String testDate = parts[1];
+      String expected = parts[2].equals("??") ? null : parts[2];
+      String result =
+          compactDatabase.lookupIpv4AddressAndDate(
+          testAddress, testDate);
+      tests++;
+      if ((expected == null && result != null) ||
+          (expected != null && !expected.equals(result))) {
+        failures++;
+      }
+    }
+    br.close();
+    endMillis = System.currentTimeMillis();
+    System.out.println((endMillis - startMillis) + " millis, " + failures
+        + " out of " + tests + " tests failed.");
+
+    System.out.println(compactDatabase);
+
+    System.out.print("Saving combined databases to disk in binary "
+        + "format... ");
+    startMillis = System.currentTimeMillis();
+    combinedDatabase.saveBinaryCombinedDatabases(
+        "geoip-2007-10-2012-09.bin");
+    endMillis = System.currentTimeMillis();
+    System.out.println((endMillis - startMillis) + " millis.");
+
+    System.out.print("Mapping binary combined databases from disk... ");
+    startMillis = endMillis;
+    Database mappedDatabase = new CompactDatabaseImpl();
+    mappedDatabase.loadCombinedDatabases("geoip-2007-10-2012-09.bin");
+    endMillis = System.currentTimeMillis();
+    System.out.println((endMillis - startMillis) + " millis.");
+
+    System.out.print("Making a fourth round of test requests using the "
+        + "mapped database... ");
+    startMillis = endMillis;
+    br = new BufferedReader(new FileReader(testCasesCsvFile));
+    tests = failures = 0;
+    while ((line = br.readLine()) != null) {
+      String[] parts = line.split(",");
+      String expected = parts[2].equals("??") ? null : parts[2];
+      String result = mappedDatabase.lookupIpv4AddressAndDate(parts[0],
+          parts[1]);
+      tests++;
+      if ((expected == null && result != null) ||
+          (expected != null && !expected.equals(result))) {
+        failures++;
+      }
+    }
+    br.close();
+    endMillis = System.currentTimeMillis();
+    System.out.println((endMillis - startMillis) + " millis, " + failures
+        + " out of " + tests + " tests failed.");
+
+    System.out.print("Making a fifth round of test requests as a single "
+        + "batch using the mapped database... ");
+    List<String> testLines = new ArrayList<String>();
+    br = new BufferedReader(new FileReader(testCasesCsvFile));
+    while ((line = br.readLine()) != null) {
+      testLines.add(line);
+    }
+    br.close();
+    int[] testAddresses = new int[testLines.size()],
+        testDates = new int[testLines.size()],
+        testCodeIds = new int[testLines.size()];
+    String[] expectedCodes = new String[testLines.size()];
+    for (int i = 0; i < testLines.size(); i++) {
+      String[] parts = testLines.get(i).split(",");
+      testAddresses[i] = (int) DatabaseImpl.convertAddressStringToNumber(
+          parts[0]);
+      testDates[i] = DatabaseImpl.convertDateStringToNumber(parts[1]);
+      expectedCodes[i] = parts[2].equals("??") ? null : parts[2];
+    }
+    startMillis = System.currentTimeMillis();
+    mappedDatabase.lookupIpv4AddressesAndDates(testAddresses, testDates,
+        testCodeIds);
+    endMillis = System.currentTimeMillis();
+    failures = 0;
+    for (int i = 0; i < testCodeIds.length; i++) {
+      String result = mappedDatabase.getCodeForId(testCodeIds[i]);
+      if ((expectedCodes[i] == null && result != null) ||
+          (expectedCodes[i] != null && !expectedCodes[i].equals(result))) {
+        failures++;
+      }
+    }
+    System.out.println((endMillis - startMillis) + " millis, " + failures
+        + " out of " + testCodeIds.length + " tests failed.");
+
+    System.out.println("Benchmarking lookups using numeric addresses and "
+        + "dates... ");
+    benchmarkNumericLookups("tree database", database, testAddresses,
+        testDates);
+    benchmarkNumericLookups("mapped database", mappedDatabase,
+        testAddresses, testDates);
+
+    System.out.println("Benchmarking concurrent lookups... ");
+    for (int threads = 1;
+        threads <= Runtime.getRuntime().availableProcessors();
+        threads *= 2) {
+      benchmarkConcurrentLookups("tree database", database, threads,
+          testAddresses, testDates);
+      benchmarkConcurrentLookups("mapped database", mappedDatabase,
+          threads, testAddresses, testDates);
+    }
+  }
+
+  /* Look up all given addresses and dates a number of times in each of
+   * the given number of threads, all sharing the same database, and
+   * print out the total number of lookups per second. */
+  private static void benchmarkConcurrentLookups(String name,
+      final Database database, int threads, final int[] addresses,
+      final int[] dates) throws InterruptedException {
+    final CountDownLatch start = new CountDownLatch(1);
+    final CountDownLatch finish = new CountDownLatch(threads);
+    for (int t = 0; t < threads; t++) {
+      final int offset = t * (addresses.length / threads);
+      new Thread() {
+        public void run() {
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          for (int run = 0; run < 10; run++) {
+            for (int i = 0; i < addresses.length; i++) {
+              int j = (i + offset) % addresses.length;
+              database.lookupIpv4AddressAndDate(
+                  addresses[j] & 0xffffffffL, dates[j]);
+            }
+          }
+          finish.countDown();
+        }
+      }.start();
+    }
+    long startNanos = System.nanoTime();
+    start.countDown();
+    finish.await();
+    long nanos = System.nanoTime() - startNanos;
+    System.out.printf("  %s, %d threads: %.0f lookups/sec.%n", name,
+        threads, 10.0 * threads * addresses.length * 1E9 / nanos);
+  }
+
+  /* Look up all given addresses and dates a number of times using the
+   * numeric lookup method, and print out lookups per second and bytes
+   * allocated per lookup. */
+  private static void benchmarkNumericLookups(String name,
+      Database database, int[] addresses, int[] dates) {
+    ThreadMXBean threadMXBean =
+        (ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long threadId = Thread.currentThread().getId();
+    int found = 0;
+    for (int round = 0; round < 3; round++) {
+      long startAllocatedBytes =
+          threadMXBean.getThreadAllocatedBytes(threadId);
+      long startNanos = System.nanoTime();
+      for (int run = 0; run < 10; run++) {
+        for (int i = 0; i < addresses.length; i++) {
+          if (database.lookupIpv4AddressAndDate(
+              addresses[i] & 0xffffffffL, dates[i]) != null) {
+            found++;
+          }
+        }
+      }
+      long lookups = 10L * addresses.length;
+      long nanos = System.nanoTime() - startNanos;
+      long allocatedBytes = threadMXBean.getThreadAllocatedBytes(threadId)
+          - startAllocatedBytes;
+      System.out.printf("  %s, round %d: %.0f lookups/sec, %.3f bytes "
+          + "allocated per lookup.%n", name, round + 1,
+          lookups * 1E9 / nanos, (double) allocatedBytes / lookups);
+    }
+    if (found < 0) {
+      /* Never happens, but keeps the JIT from removing lookups. */
+      System.out.println(found);
+    }
   }
 }
@@ -0,0 +1,208 @@
+/* Copyright 2012 The Tor Project */
+package org.torproject.task6471;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Immutable snapshot of all ranges contained in a single database,
+ * flattened into sorted arrays of non-overlapping address intervals.
+ *
+ * Looking up an address in the combined databases requires iterating
+ * over ranges of all dates and skipping those that started later than
+ * the database to look at.  Looking up an address in a snapshot only
+ * requires a single binary search and doesn't look at dates at all,
+ * which is faster if many addresses are looked up for the same date.
+ * Snapshots can be used by any number of threads at the same time.
+ *
+ * Snapshots are obtained from Database.getSnapshot(), which keeps the
+ * most recently used snapshots in a small cache.
+ */
+public class DatabaseSnapshot {
+
+  /**
+   * Number of snapshots kept in the cache of a database.
+   */
+  static final int CACHE_SIZE = 8;
+
+  private final int databaseDate;
+
+  private final long[] startAddresses, endAddresses;
+
+  private final String[] codes;
+
+  private final long[] ipv6StartAddresses, ipv6EndAddresses;
+
+  private final String[] ipv6Codes;
+
+  private DatabaseSnapshot(int databaseDate, long[] startAddresses,
+      long[] endAddresses, String[] codes, long[] ipv6StartAddresses,
+      long[] ipv6EndAddresses, String[] ipv6Codes) {
+    this.databaseDate = databaseDate;
+    this.startAddresses = startAddresses;
+    this.endAddresses = endAddresses;
+    this.codes = codes;
+    this.ipv6StartAddresses = ipv6StartAddresses;
+    this.ipv6EndAddresses = ipv6EndAddresses;
+    this.ipv6Codes = ipv6Codes;
+  }
+
+  /**
+   * Return the date of the database contained in this snapshot, in days
+   * since 1970, or -1 if the snapshot was taken of an empty database.
+   */
+  public int getDatabaseDate() {
+    return this.databaseDate;
+  }
+
+  /**
+   * Return the number of IPv4 address intervals, which may be smaller
+   * than the number of ranges in the database, because adjacent ranges
+   * with the same code are merged.
+   */
+  public int getNumberOfIntervals() {
+    return this.startAddresses.length;
+  }
+
+  /**
+   * Return the number of IPv6 address intervals.
+   */
+  public int getNumberOfIpv6Intervals() {
+    return this.ipv6StartAddresses.length;
+  }
+
+  /**
+   * Look up the code assigned to the given IPv4 address in dotted-quad
+   * notation, or null if the address is not assigned.
+   */
+  public String lookupIpv4Address(String address) {
+    return this.lookupIpv4Address(
+        DatabaseImpl.convertAddressStringToNumber(address));
+  }
+
+  /**
+   * Look up the code assigned to the given IPv4 address number, or null
+   * if the address is not assigned.
+   */
+  public String lookupIpv4Address(long address) {
+    return lookup(this.startAddresses, this.endAddresses, this.codes,
+        address);
+  }
+
+  /**
+   * Look up the code assigned to the given IPv6 address, or null if the
+   * address is not assigned.
+   */
+  public String lookupIpv6Address(String address) {
+    return lookup(this.ipv6StartAddresses, this.ipv6EndAddresses,
+        this.ipv6Codes, DatabaseImpl.convertIpv6AddressStringToNumber(
+        address));
+  }
+
+  /* Helper: find the interval starting at or before the given address
+   * and return its code if it also ends at or after the address. */
+  private static String lookup(long[] startAddresses,
+      long[] endAddresses, String[] codes, long address) {
+    int i = Arrays.binarySearch(startAddresses, address);
+    if (i < 0) {
+      i = -i - 2;
+      if (i < 0 || endAddresses[i] < address) {
+        return null;
+      }
+    }
+    return codes[i];
+  }
+
+  /**
+   * Builder for a snapshot that accepts ranges in the order of
+   * descending start addresses, which is the order in which databases
+   * store their ranges, and merges adjacent ranges with the same code.
+   */
+  static class Builder {
+    private int count = 0, ipv6Count = 0;
+    private long[] startAddresses = new long[1024],
+        endAddresses = new long[1024], ipv6StartAddresses = new long[64],
+        ipv6EndAddresses = new long[64];
+    private String[] codes = new String[1024],
+        ipv6Codes = new String[64];
+    void add(long startAddress, long endAddress, String code) {
+      if (this.count > 0 &&
+          endAddress + 1L == this.startAddresses[this.count - 1] &&
+          code.equals(this.codes[this.count - 1])) {
+        this.startAddresses[this.count - 1] = startAddress;
+        return;
+      }
+      if (this.count == this.codes.length) {
+        int length = 2 * this.count;
+        this.startAddresses = Arrays.copyOf(this.startAddresses, length);
+        this.endAddresses = Arrays.copyOf(this.endAddresses, length);
+        this.codes = Arrays.copyOf(this.codes, length);
+      }
+      this.startAddresses[this.count] = startAddress;
+      this.endAddresses[this.count] = endAddress;
+      this.codes[this.count++] = code;
+    }
+    void addIpv6(long startAddress, long endAddress, String code) {
+      if (this.ipv6Count > 0 &&
+          endAddress + 1L == this.ipv6StartAddresses[this.ipv6Count - 1]
+          && code.equals(this.ipv6Codes[this.ipv6Count - 1])) {
+        this.ipv6StartAddresses[this.ipv6Count - 1] = startAddress;
+        return;
+      }
+      if (this.ipv6Count == this.ipv6Codes.length) {
+        int length = 2 * this.ipv6Count;
+        this.ipv6StartAddresses = Arrays.copyOf(this.ipv6StartAddresses,
+            length);
+        this.ipv6EndAddresses = Arrays.copyOf(this.ipv6EndAddresses,
+            length);
+        this.ipv6Codes = Arrays.copyOf(this.ipv6Codes, length);
+      }
+      this.ipv6StartAddresses[this.ipv6Count] = startAddress;
+      this.ipv6EndAddresses[this.ipv6Count] = endAddress;
+      this.ipv6Codes[this.ipv6Count++] = code;
+    }
+    DatabaseSnapshot build(int databaseDate) {
+      return new DatabaseSnapshot(databaseDate,
+          reverse(this.startAddresses, this.count),
+          reverse(this.endAddresses, this.count),
+          reverse(this.codes, this.count),
+          reverse(this.ipv6StartAddresses, this.ipv6Count),
+          reverse(this.ipv6EndAddresses, this.ipv6Count),
+          reverse(this.ipv6Codes, this.ipv6Count));
+    }
+    private static long[] reverse(long[] values, int count) {
+      long[] reversed = new long[count];
+      for (int i = 0; i < count; i++) {
+        reversed[i] = values[count - 1 - i];
+      }
+      return reversed;
+    }
+    private static String[] reverse(String[] values, int count) {
+      String[] reversed = new String[count];
+      for (int i = 0; i < count; i++) {
+        reversed[i] = values[count - 1 - i];
+      }
+      return reversed;
+    }
+  }
+
+  /**
+   * Cache of the most recently used snapshots by database date.
+   */
+  static class Cache {
+    private final Map<Integer, DatabaseSnapshot> snapshots =
+        new LinkedHashMap<Integer, DatabaseSnapshot>(16, 0.75f, true) {
+      protected boolean removeEldestEntry(
+          Map.Entry<Integer, DatabaseSnapshot> eldest) {
+        return this.size() > CACHE_SIZE;
+      }
+    };
+    synchronized DatabaseSnapshot get(int databaseDate) {
+      return this.snapshots.get(databaseDate);
+    }
+    synchronized void put(DatabaseSnapshot snapshot) {
+      this.snapshots.put(snapshot.databaseDate, snapshot);
+    }
+  }
+}
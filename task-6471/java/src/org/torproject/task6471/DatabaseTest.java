@@ -2,6 +2,32 @@
 package org.torproject.task6471;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.util.Iterator;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import javax.management.ObjectName;
+
 import org.junit.Test;
 
 /**
@@ -198,4 +224,1770 @@ public class DatabaseTest {
     assertEquals("us", database.lookupIpv4AddressAndDate(
         "3.127.0.0", "20121101"));
   }
+
+  @Test()
+  public void testRepairRangeSpanningNewDateAfterPreviousRepair() {
+    DatabaseImporterImpl database = new DatabaseImporterImpl();
+    database.addRegionalRegistryStatsFileRange("20120901", "us",
+        "3.0.0.0", 256);
+    database.repairTree();
+    database.addRegionalRegistryStatsFileRange("20121201", "de",
+        "4.0.0.0", 256);
+    database.repairTree();
+    database.addRegionalRegistryStatsFileRange("20130101", "de",
+        "4.0.0.0", 256);
+    database.repairTree();
+    database.addRegionalRegistryStatsFileRange("20121001", "us",
+        "3.0.0.0", 256);
+    database.repairTree();
+    database.addRegionalRegistryStatsFileRange("20121231", "fr",
+        "5.0.0.0", 256);
+    database.repairTree();
+    assertEquals("de", database.lookupIpv4AddressAndDate("4.0.0.0",
+        "20121201"));
+    assertEquals(null, database.lookupIpv4AddressAndDate("4.0.0.0",
+        "20121231"));
+    assertEquals("de", database.lookupIpv4AddressAndDate("4.0.0.0",
+        "20130101"));
+    assertEquals("us", database.lookupIpv4AddressAndDate("3.0.0.0",
+        "20121001"));
+    assertEquals(null, database.lookupIpv4AddressAndDate("3.0.0.0",
+        "20121231"));
+  }
+
+  /* Helper: import ranges with a gap in the middle database, so that
+   * the combined tree contains split date ranges. */
+  private DatabaseImporterImpl createMissingIpRangeDatabase() {
+    DatabaseImporterImpl database = new DatabaseImporterImpl();
+    database.addRegionalRegistryStatsFileRange("20120901", "us",
+        "3.0.0.0", 16777216);
+    database.repairTree();
+    database.addRegionalRegistryStatsFileRange("20121101", "us",
+        "3.0.0.0", 16777216);
+    database.repairTree();
+    database.addRegionalRegistryStatsFileRange("20121001", "us",
+        "6.0.0.0", 16777216);
+    database.repairTree();
+    database.addRegionalRegistryStatsFileRange("20121001", "ca",
+        "3.0.0.0", 8388608);
+    database.repairTree();
+    return database;
+  }
+
+  /* Helper: assert that two databases return the same results for a
+   * number of addresses and dates. */
+  private void assertSameLookupResults(Database expected,
+      Database actual) {
+    String[] addresses = new String[] { "0.0.0.0", "2.255.255.255",
+        "3.0.0.0", "3.127.255.255", "3.128.0.0", "3.255.255.255",
+        "4.0.0.0", "6.0.0.0", "6.255.255.255", "255.255.255.255" };
+    String[] dates = new String[] { "19920901", "20120801", "20120901",
+        "20120915", "20121001", "20121015", "20121101", "20221101" };
+    for (String address : addresses) {
+      for (String date : dates) {
+        assertEquals(address + " " + date,
+            expected.lookupIpv4AddressAndDate(address, date),
+            actual.lookupIpv4AddressAndDate(address, date));
+      }
+    }
+  }
+
+  @Test()
+  public void testCompactDatabaseConvertedFromTree() {
+    DatabaseImporterImpl database = this.createMissingIpRangeDatabase();
+    CompactDatabaseImpl compactDatabase =
+        new CompactDatabaseImpl(database);
+    assertEquals(database.getNumberOfElements(),
+        compactDatabase.getNumberOfElements());
+    assertEquals("ca", compactDatabase.lookupIpv4AddressAndDate(
+        "3.0.0.0", "20121001"));
+    assertEquals(null, compactDatabase.lookupIpv4AddressAndDate(
+        "3.128.0.0", "20121001"));
+    this.assertSameLookupResults(database, compactDatabase);
+  }
+
+  @Test()
+  public void testCompactDatabaseLoadedFromFile() throws IOException {
+    DatabaseImporterImpl database = this.createMissingIpRangeDatabase();
+    File file = File.createTempFile("task6471-", ".csv");
+    try {
+      assertTrue(database.saveCombinedDatabases(file.getAbsolutePath()));
+      CompactDatabaseImpl compactDatabase = new CompactDatabaseImpl();
+      assertTrue(compactDatabase.loadCombinedDatabases(
+          file.getAbsolutePath()));
+      this.assertSameLookupResults(database, compactDatabase);
+    } finally {
+      file.delete();
+    }
+  }
+
+  @Test()
+  public void testBinaryCombinedDatabases() throws IOException {
+    DatabaseImporterImpl database = this.createMissingIpRangeDatabase();
+    File file = File.createTempFile("task6471-", ".bin");
+    try {
+      assertTrue(database.saveBinaryCombinedDatabases(
+          file.getAbsolutePath()));
+      CompactDatabaseImpl compactDatabase = new CompactDatabaseImpl();
+      assertTrue(compactDatabase.loadCombinedDatabases(
+          file.getAbsolutePath()));
+      assertEquals(database.getNumberOfElements(),
+          compactDatabase.getNumberOfElements());
+      this.assertSameLookupResults(database, compactDatabase);
+      DatabaseImpl treeDatabase = new DatabaseImpl();
+      assertTrue(treeDatabase.loadCombinedDatabases(
+          file.getAbsolutePath()));
+      this.assertSameLookupResults(database, treeDatabase);
+    } finally {
+      file.delete();
+    }
+  }
+
+  @Test()
+  public void testChecksummedCombinedDatabases() throws IOException {
+    SyntheticRegistryData data = new SyntheticRegistryData(6, 2000, 1L);
+    DatabaseImporterImpl database = new DatabaseImporterImpl();
+    for (int registry = data.getNumberOfRegistries() - 1; registry >= 0;
+        registry--) {
+      for (int month = data.getMonths() - 1; month >= 0; month--) {
+        data.addStatsFileRanges(database, registry, month);
+        database.repairTree();
+      }
+    }
+    File directory = File.createTempFile("task6471-", "");
+    directory.delete();
+    directory.mkdir();
+    File csvFile = new File(directory, "combined.csv"),
+        binaryFile = new File(directory, "combined.bin"),
+        brokenFile = new File(directory, "broken.csv");
+    try {
+      assertTrue(database.saveCombinedDatabases(csvFile.getPath()));
+      assertTrue(database.saveBinaryCombinedDatabases(
+          binaryFile.getPath()));
+      assertEquals(2, directory.listFiles().length);
+      assertTrue(csvFile.length() > 4096L * 40L);
+      assertTrue(binaryFile.length() > 2L * 64L * 1024L);
+      for (File file : new File[] { csvFile, binaryFile }) {
+        assertTrue(new DatabaseImpl().loadCombinedDatabases(
+            file.getPath()));
+        assertTrue(new CompactDatabaseImpl().loadCombinedDatabases(
+            file.getPath()));
+      }
+
+      /* Files saved before checksums were added have neither header nor
+       * checksum lines and are still loaded. */
+      String contents = this.readFile(csvFile);
+      BufferedWriter bw = new BufferedWriter(new FileWriter(brokenFile));
+      for (String line : contents.split("\n")) {
+        if (!line.startsWith("#")) {
+          bw.write(line + "\n");
+        }
+      }
+      bw.close();
+      assertTrue(new DatabaseImpl().loadCombinedDatabases(
+          brokenFile.getPath()));
+
+      /* Truncated files are rejected. */
+      bw = new BufferedWriter(new FileWriter(brokenFile));
+      bw.write(contents.substring(0, contents.length() / 2));
+      bw.close();
+      assertFalse(new DatabaseImpl().loadCombinedDatabases(
+          brokenFile.getPath()));
+      assertFalse(new CompactDatabaseImpl().loadCombinedDatabases(
+          brokenFile.getPath()));
+
+      /* Files with a single changed byte are rejected. */
+      for (File file : new File[] { csvFile, binaryFile }) {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        long position = file.length() / 2L;
+        raf.seek(position);
+        int b = raf.read();
+        raf.seek(position);
+        raf.write(b == '1' ? '2' : '1');
+        raf.close();
+        assertFalse(new DatabaseImpl().loadCombinedDatabases(
+            file.getPath()));
+        assertFalse(new CompactDatabaseImpl().loadCombinedDatabases(
+            file.getPath()));
+        assertFalse(new TrieDatabaseImpl().loadCombinedDatabases(
+            file.getPath()));
+      }
+
+      /* Mapping a binary file without verifying checksums accepts a
+       * changed byte, but still rejects truncated files. */
+      CompactDatabaseImpl unverifiedDatabase = new CompactDatabaseImpl();
+      unverifiedDatabase.setVerifyChecksums(false);
+      assertTrue(unverifiedDatabase.loadCombinedDatabases(
+          binaryFile.getPath()));
+      RandomAccessFile raf = new RandomAccessFile(binaryFile, "rw");
+      raf.setLength(binaryFile.length() - 4L);
+      raf.close();
+      assertFalse(unverifiedDatabase.loadCombinedDatabases(
+          binaryFile.getPath()));
+
+      /* Files with matching checksums but code indexes outside of the
+       * code dictionary are rejected, too. */
+      CompactDatabaseImpl brokenDatabase =
+          new CompactDatabaseImpl(database);
+      brokenDatabase.codes = new String[] { "de" };
+      assertTrue(brokenDatabase.saveBinaryCombinedDatabases(
+          binaryFile.getPath()));
+      assertTrue(unverifiedDatabase.loadCombinedDatabases(
+          binaryFile.getPath()));
+      assertFalse(new CompactDatabaseImpl().loadCombinedDatabases(
+          binaryFile.getPath()));
+    } finally {
+      for (File file : directory.listFiles()) {
+        file.delete();
+      }
+      directory.delete();
+    }
+  }
+
+  @Test()
+  public void testColumnarCombinedDatabases() throws IOException {
+    SyntheticRegistryData data = new SyntheticRegistryData(12, 2000, 1L);
+    DatabaseImporterImpl database = new DatabaseImporterImpl();
+    for (int registry = data.getNumberOfRegistries() - 1; registry >= 0;
+        registry--) {
+      for (int month = data.getMonths() - 1; month >= 0; month--) {
+        data.addStatsFileRanges(database, registry, month);
+        database.repairTree();
+      }
+    }
+    database.asNames.put(15169L, data.getDatabaseDate(0), "Google Inc.");
+    File directory = File.createTempFile("task6471-", "");
+    directory.delete();
+    directory.mkdir();
+    File csvFile = new File(directory, "combined.csv"),
+        columnarFile = new File(directory, "combined.col"),
+        copiedFile = new File(directory, "copied.csv");
+    try {
+      assertTrue(database.saveCombinedDatabases(csvFile.getPath()));
+      assertTrue(database.saveColumnarCombinedDatabases(
+          columnarFile.getPath()));
+      assertTrue(columnarFile.length() * 10L < csvFile.length());
+
+      /* Loading the columnar file leads to the same combined databases,
+       * including IPv6 ranges and AS names. */
+      DatabaseImporterImpl loadedDatabase = new DatabaseImporterImpl();
+      assertTrue(loadedDatabase.loadCombinedDatabases(
+          columnarFile.getPath()));
+      assertTrue(loadedDatabase.saveCombinedDatabases(
+          copiedFile.getPath()));
+      assertEquals(this.readFile(csvFile), this.readFile(copiedFile));
+      CompactDatabaseImpl compactDatabase = new CompactDatabaseImpl();
+      assertTrue(compactDatabase.loadCombinedDatabases(
+          columnarFile.getPath()));
+      assertEquals(database.getNumberOfElements(),
+          compactDatabase.getNumberOfElements());
+      assertEquals(database.getNumberOfIpv6Elements(),
+          compactDatabase.getNumberOfIpv6Elements());
+      assertEquals("Google Inc.", compactDatabase.getAsName("AS15169"));
+
+      /* Single lookups from the columnar file return the same results
+       * as lookups in the database. */
+      ColumnarSegment segment = ColumnarSegment.open(
+          columnarFile.getPath());
+      int[] addresses = new int[10000], dates = new int[10000];
+      data.generateLookups(addresses, dates, false, 2L);
+      for (int i = 0; i < addresses.length; i++) {
+        long address = addresses[i] & 0xffffffffL;
+        assertEquals(database.lookupIpv4AddressAndDate(address,
+            dates[i]), segment.lookupIpv4AddressAndDate(address,
+            dates[i]));
+        assertEquals(database.lookupIpv4AddressAndDate(address,
+            dates[i]), compactDatabase.lookupIpv4AddressAndDate(address,
+            dates[i]));
+      }
+
+      /* Files with a single changed byte are rejected. */
+      RandomAccessFile raf = new RandomAccessFile(columnarFile, "rw");
+      long position = columnarFile.length() / 2L;
+      raf.seek(position);
+      int b = raf.read();
+      raf.seek(position);
+      raf.write(b ^ 0xff);
+      raf.close();
+      assertFalse(new DatabaseImpl().loadCombinedDatabases(
+          columnarFile.getPath()));
+      assertFalse(new CompactDatabaseImpl().loadCombinedDatabases(
+          columnarFile.getPath()));
+      segment = ColumnarSegment.open(columnarFile.getPath());
+      int failedLookups = 0;
+      for (int i = 0; i < addresses.length; i++) {
+        try {
+          segment.lookupIpv4AddressAndDate(addresses[i] & 0xffffffffL,
+              dates[i]);
+        } catch (IllegalStateException e) {
+          failedLookups++;
+        }
+      }
+      assertTrue(failedLookups > 0);
+    } finally {
+      for (File file : directory.listFiles()) {
+        file.delete();
+      }
+      directory.delete();
+    }
+  }
+
+  @Test()
+  public void testCodeIdsKeptInBinaryCombinedDatabases()
+      throws IOException {
+    DatabaseImporterImpl database = this.createMissingIpRangeDatabase();
+    File file = File.createTempFile("task6471-", ".bin");
+    try {
+      assertTrue(database.saveBinaryCombinedDatabases(
+          file.getAbsolutePath()));
+      CompactDatabaseImpl compactDatabase = new CompactDatabaseImpl();
+      assertTrue(compactDatabase.loadCombinedDatabases(
+          file.getAbsolutePath()));
+      DatabaseImpl treeDatabase = new DatabaseImpl();
+      assertTrue(treeDatabase.loadCombinedDatabases(
+          file.getAbsolutePath()));
+      for (Database loaded : new Database[] { compactDatabase,
+          treeDatabase, new TrieDatabaseImpl(compactDatabase, 1) }) {
+        for (String addressString : new String[] { "3.0.0.0",
+            "3.128.0.0", "6.0.0.0" }) {
+          long address = DatabaseImpl.convertAddressStringToNumber(
+              addressString);
+          int date = DatabaseImpl.convertDateStringToNumber("20121001");
+          assertEquals(database.lookupIpv4CodeId(address, date),
+              loaded.lookupIpv4CodeId(address, date));
+          assertEquals(database.lookupIpv4AddressAndDate(address, date),
+              loaded.getCodeForId(loaded.lookupIpv4CodeId(address,
+              date)));
+        }
+      }
+    } finally {
+      file.delete();
+    }
+  }
+
+  @Test()
+  public void testCodeDictionary() {
+    CodeDictionary codeDictionary = new CodeDictionary(
+        new String[] { "us", "de" });
+    assertEquals(1, codeDictionary.getCodeId("de"));
+    for (int i = 0; i < 100; i++) {
+      assertEquals(2 + i, codeDictionary.getCodeId("AS" + i));
+    }
+    assertEquals(102, codeDictionary.getCodeId(new String("AS100")));
+    assertEquals(2, codeDictionary.getCodeId(new String("AS0")));
+    assertEquals("AS99", codeDictionary.getCode(101));
+    assertEquals(null, codeDictionary.getCode(103));
+    assertEquals(null, codeDictionary.getCode(CodeDictionary.NO_CODE));
+    assertEquals(103, codeDictionary.toArray().length);
+  }
+
+  /* Helper: assert that batch lookups return the same results as single
+   * lookups for all addresses and dates used in
+   * assertSameLookupResults. */
+  private void assertSameBatchLookupResults(Database database) {
+    String[] addressStrings = new String[] { "255.255.255.255", "3.0.0.0",
+        "6.0.0.0", "2.255.255.255", "3.128.0.0", "3.0.0.0", "4.0.0.0",
+        "0.0.0.0", "3.127.255.255", "6.255.255.255", "3.255.255.255" };
+    String[] dateStrings = new String[] { "20120901", "20121001",
+        "20121015", "19920901", "20121101", "20120915", "20221101" };
+    int queries = addressStrings.length * dateStrings.length;
+    int[] addresses = new int[queries], dates = new int[queries],
+        codeIds = new int[queries];
+    for (int i = 0; i < queries; i++) {
+      addresses[i] = (int) DatabaseImpl.convertAddressStringToNumber(
+          addressStrings[i % addressStrings.length]);
+      dates[i] = DatabaseImpl.convertDateStringToNumber(
+          dateStrings[i % dateStrings.length]);
+    }
+    database.lookupIpv4AddressesAndDates(addresses, dates, codeIds);
+    for (int i = 0; i < queries; i++) {
+      String addressString = addressStrings[i % addressStrings.length],
+          dateString = dateStrings[i % dateStrings.length];
+      assertEquals(addressString + " " + dateString,
+          database.lookupIpv4AddressAndDate(addressString, dateString),
+          database.getCodeForId(codeIds[i]));
+    }
+  }
+
+  @Test()
+  public void testBatchLookups() {
+    DatabaseImporterImpl database = this.createMissingIpRangeDatabase();
+    this.assertSameBatchLookupResults(database);
+    this.assertSameBatchLookupResults(new CompactDatabaseImpl(database));
+    this.assertSameBatchLookupResults(new CompactDatabaseImpl());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBatchLookupsDifferentLengths() {
+    new CompactDatabaseImpl().lookupIpv4AddressesAndDates(new int[2],
+        new int[2], new int[1]);
+  }
+
+  /* Helper: look up the same addresses and dates from several threads
+   * at once and assert that all threads see the same results as a
+   * single thread. */
+  private void assertSameConcurrentLookupResults(final Database database)
+      throws InterruptedException {
+    final String[] addresses = new String[] { "2.255.255.255", "3.0.0.0",
+        "3.128.0.0", "4.0.0.0", "6.0.0.0" };
+    final String[] dates = new String[] { "20120901", "20121001",
+        "20121101" };
+    final String[] expected = new String[addresses.length * dates.length];
+    for (int i = 0; i < expected.length; i++) {
+      expected[i] = database.lookupIpv4AddressAndDate(
+          addresses[i % addresses.length], dates[i % dates.length]);
+    }
+    final int[] failures = new int[8];
+    Thread[] threads = new Thread[failures.length];
+    for (int t = 0; t < threads.length; t++) {
+      final int thread = t;
+      threads[t] = new Thread() {
+        public void run() {
+          for (int run = 0; run < 1000; run++) {
+            for (int i = 0; i < expected.length; i++) {
+              String result = database.lookupIpv4AddressAndDate(
+                  addresses[i % addresses.length],
+                  dates[i % dates.length]);
+              if (expected[i] == null ? result != null :
+                  !expected[i].equals(result)) {
+                failures[thread]++;
+              }
+            }
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    for (int failure : failures) {
+      assertEquals(0, failure);
+    }
+  }
+
+  @Test()
+  public void testConcurrentLookups() throws InterruptedException {
+    DatabaseImporterImpl database = this.createMissingIpRangeDatabase();
+    CompactDatabaseImpl compactDatabase =
+        new CompactDatabaseImpl(database);
+    this.assertSameConcurrentLookupResults(database);
+    this.assertSameConcurrentLookupResults(compactDatabase);
+    assertEquals(8 * 1000 * 15 + 15,
+        compactDatabase.getMetrics().getLookups());
+  }
+
+  /* Helper: import IPv6 ranges from two databases, the second of which
+   * assigns part of the first range to another country. */
+  private DatabaseImporterImpl createIpv6Database() {
+    DatabaseImporterImpl database = new DatabaseImporterImpl();
+    database.addRegionalRegistryStatsFileIpv6Range("20120901", "de",
+        "2001:db8::", 32);
+    database.addRegionalRegistryStatsFileRange("20120901", "us",
+        "3.0.0.0", 16777216);
+    database.repairTree();
+    database.addRegionalRegistryStatsFileIpv6Range("20121001", "de",
+        "2001:db8::", 33);
+    database.addRegionalRegistryStatsFileIpv6Range("20121001", "fr",
+        "2001:db8:8000::", 33);
+    database.addRegionalRegistryStatsFileRange("20121001", "us",
+        "3.0.0.0", 16777216);
+    database.repairTree();
+    return database;
+  }
+
+  /* Helper: assert that a database returns the expected results for
+   * IPv6 lookups in the database created by createIpv6Database. */
+  private void assertIpv6LookupResults(Database database) {
+    assertEquals(null, database.lookupIpv6AddressAndDate(
+        "2001:db7:ffff:ffff:ffff:ffff:ffff:ffff", "20120901"));
+    assertEquals("de", database.lookupIpv6AddressAndDate(
+        "2001:db8::1", "20120901"));
+    assertEquals("de", database.lookupIpv6AddressAndDate(
+        "2001:db8:8000::", "20120915"));
+    assertEquals("fr", database.lookupIpv6AddressAndDate(
+        "2001:db8:8000::", "20121001"));
+    assertEquals("de", database.lookupIpv6AddressAndDate(
+        "2001:db8:7fff:ffff::1", "20121001"));
+    assertEquals("fr", database.lookupIpv6AddressAndDate(
+        "2001:db8:ffff:ffff:ffff:ffff:ffff:ffff", "20221101"));
+    assertEquals(null, database.lookupIpv6AddressAndDate(
+        "2001:db9::", "20121001"));
+    assertEquals("de", database.lookupIpv6AddressAndDate(
+        "2001:db8:8000::", "19920901"));
+    assertEquals("us", database.lookupIpv4AddressAndDate(
+        "3.0.0.0", "20121001"));
+  }
+
+  /* Helper: send a batch of lookups to a lookup server without waiting
+   * for the response. */
+  private void writeLookupBatch(DataOutputStream out, String date,
+      String... addresses) throws IOException {
+    out.writeInt(addresses.length);
+    for (String address : addresses) {
+      out.writeInt((int) DatabaseImpl.convertAddressStringToNumber(
+          address));
+      out.writeInt(DatabaseImpl.convertDateStringToNumber(date));
+    }
+  }
+
+  /* Helper: read the response to a batch of lookups from a lookup
+   * server, returning codes separated by spaces and "-" for addresses
+   * without assignment. */
+  private String readLookupBatch(DataInputStream in) throws IOException {
+    StringBuilder sb = new StringBuilder();
+    int n = in.readInt();
+    for (int i = 0; i < n; i++) {
+      byte[] code = new byte[in.readUnsignedByte()];
+      in.readFully(code);
+      sb.append(i > 0 ? " " : "").append(code.length == 0 ? "-"
+          : new String(code, "US-ASCII"));
+    }
+    return sb.toString();
+  }
+
+  @Test()
+  public void testLookupServer() throws IOException {
+    File directory = File.createTempFile("task6471-", "");
+    directory.delete();
+    directory.mkdir();
+    File combinedFile = new File(directory, "combined.csv");
+    LookupServer server = new LookupServer(
+        combinedFile.getAbsolutePath());
+    File statsDirectory = new File(directory, "stats");
+    try {
+      statsDirectory.mkdir();
+      this.writeStatsFile(statsDirectory, "delegated-arin-20120901",
+          "arin|US|ipv4|3.0.0.0|16777216|19880223|allocated");
+      DatabaseImporter importer = new DatabaseImporterImpl();
+      assertTrue(importer.importRegionalRegistryStatsFileOrDirectory(
+          statsDirectory.getAbsolutePath()));
+      assertTrue(importer.saveCombinedDatabases(
+          combinedFile.getAbsolutePath()));
+      assertTrue(server.start(0));
+      Socket socket = new Socket("127.0.0.1", server.getPort());
+      DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(socket.getOutputStream()));
+      DataInputStream in = new DataInputStream(new BufferedInputStream(
+          socket.getInputStream()));
+      this.writeLookupBatch(out, "20120901", "3.0.0.1", "4.0.0.1");
+      this.writeLookupBatch(out, "20121001");
+      this.writeLookupBatch(out, "20121001", "3.255.255.255");
+      out.flush();
+      assertEquals("us -", this.readLookupBatch(in));
+      assertEquals("", this.readLookupBatch(in));
+      assertEquals("us", this.readLookupBatch(in));
+      this.writeStatsFile(statsDirectory, "delegated-arin-20121001",
+          "arin|US|ipv4|3.0.0.0|16777216|19880223|allocated",
+          "arin|CA|ipv4|4.0.0.0|256|19880223|allocated");
+      importer = new DatabaseImporterImpl();
+      assertTrue(importer.importRegionalRegistryStatsFileOrDirectory(
+          statsDirectory.getAbsolutePath()));
+      assertTrue(importer.saveCombinedDatabases(
+          combinedFile.getAbsolutePath()));
+      assertTrue(server.reloadIfChanged());
+      this.writeLookupBatch(out, "20121001", "3.0.0.1", "4.0.0.1");
+      this.writeLookupBatch(out, "20120901", "4.0.0.1");
+      out.flush();
+      assertEquals("us ca", this.readLookupBatch(in));
+      assertEquals("-", this.readLookupBatch(in));
+      out.writeInt(-1);
+      out.flush();
+      assertEquals(-1, in.read());
+      socket.close();
+    } finally {
+      server.stop();
+      for (File file : statsDirectory.listFiles()) {
+        file.delete();
+      }
+      for (File file : directory.listFiles()) {
+        file.delete();
+      }
+      directory.delete();
+    }
+  }
+
+  @Test()
+  public void testReloadingDatabase() throws Exception {
+    File directory = File.createTempFile("task6471-", "");
+    directory.delete();
+    directory.mkdir();
+    File combinedFile = new File(directory, "combined.csv");
+    File statsDirectory = new File(directory, "stats");
+    final ReloadingDatabase database = new ReloadingDatabase(
+        60L * 60L * 1000L);
+    try {
+      statsDirectory.mkdir();
+      this.writeStatsFile(statsDirectory, "delegated-arin-20120901",
+          "arin|US|ipv4|3.0.0.0|16777216|19880223|allocated");
+      DatabaseImporter importer = new DatabaseImporterImpl();
+      assertTrue(importer.importRegionalRegistryStatsFileOrDirectory(
+          statsDirectory.getAbsolutePath()));
+      assertTrue(importer.saveCombinedDatabases(
+          combinedFile.getAbsolutePath()));
+      assertFalse(database.loadCombinedDatabases(new File(directory,
+          "missing.csv").getAbsolutePath()));
+      assertTrue(database.loadCombinedDatabases(
+          combinedFile.getAbsolutePath()));
+      Database firstVersion = database.getCurrentDatabase();
+      assertEquals(null, database.lookupIpv4AddressAndDate("4.0.0.1",
+          "20121001"));
+      int[] codeIds = new int[1];
+      database.lookupIpv4AddressesAndDates(new int[] { 0x03000001 },
+          new int[] { DatabaseImpl.convertDateStringToNumber(
+          "20121001") }, codeIds);
+      this.writeStatsFile(statsDirectory, "delegated-arin-20121001",
+          "arin|US|ipv4|3.0.0.0|16777216|19880223|allocated",
+          "arin|CA|ipv4|4.0.0.0|256|19880223|allocated");
+      importer = new DatabaseImporterImpl();
+      assertTrue(importer.importRegionalRegistryStatsFileOrDirectory(
+          statsDirectory.getAbsolutePath()));
+      assertTrue(importer.saveCombinedDatabases(
+          combinedFile.getAbsolutePath()));
+      assertEquals(null, database.lookupIpv4AddressAndDate("4.0.0.1",
+          "20121001"));
+      assertTrue(database.reloadIfChanged());
+      assertEquals("ca", database.lookupIpv4AddressAndDate("4.0.0.1",
+          "20121001"));
+      assertEquals(null, firstVersion.lookupIpv4AddressAndDate(
+          "4.0.0.1", "20121001"));
+
+      /* Code ids looked up before the new version was published still
+       * resolve to the codes of the previous version, even though the
+       * new version assigned their ids to other codes. */
+      assertEquals("ca", database.getCurrentDatabase().getCodeForId(
+          firstVersion.lookupIpv4CodeId(0x03000001L,
+          DatabaseImpl.convertDateStringToNumber("20121001"))));
+      assertEquals("us", database.getCodeForId(codeIds[0]));
+      assertEquals("us", database.getCodeForId(database.lookupIpv4CodeId(
+          0x03000001L, DatabaseImpl.convertDateStringToNumber(
+          "20121001"))));
+
+      /* Keep looking up while reloading the file, which must always
+       * return the result of a completely loaded version. */
+      final String[] failure = new String[1];
+      Thread[] readers = new Thread[4];
+      final boolean[] done = new boolean[1];
+      for (int i = 0; i < readers.length; i++) {
+        readers[i] = new Thread() {
+          public void run() {
+            while (true) {
+              synchronized (done) {
+                if (done[0]) {
+                  break;
+                }
+              }
+              String code = database.lookupIpv4AddressAndDate(
+                  "3.0.0.1", "20121001");
+              if (!"us".equals(code)) {
+                synchronized (done) {
+                  failure[0] = code;
+                }
+              }
+            }
+          }
+        };
+        readers[i].start();
+      }
+      for (int i = 0; i < 5; i++) {
+        assertTrue(combinedFile.setLastModified(1000L * (i + 1)));
+        assertTrue(database.reloadIfChanged());
+      }
+      synchronized (done) {
+        done[0] = true;
+      }
+      for (Thread reader : readers) {
+        reader.join();
+      }
+      assertEquals(null, failure[0]);
+
+      BufferedWriter bw = new BufferedWriter(new FileWriter(
+          combinedFile));
+      bw.write("not a combined databases file\n");
+      bw.close();
+      assertFalse(database.reloadIfChanged());
+      assertEquals("ca", database.lookupIpv4AddressAndDate("4.0.0.1",
+          "20121001"));
+    } finally {
+      database.stopReloading();
+      for (File file : statsDirectory.listFiles()) {
+        file.delete();
+      }
+      for (File file : directory.listFiles()) {
+        file.delete();
+      }
+      directory.delete();
+    }
+  }
+
+  @Test()
+  public void testIpv6Ranges() {
+    DatabaseImporterImpl database = this.createIpv6Database();
+    assertEquals(1, database.getNumberOfElements());
+    assertEquals(3, database.getNumberOfIpv6Elements());
+    this.assertIpv6LookupResults(database);
+    this.assertIpv6LookupResults(new CompactDatabaseImpl(database));
+  }
+
+  @Test()
+  public void testIpv6CombinedDatabases() throws IOException {
+    DatabaseImporterImpl database = this.createIpv6Database();
+    File csvFile = File.createTempFile("task6471-", ".csv");
+    File binaryFile = File.createTempFile("task6471-", ".bin");
+    try {
+      assertTrue(database.saveCombinedDatabases(
+          csvFile.getAbsolutePath()));
+      assertTrue(database.saveBinaryCombinedDatabases(
+          binaryFile.getAbsolutePath()));
+      for (File file : new File[] { csvFile, binaryFile }) {
+        DatabaseImpl treeDatabase = new DatabaseImpl();
+        assertTrue(treeDatabase.loadCombinedDatabases(
+            file.getAbsolutePath()));
+        this.assertIpv6LookupResults(treeDatabase);
+        CompactDatabaseImpl compactDatabase = new CompactDatabaseImpl();
+        assertTrue(compactDatabase.loadCombinedDatabases(
+            file.getAbsolutePath()));
+        assertEquals(3, compactDatabase.getNumberOfIpv6Elements());
+        this.assertIpv6LookupResults(compactDatabase);
+      }
+    } finally {
+      csvFile.delete();
+      binaryFile.delete();
+    }
+  }
+
+  @Test()
+  public void testIpv6AddressConversion() {
+    assertEquals(DatabaseImpl.convertIpv6AddressStringToNumber(
+        "2001:db8:0:0:1::"),
+        DatabaseImpl.convertIpv6AddressStringToNumber("2001:db8::1:0:0"));
+    assertEquals(DatabaseImpl.convertIpv6AddressStringToNumber(
+        "::ffff:1.2.3.4"),
+        DatabaseImpl.convertIpv6AddressStringToNumber("::"));
+    assertEquals("2001:db8:0:1::",
+        DatabaseImpl.convertIpv6AddressNumberToString(
+        DatabaseImpl.convertIpv6AddressStringToNumber("2001:db8:0:1::")));
+  }
+
+  @Test(expected = NumberFormatException.class)
+  public void testIllegalIpv6Address() {
+    DatabaseImpl.convertIpv6AddressStringToNumber("2001:db8::g");
+  }
+
+  /* Helper: write a stats file with the given lines to a directory. */
+  private void writeStatsFile(File directory, String fileName,
+      String... lines) throws IOException {
+    BufferedWriter bw = new BufferedWriter(new FileWriter(
+        new File(directory, fileName)));
+    bw.write("2|test|20120901|4|19700101|20120901|+0000\n");
+    bw.write("test|*|ipv4|*|4|summary\n");
+    for (String line : lines) {
+      bw.write(line + "\n");
+    }
+    bw.close();
+  }
+
+  /* Helper: read a file to a string. */
+  private String readFile(File file) throws IOException {
+    StringBuilder sb = new StringBuilder();
+    BufferedReader br = new BufferedReader(new FileReader(file));
+    String line;
+    while ((line = br.readLine()) != null) {
+      sb.append(line).append("\n");
+    }
+    br.close();
+    return sb.toString();
+  }
+
+  @Test()
+  public void testParallelImport() throws IOException {
+    File directory = File.createTempFile("task6471-", "");
+    directory.delete();
+    directory.mkdir();
+    File sequentialFile = new File(directory, "sequential.csv");
+    File parallelFile = new File(directory, "parallel.csv");
+    try {
+      File statsDirectory = new File(directory, "stats");
+      statsDirectory.mkdir();
+      String[] dates = new String[] { "20120901", "20121001", "20121101",
+          "20121201", "20130101" };
+      for (int i = 0; i < dates.length; i++) {
+        this.writeStatsFile(statsDirectory, "delegated-arin-" + dates[i],
+            "arin|US|ipv4|3.0.0.0|" + (i == 2 ? 8388608 : 16777216)
+            + "|19880223|allocated",
+            "arin|US|ipv6|2001:db8::|" + (32 + i) + "|20000101|allocated",
+            "arin|US|asn|1|1|19880223|allocated");
+        if (i != 3) {
+          this.writeStatsFile(statsDirectory, "delegated-ripencc-"
+              + dates[i], "ripencc|DE|ipv4|4.0.0.0|1024|19880223|allocated",
+              "ripencc|" + (i % 2 == 0 ? "FR" : "DE")
+              + "|ipv4|6.0.0.0|65536|19880223|allocated",
+              "ripencc|FR|ipv6|2001:db9::|48|20000101|allocated");
+        }
+      }
+      DatabaseImporter sequentialDatabase = new DatabaseImporterImpl();
+      assertTrue(sequentialDatabase.
+          importRegionalRegistryStatsFileOrDirectory(
+          statsDirectory.getAbsolutePath()));
+      assertTrue(sequentialDatabase.saveCombinedDatabases(
+          sequentialFile.getAbsolutePath()));
+      DatabaseImporter parallelDatabase = new DatabaseImporterImpl();
+      assertTrue(parallelDatabase.
+          importRegionalRegistryStatsFileOrDirectory(
+          statsDirectory.getAbsolutePath(), 4));
+      assertTrue(parallelDatabase.saveCombinedDatabases(
+          parallelFile.getAbsolutePath()));
+      assertEquals(this.readFile(sequentialFile),
+          this.readFile(parallelFile));
+      assertEquals("fr", parallelDatabase.lookupIpv4AddressAndDate(
+          "6.0.0.0", "20121101"));
+      assertEquals(null, parallelDatabase.lookupIpv4AddressAndDate(
+          "3.128.0.0", "20121101"));
+
+      /* Files whose names don't end in a date are skipped and reported
+       * without aborting the import of other files. */
+      this.writeStatsFile(statsDirectory, "README", "Not a stats file");
+      DatabaseImporter skippingDatabase = new DatabaseImporterImpl();
+      assertFalse(skippingDatabase.
+          importRegionalRegistryStatsFileOrDirectory(
+          statsDirectory.getAbsolutePath(), 4));
+      assertEquals("fr", skippingDatabase.lookupIpv4AddressAndDate(
+          "6.0.0.0", "20121101"));
+    } finally {
+      for (File file : directory.listFiles()) {
+        if (file.isDirectory()) {
+          for (File statsFile : file.listFiles()) {
+            statsFile.delete();
+          }
+        }
+        file.delete();
+      }
+      directory.delete();
+    }
+  }
+
+  @Test()
+  public void testGeoLiteCityImport() throws IOException {
+    File directory = File.createTempFile("task6471-", "");
+    directory.delete();
+    File geoLiteCityDirectory = new File(directory,
+        "GeoLiteCity_20121001");
+    geoLiteCityDirectory.mkdirs();
+    try {
+      BufferedWriter bw = new BufferedWriter(new FileWriter(new File(
+          geoLiteCityDirectory, "GeoLiteCity-Location.csv")));
+      bw.write("Copyright (c) 2012 MaxMind LLC.  All Rights Reserved.\n"
+          + "locId,country,region,city,postalCode,latitude,longitude,"
+          + "metroCode,areaCode\n"
+          + "1,\"O1\",\"\",\"\",\"\",0.0000,0.0000,,\n"
+          + "17,\"AU\",\"07\",\"Sydney, NSW\",\"\",-33.8,151.2,,\n"
+          + "2048,\"US\",\"CA\",\"\",\"\",37.0,-122.0,807,650\r\n");
+      bw.close();
+      bw = new BufferedWriter(new FileWriter(new File(
+          geoLiteCityDirectory, "GeoLiteCity-Blocks.csv")));
+      bw.write("Copyright (c) 2011 MaxMind Inc.  All Rights Reserved.\n"
+          + "startIpNum,endIpNum,locId\n"
+          + "\"16777216\",\"16777471\",\"17\"\n"
+          + "\"16777472\",\"16778239\",\"17\"\n"
+          + "\"16778240\",\"16779263\",\"2048\"\n"
+          + "\"16779264\",\"16779264\",\"1\"");
+      bw.close();
+      DatabaseImporterImpl database = new DatabaseImporterImpl();
+      assertTrue(database.importGeoLiteCityFileOrDirectory(
+          directory.getAbsolutePath()));
+      assertEquals(3, database.getNumberOfElements());
+      assertEquals("au", database.lookupIpv4AddressAndDate("1.0.0.0",
+          "20121001"));
+      assertEquals("au", database.lookupIpv4AddressAndDate("1.0.3.255",
+          "20121001"));
+      assertEquals("us", database.lookupIpv4AddressAndDate("1.0.4.0",
+          "20121001"));
+      assertEquals("o1", database.lookupIpv4AddressAndDate("1.0.8.0",
+          "20121001"));
+      assertEquals(null, database.lookupIpv4AddressAndDate("1.0.8.1",
+          "20121001"));
+    } finally {
+      for (File file : geoLiteCityDirectory.listFiles()) {
+        file.delete();
+      }
+      geoLiteCityDirectory.delete();
+      directory.delete();
+    }
+  }
+
+  @Test()
+  public void testGeoLiteCityTokenizerCodes() throws IOException {
+    GeoLiteCityTokenizer tokenizer = new GeoLiteCityTokenizer(
+        new StringReader("\"\u00c9Ab\",aB\u00c9,AB,\u00c9,\"\"\n"));
+    assertEquals("\u00e9ab", tokenizer.readCode());
+    assertEquals("ab\u00e9", tokenizer.readCode());
+    assertEquals("ab", tokenizer.readCode());
+    assertEquals("\u00e9", tokenizer.readCode());
+    assertEquals("", tokenizer.readCode());
+  }
+
+  @Test()
+  public void testAsnImportWithAsNames() throws IOException {
+    File directory = File.createTempFile("task6471-", "");
+    directory.delete();
+    File octoberDirectory = new File(directory, "2012-10"),
+        novemberDirectory = new File(directory, "2012-11");
+    octoberDirectory.mkdirs();
+    novemberDirectory.mkdirs();
+    File csvFile = new File(directory, "combined.csv"),
+        binaryFile = new File(directory, "combined.bin");
+    try {
+      BufferedWriter bw = new BufferedWriter(new FileWriter(new File(
+          octoberDirectory, "GeoIPASNum2.csv")));
+      bw.write("16777216,16777471,\"AS15169 Google Inc.\"\n"
+          + "16777472,16777727,\"AS9381 Wharf T&T Ltd., HK\"\n"
+          + "16777728,16777983,\"AS65000\"\n"
+          + "no,number,\"AS1 Broken\"\n"
+          + "16777984,16778239,\"Not an AS\"\n");
+      bw.close();
+      bw = new BufferedWriter(new FileWriter(new File(
+          novemberDirectory, "GeoIPASNum2.csv")));
+      bw.write("16777216,16777471,\"AS15169 Google LLC\"\n");
+      bw.close();
+      DatabaseImporterImpl database = new DatabaseImporterImpl();
+      assertTrue(database.importGeoIPASNum2FileOrDirectory(
+          directory.getAbsolutePath()));
+      assertEquals("AS9381", database.lookupIpv4AddressAndDate(
+          "1.0.1.0", "20121015"));
+      assertEquals("AS15169 Google LLC",
+          database.lookupIpv4AsNumberAndName("1.0.0.1", "20121015"));
+      assertEquals("AS9381 Wharf T&T Ltd., HK",
+          database.lookupIpv4AsNumberAndName("1.0.1.0", "20121015"));
+      assertEquals("AS65000", database.lookupIpv4AsNumberAndName(
+          "1.0.2.0", "20121015"));
+      assertEquals(null, database.lookupIpv4AsNumberAndName("1.0.3.0",
+          "20121015"));
+      assertEquals(null, database.getAsName("AS1"));
+      assertEquals(null, database.getAsName("15169"));
+
+      /* Copies don't see names that are imported later. */
+      CompactDatabaseImpl copiedDatabase =
+          new CompactDatabaseImpl(database);
+      database.asNames.put(65001L,
+          DatabaseImpl.convertDateStringToNumber("20121201"), "Later");
+      assertEquals("Later", database.getAsName("AS65001"));
+      assertEquals(null, copiedDatabase.getAsName("AS65001"));
+      assertEquals("Google LLC", copiedDatabase.getAsName("AS15169"));
+      assertTrue(database.saveCombinedDatabases(csvFile.getPath()));
+      assertTrue(database.saveBinaryCombinedDatabases(
+          binaryFile.getPath()));
+      for (String path : new String[] { csvFile.getPath(),
+          binaryFile.getPath() }) {
+        DatabaseImpl treeDatabase = new DatabaseImpl();
+        assertTrue(treeDatabase.loadCombinedDatabases(path));
+        CompactDatabaseImpl compactDatabase = new CompactDatabaseImpl();
+        assertTrue(compactDatabase.loadCombinedDatabases(path));
+        for (Database loadedDatabase : new Database[] { treeDatabase,
+            compactDatabase, new TrieDatabaseImpl(compactDatabase, 1) }) {
+          assertEquals("Google LLC", loadedDatabase.getAsName("AS15169"));
+          assertEquals("Wharf T&T Ltd., HK",
+              loadedDatabase.getAsName("AS9381"));
+          assertEquals(null, loadedDatabase.getAsName("AS65000"));
+          assertEquals("AS15169 Google LLC",
+              loadedDatabase.lookupIpv4AsNumberAndName("1.0.0.1",
+              "20121115"));
+        }
+      }
+    } finally {
+      for (File subdirectory : new File[] { octoberDirectory,
+          novemberDirectory }) {
+        for (File file : subdirectory.listFiles()) {
+          file.delete();
+        }
+        subdirectory.delete();
+      }
+      csvFile.delete();
+      binaryFile.delete();
+      directory.delete();
+    }
+  }
+
+  @Test()
+  public void testAsNameTable() {
+    AsNameTable asNames = new AsNameTable();
+    for (int asNumber = 1; asNumber <= 5000; asNumber++) {
+      asNames.put(asNumber, 15614, "Name " + asNumber);
+    }
+    asNames.put(4294967295L, 15614, "Last \u00e4s");
+    asNames.put(42L, 15583, "Older name");
+    asNames.put(43L, 15645, "Newer name");
+    assertEquals(5001, asNames.size());
+    assertEquals("Name 1", asNames.get(1L));
+    assertEquals("Name 42", asNames.get("AS42"));
+    assertEquals("Newer name", asNames.get(43L));
+    assertEquals("Last \u00e4s", asNames.get(4294967295L));
+    assertEquals(null, asNames.get(0L));
+    assertEquals(null, asNames.get(5001L));
+    assertEquals(null, asNames.get("AS"));
+    assertEquals(null, asNames.get("ASx1"));
+    assertTrue(asNames.getOffHeapBytes() > 0L);
+    assertEquals(0L, new AsNameTable().getOffHeapBytes());
+  }
+
+  @Test()
+  public void testSyntheticRegistryData() throws IOException {
+    File directory = File.createTempFile("task6471-", "");
+    directory.delete();
+    directory.mkdir();
+    File importedFile = new File(directory, "imported.csv");
+    File addedFile = new File(directory, "added.csv");
+    try {
+      File statsDirectory = new File(directory, "stats");
+      statsDirectory.mkdir();
+      SyntheticRegistryData data = new SyntheticRegistryData(6, 50, 1L);
+      data.writeStatsFiles(statsDirectory);
+      DatabaseImporter importedDatabase = new DatabaseImporterImpl();
+      assertTrue(importedDatabase.
+          importRegionalRegistryStatsFileOrDirectory(
+          statsDirectory.getAbsolutePath()));
+      assertTrue(importedDatabase.saveCombinedDatabases(
+          importedFile.getAbsolutePath()));
+      DatabaseImporterImpl addedDatabase = new DatabaseImporterImpl();
+      for (int registry = data.getNumberOfRegistries() - 1; registry >= 0;
+          registry--) {
+        for (int month = data.getMonths() - 1; month >= 0; month--) {
+          data.addStatsFileRanges(addedDatabase, registry, month);
+          addedDatabase.repairTree();
+        }
+      }
+      assertTrue(addedDatabase.saveCombinedDatabases(
+          addedFile.getAbsolutePath()));
+      assertEquals(this.readFile(importedFile),
+          this.readFile(addedFile));
+      int[] addresses = new int[100], dates = new int[100];
+      data.generateLookups(addresses, dates, true, 2L);
+      for (int i = 1; i < addresses.length; i++) {
+        assertTrue((addresses[i - 1] & 0xffffffffL)
+            <= (addresses[i] & 0xffffffffL));
+        assertTrue(dates[i - 1] <= dates[i]);
+      }
+    } finally {
+      for (File file : directory.listFiles()) {
+        if (file.isDirectory()) {
+          for (File statsFile : file.listFiles()) {
+            statsFile.delete();
+          }
+        }
+        file.delete();
+      }
+      directory.delete();
+    }
+  }
+
+  @Test()
+  public void testMetrics() throws Exception {
+    File directory = File.createTempFile("task6471-", "");
+    directory.delete();
+    directory.mkdir();
+    try {
+      this.writeStatsFile(directory, "delegated-arin-20120901",
+          "arin|US|ipv4|3.0.0.0|16777216|19880223|allocated");
+      this.writeStatsFile(directory, "delegated-arin-20121101",
+          "arin|US|ipv4|3.0.0.0|16777216|19880223|allocated",
+          "arin|US|ipv6|2001:db8::|32|20000101|allocated");
+      this.writeStatsFile(directory, "delegated-arin-20121001",
+          "arin|US|ipv4|4.0.0.0|16777216|19880223|allocated");
+      DatabaseImporter database = new DatabaseImporterImpl();
+      for (String date : new String[] { "20120901", "20121101",
+          "20121001" }) {
+        assertTrue(database.importRegionalRegistryStatsFileOrDirectory(
+            new File(directory, "delegated-arin-" + date).
+            getAbsolutePath()));
+      }
+      for (int i = 0; i < 1000; i++) {
+        database.lookupIpv4AddressAndDate(0x03000000L + i * 16384L,
+            DatabaseImpl.convertDateStringToNumber("20120901") + i % 60);
+      }
+      database.lookupIpv6AddressAndDate("2001:db8::", "20121001");
+      DatabaseMetrics metrics = database.getMetrics();
+      assertEquals(1001, metrics.getLookups());
+      long histogramLookups = 0L, histogramKeyProbes = 0L;
+      long[] keyProbesHistogram = metrics.getKeyProbesHistogram();
+      for (int i = 0; i < keyProbesHistogram.length; i++) {
+        histogramLookups += keyProbesHistogram[i];
+        histogramKeyProbes += i * keyProbesHistogram[i];
+      }
+      assertEquals(1001, histogramLookups);
+      assertEquals(metrics.getKeyProbes(), histogramKeyProbes);
+      assertTrue(metrics.getSampledLookups() > 0L);
+      assertTrue(metrics.getLookupLatencyMedianNanos()
+          <= metrics.getLookupLatency99thPercentileNanos());
+      assertTrue(Double.isNaN(metrics.getCacheHitRate()));
+      assertEquals(3, metrics.getImportedFiles());
+      assertEquals(4, metrics.getRangesAdded());
+      assertEquals(1, metrics.getRangesSplit());
+      String[] recentFileImports = metrics.getRecentFileImports();
+      assertEquals(3, recentFileImports.length);
+      assertTrue(recentFileImports[0].startsWith(
+          "delegated-arin-20120901: "));
+      assertTrue(recentFileImports[2].endsWith(
+          "1 ranges added, 1 ranges split"));
+      assertEquals(4, metrics.getRanges());
+      assertTrue(metrics.getEstimatedHeapBytesPerRange() > 0.0);
+      long heapBytesWithLookupIndex = metrics.getEstimatedHeapBytes();
+      ((DatabaseImpl) database).invalidateLookupIndex();
+      assertTrue(metrics.getEstimatedHeapBytes()
+          <= heapBytesWithLookupIndex
+          - 4 * DatabaseImpl.LOOKUP_INDEX_RANGE_HEAP_BYTES);
+      assertTrue(metrics.register("test"));
+      try {
+        assertEquals(1001L, ManagementFactory.getPlatformMBeanServer().
+            getAttribute(new ObjectName("org.torproject.task6471:"
+            + "type=Database,name=\"test\""), "Lookups"));
+      } finally {
+        metrics.unregister();
+      }
+    } finally {
+      for (File file : directory.listFiles()) {
+        file.delete();
+      }
+      directory.delete();
+    }
+  }
+
+  @Test()
+  public void testLatencyBuckets() {
+    for (long nanos = 0L; nanos < 1L << 34; nanos = nanos * 3L / 2L + 1L) {
+      int bucket = DatabaseMetrics.getLatencyBucket(nanos);
+      assertTrue(DatabaseMetrics.getLatencyBucketLowerBound(bucket)
+          <= nanos);
+      assertTrue(DatabaseMetrics.getLatencyBucketLowerBound(bucket + 1)
+          > nanos);
+    }
+    assertEquals(DatabaseMetrics.LATENCY_BUCKETS - 1,
+        DatabaseMetrics.getLatencyBucket((1L << 35) - 1L));
+  }
+
+  @Test()
+  public void testLatencySamplingRepeatedQuery() {
+    DatabaseImporterImpl database = this.createMissingIpRangeDatabase();
+    for (int i = 0; i < 640; i++) {
+      database.lookupIpv4AddressAndDate(0x03000000L, 15614);
+    }
+    DatabaseMetrics metrics = database.getMetrics();
+    assertEquals(10L, metrics.getSampledLookups());
+    assertTrue(metrics.getLookupLatency99thPercentileNanos()
+        <= metrics.getLookupLatency99Point9thPercentileNanos());
+  }
+
+  @Test()
+  public void testSnapshots() {
+    SyntheticRegistryData data = new SyntheticRegistryData(12, 200, 1L);
+    DatabaseImporterImpl database = new DatabaseImporterImpl();
+    for (int registry = data.getNumberOfRegistries() - 1; registry >= 0;
+        registry--) {
+      for (int month = data.getMonths() - 1; month >= 0; month--) {
+        data.addStatsFileRanges(database, registry, month);
+        database.repairTree();
+      }
+    }
+    CompactDatabaseImpl compactDatabase =
+        new CompactDatabaseImpl(database);
+    int[] addresses = new int[5000], dates = new int[5000];
+    data.generateLookups(addresses, dates, false, 2L);
+    for (Database db : new Database[] { database, compactDatabase }) {
+      for (int i = 0; i < addresses.length; i++) {
+        long address = addresses[i] & 0xffffffffL;
+        DatabaseSnapshot snapshot = db.getSnapshot(dates[i]);
+        assertEquals(db.lookupIpv4AddressAndDate(address, dates[i]),
+            snapshot.lookupIpv4Address(address));
+      }
+      for (int month = 0; month < data.getMonths(); month += 3) {
+        DatabaseSnapshot snapshot = db.getSnapshot(
+            data.getDateString(month));
+        assertEquals(data.getDatabaseDate(month),
+            snapshot.getDatabaseDate());
+        for (int i = 0; i < 100; i += 10) {
+          String address = String.format("2%03x:%x::", i % 5, i / 10);
+          assertEquals(db.lookupIpv6AddressAndDate(address,
+              data.getDateString(month)),
+              snapshot.lookupIpv6Address(address));
+        }
+      }
+      DatabaseSnapshot snapshot = db.getSnapshot("20071001");
+      long cacheHits = db.getMetrics().getCacheHits();
+      assertTrue(snapshot == db.getSnapshot("20071015"));
+      assertEquals(cacheHits + 1L, db.getMetrics().getCacheHits());
+    }
+    DatabaseSnapshot snapshot = database.getSnapshot("20071001");
+    String code = snapshot.lookupIpv4Address("16.0.0.0");
+    database.addDatabase("delegated-afrinic-20070901",
+        DatabaseImpl.convertDateStringToNumber("20070901"));
+    database.addRange(DatabaseImpl.convertDateStringToNumber("20070901"),
+        0x10000000L, 0x100000ffL, "ke");
+    database.repairTree();
+    assertFalse(snapshot == database.getSnapshot("20071001"));
+    assertEquals(code, database.getSnapshot("20071001").
+        lookupIpv4Address("16.0.0.0"));
+    assertEquals("ke", database.getSnapshot("20070901").
+        lookupIpv4Address("16.0.0.0"));
+  }
+
+  @Test()
+  public void testIntervalsAndChanges() {
+    DatabaseImporterImpl database = new DatabaseImporterImpl();
+    int september = DatabaseImpl.convertDateStringToNumber("20120901"),
+        october = DatabaseImpl.convertDateStringToNumber("20121001");
+    database.addDatabase("delegated-test-20121001", october);
+    database.addRange(october, 0x01000000L, 0x010000ffL, "au");
+    database.addRange(october, 0x01000100L, 0x010001ffL, "nz");
+    database.addRange(october, 0x03000000L, 0x030000ffL, "de");
+    database.repairTree();
+    database.addDatabase("delegated-test-20120901", september);
+    database.addRange(september, 0x01000000L, 0x010000ffL, "au");
+    database.addRange(september, 0x01000100L, 0x010001ffL, "au");
+    database.addRange(september, 0x02000000L, 0x020000ffL, "us");
+    database.repairTree();
+    CompactDatabaseImpl compactDatabase =
+        new CompactDatabaseImpl(database);
+    for (Database db : new Database[] { database, compactDatabase,
+        new TrieDatabaseImpl(compactDatabase, 1) }) {
+      Iterator<AddressInterval> intervals =
+          db.iterateIpv4Intervals("20120915");
+      assertEquals("1.0.0.0-1.0.1.255:au", intervals.next().toString());
+      AddressInterval interval = intervals.next();
+      assertEquals(0x02000000L, interval.getStartAddress());
+      assertEquals(256L, interval.getNumberOfAddresses());
+      assertEquals("us", interval.getCode());
+      assertFalse(intervals.hasNext());
+      Iterator<AddressInterval.Change> changes =
+          db.iterateIpv4Changes("20120901", "20121001");
+      assertEquals("1.0.1.0-1.0.1.255:au>nz",
+          changes.next().toString());
+      AddressInterval.Change change = changes.next();
+      assertEquals("us", change.getOldCode());
+      assertEquals(null, change.getNewCode());
+      change = changes.next();
+      assertEquals(null, change.getOldCode());
+      assertEquals("de", change.getNewCode());
+      assertEquals(0x030000ffL, change.getEndAddress());
+      assertFalse(changes.hasNext());
+      assertFalse(db.iterateIpv4Changes("20121001", "20121101").
+          hasNext());
+    }
+    assertFalse(new DatabaseImpl().iterateIpv4Intervals("20121001").
+        hasNext());
+    assertFalse(new CompactDatabaseImpl().iterateIpv4Changes("20121001",
+        "20121101").hasNext());
+  }
+
+  @Test()
+  public void testSyntheticIntervalsAndChanges() {
+    SyntheticRegistryData data = new SyntheticRegistryData(6, 200, 1L);
+    DatabaseImporterImpl database = new DatabaseImporterImpl();
+    for (int registry = data.getNumberOfRegistries() - 1; registry >= 0;
+        registry--) {
+      for (int month = data.getMonths() - 1; month >= 0; month--) {
+        data.addStatsFileRanges(database, registry, month);
+        database.repairTree();
+      }
+    }
+    CompactDatabaseImpl compactDatabase =
+        new CompactDatabaseImpl(database);
+    for (Database db : new Database[] { database, compactDatabase }) {
+      for (int month = 0; month < data.getMonths(); month++) {
+        String date = data.getDateString(month);
+        int intervals = 0;
+        long lastEndAddress = -1L;
+        Iterator<AddressInterval> iterator =
+            db.iterateIpv4Intervals(date);
+        while (iterator.hasNext()) {
+          AddressInterval interval = iterator.next();
+          assertTrue(interval.getStartAddress() > lastEndAddress);
+          assertEquals(interval.getCode(), db.lookupIpv4AddressAndDate(
+              interval.getEndAddress(), DatabaseImpl.
+              convertDateStringToNumber(date)));
+          lastEndAddress = interval.getEndAddress();
+          intervals++;
+        }
+        assertEquals(db.getSnapshot(date).getNumberOfIntervals(),
+            intervals);
+      }
+      String fromDate = data.getDateString(0),
+          toDate = data.getDateString(data.getMonths() - 1);
+      Iterator<AddressInterval.Change> changes =
+          db.iterateIpv4Changes(fromDate, toDate);
+      int numberOfChanges = 0;
+      while (changes.hasNext()) {
+        AddressInterval.Change change = changes.next();
+        numberOfChanges++;
+        for (long address : new long[] { change.getStartAddress(),
+            change.getEndAddress() }) {
+          assertEquals(change.getOldCode(),
+              db.lookupIpv4AddressAndDate(address,
+              DatabaseImpl.convertDateStringToNumber(fromDate)));
+          assertEquals(change.getNewCode(),
+              db.lookupIpv4AddressAndDate(address,
+              DatabaseImpl.convertDateStringToNumber(toDate)));
+        }
+      }
+      assertTrue(numberOfChanges > 0);
+    }
+  }
+
+  @Test()
+  public void testAssignmentHistory() {
+    DatabaseImporterImpl database = new DatabaseImporterImpl();
+    int september = DatabaseImpl.convertDateStringToNumber("20120901"),
+        october = DatabaseImpl.convertDateStringToNumber("20121001"),
+        november = DatabaseImpl.convertDateStringToNumber("20121101");
+    database.addDatabase("delegated-test-20121101", november);
+    database.addRange(november, 0x01000000L, 0x010000ffL, "au");
+    database.repairTree();
+    database.addDatabase("delegated-test-20121001", october);
+    database.addRange(october, 0x01000000L, 0x010000ffL, "nz");
+    database.repairTree();
+    database.addDatabase("delegated-test-20120901", september);
+    database.addRange(september, 0x01000000L, 0x010001ffL, "au");
+    database.repairTree();
+    CompactDatabaseImpl compactDatabase =
+        new CompactDatabaseImpl(database);
+    for (Database db : new Database[] { database, compactDatabase,
+        new TrieDatabaseImpl(compactDatabase, 1) }) {
+      assertEquals("[20120801-20120930:au, 20121001-20121031:nz, "
+          + "20121101-20121231:au]", db.lookupIpv4AssignmentHistory(
+          "1.0.0.1", "20120801", "20121231").toString());
+      assertEquals("[20121015-20121031:nz]",
+          db.lookupIpv4AssignmentHistory("1.0.0.1", "20121015",
+          "20121031").toString());
+      assertEquals("[20120801-20120930:au]",
+          db.lookupIpv4AssignmentHistory("1.0.1.1", "20120801",
+          "20121231").toString());
+      assertEquals("[]", db.lookupIpv4AssignmentHistory("2.0.0.1",
+          "20120801", "20121231").toString());
+    }
+
+    /* Compare histories with looking up addresses on every day. */
+    SyntheticRegistryData data = new SyntheticRegistryData(6, 200, 1L);
+    database = new DatabaseImporterImpl();
+    for (int registry = data.getNumberOfRegistries() - 1; registry >= 0;
+        registry--) {
+      for (int month = data.getMonths() - 1; month >= 0; month--) {
+        data.addStatsFileRanges(database, registry, month);
+        database.repairTree();
+      }
+    }
+    compactDatabase = new CompactDatabaseImpl(database);
+    int fromDay = DatabaseImpl.convertDateStringToNumber(
+        data.getDateString(0)) - 10, toDay =
+        DatabaseImpl.convertDateStringToNumber(data.getDateString(
+        data.getMonths() - 1)) + 40;
+    String fromDate = DatabaseImpl.convertDateNumberToString(fromDay),
+        toDate = DatabaseImpl.convertDateNumberToString(toDay);
+    for (Database db : new Database[] { database, compactDatabase }) {
+      Iterator<AddressInterval.Change> changes = db.iterateIpv4Changes(
+          data.getDateString(0), data.getDateString(2));
+      int addresses = 0;
+      while (changes.hasNext() && addresses++ < 200) {
+        long address = changes.next().getStartAddress();
+        List<AssignmentPeriod> history = db.lookupIpv4AssignmentHistory(
+            DatabaseImpl.convertAddressNumberToString(address), fromDate,
+            toDate);
+        int period = 0;
+        for (int day = fromDay; day <= toDay; day++) {
+          String date = DatabaseImpl.convertDateNumberToString(day),
+              code = null;
+          while (period < history.size() &&
+              history.get(period).getToDate().compareTo(date) < 0) {
+            period++;
+          }
+          if (period < history.size() &&
+              history.get(period).getFromDate().compareTo(date) <= 0) {
+            code = history.get(period).getCode();
+          }
+          assertEquals(address + " " + date,
+              db.lookupIpv4AddressAndDate(address, day), code);
+        }
+      }
+      assertTrue(addresses > 0);
+    }
+  }
+
+  @Test()
+  public void testTrieLookups() {
+    SyntheticRegistryData data = new SyntheticRegistryData(12, 200, 1L);
+    DatabaseImporterImpl database = new DatabaseImporterImpl();
+    for (int registry = data.getNumberOfRegistries() - 1; registry >= 0;
+        registry--) {
+      for (int month = data.getMonths() - 1; month >= 0; month--) {
+        data.addStatsFileRanges(database, registry, month);
+        database.repairTree();
+      }
+    }
+    int date = DatabaseImpl.convertDateStringToNumber("20081001");
+    database.addDatabase("delegated-test-20081001", date);
+    database.addRange(date, 0x01000001L, 0x0102fffeL, "aa");
+    database.addRange(date, 0x0102ffffL, 0x01030000L, "bb");
+    database.addRange(date, 0x02000080L, 0x020000ffL, "cc");
+    database.addRange(date, 0x02000100L, 0x02000100L, "dd");
+    database.addRange(date, 0xffffff00L, 0xffffffffL, "ee");
+    database.repairTree();
+    CompactDatabaseImpl compactDatabase =
+        new CompactDatabaseImpl(database);
+    TrieDatabaseImpl trieDatabase =
+        new TrieDatabaseImpl(compactDatabase, 4);
+    int[] addresses = new int[5000], dates = new int[5000];
+    data.generateLookups(addresses, dates, false, 2L);
+    for (int i = 0; i < addresses.length; i++) {
+      long address = addresses[i] & 0xffffffffL;
+      assertEquals(compactDatabase.lookupIpv4AddressAndDate(address,
+          dates[i]), trieDatabase.lookupIpv4AddressAndDate(address,
+          dates[i]));
+    }
+    long[] unalignedAddresses = new long[] { 0x01000000L, 0x01000001L,
+        0x0101ffffL, 0x0102fffeL, 0x0102ffffL, 0x01030000L, 0x01030001L,
+        0x0200007fL, 0x02000080L, 0x020000ffL, 0x02000100L, 0x02000101L,
+        0xfffffeffL, 0xffffff00L, 0xffffffffL };
+    for (long address : unalignedAddresses) {
+      for (String dateString : new String[] { "20081001", "20091231",
+          "20071001", "19700101" }) {
+        assertEquals(database.lookupIpv4AddressAndDate(
+            DatabaseImpl.convertAddressNumberToString(address),
+            dateString), trieDatabase.lookupIpv4AddressAndDate(
+            DatabaseImpl.convertAddressNumberToString(address),
+            dateString));
+      }
+    }
+    assertEquals("bb", trieDatabase.lookupIpv4AddressAndDate(
+        "1.3.0.0", "20081001"));
+    assertEquals(null, trieDatabase.lookupIpv4AddressAndDate(
+        "2.0.1.1", "20081001"));
+    int[] codeIds = new int[addresses.length];
+    trieDatabase.lookupIpv4AddressesAndDates(addresses, dates, codeIds);
+    for (int i = 0; i < addresses.length; i++) {
+      assertEquals(compactDatabase.lookupIpv4AddressAndDate(
+          addresses[i] & 0xffffffffL, dates[i]),
+          trieDatabase.getCodeForId(codeIds[i]));
+    }
+    assertEquals(database.lookupIpv6AddressAndDate("2000:0::",
+        "20080101"), trieDatabase.lookupIpv6AddressAndDate("2000:0::",
+        "20080101"));
+    assertTrue(trieDatabase.getMetrics().getEstimatedHeapBytes() > 0L);
+    assertEquals(null, new TrieDatabaseImpl().lookupIpv4AddressAndDate(
+        "1.2.3.4", "20120101"));
+  }
+
+  /* Helper: gzip-compress a file and delete the original. */
+  private void gzipFile(File file) throws IOException {
+    FileInputStream fis = new FileInputStream(file);
+    GZIPOutputStream gos = new GZIPOutputStream(new FileOutputStream(
+        new File(file.getParentFile(), file.getName() + ".gz")));
+    byte[] buffer = new byte[1024];
+    int length;
+    while ((length = fis.read(buffer)) >= 0) {
+      gos.write(buffer, 0, length);
+    }
+    fis.close();
+    gos.close();
+    file.delete();
+  }
+
+  @Test()
+  public void testCompressedImport() throws IOException {
+    File directory = File.createTempFile("task6471-", "");
+    directory.delete();
+    directory.mkdir();
+    File plainFile = new File(directory, "plain.csv");
+    File compressedFile = new File(directory, "compressed.csv");
+    try {
+      File statsDirectory = new File(directory, "stats");
+      statsDirectory.mkdir();
+      this.writeStatsFile(statsDirectory, "delegated-arin-20120901",
+          "arin|US|ipv4|3.0.0.0|16777216|19880223|allocated");
+      this.writeStatsFile(statsDirectory, "delegated-arin-20121001",
+          "arin|US|ipv4|3.0.0.0|8388608|19880223|allocated");
+      DatabaseImporter plainDatabase = new DatabaseImporterImpl();
+      assertTrue(plainDatabase.importRegionalRegistryStatsFileOrDirectory(
+          statsDirectory.getAbsolutePath()));
+      assertTrue(plainDatabase.saveCombinedDatabases(
+          plainFile.getAbsolutePath()));
+      for (File statsFile : statsDirectory.listFiles()) {
+        this.gzipFile(statsFile);
+      }
+      DatabaseImporter compressedDatabase = new DatabaseImporterImpl();
+      assertTrue(compressedDatabase.
+          importRegionalRegistryStatsFileOrDirectory(
+          statsDirectory.getAbsolutePath()));
+      assertTrue(compressedDatabase.saveCombinedDatabases(
+          compressedFile.getAbsolutePath()));
+      assertEquals(this.readFile(plainFile),
+          this.readFile(compressedFile));
+      BufferedWriter bw = new BufferedWriter(new FileWriter(
+          new File(statsDirectory, "delegated-arin-20121101.gz")));
+      bw.write("not gzip-compressed\n");
+      bw.close();
+      assertFalse(new DatabaseImporterImpl().
+          importRegionalRegistryStatsFileOrDirectory(
+          statsDirectory.getAbsolutePath()));
+    } finally {
+      for (File file : directory.listFiles()) {
+        if (file.isDirectory()) {
+          for (File statsFile : file.listFiles()) {
+            statsFile.delete();
+          }
+        }
+        file.delete();
+      }
+      directory.delete();
+    }
+  }
+
+  /* Helper: write a digest file for the given file in the format
+   * written by "md5sum", or a wrong digest file. */
+  private void writeMd5File(File file, String digestFileName,
+      boolean correct) throws Exception {
+    MessageDigest md5 = MessageDigest.getInstance("MD5");
+    FileInputStream fis = new FileInputStream(file);
+    byte[] buffer = new byte[1024];
+    int length;
+    while ((length = fis.read(buffer)) >= 0) {
+      md5.update(buffer, 0, length);
+    }
+    fis.close();
+    if (!correct) {
+      md5.update((byte) 0);
+    }
+    StringBuilder sb = new StringBuilder();
+    for (byte b : md5.digest()) {
+      sb.append(String.format("%02x", b & 0xff));
+    }
+    BufferedWriter bw = new BufferedWriter(new FileWriter(
+        new File(file.getParentFile(), digestFileName)));
+    bw.write(sb.toString() + "  " + file.getName() + "\n");
+    bw.close();
+  }
+
+  @Test()
+  public void testVerifiedImport() throws Exception {
+    File directory = File.createTempFile("task6471-", "");
+    directory.delete();
+    directory.mkdir();
+    try {
+      this.writeStatsFile(directory, "delegated-arin-20120901",
+          "arin|US|ipv4|3.0.0.0|16777216|19880223|allocated");
+      this.writeMd5File(new File(directory, "delegated-arin-20120901"),
+          "delegated-arin-20120901.md5", true);
+      this.writeStatsFile(directory, "delegated-ripencc-20120901",
+          "ripencc|DE|ipv4|4.0.0.0|1024|19880223|allocated");
+      this.writeMd5File(new File(directory,
+          "delegated-ripencc-20120901"),
+          "delegated-ripencc-20120901.md5", true);
+      this.gzipFile(new File(directory, "delegated-ripencc-20120901"));
+      this.writeStatsFile(directory, "delegated-lacnic-20120901",
+          "lacnic|BR|ipv4|5.0.0.0|256|19880223|allocated");
+      this.gzipFile(new File(directory, "delegated-lacnic-20120901"));
+      this.writeMd5File(new File(directory,
+          "delegated-lacnic-20120901.gz"),
+          "delegated-lacnic-20120901.gz.md5", true);
+      this.writeStatsFile(directory, "delegated-apnic-20120901",
+          "apnic|AU|ipv4|1.0.0.0|256|20110811|assigned");
+      this.writeMd5File(new File(directory, "delegated-apnic-20120901"),
+          "delegated-apnic-20120901.md5", false);
+      DatabaseImporter database = new DatabaseImporterImpl();
+      assertFalse(database.importRegionalRegistryStatsFileOrDirectory(
+          directory.getAbsolutePath()));
+      assertEquals("us", database.lookupIpv4AddressAndDate(
+          "3.0.0.1", "20120901"));
+      assertEquals("de", database.lookupIpv4AddressAndDate(
+          "4.0.0.1", "20120901"));
+      assertEquals("br", database.lookupIpv4AddressAndDate(
+          "5.0.0.1", "20120901"));
+      assertEquals(null, database.lookupIpv4AddressAndDate(
+          "1.0.0.1", "20120901"));
+      new File(directory, "delegated-apnic-20120901.md5").delete();
+      assertTrue(new DatabaseImporterImpl().
+          importRegionalRegistryStatsFileOrDirectory(
+          directory.getAbsolutePath()));
+    } finally {
+      for (File file : directory.listFiles()) {
+        file.delete();
+      }
+      directory.delete();
+    }
+  }
+
+  /* Helper: write stats files for the given date index to a directory,
+   * using address ranges that change from date to date. */
+  private void writeChangingStatsFiles(File directory, String date,
+      int i) throws IOException {
+    this.writeStatsFile(directory, "delegated-arin-" + date,
+        "arin|US|ipv4|3.0.0.0|" + (i == 3 ? 8388608 : 16777216)
+        + "|19880223|allocated",
+        "arin|US|ipv6|2001:db8::|" + (i == 4 ? 33 : 32)
+        + "|20000101|allocated");
+    this.writeStatsFile(directory, "delegated-ripencc-" + date,
+        "ripencc|DE|ipv4|4.0.0.0|1024|19880223|allocated",
+        (i >= 3 ? "ripencc|NL|ipv4|5.0.0.0|256|19880223|allocated" : ""),
+        "ripencc|" + (i % 2 == 0 ? "FR" : "DE")
+        + "|ipv4|6.0.0.0|65536|19880223|allocated",
+        "ripencc|FR|ipv6|2001:db9::|48|20000101|allocated");
+  }
+
+  @Test()
+  public void testAppendToCombinedDatabases() throws IOException {
+    File directory = File.createTempFile("task6471-", "");
+    directory.delete();
+    directory.mkdir();
+    File baseFile = new File(directory, "base.bin");
+    File deltaFile = new File(directory, "base.bin.delta");
+    File fullFile = new File(directory, "full.csv");
+    File compactedFile = new File(directory, "compacted.csv");
+    String[] dates = new String[] { "20120901", "20121001", "20121101",
+        "20121201", "20130101" };
+    File[] statsDirectories = new File[dates.length + 1];
+    try {
+      File allStatsDirectory = new File(directory, "all");
+      allStatsDirectory.mkdir();
+      for (int i = 0; i < dates.length; i++) {
+        statsDirectories[i] = new File(directory, dates[i]);
+        statsDirectories[i].mkdir();
+        this.writeChangingStatsFiles(statsDirectories[i], dates[i], i);
+        this.writeChangingStatsFiles(allStatsDirectory, dates[i], i);
+      }
+      statsDirectories[dates.length] = allStatsDirectory;
+      DatabaseImporter fullDatabase = new DatabaseImporterImpl();
+      assertTrue(fullDatabase.importRegionalRegistryStatsFileOrDirectory(
+          allStatsDirectory.getAbsolutePath()));
+      assertTrue(fullDatabase.saveCombinedDatabases(
+          fullFile.getAbsolutePath()));
+      DatabaseImporter baseDatabase = new DatabaseImporterImpl();
+      for (int i = 0; i < 3; i++) {
+        assertTrue(baseDatabase.importRegionalRegistryStatsFileOrDirectory(
+            statsDirectories[i].getAbsolutePath()));
+      }
+      assertTrue(baseDatabase.saveBinaryCombinedDatabases(
+          baseFile.getAbsolutePath()));
+      for (int i = 3; i < dates.length; i++) {
+        assertTrue(baseDatabase.appendRegionalRegistryStatsFileOrDirectory(
+            baseFile.getAbsolutePath(),
+            statsDirectories[i].getAbsolutePath()));
+      }
+      assertTrue(deltaFile.exists());
+      assertFalse(baseDatabase.appendRegionalRegistryStatsFileOrDirectory(
+          baseFile.getAbsolutePath(),
+          statsDirectories[1].getAbsolutePath()));
+      DatabaseImpl treeDatabase = new DatabaseImpl();
+      assertTrue(treeDatabase.loadCombinedDatabases(
+          baseFile.getAbsolutePath()));
+      this.assertSameLookupResults(fullDatabase, treeDatabase);
+      CompactDatabaseImpl compactDatabase = new CompactDatabaseImpl();
+      assertTrue(compactDatabase.loadCombinedDatabases(
+          baseFile.getAbsolutePath()));
+      this.assertSameLookupResults(fullDatabase, compactDatabase);
+      assertEquals("nl", compactDatabase.lookupIpv4AddressAndDate(
+          "5.0.0.0", "20130101"));
+      assertEquals("us", compactDatabase.lookupIpv6AddressAndDate(
+          "2001:db8:8000::", "20121201"));
+      assertEquals(null, compactDatabase.lookupIpv6AddressAndDate(
+          "2001:db8:8000::", "20130101"));
+      assertEquals("us", treeDatabase.lookupIpv6AddressAndDate(
+          "2001:db8::", "20130101"));
+      assertTrue(baseDatabase.compactCombinedDatabases(
+          baseFile.getAbsolutePath()));
+      assertFalse(deltaFile.exists());
+      DatabaseImporter compactedDatabase = new DatabaseImporterImpl();
+      assertTrue(compactedDatabase.loadCombinedDatabases(
+          baseFile.getAbsolutePath()));
+      assertTrue(compactedDatabase.saveCombinedDatabases(
+          compactedFile.getAbsolutePath()));
+      assertEquals(this.readFile(fullFile),
+          this.readFile(compactedFile));
+    } finally {
+      for (File file : directory.listFiles()) {
+        if (file.isDirectory()) {
+          for (File statsFile : file.listFiles()) {
+            statsFile.delete();
+          }
+        }
+        file.delete();
+      }
+      directory.delete();
+    }
+  }
+
+  @Test()
+  public void testAddRangeStartingInGapAroundExistingRange()
+      throws IOException {
+    File directory = File.createTempFile("task6471-", "");
+    directory.delete();
+    directory.mkdir();
+    File baseFile = new File(directory, "base.bin");
+    File firstDirectory = new File(directory, "20120101"),
+        secondDirectory = new File(directory, "20120102"),
+        gapDirectory = new File(directory, "gap");
+    try {
+      firstDirectory.mkdir();
+      secondDirectory.mkdir();
+      gapDirectory.mkdir();
+      this.writeStatsFile(firstDirectory, "delegated-ripencc-20120101",
+          "ripencc|DE|ipv4|10.0.59.0|256|19880223|allocated",
+          "ripencc|NL|ipv4|10.0.62.0|512|19880223|allocated");
+      this.writeStatsFile(secondDirectory, "delegated-ripencc-20120102",
+          "ripencc|US|ipv4|10.0.40.0|2048|19880223|allocated");
+      this.writeStatsFile(secondDirectory, "delegated-arin-20120102",
+          "arin|FR|ipv4|10.0.60.0|1024|19880223|allocated");
+      this.writeStatsFile(gapDirectory, "delegated-arin-20120101",
+          "arin|FR|ipv4|10.0.60.0|1024|19880223|allocated");
+      this.writeStatsFile(gapDirectory, "delegated-ripencc-20120102",
+          "ripencc|US|ipv4|10.0.40.0|2048|19880223|allocated",
+          "ripencc|NL|ipv4|10.0.62.0|512|19880223|allocated");
+
+      /* A new range starting in a gap after an unrelated range must not
+       * be extended down to the end of that range when it's split
+       * around an existing range.  Files are imported from newest to
+       * oldest, so that the enclosing range is added last. */
+      DatabaseImporter gapDatabase = new DatabaseImporterImpl();
+      assertTrue(gapDatabase.importRegionalRegistryStatsFileOrDirectory(
+          gapDirectory.getAbsolutePath()));
+      assertEquals(null, gapDatabase.lookupIpv4AddressAndDate(
+          "10.0.50.0", "20120101"));
+      assertEquals("fr", gapDatabase.lookupIpv4AddressAndDate(
+          "10.0.60.0", "20120101"));
+      assertEquals("fr", gapDatabase.lookupIpv4AddressAndDate(
+          "10.0.62.0", "20120101"));
+
+      /* The same goes for appending a range that encloses an existing
+       * range, where the working tree only contains the unrelated range
+       * added before, but not the range preceding the new range. */
+      DatabaseImporter baseDatabase = new DatabaseImporterImpl();
+      assertTrue(baseDatabase.importRegionalRegistryStatsFileOrDirectory(
+          firstDirectory.getAbsolutePath()));
+      assertTrue(baseDatabase.saveBinaryCombinedDatabases(
+          baseFile.getAbsolutePath()));
+      assertTrue(baseDatabase.appendRegionalRegistryStatsFileOrDirectory(
+          baseFile.getAbsolutePath(), secondDirectory.getAbsolutePath()));
+      DatabaseImporter fullDatabase = new DatabaseImporterImpl();
+      assertTrue(fullDatabase.importRegionalRegistryStatsFileOrDirectory(
+          firstDirectory.getAbsolutePath()));
+      assertTrue(fullDatabase.importRegionalRegistryStatsFileOrDirectory(
+          secondDirectory.getAbsolutePath()));
+      for (Database database : new Database[] { new DatabaseImpl(),
+          new CompactDatabaseImpl() }) {
+        assertTrue(database.loadCombinedDatabases(
+            baseFile.getAbsolutePath()));
+        assertEquals(null, database.lookupIpv4AddressAndDate(
+            "10.0.50.0", "20120102"));
+        assertEquals("fr", database.lookupIpv4AddressAndDate(
+            "10.0.60.0", "20120102"));
+        assertEquals("nl", database.lookupIpv4AddressAndDate(
+            "10.0.62.0", "20120101"));
+        this.assertSameLookupResults(fullDatabase, database);
+      }
+    } finally {
+      for (File file : directory.listFiles()) {
+        if (file.isDirectory()) {
+          for (File statsFile : file.listFiles()) {
+            statsFile.delete();
+          }
+        }
+        file.delete();
+      }
+      directory.delete();
+    }
+  }
 }
@@ -0,0 +1,397 @@
+/* Copyright 2012 The Tor Project */
+package org.torproject.task6471;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Changes appended to a saved combined databases file since it was last
+ * compacted.
+ *
+ * A delta segment covers a set of disjoint IPv4 and IPv6 address
+ * intervals and contains all ranges starting in these intervals.  When
+ * loading combined databases, ranges starting in covered intervals are
+ * replaced by the delta segment's ranges.  This works, because ranges
+ * are always split in a way that any two ranges are either identical or
+ * disjoint address-wise, so that any range in the combined databases
+ * file lies either completely inside or completely outside of covered
+ * intervals.
+ *
+ * Appending a new database date fetches only those ranges from the
+ * combined databases file that overlap with ranges in the new stats
+ * files, adds them to the delta segment, and extends covered intervals
+ * accordingly.  This relies on adding a range only creating or
+ * removing ranges within the address interval of the new range and of
+ * the ranges overlapping it, even though the working tree lacks all
+ * other ranges of the combined databases file.  It also relies on
+ * repairTree() not being necessary for these ranges, because it only
+ * splits ranges around a new database date that lies between their
+ * first and last database date, which can never happen for a date that
+ * is not before any known database date.
+ *
+ * The delta segment file has the same format as CSV combined databases
+ * files, including header line and block checksums, except that it only
+ * lists newly added database file names and has additional lines
+ * starting with "*" that contain start and end address of covered
+ * intervals.
+ */
+class DeltaSegment extends DatabaseImporterImpl {
+
+  /**
+   * Return the delta segment file of the given combined databases file.
+   */
+  static File getDeltaFile(String combinedDatabasesPath) {
+    return new File(combinedDatabasesPath + ".delta");
+  }
+
+  /**
+   * Covered IPv4 address intervals, with start addresses as keys and end
+   * addresses as values.
+   */
+  TreeMap<Long, Long> ipv4Coverage = new TreeMap<Long, Long>();
+
+  /**
+   * Covered IPv6 address intervals, using the same /64 network prefixes
+   * as IPv6 ranges.
+   */
+  TreeMap<Long, Long> ipv6Coverage = new TreeMap<Long, Long>();
+
+  /**
+   * Combined databases to fetch ranges from before adding new ranges, or
+   * null if the delta segment was only read for applying it.
+   */
+  private CompactDatabaseImpl base;
+
+  /**
+   * Return whether the given address is contained in a covered interval.
+   */
+  static boolean isCovered(TreeMap<Long, Long> coverage, long address) {
+    Map.Entry<Long, Long> e = coverage.floorEntry(address);
+    return e != null && e.getValue() >= address;
+  }
+
+  /* Helper: add an interval to the covered intervals, merging it with
+   * any overlapping intervals. */
+  private static void addCoverage(TreeMap<Long, Long> coverage,
+      long startAddress, long endAddress) {
+    Map.Entry<Long, Long> e = coverage.floorEntry(startAddress);
+    if (e != null && e.getValue() >= startAddress) {
+      startAddress = e.getKey();
+      endAddress = Math.max(endAddress, e.getValue());
+    }
+    while ((e = coverage.ceilingEntry(startAddress)) != null &&
+        e.getKey() <= endAddress) {
+      endAddress = Math.max(endAddress, e.getValue());
+      coverage.remove(e.getKey());
+    }
+    coverage.put(startAddress, endAddress);
+  }
+
+  /**
+   * Fetch overlapping ranges from the combined databases before adding
+   * an IPv4 range.
+   */
+  void addRange(int databaseDate, long startAddress, long endAddress,
+      String code) {
+    if (this.base != null) {
+      this.fetchBaseRanges(startAddress, endAddress);
+    }
+    super.addRange(databaseDate, startAddress, endAddress, code);
+  }
+
+  /**
+   * Fetch overlapping ranges from the combined databases before adding
+   * an IPv6 range.
+   */
+  void addIpv6Range(int databaseDate, long startAddress, long endAddress,
+      String code) {
+    if (this.base != null) {
+      this.fetchBaseIpv6Ranges(startAddress, endAddress);
+    }
+    super.addIpv6Range(databaseDate, startAddress, endAddress, code);
+  }
+
+  /* Helper: copy all IPv4 ranges overlapping with the given address
+   * interval that are not yet covered from the combined databases, and
+   * cover the given interval and the copied ranges.  Overlapping ranges
+   * are those starting in the interval and those starting at the last
+   * address before the interval if they extend into it. */
+  private void fetchBaseRanges(long startAddress, long endAddress) {
+    long firstAddress = startAddress, lastAddress = endAddress;
+    long precedingAddress = 0L;
+    boolean foundPrecedingAddress = false;
+    for (int i = this.base.findFirstRecord(convertAddressAndDateToKey(
+        endAddress + 1L, 0) - 1L, 0, this.base.getNumberOfElements());
+        i < this.base.getNumberOfElements(); i++) {
+      long key = this.base.getKey(i);
+      long address = convertKeyToAddress(key);
+      if (address < startAddress) {
+        if (!foundPrecedingAddress) {
+          if (this.base.getEndAddress(i) < startAddress) {
+            break;
+          }
+          precedingAddress = address;
+          foundPrecedingAddress = true;
+        } else if (address != precedingAddress) {
+          break;
+        }
+      }
+      if (isCovered(this.ipv4Coverage, address)) {
+        continue;
+      }
+      this.ranges.put(key, new TreeElement(this.base.getEndAddress(i),
+          this.base.getLastDbDate(i), this.codeDictionary.getCodeId(
+          this.base.getCodeForId(this.base.getCodeIndex(i)))));
+      firstAddress = Math.min(firstAddress, address);
+      lastAddress = Math.max(lastAddress, this.base.getEndAddress(i));
+    }
+    addCoverage(this.ipv4Coverage, firstAddress, lastAddress);
+    this.invalidateDateIndexes();
+  }
+
+  /* Helper: same as fetchBaseRanges, but for IPv6 ranges. */
+  private void fetchBaseIpv6Ranges(long startAddress, long endAddress) {
+    long firstAddress = startAddress, lastAddress = endAddress;
+    long precedingAddress = 0L;
+    boolean foundPrecedingAddress = false;
+    for (int i = this.base.findFirstIpv6Record(endAddress);
+        i < this.base.getNumberOfIpv6Elements(); i++) {
+      long address = this.base.getIpv6Address(i);
+      if (address < startAddress) {
+        if (!foundPrecedingAddress) {
+          if (this.base.getIpv6EndAddress(i) < startAddress) {
+            break;
+          }
+          precedingAddress = address;
+          foundPrecedingAddress = true;
+        } else if (address != precedingAddress) {
+          break;
+        }
+      }
+      if (isCovered(this.ipv6Coverage, address)) {
+        continue;
+      }
+      this.ipv6Ranges.put(new Ipv6Key(address,
+          this.base.getIpv6FirstDbDate(i)), new TreeElement(
+          this.base.getIpv6EndAddress(i),
+          this.base.getIpv6LastDbDate(i), this.codeDictionary.getCodeId(
+          this.base.getCodeForId(this.base.getIpv6CodeIndex(i)))));
+      firstAddress = Math.min(firstAddress, address);
+      lastAddress = Math.max(lastAddress,
+          this.base.getIpv6EndAddress(i));
+    }
+    addCoverage(this.ipv6Coverage, firstAddress, lastAddress);
+    this.invalidateDateIndexes();
+  }
+
+  /**
+   * Read a delta segment file.
+   */
+  boolean readDeltaFile(File file) {
+    this.invalidateDateIndexes();
+    try {
+      CombinedDatabasesFile.CsvReader br =
+          new CombinedDatabasesFile.CsvReader(file);
+      String line;
+      while ((line = br.readLine()) != null) {
+        if (line.startsWith("!")) {
+          this.loadCombinedDatabasesHeaderLine(line);
+        } else if (line.startsWith("*")) {
+          String[] parts = line.substring(1).split(",");
+          if (parts[0].indexOf(':') >= 0) {
+            this.ipv6Coverage.put(
+                convertIpv6AddressStringToNumber(parts[0]),
+                convertIpv6AddressStringToNumber(parts[1]));
+          } else {
+            this.ipv4Coverage.put(convertAddressStringToNumber(parts[0]),
+                convertAddressStringToNumber(parts[1]));
+          }
+        } else {
+          this.loadCombinedDatabasesRangeLine(line);
+        }
+      }
+      br.close();
+    } catch (IOException e) {
+      System.err.println("Could not read delta segment '" + file + "': "
+          + e.getMessage());
+      return false;
+    } catch (RuntimeException e) {
+      System.err.println("Could not read delta segment '" + file + "': "
+          + e.getMessage());
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Write this delta segment to a temporary file and rename it to the
+   * given file, so that readers never see a partially written delta
+   * segment.
+   */
+  boolean writeDeltaFile(File file) {
+    FileOutputStream fos = null;
+    try {
+      fos = CombinedDatabasesFile.openTempFile(file);
+      CombinedDatabasesFile.CsvOutputStream csv =
+          new CombinedDatabasesFile.CsvOutputStream(
+          new BufferedOutputStream(fos), this.ranges.size()
+          + this.ipv6Ranges.size());
+      BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(csv,
+          "UTF-8"));
+      for (String databaseFileName : this.databaseFileNames) {
+        bw.write("!" + databaseFileName + "\n");
+      }
+      for (Map.Entry<Long, Long> e : this.ipv4Coverage.entrySet()) {
+        bw.write("*" + convertAddressNumberToString(e.getKey()) + ","
+            + convertAddressNumberToString(e.getValue()) + "\n");
+      }
+      for (Map.Entry<Long, Long> e : this.ipv6Coverage.entrySet()) {
+        bw.write("*" + convertIpv6AddressNumberToString(e.getKey()) + ","
+            + convertIpv6AddressNumberToString(e.getValue()) + "\n");
+      }
+      this.writeCombinedDatabasesRanges(bw);
+      bw.flush();
+      csv.finish();
+      CombinedDatabasesFile.commitTempFile(fos, file);
+    } catch (IOException e) {
+      if (fos != null) {
+        CombinedDatabasesFile.abortTempFile(fos, file);
+      }
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Replace all ranges starting in covered intervals of the given tree
+   * with this delta segment's ranges, and add this delta segment's
+   * database dates and file names.
+   */
+  void applyTo(DatabaseImpl database) {
+    database.invalidateLookupIndex();
+    database.databaseFileNames.addAll(this.databaseFileNames);
+    database.databaseDates.addAll(this.databaseDates);
+    for (Map.Entry<Long, Long> e : this.ipv4Coverage.entrySet()) {
+      removeRanges(database.ranges, IPV4_KEYS, e.getKey(), e.getValue());
+    }
+    for (Map.Entry<Long, Long> e : this.ipv6Coverage.entrySet()) {
+      removeRanges(database.ipv6Ranges, IPV6_KEYS, e.getKey(),
+          e.getValue());
+    }
+    for (Map.Entry<Long, TreeElement> e : this.ranges.entrySet()) {
+      database.ranges.put(e.getKey(), this.copyElement(e.getValue(),
+          database));
+    }
+    for (Map.Entry<Ipv6Key, TreeElement> e :
+        this.ipv6Ranges.entrySet()) {
+      database.ipv6Ranges.put(e.getKey(), this.copyElement(e.getValue(),
+          database));
+    }
+  }
+
+  /* Helper: copy a tree element into the given database, translating
+   * its code id into the database's code dictionary. */
+  private TreeElement copyElement(TreeElement element,
+      DatabaseImpl database) {
+    return new TreeElement(element.endAddress, element.lastDbDate,
+        database.codeDictionary.getCodeId(this.codeDictionary.getCode(
+        element.codeId)));
+  }
+
+  /**
+   * Append stats files from a single new database date to a saved
+   * combined databases file by extending or creating its delta segment,
+   * verifying signatures against the given keyring unless it's null.
+   * The combined databases file is mapped without verifying its
+   * checksums, because only ranges overlapping new ranges are read, and
+   * it's verified whenever it's loaded together with the delta segment.
+   */
+  static boolean appendStatsFiles(String combinedDatabasesPath,
+      String path, File keyring) {
+    DeltaSegment deltaSegment = new DeltaSegment();
+    deltaSegment.base = new CompactDatabaseImpl();
+    deltaSegment.base.setVerifyChecksums(false);
+    if (!deltaSegment.base.loadBaseCombinedDatabases(
+        combinedDatabasesPath)) {
+      return false;
+    }
+    File deltaFile = getDeltaFile(combinedDatabasesPath);
+    if (deltaFile.exists() && !deltaSegment.readDeltaFile(deltaFile)) {
+      return false;
+    }
+    for (int databaseDate : deltaSegment.base.databaseDates) {
+      deltaSegment.databaseDates.add(databaseDate);
+    }
+
+    /* Make sure that all files were published on the same day, and that
+     * this day is not before the last known database date, or we'd have
+     * to repair ranges all over the tree. */
+    List<File> files = collectRegionalRegistryStatsFiles(path);
+    SortedSet<Integer> fileDates = new TreeSet<Integer>();
+    for (File file : files) {
+      String fileName = CompressedFileReader.getUncompressedName(
+          file.getName());
+      fileDates.add(convertDateStringToNumber(fileName.substring(
+          fileName.length() - 8)));
+    }
+    if (fileDates.size() > 1 || (!fileDates.isEmpty() &&
+        !deltaSegment.databaseDates.isEmpty() && fileDates.first()
+        < deltaSegment.databaseDates.last())) {
+      System.err.println("Can only append stats files from a single day "
+          + "that is not before the last database date in '"
+          + combinedDatabasesPath + "'.  Not appending '" + path
+          + "'.");
+      return false;
+    }
+
+    /* Add ranges and write the delta segment only if all files could be
+     * parsed completely. */
+    for (File file : files) {
+      if (!deltaSegment.mergeRegionalRegistryStatsFile(
+          parseRegionalRegistryStatsFile(file, keyring))) {
+        return false;
+      }
+    }
+    return deltaSegment.writeDeltaFile(deltaFile);
+  }
+
+  /**
+   * Merge the delta segment into the combined databases file by loading
+   * both and saving them to a temporary file in the same format, which
+   * then replaces the combined databases file.
+   */
+  static boolean compact(String combinedDatabasesPath) {
+    File deltaFile = getDeltaFile(combinedDatabasesPath);
+    if (!deltaFile.exists()) {
+      return true;
+    }
+    DatabaseImporterImpl database = new DatabaseImporterImpl();
+    if (!database.loadCombinedDatabases(combinedDatabasesPath)) {
+      return false;
+    }
+    String tempPath = combinedDatabasesPath + ".tmp";
+    boolean saved = isColumnarCombinedDatabasesFile(combinedDatabasesPath)
+        ? database.saveColumnarCombinedDatabases(tempPath)
+        : isBinaryCombinedDatabasesFile(combinedDatabasesPath)
+        ? database.saveBinaryCombinedDatabases(tempPath)
+        : database.saveCombinedDatabases(tempPath);
+    if (!saved || !new File(tempPath).renameTo(
+        new File(combinedDatabasesPath))) {
+      new File(tempPath).delete();
+      return false;
+    }
+
+    /* Deleting the delta segment is the last step, because applying it
+     * again to the compacted file wouldn't change anything. */
+    return deltaFile.delete();
+  }
+}
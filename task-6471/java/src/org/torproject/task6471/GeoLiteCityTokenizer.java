@@ -0,0 +1,199 @@
+/* Copyright 2012 The Tor Project */
+package org.torproject.task6471;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Tokenizer for the comma-separated blocks and location files of
+ * GeoLiteCity databases, which reads fields directly from a character
+ * buffer rather than reading lines and splitting them.
+ *
+ * Blocks files contain lines like "16777216","16777471","17" and
+ * location files contain lines like 17,"AU","07","Sydney",... with
+ * optional quotes around all fields.  Numbers are parsed from the buffer
+ * in place, and two-letter codes are returned as lower-case strings
+ * that are created only once per distinct code, so that tokenizing a
+ * file with millions of lines only allocates a few objects.  Copyright
+ * notices and column headers are skipped, because they don't start with
+ * a digit.
+ */
+public class GeoLiteCityTokenizer {
+
+  private final Reader reader;
+
+  private final char[] buffer = new char[64 * 1024];
+
+  private int position = 0, limit = 0;
+
+  /**
+   * Number of the line containing the current record, starting at 1.
+   */
+  private int lineNumber = 0;
+
+  /**
+   * Whether the current line is still to be read up to its end before
+   * looking for the next record.
+   */
+  private boolean inLine = false;
+
+  /**
+   * Lower-case strings of two-character codes made of 7-bit characters,
+   * indexed by both characters.
+   */
+  private final String[] twoCharacterCodes = new String[1 << 14];
+
+  /**
+   * Create a tokenizer reading from the given reader, which is not
+   * closed by the tokenizer.
+   */
+  public GeoLiteCityTokenizer(Reader reader) {
+    this.reader = reader;
+  }
+
+  /**
+   * Return the number of the line containing the current record.
+   */
+  public int getLineNumber() {
+    return this.lineNumber;
+  }
+
+  /* Helper: return the next character without consuming it, or -1 at
+   * the end of input. */
+  private int peek() throws IOException {
+    if (this.position == this.limit) {
+      int read = this.reader.read(this.buffer, 0, this.buffer.length);
+      if (read <= 0) {
+        return -1;
+      }
+      this.position = 0;
+      this.limit = read;
+    }
+    return this.buffer[this.position];
+  }
+
+  /**
+   * Skip the rest of the current line and any following lines that
+   * don't start with a digit, and return whether another record was
+   * found before the end of input.
+   */
+  public boolean nextRecord() throws IOException {
+    while (true) {
+      if (this.inLine) {
+        int c;
+        while ((c = this.peek()) >= 0 && c != '\n') {
+          this.position++;
+        }
+        if (c < 0) {
+          return false;
+        }
+        this.position++;
+      }
+      this.inLine = true;
+      this.lineNumber++;
+      int c = this.peek();
+      if (c == '"') {
+        this.position++;
+        c = this.peek();
+      }
+      if (c >= '0' && c <= '9') {
+        return true;
+      } else if (c < 0) {
+        return false;
+      }
+    }
+  }
+
+  /**
+   * Read a non-negative number field with optional quotes and consume
+   * the following comma, if any.
+   *
+   * @throws IOException if the field doesn't start with a digit or the
+   * number has more than 18 digits.
+   */
+  public long readNumber() throws IOException {
+    int c = this.peek();
+    if (c == '"') {
+      this.position++;
+      c = this.peek();
+    }
+    if (c < '0' || c > '9') {
+      throw new IOException("Expected a number in line "
+          + this.lineNumber + ".");
+    }
+    long number = 0L;
+    int digits = 0;
+    while ((c = this.peek()) >= '0' && c <= '9') {
+      number = number * 10L + (c - '0');
+      this.position++;
+      if (++digits > 18) {
+        throw new IOException("Number too large in line "
+            + this.lineNumber + ".");
+      }
+    }
+    this.skipFieldEnd();
+    return number;
+  }
+
+  /**
+   * Read a code field with optional quotes, convert it to lower case,
+   * and consume the following comma, if any.  Codes of two 7-bit
+   * characters are returned as the same string instance every time.
+   */
+  public String readCode() throws IOException {
+    int c = this.peek();
+    boolean quoted = c == '"';
+    if (quoted) {
+      this.position++;
+    }
+    int first = -1, second = -1, length = 0;
+    StringBuilder sb = null;
+    while ((c = this.peek()) >= 0 && c != '\n' && c != '\r' &&
+        (quoted ? c != '"' : c != ',')) {
+      char lowerCase = Character.toLowerCase((char) c);
+      if (length == 0) {
+        first = lowerCase;
+      } else if (length == 1) {
+        second = lowerCase;
+      } else {
+        if (sb == null) {
+          sb = new StringBuilder().append((char) first).append(
+              (char) second);
+        }
+        sb.append(lowerCase);
+      }
+      length++;
+      this.position++;
+    }
+    this.skipFieldEnd();
+    if (sb != null) {
+      return sb.toString();
+    } else if (length < 2 || first >= 0x80 || second >= 0x80) {
+      StringBuilder code = new StringBuilder();
+      if (length > 0) {
+        code.append((char) first);
+      }
+      if (length > 1) {
+        code.append((char) second);
+      }
+      return code.toString();
+    }
+    int index = (first << 7) | second;
+    String code = this.twoCharacterCodes[index];
+    if (code == null) {
+      code = new String(new char[] { (char) first, (char) second });
+      this.twoCharacterCodes[index] = code;
+    }
+    return code;
+  }
+
+  /* Helper: consume a closing quote and a following comma, if any. */
+  private void skipFieldEnd() throws IOException {
+    if (this.peek() == '"') {
+      this.position++;
+    }
+    if (this.peek() == ',') {
+      this.position++;
+    }
+  }
+}
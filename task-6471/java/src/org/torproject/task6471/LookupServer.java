@@ -0,0 +1,292 @@
+/* Copyright 2012 The Tor Project */
+package org.torproject.task6471;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Long-running server answering IPv4 lookups from a combined databases
+ * file over a loopback socket, so that many short-lived jobs can share
+ * a single loaded and warmed-up database instead of loading their own
+ * copies.
+ *
+ * Clients send batches of queries in a compact binary format and may
+ * send any number of batches without waiting for responses.  Batches
+ * are answered in the order in which they were received.  All numbers
+ * are big-endian, as written by DataOutputStream.
+ *
+ *   request:  int n, n times (int address, int dayNumber)
+ *   response: int n, n times (byte length, length bytes code)
+ *
+ * Addresses are unsigned 32-bit integers, and dates are days since
+ * 1970-01-01.  Codes are US-ASCII country codes or AS numbers, and a
+ * length of 0 means that no assignment could be found.  A request with
+ * a negative or too large number of queries closes the connection.
+ *
+ * The combined databases file is served by a ReloadingDatabase, which
+ * loads new versions in the background and swaps them in for subsequent
+ * batches.  Batches that are answered while a new version is loaded use
+ * the previous version, so that no requests are dropped or delayed.
+ */
+public class LookupServer {
+
+  /**
+   * Default port of the lookup server, which only listens on the
+   * loopback interface.
+   */
+  public static final int DEFAULT_PORT = 6471;
+
+  /**
+   * Maximum number of queries in a single batch, which limits the
+   * memory used for answering a batch.
+   */
+  static final int MAX_BATCH_SIZE = 1 << 20;
+
+  private final String combinedDatabasesPath;
+
+  /**
+   * Served database, which replaces its contents as a whole when a new
+   * version of the combined databases file has been saved.
+   */
+  private final ReloadingDatabase database = new ReloadingDatabase();
+
+  private ServerSocket serverSocket;
+
+  private ExecutorService connections;
+
+  private final Set<Socket> openSockets = new HashSet<Socket>();
+
+  private Thread acceptor;
+
+  private volatile boolean stopped;
+
+  public LookupServer(String combinedDatabasesPath) {
+    this.combinedDatabasesPath = combinedDatabasesPath;
+  }
+
+  /**
+   * Load the combined databases file and start accepting connections on
+   * the given port of the loopback interface, or on any free port if
+   * the port is 0.
+   *
+   * @return True if starting the server was successful, false
+   *         otherwise.
+   */
+  public synchronized boolean start(int port) {
+    if (!this.database.loadCombinedDatabases(
+        this.combinedDatabasesPath)) {
+      return false;
+    }
+    try {
+      this.serverSocket = new ServerSocket(port, 50,
+          InetAddress.getByName("127.0.0.1"));
+    } catch (IOException e) {
+      System.err.println("Could not listen on port " + port + ": "
+          + e.getMessage());
+      return false;
+    }
+    this.connections = Executors.newCachedThreadPool();
+    this.acceptor = new Thread("Accept lookup connections") {
+      public void run() {
+        acceptConnections();
+      }
+    };
+    this.acceptor.start();
+    return true;
+  }
+
+  /**
+   * Return the port on which this server accepts connections, or -1 if
+   * it has not been started.
+   */
+  public synchronized int getPort() {
+    return this.serverSocket == null ? -1
+        : this.serverSocket.getLocalPort();
+  }
+
+  /**
+   * Stop accepting connections and close all open connections.
+   */
+  public synchronized void stop() {
+    this.stopped = true;
+    if (this.serverSocket != null) {
+      try {
+        this.serverSocket.close();
+      } catch (IOException e) {
+        /* Closing anyway. */
+      }
+    }
+    this.database.stopReloading();
+    if (this.connections != null) {
+      this.connections.shutdownNow();
+    }
+    synchronized (this.openSockets) {
+      for (Socket socket : this.openSockets) {
+        try {
+          socket.close();
+        } catch (IOException e) {
+          /* Closing anyway. */
+        }
+      }
+    }
+  }
+
+  /**
+   * Load the combined databases file if it has changed, rather than
+   * waiting for the next check.
+   */
+  boolean reloadIfChanged() {
+    return this.database.reloadIfChanged();
+  }
+
+  /* Helper: accept connections until the server socket is closed. */
+  private void acceptConnections() {
+    while (!this.stopped) {
+      final Socket socket;
+      try {
+        socket = this.serverSocket.accept();
+      } catch (IOException e) {
+        if (!this.stopped) {
+          System.err.println("Could not accept connection: "
+              + e.getMessage());
+        }
+        break;
+      }
+      synchronized (this.openSockets) {
+        if (this.stopped) {
+          try {
+            socket.close();
+          } catch (IOException e) {
+            /* Closing anyway. */
+          }
+          break;
+        }
+        this.openSockets.add(socket);
+      }
+      this.connections.execute(new Runnable() {
+        public void run() {
+          serveConnection(socket);
+        }
+      });
+    }
+  }
+
+  /* Helper: answer batches on a single connection until the client
+   * closes it. */
+  private void serveConnection(Socket socket) {
+    try {
+      socket.setTcpNoDelay(true);
+      DataInputStream in = new DataInputStream(new BufferedInputStream(
+          socket.getInputStream()));
+      DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(socket.getOutputStream()));
+      int[] addresses = new int[0], dates = new int[0],
+          codeIds = new int[0];
+      byte[][] codeBytes = new byte[0][];
+      Database codeBytesDatabase = null;
+      while (!this.stopped) {
+        int n;
+        try {
+          n = in.readInt();
+        } catch (EOFException e) {
+          break;
+        }
+        if (n < 0 || n > MAX_BATCH_SIZE) {
+          break;
+        }
+        if (addresses.length != n) {
+          addresses = new int[n];
+          dates = new int[n];
+          codeIds = new int[n];
+        }
+        for (int i = 0; i < n; i++) {
+          addresses[i] = in.readInt();
+          dates[i] = in.readInt();
+        }
+
+        /* Answer the whole batch from the same database version, even if
+         * a new version is swapped in meanwhile. */
+        Database database = this.database.getCurrentDatabase();
+        if (database != codeBytesDatabase) {
+          codeBytes = new byte[0][];
+          codeBytesDatabase = database;
+        }
+        database.lookupIpv4AddressesAndDates(addresses, dates, codeIds);
+        out.writeInt(n);
+        for (int i = 0; i < n; i++) {
+          int codeId = codeIds[i];
+          if (codeId == CodeDictionary.NO_CODE) {
+            out.writeByte(0);
+            continue;
+          }
+          if (codeId >= codeBytes.length) {
+            byte[][] newCodeBytes = new byte[codeId + 64][];
+            System.arraycopy(codeBytes, 0, newCodeBytes, 0,
+                codeBytes.length);
+            codeBytes = newCodeBytes;
+          }
+          byte[] code = codeBytes[codeId];
+          if (code == null) {
+            code = database.getCodeForId(codeId).getBytes("US-ASCII");
+            codeBytes[codeId] = code;
+          }
+          out.writeByte(code.length);
+          out.write(code);
+        }
+
+        /* Only flush once all pipelined batches that have arrived so
+         * far are answered, so that responses are sent together. */
+        if (in.available() == 0) {
+          out.flush();
+        }
+      }
+      out.flush();
+    } catch (SocketException e) {
+      /* Client closed the connection or server was stopped. */
+    } catch (IOException e) {
+      System.err.println("Could not answer lookups: " + e.getMessage());
+    } finally {
+      synchronized (this.openSockets) {
+        this.openSockets.remove(socket);
+      }
+      try {
+        socket.close();
+      } catch (IOException e) {
+        /* Closing anyway. */
+      }
+    }
+  }
+
+  /**
+   * Start a lookup server for the given combined databases file.
+   *
+   * Usage: LookupServer combined-databases-file [port]
+   */
+  public static void main(String[] args) {
+    if (args.length < 1 || args.length > 2) {
+      System.err.println("Usage: LookupServer combined-databases-file "
+          + "[port]");
+      System.exit(1);
+    }
+    int port = args.length > 1 ? Integer.parseInt(args[1])
+        : DEFAULT_PORT;
+    LookupServer server = new LookupServer(args[0]);
+    if (!server.start(port)) {
+      System.exit(1);
+    }
+    System.out.println("Answering lookups on 127.0.0.1:"
+        + server.getPort() + ".");
+  }
+}
@@ -0,0 +1,309 @@
+/* Copyright 2012 The Tor Project */
+package org.torproject.task6471;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Database that serves lookups from a combined databases file and
+ * reloads it whenever a new version has been saved, so that
+ * long-running services don't have to be restarted.
+ *
+ * After loading the combined databases file, a background thread
+ * checks the file and its delta segment for changes every few seconds.
+ * A changed file is loaded into a new database while the previous
+ * version keeps answering lookups, and the new version is published by
+ * replacing a single volatile reference.  Lookups never block and
+ * always use a completely loaded version.  Every method call reads the
+ * reference exactly once, so that it is answered from a single version,
+ * and the previous version is garbage-collected as soon as the last
+ * call using it has returned.  If loading a changed file fails, the
+ * previous version continues to be served.
+ *
+ * Code ids are assigned by this database rather than by the served
+ * version, using a code dictionary that is shared by all versions, so
+ * that code ids looked up before publishing a new version can still be
+ * resolved afterwards.  Code ids returned by a version obtained using
+ * getCurrentDatabase() are only meaningful for that version.
+ */
+public class ReloadingDatabase implements Database {
+
+  /**
+   * Default milliseconds between checks whether the combined databases
+   * file has changed.
+   */
+  static final long DEFAULT_RELOAD_CHECK_MILLIS = 10L * 1000L;
+
+  private final long reloadCheckMillis;
+
+  /**
+   * A loaded version of the combined databases file together with the
+   * code ids in this database's code dictionary by code id in the
+   * loaded version.
+   */
+  private static class ServedVersion {
+    private final Database database;
+    private final int[] codeIds;
+    private ServedVersion(Database database, int[] codeIds) {
+      this.database = database;
+      this.codeIds = codeIds;
+    }
+  }
+
+  /**
+   * Codes of all versions served so far, which are never removed, so
+   * that code ids remain valid when a new version is published.
+   */
+  private final CodeDictionary codeDictionary = new CodeDictionary();
+
+  /**
+   * Currently served version, which is replaced as a whole when a new
+   * version of the combined databases file has been loaded.
+   */
+  private volatile ServedVersion served = new ServedVersion(
+      new DatabaseImpl(), new int[0]);
+
+  /**
+   * Lock held while checking for a new version and loading it.
+   */
+  private final Object reloadLock = new Object();
+
+  private String path;
+
+  /**
+   * Last modification times and lengths of the combined databases file
+   * and its delta segment when the served version was loaded.
+   */
+  private String loadedVersion;
+
+  private Thread reloader;
+
+  /**
+   * Create an empty database that checks for a new version of the
+   * combined databases file every ten seconds once it has been loaded.
+   */
+  public ReloadingDatabase() {
+    this(DEFAULT_RELOAD_CHECK_MILLIS);
+  }
+
+  /**
+   * Create an empty database that checks for a new version of the
+   * combined databases file in the given interval once it has been
+   * loaded.
+   */
+  public ReloadingDatabase(long reloadCheckMillis) {
+    if (reloadCheckMillis < 1L) {
+      throw new IllegalArgumentException("Reload check interval must be "
+          + "positive.");
+    }
+    this.reloadCheckMillis = reloadCheckMillis;
+  }
+
+  /**
+   * Create the database that a version of the combined databases file
+   * is loaded into, which is a DatabaseImpl unless overridden.
+   */
+  protected Database createDatabase() {
+    return new DatabaseImpl();
+  }
+
+  /**
+   * Load a combined databases file and start watching it for new
+   * versions, or watch another file if a different file was loaded
+   * before.
+   */
+  public boolean loadCombinedDatabases(String path) {
+    synchronized (this.reloadLock) {
+      String previousPath = this.path,
+          previousLoadedVersion = this.loadedVersion;
+      this.path = path;
+      this.loadedVersion = null;
+      if (!this.reloadIfChanged()) {
+        this.path = previousPath;
+        this.loadedVersion = previousLoadedVersion;
+        return false;
+      }
+      if (this.reloader == null) {
+        this.reloader = new Thread("Reload " + new File(path).getName()) {
+          public void run() {
+            while (!Thread.currentThread().isInterrupted()) {
+              try {
+                Thread.sleep(reloadCheckMillis);
+              } catch (InterruptedException e) {
+                break;
+              }
+              reloadIfChanged();
+            }
+          }
+        };
+        this.reloader.setDaemon(true);
+        this.reloader.start();
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Stop watching the combined databases file.  The currently loaded
+   * version continues to be served.
+   */
+  public void stopReloading() {
+    synchronized (this.reloadLock) {
+      if (this.reloader != null) {
+        this.reloader.interrupt();
+        this.reloader = null;
+      }
+    }
+  }
+
+  /* Helper: return a string that changes whenever the combined databases
+   * file or its delta segment is replaced. */
+  private static String getVersion(String path) {
+    File file = new File(path),
+        deltaFile = DeltaSegment.getDeltaFile(path);
+    return file.lastModified() + ":" + file.length() + ":"
+        + deltaFile.lastModified() + ":" + deltaFile.length();
+  }
+
+  /**
+   * Load the combined databases file if it has changed since it was
+   * last loaded, and publish the new version.
+   *
+   * @return True if the served version is up-to-date, false if no file
+   *         was loaded yet or loading a changed file failed.
+   */
+  boolean reloadIfChanged() {
+    synchronized (this.reloadLock) {
+      if (this.path == null) {
+        return false;
+      }
+      String version = getVersion(this.path);
+      if (version.equals(this.loadedVersion)) {
+        return true;
+      }
+      Database newDatabase = this.createDatabase();
+      if (!newDatabase.loadCombinedDatabases(this.path) ||
+          !version.equals(getVersion(this.path))) {
+        System.err.println("Could not load '" + this.path + "'."
+            + (this.loadedVersion == null ? "" : "  Continuing to serve "
+            + "the previous version."));
+        return false;
+      }
+      this.served = new ServedVersion(newDatabase,
+          this.addCodes(newDatabase));
+      this.loadedVersion = version;
+      return true;
+    }
+  }
+
+  /* Helper: add all codes of a newly loaded version to the code
+   * dictionary and return their code ids by code id in that version. */
+  private int[] addCodes(Database newDatabase) {
+    int[] codeIds = new int[16];
+    int size = 0;
+    String code;
+    while ((code = newDatabase.getCodeForId(size)) != null) {
+      if (size == codeIds.length) {
+        codeIds = Arrays.copyOf(codeIds, 2 * size);
+      }
+      codeIds[size++] = this.codeDictionary.getCodeId(code);
+    }
+    return Arrays.copyOf(codeIds, size);
+  }
+
+  /* Helper: convert a code id returned by the given version to a code
+   * id in the code dictionary, adding the code if the version has added
+   * codes since it was loaded. */
+  private int convertCodeId(ServedVersion served, int codeId) {
+    return codeId >= 0 && codeId < served.codeIds.length ?
+        served.codeIds[codeId] :
+        this.codeDictionary.getCodeId(served.database.getCodeForId(
+        codeId));
+  }
+
+  /**
+   * Return the currently served version, which is not affected by
+   * reloading the combined databases file later on, and which uses its
+   * own code ids.
+   */
+  public Database getCurrentDatabase() {
+    return this.served.database;
+  }
+
+  public String lookupIpv4AddressAndDate(String address, String date) {
+    return this.served.database.lookupIpv4AddressAndDate(address, date);
+  }
+
+  public String lookupIpv4AddressAndDate(long address, int dayNumber) {
+    return this.served.database.lookupIpv4AddressAndDate(address,
+        dayNumber);
+  }
+
+  public int lookupIpv4CodeId(long address, int dayNumber) {
+    ServedVersion served = this.served;
+    return this.convertCodeId(served, served.database.lookupIpv4CodeId(
+        address, dayNumber));
+  }
+
+  public String lookupIpv6AddressAndDate(String address, String date) {
+    return this.served.database.lookupIpv6AddressAndDate(address, date);
+  }
+
+  public void lookupIpv4AddressesAndDates(int[] addresses, int[] dates,
+      int[] codeIds) {
+    ServedVersion served = this.served;
+    served.database.lookupIpv4AddressesAndDates(addresses, dates,
+        codeIds);
+    for (int i = 0; i < codeIds.length; i++) {
+      codeIds[i] = this.convertCodeId(served, codeIds[i]);
+    }
+  }
+
+  /**
+   * Return the code with the given code id as returned by this database
+   * from any version served so far.
+   */
+  public String getCodeForId(int codeId) {
+    return this.codeDictionary.getCode(codeId);
+  }
+
+  public String lookupIpv4AsNumberAndName(String address, String date) {
+    return this.served.database.lookupIpv4AsNumberAndName(address, date);
+  }
+
+  public List<AssignmentPeriod> lookupIpv4AssignmentHistory(
+      String address, String fromDate, String toDate) {
+    return this.served.database.lookupIpv4AssignmentHistory(address,
+        fromDate, toDate);
+  }
+
+  public String getAsName(String asNumber) {
+    return this.served.database.getAsName(asNumber);
+  }
+
+  public DatabaseSnapshot getSnapshot(String date) {
+    return this.served.database.getSnapshot(date);
+  }
+
+  public DatabaseSnapshot getSnapshot(int dayNumber) {
+    return this.served.database.getSnapshot(dayNumber);
+  }
+
+  public Iterator<AddressInterval> iterateIpv4Intervals(String date) {
+    return this.served.database.iterateIpv4Intervals(date);
+  }
+
+  public Iterator<AddressInterval.Change> iterateIpv4Changes(
+      String fromDate, String toDate) {
+    return this.served.database.iterateIpv4Changes(fromDate, toDate);
+  }
+
+  /**
+   * Return the metrics of the currently served version.
+   */
+  public DatabaseMetrics getMetrics() {
+    return this.served.database.getMetrics();
+  }
+}
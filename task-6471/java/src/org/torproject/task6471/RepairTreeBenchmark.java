@@ -0,0 +1,94 @@
+package org.torproject.task6471;
+
+/**
+ * Benchmark tree repairs when importing 60 months of synthetic registry
+ * data, once in the order used by importing a directory of stats files
+ * (reverse chronological per registry) and once in chronological order.
+ * Prints repair time for every 30 imported files, which should stay
+ * roughly constant as the tree grows.
+ */
+public class RepairTreeBenchmark {
+
+  private static final String[] REGISTRIES = new String[] { "ripencc",
+      "lacnic", "arin", "apnic", "afrinic" };
+
+  private static final String[] CODES = new String[] { "de", "fr", "nl",
+      "us", "ca", "br", "cn", "jp", "za", "ke" };
+
+  private static final int MONTHS = 60, RANGES_PER_REGISTRY = 4000,
+      FILES_PER_LINE = 30;
+
+  public static void main(String[] args) {
+    String[] dates = new String[MONTHS];
+    for (int month = 0; month < MONTHS; month++) {
+      dates[month] = String.format("%04d%02d01", 2007 + (month + 9) / 12,
+          (month + 9) % 12 + 1);
+    }
+    System.out.println("Importing " + MONTHS + " months from "
+        + REGISTRIES.length + " registries in directory import order:");
+    DatabaseImporterImpl database = new DatabaseImporterImpl();
+    long repairNanos = 0L, lastRepairNanos = 0L;
+    int imported = 0;
+    for (int registry = 0; registry < REGISTRIES.length; registry++) {
+      for (int month = MONTHS - 1; month >= 0; month--) {
+        repairNanos += importMonth(database, registry, month,
+            dates[month]);
+        if (++imported % FILES_PER_LINE == 0) {
+          printRepairTime(imported, database, repairNanos,
+              lastRepairNanos);
+          lastRepairNanos = repairNanos;
+        }
+      }
+    }
+
+    System.out.println("Importing " + MONTHS + " months from "
+        + REGISTRIES.length + " registries in chronological order:");
+    database = new DatabaseImporterImpl();
+    repairNanos = lastRepairNanos = 0L;
+    imported = 0;
+    for (int month = 0; month < MONTHS; month++) {
+      for (int registry = 0; registry < REGISTRIES.length; registry++) {
+        repairNanos += importMonth(database, registry, month,
+            dates[month]);
+        if (++imported % FILES_PER_LINE == 0) {
+          printRepairTime(imported, database, repairNanos,
+              lastRepairNanos);
+          lastRepairNanos = repairNanos;
+        }
+      }
+    }
+  }
+
+  /* Import one synthetic stats file and return nanoseconds spent on
+   * repairing the tree.  Ranges are sometimes missing, sometimes split
+   * in half, and change their country code every few years. */
+  private static long importMonth(DatabaseImporterImpl database,
+      int registry, int month, String date) {
+    int databaseDate = DatabaseImpl.convertDateStringToNumber(date);
+    database.addDatabase("delegated-" + REGISTRIES[registry] + "-" + date,
+        databaseDate);
+    for (int i = 0; i < RANGES_PER_REGISTRY; i++) {
+      int hash = (i * 31 + month * 17) % 97;
+      if (hash == 0) {
+        continue;
+      }
+      long startAddress = ((long) (registry + 1) << 26) + i * 1024L;
+      long endAddress = startAddress + (hash < 5 ? 511L : 1023L);
+      String code = CODES[(i + (month + i % 36) / 36) % CODES.length];
+      database.addRange(databaseDate, startAddress, endAddress, code);
+    }
+    long startedRepair = System.nanoTime();
+    database.repairTree();
+    return System.nanoTime() - startedRepair;
+  }
+
+  private static void printRepairTime(int imported,
+      DatabaseImporterImpl database, long repairNanos,
+      long lastRepairNanos) {
+    System.out.printf("  %4d files imported, %7d ranges in tree, %8.1f "
+        + "millis spent on repairs, %7.1f millis for the last %d "
+        + "files.%n", imported, database.getNumberOfElements(),
+        repairNanos / 1000000.0,
+        (repairNanos - lastRepairNanos) / 1000000.0, FILES_PER_LINE);
+  }
+}
@@ -0,0 +1,359 @@
+/* Copyright 2012 The Tor Project */
+package org.torproject.task6471;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Verifier of a stats file against the .md5 digest file and .asc
+ * OpenPGP signature file published next to it, which checks the file
+ * contents while they are parsed rather than reading the file again.
+ *
+ * Digest and signature files named after the stats file, like
+ * delegated-arin-20121101.gz.md5 for delegated-arin-20121101.gz, cover
+ * the file as it is stored.  Digest and signature files named after the
+ * decompressed stats file, like delegated-arin-20121101.md5, cover the
+ * decompressed contents.  Digest and signature files may themselves be
+ * gzip or bzip2 compressed.
+ *
+ * Bytes are passed to the verifier by CompressedFileReader while the
+ * parser reads lines.  Digests are updated in memory, and signed bytes
+ * are piped to an external "gpg --verify" process that checks the
+ * signature against a local keyring.  Once the parser has read the
+ * whole file, verify() reports whether all checks passed.
+ */
+class StatsFileVerifier {
+
+  /**
+   * Streams receiving the stored bytes and the decompressed bytes of the
+   * stats file.
+   */
+  private final List<OutputStream> rawCopies =
+      new ArrayList<OutputStream>(),
+      decompressedCopies = new ArrayList<OutputStream>();
+
+  /**
+   * Checks to run when the whole file has been read.
+   */
+  private final List<Check> checks = new ArrayList<Check>();
+
+  private final File statsFile;
+
+  private StatsFileVerifier(File statsFile) {
+    this.statsFile = statsFile;
+  }
+
+  /**
+   * Create a verifier for the given stats file using digest and
+   * signature files found next to it, or return null if there are none.
+   * Signatures are only verified if a keyring is given.
+   *
+   * @throws IOException if a digest file cannot be read or the
+   * signature verification process cannot be started.
+   */
+  static StatsFileVerifier create(File statsFile, File keyring)
+      throws IOException {
+    StatsFileVerifier verifier = new StatsFileVerifier(statsFile);
+    String storedName = statsFile.getName(),
+        decompressedName = CompressedFileReader.getUncompressedName(
+        storedName);
+    verifier.addChecks(storedName, verifier.rawCopies, keyring);
+    if (!decompressedName.equals(storedName)) {
+      verifier.addChecks(decompressedName, verifier.decompressedCopies,
+          keyring);
+    }
+    return verifier.checks.isEmpty() ? null : verifier;
+  }
+
+  /**
+   * Return whether the given file is a digest or signature file that is
+   * used for verifying stats files rather than imported itself.
+   */
+  static boolean isVerificationFile(File file) {
+    String name = CompressedFileReader.getUncompressedName(
+        file.getName());
+    return name.endsWith(".md5") || name.endsWith(".asc");
+  }
+
+  /* Helper: find a possibly compressed file with the given name next to
+   * the stats file. */
+  private File findFile(String name) {
+    File directory = this.statsFile.getAbsoluteFile().getParentFile();
+    for (String suffix : new String[] { "", ".gz", ".bz2" }) {
+      File file = new File(directory, name + suffix);
+      if (file.exists()) {
+        return file;
+      }
+    }
+    return null;
+  }
+
+  /* Helper: add checks for digest and signature files covering the
+   * bytes of the given file name. */
+  private void addChecks(String coveredName, List<OutputStream> copies,
+      File keyring) throws IOException {
+    File digestFile = this.findFile(coveredName + ".md5");
+    if (digestFile != null) {
+      Md5Check check = new Md5Check(digestFile);
+      this.checks.add(check);
+      copies.add(check);
+    }
+    File signatureFile = this.findFile(coveredName + ".asc");
+    if (signatureFile != null) {
+      if (keyring == null) {
+        System.err.println("Not verifying '"
+            + signatureFile.getAbsolutePath() + "', because no keyring "
+            + "was configured.");
+      } else {
+        SignatureCheck check = new SignatureCheck(signatureFile,
+            keyring);
+        this.checks.add(check);
+        copies.add(check);
+      }
+    }
+  }
+
+  /**
+   * Return a stream that receives the stored bytes of the stats file,
+   * or null if no check covers them.
+   */
+  OutputStream getRawCopy() {
+    return combine(this.rawCopies);
+  }
+
+  /**
+   * Return a stream that receives the decompressed bytes of the stats
+   * file, or null if no check covers them or the file is not
+   * compressed.
+   */
+  OutputStream getDecompressedCopy() {
+    return combine(this.decompressedCopies);
+  }
+
+  /* Helper: return a stream writing to all given streams. */
+  private static OutputStream combine(final List<OutputStream> copies) {
+    if (copies.isEmpty()) {
+      return null;
+    } else if (copies.size() == 1) {
+      return copies.get(0);
+    }
+    return new OutputStream() {
+      public void write(int b) throws IOException {
+        for (OutputStream copy : copies) {
+          copy.write(b);
+        }
+      }
+      public void write(byte[] b, int off, int len) throws IOException {
+        for (OutputStream copy : copies) {
+          copy.write(b, off, len);
+        }
+      }
+    };
+  }
+
+  /**
+   * Run all checks after the whole stats file has been read.
+   *
+   * @throws IOException if a digest or signature doesn't match.
+   */
+  void verify() throws IOException {
+    for (Check check : this.checks) {
+      check.verify();
+    }
+  }
+
+  /**
+   * Stop all checks after reading the stats file failed.
+   */
+  void abort() {
+    for (Check check : this.checks) {
+      check.abort();
+    }
+  }
+
+  /**
+   * Check that receives copied bytes and is verified at the end.
+   */
+  private abstract static class Check extends OutputStream {
+    abstract void verify() throws IOException;
+    void abort() {
+    }
+  }
+
+  /**
+   * Check of the MD5 digest contained in a digest file, which may be
+   * formatted like "MD5 (file) = digest" or "digest  file".
+   */
+  private static class Md5Check extends Check {
+    private static final Pattern MD5_PATTERN =
+        Pattern.compile("\\b([0-9a-fA-F]{32})\\b");
+    private final File digestFile;
+    private final String expectedDigest;
+    private final MessageDigest md5;
+    Md5Check(File digestFile) throws IOException {
+      this.digestFile = digestFile;
+      BufferedReader br = CompressedFileReader.open(digestFile);
+      String expectedDigest = null, line;
+      while (expectedDigest == null && (line = br.readLine()) != null) {
+        Matcher matcher = MD5_PATTERN.matcher(line);
+        if (matcher.find()) {
+          expectedDigest = matcher.group(1).toLowerCase();
+        }
+      }
+      br.close();
+      if (expectedDigest == null) {
+        throw new IOException("No MD5 digest found in '"
+            + digestFile.getAbsolutePath() + "'.");
+      }
+      this.expectedDigest = expectedDigest;
+      try {
+        this.md5 = MessageDigest.getInstance("MD5");
+      } catch (NoSuchAlgorithmException e) {
+        throw new IOException("MD5 is not supported.");
+      }
+    }
+    public void write(int b) {
+      this.md5.update((byte) b);
+    }
+    public void write(byte[] b, int off, int len) {
+      this.md5.update(b, off, len);
+    }
+    void verify() throws IOException {
+      StringBuilder sb = new StringBuilder();
+      for (byte b : this.md5.digest()) {
+        sb.append(String.format("%02x", b & 0xff));
+      }
+      if (!sb.toString().equals(this.expectedDigest)) {
+        throw new IOException("MD5 digest does not match '"
+            + this.digestFile.getAbsolutePath() + "'.");
+      }
+    }
+  }
+
+  /**
+   * Check of a detached OpenPGP signature by an external gpg process
+   * that reads signed bytes from its standard input and only trusts
+   * keys contained in the given keyring.
+   */
+  private static class SignatureCheck extends Check {
+    private final File signatureFile, decompressedSignatureFile;
+    private final Process process;
+    private final OutputStream signedData;
+    private final ByteArrayOutputStream output =
+        new ByteArrayOutputStream();
+    private final Thread outputReader;
+    private IOException writeFailure;
+    SignatureCheck(File signatureFile, File keyring)
+        throws IOException {
+      this.signatureFile = signatureFile;
+      File readableSignatureFile = signatureFile;
+      if (CompressedFileReader.isCompressed(signatureFile.getName())) {
+        readableSignatureFile = File.createTempFile("task6471-", ".asc");
+        this.decompressedSignatureFile = readableSignatureFile;
+        BufferedReader br = CompressedFileReader.open(signatureFile);
+        FileOutputStream fos = new FileOutputStream(
+            readableSignatureFile);
+        String line;
+        while ((line = br.readLine()) != null) {
+          fos.write((line + "\n").getBytes("US-ASCII"));
+        }
+        fos.close();
+        br.close();
+      } else {
+        this.decompressedSignatureFile = null;
+      }
+      ProcessBuilder processBuilder = new ProcessBuilder("gpg",
+          "--batch", "--no-tty", "--no-default-keyring", "--keyring",
+          keyring.getAbsolutePath(), "--trust-model", "always",
+          "--status-fd", "1", "--verify",
+          readableSignatureFile.getAbsolutePath(), "-");
+      processBuilder.redirectErrorStream(true);
+      this.process = processBuilder.start();
+      this.signedData = this.process.getOutputStream();
+      final InputStream processOutput = this.process.getInputStream();
+      this.outputReader = new Thread("Verify "
+          + signatureFile.getName()) {
+        public void run() {
+          byte[] buffer = new byte[4096];
+          int length;
+          try {
+            while ((length = processOutput.read(buffer)) >= 0) {
+              synchronized (output) {
+                output.write(buffer, 0, length);
+              }
+            }
+          } catch (IOException e) {
+            /* Process was destroyed. */
+          }
+        }
+      };
+      this.outputReader.setDaemon(true);
+      this.outputReader.start();
+    }
+
+    /* Writing may fail if gpg exits early, for example because the
+     * signature file is broken, in which case verify() reports the
+     * failure together with gpg's output. */
+    public void write(int b) {
+      this.write(new byte[] { (byte) b }, 0, 1);
+    }
+    public void write(byte[] b, int off, int len) {
+      if (this.writeFailure == null) {
+        try {
+          this.signedData.write(b, off, len);
+        } catch (IOException e) {
+          this.writeFailure = e;
+        }
+      }
+    }
+    void verify() throws IOException {
+      int exitValue;
+      try {
+        try {
+          this.signedData.close();
+        } catch (IOException e) {
+          /* gpg exited already, so we'll see its exit value. */
+        }
+        exitValue = this.process.waitFor();
+        this.outputReader.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        this.abort();
+        throw new IOException("Interrupted while verifying '"
+            + this.signatureFile.getAbsolutePath() + "'.");
+      } finally {
+        if (this.decompressedSignatureFile != null) {
+          this.decompressedSignatureFile.delete();
+        }
+      }
+      String output;
+      synchronized (this.output) {
+        output = this.output.toString("UTF-8");
+      }
+      if (exitValue != 0 || this.writeFailure != null ||
+          !output.contains("[GNUPG:] VALIDSIG ")) {
+        throw new IOException("OpenPGP signature '"
+            + this.signatureFile.getAbsolutePath() + "' could not be "
+            + "verified: " + output.trim().replaceAll("\\s*\n\\s*",
+            "; "));
+      }
+    }
+    void abort() {
+      this.process.destroy();
+      if (this.decompressedSignatureFile != null) {
+        this.decompressedSignatureFile.delete();
+      }
+    }
+  }
+}
@@ -0,0 +1,71 @@
+/* Copyright 2012 The Tor Project */
+package org.torproject.task6471;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter that can be incremented by many threads concurrently without
+ * contending for the same memory location.  Each thread adds to one of
+ * several stripes chosen by its thread id, and reading the counter sums
+ * up all stripes.  Stripes are spaced out by a cache line, so that
+ * threads on different cores don't invalidate each other's caches.
+ */
+public class StripedCounter {
+
+  /**
+   * Number of longs between two stripes, so that each stripe is located
+   * in its own 64-byte cache line.
+   */
+  private static final int STRIPE_DISTANCE = 8;
+
+  private final int stripeMask;
+
+  private final AtomicLongArray cells;
+
+  /**
+   * Create a new counter with enough stripes for the available
+   * processors.
+   */
+  public StripedCounter() {
+    int stripes = 4;
+    while (stripes < 2 * Runtime.getRuntime().availableProcessors()) {
+      stripes <<= 1;
+    }
+    this.stripeMask = stripes - 1;
+    this.cells = new AtomicLongArray(stripes * STRIPE_DISTANCE);
+  }
+
+  /**
+   * Add one to the counter.
+   */
+  public void increment() {
+    this.add(1L);
+  }
+
+  /**
+   * Add the given value to the counter.
+   */
+  public void add(long value) {
+    int stripe = (int) (Thread.currentThread().getId() & this.stripeMask);
+    this.cells.addAndGet(stripe * STRIPE_DISTANCE, value);
+  }
+
+  /**
+   * Return the sum of all stripes.  This sum is not an atomic snapshot
+   * if other threads are adding to the counter at the same time.
+   */
+  public long sum() {
+    long sum = 0L;
+    for (int i = 0; i < this.cells.length(); i += STRIPE_DISTANCE) {
+      sum += this.cells.get(i);
+    }
+    return sum;
+  }
+
+  /**
+   * Return the sum of all stripes as string.
+   */
+  public String toString() {
+    return String.valueOf(this.sum());
+  }
+}
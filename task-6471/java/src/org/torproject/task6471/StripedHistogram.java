@@ -0,0 +1,70 @@
+/* Copyright 2012 The Tor Project */
+package org.torproject.task6471;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram with a fixed number of buckets that can be updated by many
+ * threads concurrently without contending for the same memory location.
+ * Like StripedCounter, each thread adds to one of several stripes chosen
+ * by its thread id, and reading the histogram sums up all stripes.  Each
+ * stripe starts in its own 64-byte cache line.
+ */
+public class StripedHistogram {
+
+  private final int buckets;
+
+  private final int stripeLength;
+
+  private final int stripeMask;
+
+  private final AtomicLongArray cells;
+
+  /**
+   * Create a new histogram with the given number of buckets and enough
+   * stripes for the available processors.
+   */
+  public StripedHistogram(int buckets) {
+    int stripes = 4;
+    while (stripes < 2 * Runtime.getRuntime().availableProcessors()) {
+      stripes <<= 1;
+    }
+    this.buckets = buckets;
+    this.stripeLength = (buckets + 7) & ~7;
+    this.stripeMask = stripes - 1;
+    this.cells = new AtomicLongArray(stripes * this.stripeLength);
+  }
+
+  /**
+   * Return the number of buckets.
+   */
+  public int getBuckets() {
+    return this.buckets;
+  }
+
+  /**
+   * Add one to the given bucket, or to the last bucket if the given
+   * bucket is larger.
+   */
+  public void increment(int bucket) {
+    int stripe = (int) (Thread.currentThread().getId() & this.stripeMask);
+    this.cells.incrementAndGet(stripe * this.stripeLength
+        + Math.min(bucket, this.buckets - 1));
+  }
+
+  /**
+   * Return the counts of all buckets summed up over all stripes.  Counts
+   * are not an atomic snapshot if other threads are updating the
+   * histogram at the same time.
+   */
+  public long[] getCounts() {
+    long[] counts = new long[this.buckets];
+    for (int i = 0; i < this.cells.length(); i++) {
+      int bucket = i % this.stripeLength;
+      if (bucket < this.buckets) {
+        counts[bucket] += this.cells.get(i);
+      }
+    }
+    return counts;
+  }
+}
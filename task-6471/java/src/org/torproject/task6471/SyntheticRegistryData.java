@@ -0,0 +1,252 @@
+/* Copyright 2012 The Tor Project */
+package org.torproject.task6471;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Generator for synthetic RIR stats files that look roughly like the
+ * real ones, so that importing, repairing, saving, loading, and lookups
+ * can be benchmarked without downloading years of registry data.
+ *
+ * Each of the five registries allocates ranges from its own part of the
+ * IPv4 address space.  Range sizes are powers of two between 256 and
+ * 65536 addresses with small ranges being most common.  Ranges are first
+ * allocated in a random month and stay allocated afterwards, except for
+ * being left out of a file every now and then, and some ranges change
+ * their country code once.  Every tenth range comes with an IPv6 /32.
+ * The same seed always produces the same files.
+ */
+public class SyntheticRegistryData {
+
+  private static final String[] REGISTRIES = new String[] { "afrinic",
+      "apnic", "arin", "lacnic", "ripencc" };
+
+  private static final String[][] CODES = new String[][] {
+      { "za", "ke", "eg", "ng", "ma" }, { "cn", "jp", "au", "in", "kr" },
+      { "us", "ca" }, { "br", "mx", "ar", "cl", "co" },
+      { "de", "fr", "gb", "nl", "ru", "it", "se" } };
+
+  private int months;
+
+  private int rangesPerRegistry;
+
+  private long[][] startAddresses, endAddresses;
+
+  private int[][] firstMonths, codeChangeMonths;
+
+  private String[][] codes, changedCodes;
+
+  /**
+   * Generate ranges for the given number of monthly database dates
+   * starting in October 2007 and the given number of ranges per
+   * registry.
+   */
+  public SyntheticRegistryData(int months, int rangesPerRegistry,
+      long seed) {
+    this.months = months;
+    this.rangesPerRegistry = rangesPerRegistry;
+    int registries = REGISTRIES.length;
+    this.startAddresses = new long[registries][rangesPerRegistry];
+    this.endAddresses = new long[registries][rangesPerRegistry];
+    this.firstMonths = new int[registries][rangesPerRegistry];
+    this.codeChangeMonths = new int[registries][rangesPerRegistry];
+    this.codes = new String[registries][rangesPerRegistry];
+    this.changedCodes = new String[registries][rangesPerRegistry];
+    for (int registry = 0; registry < registries; registry++) {
+      Random rnd = new Random(seed * 31L + registry);
+      String[] registryCodes = CODES[registry];
+      long address = (16L + 40L * registry) << 24;
+      for (int i = 0; i < rangesPerRegistry; i++) {
+        int bits = 8 + Math.min(rnd.nextInt(9), rnd.nextInt(9));
+        if (rnd.nextInt(8) == 0) {
+          /* Leave a gap that is never allocated. */
+          address += 1L << bits;
+        }
+        address = (address + (1L << bits) - 1L) & -(1L << bits);
+        this.startAddresses[registry][i] = address;
+        this.endAddresses[registry][i] = address + (1L << bits) - 1L;
+        address += 1L << bits;
+        this.firstMonths[registry][i] = rnd.nextInt(3) == 0 ? 0
+            : rnd.nextInt(months);
+        this.codes[registry][i] =
+            registryCodes[rnd.nextInt(registryCodes.length)];
+        this.codeChangeMonths[registry][i] = rnd.nextInt(10) == 0
+            ? rnd.nextInt(months) : months;
+        this.changedCodes[registry][i] =
+            registryCodes[rnd.nextInt(registryCodes.length)];
+      }
+    }
+  }
+
+  /**
+   * Return the number of monthly database dates.
+   */
+  public int getMonths() {
+    return this.months;
+  }
+
+  /**
+   * Return the number of registries, which is always 5.
+   */
+  public int getNumberOfRegistries() {
+    return REGISTRIES.length;
+  }
+
+  /**
+   * Return the database date of the given month as yyyymmdd string.
+   */
+  public String getDateString(int month) {
+    return String.format("%04d%02d01", 2007 + (month + 9) / 12,
+        (month + 9) % 12 + 1);
+  }
+
+  /**
+   * Return the database date of the given month as days since 1970.
+   */
+  public int getDatabaseDate(int month) {
+    return DatabaseImpl.convertDateStringToNumber(
+        this.getDateString(month));
+  }
+
+  /**
+   * Return the name of the stats file of the given registry and month.
+   */
+  public String getFileName(int registry, int month) {
+    return "delegated-" + REGISTRIES[registry] + "-"
+        + this.getDateString(month);
+  }
+
+  /* Return whether a range is contained in a registry's file of the
+   * given month.  About one in 200 ranges is left out of a file even
+   * though it was allocated before. */
+  private boolean isContained(int registry, int i, int month) {
+    return this.firstMonths[registry][i] <= month
+        && (i * 31 + month * 17 + registry) % 199 != 0;
+  }
+
+  private String getCode(int registry, int i, int month) {
+    return month < this.codeChangeMonths[registry][i]
+        ? this.codes[registry][i] : this.changedCodes[registry][i];
+  }
+
+  /**
+   * Write the stats file of the given registry and month to the given
+   * directory and return it.
+   */
+  public File writeStatsFile(File directory, int registry, int month)
+      throws IOException {
+    String registryName = REGISTRIES[registry];
+    String date = this.getDateString(month);
+    File file = new File(directory, this.getFileName(registry, month));
+    BufferedWriter bw = new BufferedWriter(new FileWriter(file));
+    bw.write("2|" + registryName + "|" + date + "|"
+        + this.rangesPerRegistry + "|19700101|" + date + "|+0000\n");
+    bw.write(registryName + "|*|ipv4|*|" + this.rangesPerRegistry
+        + "|summary\n");
+    for (int i = 0; i < this.rangesPerRegistry; i++) {
+      if (!this.isContained(registry, i, month)) {
+        continue;
+      }
+      String code = this.getCode(registry, i, month).toUpperCase();
+      long startAddress = this.startAddresses[registry][i];
+      bw.write(registryName + "|" + code + "|ipv4|"
+          + DatabaseImpl.convertAddressNumberToString(startAddress) + "|"
+          + (this.endAddresses[registry][i] - startAddress + 1L)
+          + "|20000101|allocated\n");
+      if (i % 10 == 0) {
+        bw.write(registryName + "|" + code + "|ipv6|"
+            + this.getIpv6Prefix(registry, i) + "|32|20000101|"
+            + "allocated\n");
+      }
+    }
+    bw.close();
+    return file;
+  }
+
+  private String getIpv6Prefix(int registry, int i) {
+    return String.format("2%03x:%x::", registry, i / 10);
+  }
+
+  /**
+   * Write the stats files of all registries and months to the given
+   * directory.
+   */
+  public void writeStatsFiles(File directory) throws IOException {
+    for (int month = 0; month < this.months; month++) {
+      for (int registry = 0; registry < REGISTRIES.length; registry++) {
+        this.writeStatsFile(directory, registry, month);
+      }
+    }
+  }
+
+  /**
+   * Add the ranges of the given registry and month to a database without
+   * parsing a stats file and without repairing the tree afterwards.
+   */
+  void addStatsFileRanges(DatabaseImporterImpl database, int registry,
+      int month) {
+    int databaseDate = this.getDatabaseDate(month);
+    database.addDatabase(this.getFileName(registry, month), databaseDate);
+    for (int i = 0; i < this.rangesPerRegistry; i++) {
+      if (!this.isContained(registry, i, month)) {
+        continue;
+      }
+      String code = this.getCode(registry, i, month);
+      database.addRange(databaseDate, this.startAddresses[registry][i],
+          this.endAddresses[registry][i], code);
+      if (i % 10 == 0) {
+        long ipv6Address = DatabaseImpl.convertIpv6AddressStringToNumber(
+            this.getIpv6Prefix(registry, i));
+        database.addIpv6Range(databaseDate, ipv6Address,
+            ipv6Address | 0xffffffffL, code);
+      }
+    }
+  }
+
+  /**
+   * Fill the given arrays with lookup addresses and dates.  Random
+   * lookups pick most addresses from allocated space and some from
+   * anywhere, and pick any day between the first and last database
+   * date.  Sequential lookups walk through all ranges in ascending
+   * order on a slowly advancing date, which is what looking up a sorted
+   * log file would look like.
+   */
+  public void generateLookups(int[] addresses, int[] dates,
+      boolean sequential, long seed) {
+    Random rnd = new Random(seed);
+    int firstDate = this.getDatabaseDate(0),
+        lastDate = this.getDatabaseDate(this.months - 1);
+    long totalRanges = (long) REGISTRIES.length * this.rangesPerRegistry;
+    for (int i = 0; i < addresses.length; i++) {
+      long address;
+      int date;
+      if (sequential) {
+        long position = totalRanges * i * 16L / addresses.length;
+        int registry = (int) (position / 16L / this.rangesPerRegistry),
+            range = (int) (position / 16L % this.rangesPerRegistry);
+        long startAddress = this.startAddresses[registry][range];
+        address = startAddress + (this.endAddresses[registry][range]
+            - startAddress + 1L) * (position % 16L) / 16L;
+        date = firstDate + (int) ((long) (lastDate - firstDate) * i
+            / addresses.length);
+      } else {
+        if (rnd.nextInt(10) == 0) {
+          address = rnd.nextLong() & 0xffffffffL;
+        } else {
+          int registry = rnd.nextInt(REGISTRIES.length),
+              range = rnd.nextInt(this.rangesPerRegistry);
+          long startAddress = this.startAddresses[registry][range];
+          address = startAddress + (long) (rnd.nextDouble()
+              * (this.endAddresses[registry][range] - startAddress + 1L));
+        }
+        date = firstDate + rnd.nextInt(lastDate - firstDate + 1);
+      }
+      addresses[i] = (int) address;
+      dates[i] = date;
+    }
+  }
+}
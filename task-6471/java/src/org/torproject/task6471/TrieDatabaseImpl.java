@@ -0,0 +1,422 @@
+/* Copyright 2012 The Tor Project */
+package org.torproject.task6471;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Implementation of database holding multiple GeoIP or ASN databases
+ * that answers IPv4 lookups from a multibit trie per database date
+ * rather than by iterating over ranges of all dates.
+ *
+ * Ranges are stored in a CompactDatabaseImpl, and the trie of a database
+ * date is built from those records when that date is first looked up.
+ * Tries use a DIR-16-8-8 layout: a root table with one entry for each
+ * /16 network, and second and third level tables of 256 entries for
+ * each /24 network and each address.  A table entry is either the code
+ * index of the range covering all addresses of that entry plus one, or
+ * 0 if no range covers them, or the bitwise complement of the position
+ * of the next level table in a shared pool of tables.  Ranges that are
+ * not aligned to /16 or /24 boundaries are split into entries of the
+ * next level when building the trie.  A lookup therefore reads at most
+ * three table entries, regardless of how many ranges or dates the
+ * database contains.
+ *
+ * A root table takes 256 KiB, and each next level table takes 1 KiB.
+ * Tries are kept in a cache whose size is given when creating the
+ * database, and once the cache is full, building another trie evicts
+ * the trie that was built first.
+ *
+ * IPv6 lookups, batch code ids, and snapshots are delegated to the
+ * underlying CompactDatabaseImpl.  Like CompactDatabaseImpl, instances
+ * can serve lookups from any number of threads once they are loaded.
+ */
+public class TrieDatabaseImpl implements Database {
+
+  /**
+   * Default number of tries kept in the cache, which is enough for five
+   * years of monthly databases.
+   */
+  static final int DEFAULT_CACHED_TRIES = 64;
+
+  /**
+   * Number of entries in root and next level tables.
+   */
+  private static final int ROOT_ENTRIES = 1 << 16, TABLE_ENTRIES = 1 << 8;
+
+  /**
+   * Maximum number of tries kept in the cache.
+   */
+  private final int cachedTries;
+
+  /**
+   * Database storing the ranges that tries are built from together with
+   * the tries built so far, which are replaced at once after loading
+   * combined databases.
+   */
+  private volatile TrieCache tries;
+
+  /**
+   * Lookup metrics, counting table entries read as key probes.
+   */
+  protected DatabaseMetrics metrics = new DatabaseMetrics(
+      new DatabaseMetrics.MemoryUsage() {
+    public int getRanges() {
+      return TrieDatabaseImpl.this.tries.database.getMetrics().
+          getRanges();
+    }
+    public long getEstimatedHeapBytes() {
+      return TrieDatabaseImpl.this.tries.getBytes();
+    }
+    public long getOffHeapBytes() {
+      return TrieDatabaseImpl.this.tries.database.getMetrics().
+          getOffHeapBytes();
+    }
+  });
+
+  /**
+   * Return lookup metrics.
+   */
+  public DatabaseMetrics getMetrics() {
+    return this.metrics;
+  }
+
+  /**
+   * Create an empty database that can be filled by loading a combined
+   * databases file, caching the default number of tries.
+   */
+  public TrieDatabaseImpl() {
+    this(new CompactDatabaseImpl(), DEFAULT_CACHED_TRIES);
+  }
+
+  /**
+   * Create a database containing the same ranges as the given database
+   * and caching up to the given number of tries.
+   */
+  public TrieDatabaseImpl(CompactDatabaseImpl database,
+      int cachedTries) {
+    if (cachedTries < 1) {
+      throw new IllegalArgumentException("Must cache at least one "
+          + "trie.");
+    }
+    this.cachedTries = cachedTries;
+    this.tries = new TrieCache(database, cachedTries);
+  }
+
+  /**
+   * Load a combined databases file in CSV or binary format into a new
+   * CompactDatabaseImpl and discard all tries built so far.  Checksums
+   * are verified, because building tries reads all records anyway.
+   */
+  public boolean loadCombinedDatabases(String path) {
+    CompactDatabaseImpl database = new CompactDatabaseImpl();
+    database.setVerifyChecksums(true);
+    if (!database.loadCombinedDatabases(path)) {
+      return false;
+    }
+    this.tries = new TrieCache(database, this.cachedTries);
+    return true;
+  }
+
+  /**
+   * Look up address and date by parsing strings first.
+   */
+  public String lookupIpv4AddressAndDate(String addressString,
+      String dateString) {
+    return this.lookupIpv4AddressAndDate(
+        DatabaseImpl.convertAddressStringToNumber(addressString),
+        DatabaseImpl.convertDateStringToNumber(dateString));
+  }
+
+  /**
+   * Look up address and date in the trie of the database that is most
+   * recent on the given date.
+   */
+  public String lookupIpv4AddressAndDate(long address, int dayNumber) {
+    return this.getCodeForId(this.lookupCodeIndex(address, dayNumber));
+  }
+
+  /**
+   * Look up the code index of address and date in the same way, which
+   * is also its code id.
+   */
+  public int lookupIpv4CodeId(long address, int dayNumber) {
+    return this.lookupCodeIndex(address, dayNumber);
+  }
+
+  /**
+   * Look up many addresses and dates, one after the other, because trie
+   * lookups don't benefit from processing queries in address order.
+   */
+  public void lookupIpv4AddressesAndDates(int[] addresses, int[] dates,
+      int[] codeIds) {
+    if (addresses.length != dates.length ||
+        addresses.length != codeIds.length) {
+      throw new IllegalArgumentException("Arrays must have the same "
+          + "length.");
+    }
+    for (int i = 0; i < addresses.length; i++) {
+      codeIds[i] = this.lookupCodeIndex(addresses[i] & 0xffffffffL,
+          dates[i]);
+    }
+  }
+
+  /* Helper: look up the code index of the given address in the trie of
+   * the database that is most recent on the given date, or return
+   * CodeDictionary.NO_CODE if the address is not assigned. */
+  private int lookupCodeIndex(long address, int date) {
+    long startedNanos = this.metrics.startLookup();
+    Trie trie = this.getTrie(date);
+    if (trie == null) {
+      this.metrics.recordLookup(0, startedNanos);
+      return CodeDictionary.NO_CODE;
+    }
+    int keyProbes = 1;
+    int entry = trie.root[(int) (address >>> 16)];
+    if (entry < 0) {
+      keyProbes++;
+      entry = trie.tables[(~entry << 8) | (int) ((address >>> 8) & 0xff)];
+      if (entry < 0) {
+        keyProbes++;
+        entry = trie.tables[(~entry << 8) | (int) (address & 0xff)];
+      }
+    }
+    this.metrics.recordLookup(keyProbes, startedNanos);
+    return entry - 1;
+  }
+
+  /* Helper: return the trie of the database that is most recent on the
+   * given date, building it if necessary, or null if the database is
+   * empty. */
+  private Trie getTrie(int date) {
+    TrieCache tries = this.tries;
+    int index = DatabaseImpl.findDatabaseDateIndex(
+        tries.database.databaseDates, date);
+    if (index < 0) {
+      return null;
+    }
+    Trie trie = tries.get(index);
+    if (trie != null) {
+      this.metrics.recordCacheHit();
+    } else {
+      this.metrics.recordCacheMiss();
+      trie = tries.build(index);
+    }
+    return trie;
+  }
+
+  /**
+   * Build the trie of the database published on the given date from
+   * all records of the given database that contain that date.
+   */
+  static Trie buildTrie(CompactDatabaseImpl database, int databaseDate) {
+    TrieBuilder builder = new TrieBuilder();
+    int numberOfRecords = database.getNumberOfElements();
+    for (int i = 0; i < numberOfRecords; i++) {
+      long key = database.getKey(i);
+      if (DatabaseImpl.convertKeyToDate(key) <= databaseDate &&
+          database.getLastDbDate(i) >= databaseDate) {
+        builder.add(DatabaseImpl.convertKeyToAddress(key),
+            database.getEndAddress(i), database.getCodeIndex(i) + 1);
+      }
+    }
+    return builder.build(databaseDate);
+  }
+
+  /**
+   * Return the code with the given code id.
+   */
+  public String getCodeForId(int codeId) {
+    return this.tries.database.getCodeForId(codeId);
+  }
+
+  /**
+   * Look up the AS number of address and date using the tries and append
+   * its name from the underlying database.
+   */
+  public String lookupIpv4AsNumberAndName(String address, String date) {
+    return this.tries.database.asNames.formatAsNumberAndName(
+        this.lookupIpv4AddressAndDate(address, date));
+  }
+
+  /**
+   * Return intervals from the underlying database.
+   */
+  public Iterator<AddressInterval> iterateIpv4Intervals(String date) {
+    return this.tries.database.iterateIpv4Intervals(date);
+  }
+
+  /**
+   * Return changes from the underlying database.
+   */
+  public Iterator<AddressInterval.Change> iterateIpv4Changes(
+      String fromDate, String toDate) {
+    return this.tries.database.iterateIpv4Changes(fromDate, toDate);
+  }
+
+  /**
+   * Return the assignment history from the underlying database.
+   */
+  public List<AssignmentPeriod> lookupIpv4AssignmentHistory(
+      String address, String fromDate, String toDate) {
+    return this.tries.database.lookupIpv4AssignmentHistory(address,
+        fromDate, toDate);
+  }
+
+  /**
+   * Return the AS name from the underlying database.
+   */
+  public String getAsName(String asNumber) {
+    return this.tries.database.getAsName(asNumber);
+  }
+
+  /**
+   * Look up IPv6 address and date in the underlying database.
+   */
+  public String lookupIpv6AddressAndDate(String address, String date) {
+    return this.tries.database.lookupIpv6AddressAndDate(address, date);
+  }
+
+  /**
+   * Return a snapshot taken by the underlying database.
+   */
+  public DatabaseSnapshot getSnapshot(String dateString) {
+    return this.tries.database.getSnapshot(dateString);
+  }
+
+  /**
+   * Return a snapshot taken by the underlying database.
+   */
+  public DatabaseSnapshot getSnapshot(int dayNumber) {
+    return this.tries.database.getSnapshot(dayNumber);
+  }
+
+  /**
+   * Immutable trie of a single database.
+   */
+  static class Trie {
+    final int databaseDate;
+    final int[] root;
+    final int[] tables;
+    Trie(int databaseDate, int[] root, int[] tables) {
+      this.databaseDate = databaseDate;
+      this.root = root;
+      this.tables = tables;
+    }
+    long getBytes() {
+      return 4L * (this.root.length + this.tables.length);
+    }
+  }
+
+  /**
+   * Builder for a trie that accepts non-overlapping ranges in any order.
+   */
+  static class TrieBuilder {
+    private int[] root = new int[ROOT_ENTRIES];
+    private int[] tables = new int[64 * TABLE_ENTRIES];
+    private int numberOfTables = 0;
+    void add(long startAddress, long endAddress, int entry) {
+      for (long block = startAddress >>> 16; block <= endAddress >>> 16;
+          block++) {
+        long blockStart = block << 16, blockEnd = blockStart + 0xffffL;
+        if (startAddress <= blockStart && endAddress >= blockEnd) {
+          this.root[(int) block] = entry;
+          continue;
+        }
+        int table = this.getOrAddTable(this.root, (int) block);
+        for (long subBlock = Math.max(startAddress, blockStart) >>> 8;
+            subBlock <= Math.min(endAddress, blockEnd) >>> 8;
+            subBlock++) {
+          long subBlockStart = subBlock << 8,
+              subBlockEnd = subBlockStart + 0xffL;
+          int position = (table << 8) | (int) (subBlock & 0xff);
+          if (startAddress <= subBlockStart &&
+              endAddress >= subBlockEnd) {
+            this.tables[position] = entry;
+            continue;
+          }
+          int subTable = this.getOrAddTable(this.tables, position);
+          for (long address = Math.max(startAddress, subBlockStart);
+              address <= Math.min(endAddress, subBlockEnd); address++) {
+            this.tables[(subTable << 8) | (int) (address & 0xff)] =
+                entry;
+          }
+        }
+      }
+    }
+
+    /* Return the next level table that the given entry points to, or
+     * add a new table filled with the entry's previous value. */
+    private int getOrAddTable(int[] entries, int position) {
+      int entry = entries[position];
+      if (entry < 0) {
+        return ~entry;
+      }
+      if ((this.numberOfTables + 1) * TABLE_ENTRIES >
+          this.tables.length) {
+        this.tables = Arrays.copyOf(this.tables, 2 * this.tables.length);
+        if (entries != this.root) {
+          entries = this.tables;
+        }
+      }
+      int table = this.numberOfTables++;
+      Arrays.fill(this.tables, table * TABLE_ENTRIES,
+          (table + 1) * TABLE_ENTRIES, entry);
+      entries[position] = ~table;
+      return table;
+    }
+    Trie build(int databaseDate) {
+      return new Trie(databaseDate, this.root, Arrays.copyOf(
+          this.tables, this.numberOfTables * TABLE_ENTRIES));
+    }
+  }
+
+  /**
+   * Tries built for the databases of a CompactDatabaseImpl, indexed by
+   * the position of their database date.  Lookups read tries without
+   * locking.  Tries are built while holding a lock, so that concurrent
+   * lookups on the same date don't build the same trie twice, and if
+   * more tries are built than fit into the cache, the trie that was
+   * built first is evicted.
+   */
+  static class TrieCache {
+    final CompactDatabaseImpl database;
+    private final AtomicReferenceArray<Trie> tries;
+    private final int size;
+    private final LinkedList<Integer> builtIndexes =
+        new LinkedList<Integer>();
+    private volatile long bytes = 0L;
+    TrieCache(CompactDatabaseImpl database, int size) {
+      this.database = database;
+      this.tries = new AtomicReferenceArray<Trie>(
+          database.databaseDates.length);
+      this.size = size;
+    }
+    Trie get(int index) {
+      return this.tries.get(index);
+    }
+    synchronized Trie build(int index) {
+      Trie trie = this.tries.get(index);
+      if (trie != null) {
+        return trie;
+      }
+      trie = buildTrie(this.database,
+          this.database.databaseDates[index]);
+      this.tries.set(index, trie);
+      this.builtIndexes.add(index);
+      long bytes = this.bytes + trie.getBytes();
+      while (this.builtIndexes.size() > this.size) {
+        int evictedIndex = this.builtIndexes.removeFirst();
+        bytes -= this.tries.getAndSet(evictedIndex, null).getBytes();
+      }
+      this.bytes = bytes;
+      return trie;
+    }
+    long getBytes() {
+      return this.bytes;
+    }
+  }
+}
@@ -1,5 +1,6 @@
 import bisect
 import datetime
+import zlib
 
 class Range:
   def __init__(self, line):
@@ -39,17 +40,71 @@ class Database:
   def create_key(address, date):
     return (address << 16) + date
 
-  def load_combined_databases(self, path):
-    with open(path) as input_file:
-      for line in input_file:
-        line = line.strip()
-        if line.startswith('!'):
-          date = line.split("!")[1]
-          if date not in self.dates:
-            bisect.insort(self.dates, date)
+  # Prefix and version of the header line of checksummed files.
+  CSV_HEADER_PREFIX = '#T6471,'
+  CSV_VERSION = 2
+
+  @staticmethod
+  def read_verified_lines(path):
+    # Checksummed files start with a header line "#T6471,<version>,
+    # <ranges>" and contain a line "#<crc>" after every block of lines,
+    # with <crc> being the CRC32 of all bytes of all lines in the block,
+    # including the header line and line breaks.  Verify checksums and
+    # the number of ranges, and yield all other lines.  Files without
+    # header line are not verified.
+    with open(path, 'rb') as input_file:
+      crc = 0
+      block_lines = 0
+      declared_ranges = -1
+      ranges = 0
+      for line_number, raw_line in enumerate(input_file, 1):
+        line = raw_line.strip()
+        if line_number == 1 and \
+            line.startswith(Database.CSV_HEADER_PREFIX):
+          parts = line.split(',')
+          if len(parts) != 3 or parts[1] != str(Database.CSV_VERSION):
+            raise IOError("Unsupported header line in line 1 of '%s'." %
+                path)
+          declared_ranges = long(parts[2])
+          crc = zlib.crc32(raw_line)
+          block_lines = 1
+          continue
+        if declared_ranges < 0:
+          yield line
+        elif not raw_line.endswith('\n'):
+          raise IOError("Truncated file '%s'." % path)
+        elif line.startswith('#'):
+          if line != '#%08x' % (crc & 0xffffffff):
+            raise IOError("Checksum mismatch in line %d of '%s'." %
+                (line_number, path))
+          crc = 0
+          block_lines = 0
         else:
-          r = Range(line)
-          self.data.append((r.key, r))
+          crc = zlib.crc32(raw_line, crc)
+          block_lines += 1
+          if not line.startswith('!') and not line.startswith('@') and \
+              not line.startswith('*'):
+            ranges += 1
+          yield line
+      if declared_ranges >= 0 and (block_lines > 0 or
+          ranges != declared_ranges):
+        raise IOError("Truncated file '%s'." % path)
+
+  def load_combined_databases(self, path):
+    for line in Database.read_verified_lines(path):
+      if line.startswith('!'):
+        date = line.split("!")[1]
+        if date not in self.dates:
+          bisect.insort(self.dates, date)
+      elif line.startswith('@'):
+        # AS names are not supported yet.
+        continue
+      elif ':' in line:
+        # IPv6 ranges are not supported yet.
+        continue
+      else:
+        r = Range(line)
+        self.data.append((r.key, r))
     self.data.sort()
     self.keys = [r[0] for r in self.data]
 